@@ -27,28 +27,35 @@ import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.MalformedInputException;
 import java.nio.charset.UnmappableCharacterException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
 
 import javax.swing.BoxLayout;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -61,15 +68,19 @@ import javax.swing.ProgressMonitorInputStream;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.SwingWorker.StateValue;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
+import net.ninthtest.nio.charset.CancellationToken;
 import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.file.OutputCommitter;
 import net.ninthtest.swing.util.DimensionHelper;
+import net.ninthtest.swing.util.TypeAheadSelectionManager;
 
 /**
- * <code>CharacterEncodingTranslator</code> is a console and GUI front-end for
+ * <code>CharacterEncodingTranslator</code> is the GUI front-end for
  * {@link CharsetTranslator}.
  * 
  * <p>
@@ -81,24 +92,19 @@ import net.ninthtest.swing.util.DimensionHelper;
  * </pre>
  * 
  * <p>
- * <b>Console usage:</b>
+ * For console usage, see {@link CharacterEncodingTranslatorConsole}.
  * </p>
  * 
- * <pre>
- * java -jar cetrans.jar [-xmlcharref] source-filename source-encoding target-filename target-encoding
- * </pre>
- * 
  * @author mattz
  * @version 2.0.1
  */
 public class CharacterEncodingTranslator {
-    /** The command-line usage message. */
-    public static final String USAGE =
-            "CONSOLE USAGE:\n"
-                    + "\tjava -jar cetrans.jar [-xmlcharref] <source-filename>"
-                    + " <source-encoding> <target-filename> <target-encoding>\n"
-                    + "GUI USAGE:\n"
-                    + "\tjava[w] -jar cetrans.jar\n";
+    /**
+     * The command-line usage message.
+     * 
+     * @see CharacterEncodingTranslatorConsole#USAGE
+     */
+    public static final String USAGE = CharacterEncodingTranslatorConsole.USAGE;
 
     /** The current application SemVer version string. */
     public static final String VERSION = "2.0.1";
@@ -110,6 +116,29 @@ public class CharacterEncodingTranslator {
 
     private static final String DEFAULT_TARGET_ENCODING = "UTF-8";
 
+    /*
+     * shown until the full list of available charsets has been loaded (see
+     * #loadAvailableCharsets())
+     */
+    private static final String[] COMMON_CHARSETS = {"UTF-8", "UTF-16",
+            "UTF-16BE", "UTF-16LE", "US-ASCII", "ISO-8859-1", "windows-1252"};
+
+    private static final String RECENT_CHARSETS_KEY = "charsets.recent";
+
+    private static final int MAX_RECENT_CHARSETS = 8;
+
+    /* how often (in milliseconds) a progress monitor is checked for cancel */
+    private static final int CANCEL_POLL_INTERVAL = 50;
+
+    /* how long (in milliseconds) closing the frame waits for queued jobs */
+    private static final long QUEUE_STOP_TIMEOUT = 5000L;
+
+    private static final String EXIT_AFTER_STARTUP_PROPERTY =
+            "cetrans.exitAfterStartup";
+
+    private final Preferences preferences =
+            Preferences.userNodeForPackage(CharacterEncodingTranslator.class);
+
     private final JTextField inTextField = new JTextField();
 
     private final JButton inButton = new JButton();
@@ -120,6 +149,8 @@ public class CharacterEncodingTranslator {
 
     private final JCheckBox xmlCharRefPref = new JCheckBox();
 
+    private final JCheckBox bestFitPref = new JCheckBox();
+
     private final JTextField outTextField = new JTextField();
 
     private final JButton outButton = new JButton();
@@ -130,22 +161,130 @@ public class CharacterEncodingTranslator {
 
     private final JMenuBar menuBar = new JMenuBar();
 
+    private JDialog queueDialog;
+
+    private TranslationQueuePanel queuePanel;
+
     /**
      * Builds the GUI components for the <i>Character Encoding Translator</i>
      * application.
      */
     public CharacterEncodingTranslator() {
-        JFrame frame = new JFrame(RESOURCES.getString("frame.title"));
+        final JFrame frame = new JFrame(RESOURCES.getString("frame.title"));
 
         initializeComponents();
         doLayout(frame.getContentPane());
 
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void windowClosing(WindowEvent e) {
+                /* (the JVM exits once the listeners return) */
+                stopQueue();
+            }
+        });
         frame.setLocationByPlatform(true);
         frame.setJMenuBar(menuBar);
         frame.pack();
         frame.setResizable(false);
         frame.setVisible(true);
+
+        loadAvailableCharsets(frame);
+    }
+
+    /*
+     * Returns the recently used charset names followed by the common charset
+     * names (and the platform default), without looking up any charset.
+     */
+    private String[] quickCharsets() {
+        Set<String> names = new LinkedHashSet<String>();
+        for (String name : preferences.get(RECENT_CHARSETS_KEY, "")
+                .split(" ")) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        names.addAll(Arrays.asList(COMMON_CHARSETS));
+        names.add(Charset.defaultCharset().name());
+
+        return names.toArray(new String[0]);
+    }
+
+    /*
+     * Moves the given charset names to the front of the recently used list.
+     */
+    private void rememberCharsets(String... charsetNames) {
+        Set<String> names = new LinkedHashSet<String>(
+                Arrays.asList(charsetNames));
+        names.addAll(Arrays.asList(
+                preferences.get(RECENT_CHARSETS_KEY, "").split(" ")));
+        names.remove("");
+
+        StringBuilder recent = new StringBuilder();
+        int count = 0;
+        for (String name : names) {
+            if (count++ == MAX_RECENT_CHARSETS) {
+                break;
+            }
+            recent.append(name).append(' ');
+        }
+        preferences.put(RECENT_CHARSETS_KEY, recent.toString().trim());
+    }
+
+    /*
+     * Looks up every available charset in a background thread (this
+     * instantiates every installed charset, which is far too slow to do
+     * before the window appears), and then appends them to the charset lists.
+     */
+    private void loadAvailableCharsets(final JFrame frame) {
+        new SwingWorker<String[], Void>() {
+            @Override
+            protected String[] doInBackground() {
+                return Charset.availableCharsets().keySet()
+                        .toArray(new String[0]);
+            }
+
+            @SuppressWarnings("synthetic-access")
+            @Override
+            protected void done() {
+                try {
+                    String[] availableCharsets = get();
+                    appendCharsets(inCharsets, availableCharsets);
+                    appendCharsets(outCharsets, availableCharsets);
+                } catch (ExecutionException ex) {
+                    /* keep the quick lists */
+                } catch (InterruptedException ex) {
+                    /* should never happen since the task is done */
+                    assert false;
+                }
+
+                if (Boolean.getBoolean(EXIT_AFTER_STARTUP_PROPERTY)) {
+                    /* a training run for the class data sharing archive */
+                    frame.dispose();
+                    System.exit(0);
+                }
+            }
+        }.execute();
+    }
+
+    /*
+     * Appends the charset names that are not already listed.
+     */
+    private static void appendCharsets(JComboBox<String> charsets,
+            String[] charsetNames) {
+        DefaultComboBoxModel<String> model =
+                (DefaultComboBoxModel<String>) charsets.getModel();
+        Set<String> listed = new HashSet<String>();
+        for (int i = 0; i < model.getSize(); ++i) {
+            listed.add(model.getElementAt(i));
+        }
+
+        for (String name : charsetNames) {
+            if (listed.add(name)) {
+                model.addElement(name);
+            }
+        }
     }
 
     /*
@@ -178,14 +317,13 @@ public class CharacterEncodingTranslator {
             }
         });
 
-        final String[] availableCharsets =
-                Charset.availableCharsets().keySet().toArray(new String[0]);
+        String[] quickCharsets = quickCharsets();
 
-        inCharsets.setModel(
-                new DefaultComboBoxModel<String>(availableCharsets));
+        inCharsets.setModel(new DefaultComboBoxModel<String>(quickCharsets));
         inCharsets.setName("inCharsets");
         inCharsets.setSelectedItem(Charset.defaultCharset().name());
         inCharsets.setEditable(false);
+        inCharsets.setKeySelectionManager(new TypeAheadSelectionManager());
 
         translateButton.setText(RESOURCES.getString("button.text.translate"));
         translateButton.setName("translateButton");
@@ -203,6 +341,7 @@ public class CharacterEncodingTranslator {
                         final String outEncoding =
                                 (String) outCharsets.getSelectedItem();
 
+                        rememberCharsets(inEncoding, outEncoding);
                         try {
                             translate(
                                     inFile, inEncoding, outFile, outEncoding);
@@ -221,6 +360,10 @@ public class CharacterEncodingTranslator {
                 RESOURCES.getString("checkbox.text.use_xml_charref"));
         xmlCharRefPref.setName("xmlCharRefPref");
 
+        bestFitPref.setText(
+                RESOURCES.getString("checkbox.text.use_best_fit"));
+        bestFitPref.setName("bestFitPref");
+
         outTextField.setColumns(TEXT_SIZE);
 
         outButton.setText(RESOURCES.getString("button.text.save"));
@@ -237,11 +380,25 @@ public class CharacterEncodingTranslator {
             }
         });
 
-        outCharsets.setModel(
-                new DefaultComboBoxModel<String>(availableCharsets));
+        outCharsets.setModel(new DefaultComboBoxModel<String>(quickCharsets));
         outCharsets.setName("outCharsets");
         outCharsets.setSelectedItem(DEFAULT_TARGET_ENCODING);
         outCharsets.setEditable(false);
+        outCharsets.setKeySelectionManager(new TypeAheadSelectionManager());
+
+        JMenu file = new JMenu(RESOURCES.getString("menu.file.text"));
+        JMenuItem translateFiles = new JMenuItem(
+                RESOURCES.getString("menu.file.translate_files"));
+        translateFiles.setName("translateFiles");
+        translateFiles.addActionListener(new ActionListener() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                queueFiles();
+            }
+        });
+        file.add(translateFiles);
+        menuBar.add(file);
 
         JMenu help = new JMenu(RESOURCES.getString("menu.help.text"));
         JMenuItem about = new JMenuItem(
@@ -262,6 +419,119 @@ public class CharacterEncodingTranslator {
         menuBar.add(help);
     }
 
+    /*
+     * Asks for files and/or folders and an output folder, and adds a job for
+     * every file to the translation queue (using the selected encodings and
+     * options).
+     */
+    private void queueFiles() {
+        JFileChooser sourceChooser = new JFileChooser(
+                fileChooser.getCurrentDirectory());
+        sourceChooser.setDialogTitle(
+                RESOURCES.getString("chooser.title.sources"));
+        sourceChooser.setFileSelectionMode(
+                JFileChooser.FILES_AND_DIRECTORIES);
+        sourceChooser.setMultiSelectionEnabled(true);
+        if (JFileChooser.APPROVE_OPTION
+                != sourceChooser.showOpenDialog(translateButton)) {
+            return;
+        }
+
+        JFileChooser folderChooser = new JFileChooser(
+                sourceChooser.getCurrentDirectory());
+        folderChooser.setDialogTitle(
+                RESOURCES.getString("chooser.title.output_folder"));
+        folderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (JFileChooser.APPROVE_OPTION
+                != folderChooser.showDialog(translateButton, null)) {
+            return;
+        }
+        File outputFolder = folderChooser.getSelectedFile();
+
+        /* a folder contributes the files it contains (but not subfolders) */
+        List<File> sources = new ArrayList<File>();
+        for (File selected : sourceChooser.getSelectedFiles()) {
+            File[] children = selected.isDirectory()
+                    ? selected.listFiles()
+                    : new File[] {selected};
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isFile()) {
+                        sources.add(child);
+                    }
+                }
+            }
+        }
+
+        String inEncoding = (String) inCharsets.getSelectedItem();
+        String outEncoding = (String) outCharsets.getSelectedItem();
+        rememberCharsets(inEncoding, outEncoding);
+
+        TranslationQueuePanel queue = showQueue();
+        boolean skipped = false;
+        for (File source : sources) {
+            File target = new File(outputFolder, source.getName());
+            if (target.getAbsoluteFile().equals(source.getAbsoluteFile())) {
+                skipped = true;
+                continue;
+            }
+
+            queue.addJob(new TranslationJob(source, target,
+                    new CharsetTranslator(inEncoding, outEncoding)
+                            .useXMLCharRefReplacement(
+                                    xmlCharRefPref.isSelected())
+                            .useBestFitReplacement(
+                                    bestFitPref.isSelected()),
+                    queue.getCommitter()));
+        }
+
+        if (skipped) {
+            JOptionPane.showMessageDialog(queueDialog,
+                    RESOURCES.getString("warning.message.same_input_output"),
+                    RESOURCES.getString("warning.title.cant_continue"),
+                    JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    /*
+     * Cancels the queued and running translations, and waits (briefly) for
+     * the running ones to delete their incomplete output.
+     */
+    private void stopQueue() {
+        if (queuePanel == null) {
+            return;
+        }
+
+        queuePanel.shutdown();
+        try {
+            queuePanel.awaitTermination(QUEUE_STOP_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Shows the (non-modal) translation queue window, creating it on first
+     * use.
+     */
+    private TranslationQueuePanel showQueue() {
+        if (queueDialog == null) {
+            queueDialog = new JDialog((JFrame) SwingUtilities
+                    .getWindowAncestor(translateButton),
+                    RESOURCES.getString("queue.title"));
+            queuePanel = new TranslationQueuePanel();
+            queueDialog.setContentPane(queuePanel);
+            queueDialog.setDefaultCloseOperation(JDialog.HIDE_ON_CLOSE);
+            queueDialog.pack();
+            queueDialog.setLocationByPlatform(true);
+        }
+        queueDialog.setVisible(true);
+
+        return queuePanel;
+    }
+
     /*
      * Applies the GUI layout for the application.
      */
@@ -286,6 +556,7 @@ public class CharacterEncodingTranslator {
         JPanel translatePanel = new JPanel(translateLayout);
         translatePanel.add(translateButton);
         translatePanel.add(xmlCharRefPref);
+        translatePanel.add(bestFitPref);
 
         FlowLayout outLayout = new FlowLayout(FlowLayout.LEFT, 5, 10);
         outLayout.setAlignOnBaseline(true);
@@ -345,15 +616,37 @@ public class CharacterEncodingTranslator {
      * Performs the translation in a background thread.
      */
     private void translate(final File inFile, final String inEncoding,
-            final File outFile, final String outEncoding)
-            throws FileNotFoundException {
+            final File outFile, final String outEncoding) throws IOException {
         final ProgressMonitorInputStream monitorStream =
                 new ProgressMonitorInputStream(translateButton,
                         RESOURCES.getString("monitor.message.translating"),
                         new FileInputStream(inFile));
         monitorStream.getProgressMonitor().setNote(
                 inFile.getName() + " \u2192 " + outFile.getName());
-        final FileOutputStream outStream = new FileOutputStream(outFile);
+        /* the output file is replaced only if the translation succeeds */
+        final OutputCommitter.PendingOutput output;
+        try {
+            output = new OutputCommitter(OutputCommitter.SyncPolicy.FILE)
+                    .create(outFile.toPath());
+        } catch (IOException ex) {
+            monitorStream.close();
+            throw ex;
+        }
+
+        /*
+         * the monitor stream only notices a cancel when it is next read, so
+         * also watch the monitor and cancel the translation directly
+         */
+        final CancellationToken cancellationToken = new CancellationToken();
+        final Timer cancelWatcher = new Timer(CANCEL_POLL_INTERVAL,
+                new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent event) {
+                        if (monitorStream.getProgressMonitor().isCanceled()) {
+                            cancellationToken.cancel();
+                        }
+                    }
+                });
 
         final SwingWorker<Boolean, Void> task =
                 new SwingWorker<Boolean, Void>() {
@@ -364,7 +657,18 @@ public class CharacterEncodingTranslator {
                                 new CharsetTranslator(inEncoding, outEncoding);
                         translator.useXMLCharRefReplacement(
                                 xmlCharRefPref.isSelected());
-                        translator.translate(monitorStream, outStream);
+                        translator.useBestFitReplacement(
+                                bestFitPref.isSelected());
+                        translator.setCancellationToken(cancellationToken);
+
+                        try {
+                            translator.translate(
+                                    monitorStream, output.getStream());
+                            output.commit();
+                        } finally {
+                            output.abort();
+                            monitorStream.close();
+                        }
 
                         return true;
                     }
@@ -384,6 +688,8 @@ public class CharacterEncodingTranslator {
                 if ("state".equals(event.getPropertyName())
                         && (StateValue.DONE == event.getNewValue())
                         && (StateValue.DONE == task.getState())) {
+                    cancelWatcher.stop();
+
                     /*
                      * testing on both Max OS X and Windows 7 shows that
                      * neither the task nor the monitor actually report being
@@ -418,6 +724,7 @@ public class CharacterEncodingTranslator {
             }
         });
         task.execute();
+        cancelWatcher.start();
 
         translateButton.setEnabled(false);
         translateButton.setText(
@@ -460,27 +767,10 @@ public class CharacterEncodingTranslator {
      * 
      * <p>
      * Without command-line arguments, the application runs as a GUI. With
-     * command-line arguments, the application runs on the console.
-     * </p>
-     * 
-     * <p>
-     * To run on the console, provide the following positional arguments:
+     * command-line arguments, the application runs on the console (see
+     * {@link CharacterEncodingTranslatorConsole#main(String[])}).
      * </p>
      * 
-     * <dl>
-     * <dt><b>"-xmlcharref"</b></dt>
-     * <dd>(optional) the literal flag "-xmlcharref" enables XML character
-     * reference replacement</dd>
-     * <dt><i>source-filename</i></dt>
-     * <dd>(required) the path to the input file</dd>
-     * <dt><i>source-encoding</i></dt>
-     * <dd>(required) the character encoding of the input file</dd>
-     * <dt><i>target-filename</i></dt>
-     * <dd>(required) the path to the output file</dd>
-     * <dt><i>target-encoding</i></dt>
-     * <dd>(required) the desired character encoding of the output file</dd>
-     * </dl>
-     * 
      * @param args the command-line arguments
      * @throws ClassNotFoundException if the L&amp;F class name is not found on
      *         the CLASSPATH
@@ -507,50 +797,8 @@ public class CharacterEncodingTranslator {
                 }
             });
             break;
-        case 4:
-            /* falls through */
-        case 5:
-            boolean useXmlCharRef = "-xmlcharref".equals(args[0]);
-            int i = useXmlCharRef ? 1 : 0;
-            String sourceFilename = args[i++];
-            String sourceEncoding = args[i++];
-            String targetFilename = args[i++];
-            String targetEncoding = args[i++];
-
-            InputStream sourceStream = null;
-            OutputStream targetStream = null;
-            int status = 0;
-            try {
-                sourceStream = new FileInputStream(sourceFilename);
-                targetStream = new FileOutputStream(targetFilename);
-
-                (new CharsetTranslator(sourceEncoding, targetEncoding))
-                        .translate(sourceStream, targetStream);
-            } catch (Exception ex) {
-                System.err.println(ex.toString());
-                status = 1;
-            } finally {
-                if (targetStream != null) {
-                    try {
-                        targetStream.close();
-                    } catch (IOException ex) {
-                        System.err.println(ex.toString());
-                    }
-                }
-                if (sourceStream != null) {
-                    try {
-                        sourceStream.close();
-                    } catch (IOException ex) {
-                        System.err.println(ex.toString());
-                    }
-                }
-            }
-
-            System.exit(status);
-            break;
         default:
-            System.err.println(USAGE);
-            System.exit(1);
+            System.exit(CharacterEncodingTranslatorConsole.run(args));
         }
     }
 }
@@ -0,0 +1,813 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharTransform;
+import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.file.OutputCommitter;
+import net.ninthtest.nio.file.OutputCommitter.SyncPolicy;
+import net.ninthtest.nio.file.ShardedBatch;
+import net.ninthtest.nio.file.TailFollower;
+import net.ninthtest.nio.file.TranslationCache;
+import net.ninthtest.nio.file.WatchFolder;
+import net.ninthtest.nio.file.ZipTranslator;
+
+/**
+ * <code>CharacterEncodingTranslatorConsole</code> is the console front-end
+ * for {@link CharsetTranslator}, and the main class of <i>cetrans.jar</i>.
+ * 
+ * <p>
+ * This class is kept free of any reference to AWT, Swing or the GUI resource
+ * bundle, so that a console translation loads as few classes as possible
+ * (scripts may run the console application thousands of times). Only when no
+ * command-line arguments are given is the GUI ({@link
+ * CharacterEncodingTranslator}) loaded.
+ * </p>
+ * 
+ * <p>
+ * <b>Console usage:</b>
+ * </p>
+ * 
+ * <pre>
+ * java -jar cetrans.jar [-xmlcharref] [-bestfit] [-transform transform[,transform ...]] [-follow] [-cache index-filename] [-sync none|file|group] source-filename source-encoding target-filename target-encoding [target-filename target-encoding ...]
+ * java -jar cetrans.jar [-xmlcharref] [-bestfit] [-transform transform[,transform ...]] [-sync none|file|group] -batch manifest-filename [-shard-size count] [-lease-seconds seconds] source-encoding target-encoding
+ * java -jar cetrans.jar [-xmlcharref] [-bestfit] [-transform transform[,transform ...]] [-sync none|file|group] -zip [-entries pattern[,pattern ...]] source-zip-filename source-encoding target-zip-filename target-encoding
+ * java -jar cetrans.jar [-xmlcharref] [-bestfit] [-transform transform[,transform ...]] [-sync none|file|group] -watch [-workers count] [-settle-seconds seconds] inbox-folder source-encoding outbox-folder target-encoding
+ * </pre>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class CharacterEncodingTranslatorConsole {
+    /** The command-line usage message. */
+    public static final String USAGE =
+            "CONSOLE USAGE:\n"
+                    + "\tjava -jar cetrans.jar [-xmlcharref] [-bestfit]"
+                    + " [-transform <transform>[,<transform> ...]]"
+                    + " [-follow]"
+                    + " [-cache <index-filename>] [-sync none|file|group]"
+                    + " <source-filename>"
+                    + " <source-encoding> <target-filename> <target-encoding>"
+                    + " [<target-filename> <target-encoding> ...]\n"
+                    + "\tjava -jar cetrans.jar [-xmlcharref] [-bestfit]"
+                    + " [-transform <transform>[,<transform> ...]]"
+                    + " [-sync none|file|group]"
+                    + " -batch <manifest-filename> [-shard-size <count>]"
+                    + " [-lease-seconds <seconds>]"
+                    + " <source-encoding> <target-encoding>\n"
+                    + "\tjava -jar cetrans.jar [-xmlcharref] [-bestfit]"
+                    + " [-transform <transform>[,<transform> ...]]"
+                    + " [-sync none|file|group]"
+                    + " -zip [-entries <pattern>[,<pattern> ...]]"
+                    + " <source-zip-filename> <source-encoding>"
+                    + " <target-zip-filename> <target-encoding>\n"
+                    + "\tjava -jar cetrans.jar [-xmlcharref] [-bestfit]"
+                    + " [-transform <transform>[,<transform> ...]]"
+                    + " [-sync none|file|group]"
+                    + " -watch [-workers <count>] [-settle-seconds <seconds>]"
+                    + " <inbox-folder> <source-encoding> <outbox-folder>"
+                    + " <target-encoding>\n"
+                    + "GUI USAGE:\n"
+                    + "\tjava[w] -jar cetrans.jar\n";
+
+    /*
+     * the time (in milliseconds) that the JVM waits at shutdown for an
+     * interrupted translation to clean up
+     */
+    private static final long SHUTDOWN_TIMEOUT = 5000L;
+
+    private static final List<String> SYNC_POLICIES =
+            Arrays.asList("none", "file", "group");
+
+    /* the filename that denotes standard input or standard output */
+    private static final String STANDARD_STREAM = "-";
+
+    /**
+     * Runs the console application.
+     * 
+     * @param args the command-line arguments (see {@link #main(String[])})
+     * @return the exit status: 0 (zero) if every translation succeeded,
+     *         otherwise 1 (one)
+     */
+    public static int run(String[] args) {
+        boolean useXmlCharRef = false;
+        boolean useBestFit = false;
+        CharTransform transform = null;
+        boolean follow = false;
+        String cacheFilename = null;
+        SyncPolicy syncPolicy = SyncPolicy.NONE;
+        String manifestFilename = null;
+        int shardSize = ShardedBatch.DEFAULT_SHARD_SIZE;
+        long leaseMillis = ShardedBatch.DEFAULT_LEASE_MILLIS;
+        boolean watch = false;
+        int workerCount = 0;
+        long settleMillis = WatchFolder.DEFAULT_SETTLE_MILLIS;
+        boolean zip = false;
+        String entryPatterns = ZipTranslator.DEFAULT_ENTRY_PATTERNS;
+        int i = 0;
+        while ((i < args.length) && args[i].startsWith("-")
+                && !STANDARD_STREAM.equals(args[i])) {
+            if ("-xmlcharref".equals(args[i])) {
+                useXmlCharRef = true;
+                ++i;
+            } else if ("-bestfit".equals(args[i])) {
+                useBestFit = true;
+                ++i;
+            } else if ("-transform".equals(args[i])
+                    && ((i + 1) < args.length)) {
+                try {
+                    transform = CharTransform.forName(args[i + 1]);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println(ex.getMessage());
+                    System.err.println(USAGE);
+                    return 1;
+                }
+                i += 2;
+            } else if ("-follow".equals(args[i])) {
+                follow = true;
+                ++i;
+            } else if ("-cache".equals(args[i]) && ((i + 1) < args.length)) {
+                cacheFilename = args[i + 1];
+                i += 2;
+            } else if ("-sync".equals(args[i]) && ((i + 1) < args.length)
+                    && SYNC_POLICIES.contains(args[i + 1])) {
+                syncPolicy = SyncPolicy.valueOf(
+                        args[i + 1].toUpperCase(Locale.ENGLISH));
+                i += 2;
+            } else if ("-batch".equals(args[i]) && ((i + 1) < args.length)) {
+                manifestFilename = args[i + 1];
+                i += 2;
+            } else if ("-shard-size".equals(args[i])
+                    && ((i + 1) < args.length)
+                    && (parsePositive(args[i + 1]) > 0L)) {
+                shardSize = (int) Math.min(parsePositive(args[i + 1]),
+                        Integer.MAX_VALUE);
+                i += 2;
+            } else if ("-lease-seconds".equals(args[i])
+                    && ((i + 1) < args.length)
+                    && (parsePositive(args[i + 1]) > 0L)) {
+                leaseMillis = TimeUnit.SECONDS.toMillis(
+                        parsePositive(args[i + 1]));
+                i += 2;
+            } else if ("-zip".equals(args[i])) {
+                zip = true;
+                ++i;
+            } else if ("-entries".equals(args[i])
+                    && ((i + 1) < args.length)) {
+                entryPatterns = args[i + 1];
+                i += 2;
+            } else if ("-watch".equals(args[i])) {
+                watch = true;
+                ++i;
+            } else if ("-workers".equals(args[i]) && ((i + 1) < args.length)
+                    && (parsePositive(args[i + 1]) > 0L)) {
+                workerCount = (int) Math.min(parsePositive(args[i + 1]),
+                        Integer.MAX_VALUE);
+                i += 2;
+            } else if ("-settle-seconds".equals(args[i])
+                    && ((i + 1) < args.length)
+                    && (parsePositive(args[i + 1]) > 0L)) {
+                settleMillis = TimeUnit.SECONDS.toMillis(
+                        parsePositive(args[i + 1]));
+                i += 2;
+            } else {
+                System.err.println(USAGE);
+                return 1;
+            }
+        }
+
+        int remaining = args.length - i;
+        if (zip) {
+            if ((remaining != 4) || follow || (cacheFilename != null)
+                    || (manifestFilename != null) || watch
+                    || STANDARD_STREAM.equals(args[i])
+                    || STANDARD_STREAM.equals(args[i + 2])) {
+                System.err.println(USAGE);
+                return 1;
+            }
+
+            return runZip(args[i], args[i + 2], entryPatterns, args[i + 1],
+                    args[i + 3], useXmlCharRef, useBestFit, transform,
+                    syncPolicy);
+        }
+        if (watch) {
+            if ((remaining != 4) || follow || (cacheFilename != null)
+                    || (manifestFilename != null)
+                    || STANDARD_STREAM.equals(args[i])
+                    || STANDARD_STREAM.equals(args[i + 2])) {
+                System.err.println(USAGE);
+                return 1;
+            }
+
+            return runWatch(args[i], args[i + 2], workerCount, settleMillis,
+                    args[i + 1], args[i + 3], useXmlCharRef, useBestFit,
+                    transform, syncPolicy);
+        }
+        if (manifestFilename != null) {
+            if ((remaining != 2) || follow || (cacheFilename != null)) {
+                System.err.println(USAGE);
+                return 1;
+            }
+
+            return runBatch(manifestFilename, shardSize, leaseMillis,
+                    args[i], args[i + 1], useXmlCharRef, useBestFit,
+                    transform, syncPolicy);
+        }
+        if ((remaining < 4) || ((remaining % 2) != 0)
+                || (follow && ((remaining != 4) || (cacheFilename != null)))
+                || ((follow || (cacheFilename != null))
+                        && STANDARD_STREAM.equals(args[i]))) {
+            System.err.println(USAGE);
+            return 1;
+        }
+        String sourceFilename = args[i++];
+        String sourceEncoding = args[i++];
+        int targetCount = (args.length - i) / 2;
+        String[] targetFilenames = new String[targetCount];
+        String[] targetEncodings = new String[targetCount];
+        for (int t = 0; t < targetCount; ++t) {
+            targetFilenames[t] = args[i++];
+            targetEncodings[t] = args[i++];
+        }
+
+        TranslationCache cache = null;
+        int status = 0;
+        try {
+            List<CharsetTranslator> translators =
+                    new ArrayList<CharsetTranslator>(targetCount);
+            List<String> filenames = new ArrayList<String>(targetCount);
+            for (int t = 0; t < targetCount; ++t) {
+                CharsetTranslator translator = new CharsetTranslator(
+                        sourceEncoding, targetEncodings[t])
+                        .useXMLCharRefReplacement(useXmlCharRef)
+                        .useBestFitReplacement(useBestFit);
+                translator.setTransform(transform);
+                translators.add(translator);
+                filenames.add(targetFilenames[t]);
+            }
+
+            if (follow) {
+                followOnConsole(sourceFilename, translators.get(0),
+                        filenames.get(0));
+                return status;
+            }
+
+            byte[] sourceHash = null;
+            if (cacheFilename != null) {
+                cache = new TranslationCache(Paths.get(cacheFilename));
+                sourceHash = TranslationCache.hash(Paths.get(sourceFilename));
+
+                removeCachedTargets(cache, sourceHash, translators, filenames);
+            }
+
+            if (!translators.isEmpty()) {
+                translateCancelably(sourceFilename, translators, filenames,
+                        syncPolicy);
+            }
+
+            if (cache != null) {
+                for (int t = 0; t < translators.size(); ++t) {
+                    if (!STANDARD_STREAM.equals(filenames.get(t))) {
+                        cache.put(sourceHash, translators.get(t),
+                                Paths.get(filenames.get(t)));
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            System.err.println(ex.toString());
+            status = 1;
+        } finally {
+            if (cache != null) {
+                try {
+                    cache.close();
+                } catch (IOException ex) {
+                    System.err.println(ex.toString());
+                }
+            }
+        }
+
+        return status;
+    }
+
+    /*
+     * Returns the value of a positive whole number argument, or 0 (zero) if it
+     * is not one.
+     */
+    private static long parsePositive(String arg) {
+        try {
+            return Math.max(Long.parseLong(arg), 0L);
+        } catch (NumberFormatException ex) {
+            return 0L;
+        }
+    }
+
+    /*
+     * Translates the shards of a batch manifest (in cooperation with any other
+     * processes that translate the same manifest) until all are done, and
+     * reports the files that failed in the shards that this process
+     * translated.
+     */
+    private static int runBatch(String manifestFilename, int shardSize,
+            long leaseMillis, String sourceEncoding, String targetEncoding,
+            boolean useXmlCharRef, boolean useBestFit,
+            CharTransform transform, SyncPolicy syncPolicy) {
+        CancellationToken cancellationToken = new CancellationToken();
+        CountDownLatch cleanedUp = new CountDownLatch(1);
+        Thread shutdownHook = addShutdownHook(cancellationToken, cleanedUp);
+        try {
+            CharsetTranslator translator = newTranslator(sourceEncoding,
+                    targetEncoding, useXmlCharRef, useBestFit, transform,
+                    cancellationToken);
+            ShardedBatch batch = new ShardedBatch(Paths.get(manifestFilename),
+                    shardSize, leaseMillis);
+            OutputCommitter committer = new OutputCommitter(syncPolicy);
+            List<String> failures = batch.run(translator, committer);
+            committer.close();
+
+            for (String failure : failures) {
+                System.err.println(failure);
+            }
+
+            return failures.isEmpty() ? 0 : 1;
+        } catch (Exception ex) {
+            System.err.println(ex.toString());
+
+            return 1;
+        } finally {
+            cleanedUp.countDown();
+            removeShutdownHook(shutdownHook);
+        }
+    }
+
+    /*
+     * Creates the translator for a batch, archive or watched folder (throwing
+     * an IllegalArgumentException if either charset is unknown).
+     */
+    private static CharsetTranslator newTranslator(String sourceEncoding,
+            String targetEncoding, boolean useXmlCharRef, boolean useBestFit,
+            CharTransform transform, CancellationToken cancellationToken) {
+        CharsetTranslator translator =
+                new CharsetTranslator(sourceEncoding, targetEncoding)
+                        .useXMLCharRefReplacement(useXmlCharRef)
+                        .useBestFitReplacement(useBestFit);
+        translator.setTransform(transform);
+        translator.setCancellationToken(cancellationToken);
+
+        return translator;
+    }
+
+    /*
+     * Translates the text entries of a ZIP archive (and copies the others) to
+     * a new archive, which replaces the target only if every entry succeeds.
+     */
+    private static int runZip(String sourceFilename, String targetFilename,
+            String entryPatterns, String sourceEncoding,
+            String targetEncoding, boolean useXmlCharRef, boolean useBestFit,
+            CharTransform transform, SyncPolicy syncPolicy) {
+        CancellationToken cancellationToken = new CancellationToken();
+        CountDownLatch cleanedUp = new CountDownLatch(1);
+        Thread shutdownHook = addShutdownHook(cancellationToken, cleanedUp);
+        OutputCommitter.PendingOutput output = null;
+        try {
+            ZipTranslator zipTranslator = new ZipTranslator(newTranslator(
+                    sourceEncoding, targetEncoding, useXmlCharRef, useBestFit,
+                    transform, cancellationToken));
+            zipTranslator.setEntryPatterns(entryPatterns);
+
+            OutputCommitter committer = new OutputCommitter(syncPolicy);
+            output = committer.create(Paths.get(targetFilename));
+            zipTranslator.translate(Paths.get(sourceFilename),
+                    output.getStream());
+            output.commit();
+            committer.close();
+
+            return 0;
+        } catch (Exception ex) {
+            System.err.println(ex.toString());
+
+            return 1;
+        } finally {
+            if (output != null) {
+                output.abort();
+            }
+            cleanedUp.countDown();
+            removeShutdownHook(shutdownHook);
+        }
+    }
+
+    /*
+     * Translates the files that are dropped into the inbox folder, until the
+     * JVM is terminated; failures are reported as they happen.
+     */
+    private static int runWatch(String inboxFilename, String outboxFilename,
+            int workerCount, long settleMillis, String sourceEncoding,
+            String targetEncoding, boolean useXmlCharRef, boolean useBestFit,
+            CharTransform transform, SyncPolicy syncPolicy) {
+        CancellationToken cancellationToken = new CancellationToken();
+        CountDownLatch cleanedUp = new CountDownLatch(1);
+        Thread shutdownHook = addShutdownHook(cancellationToken, cleanedUp);
+        try {
+            CharsetTranslator translator = newTranslator(sourceEncoding,
+                    targetEncoding, useXmlCharRef, useBestFit, transform,
+                    cancellationToken);
+            OutputCommitter committer = new OutputCommitter(syncPolicy);
+            WatchFolder watchFolder = new WatchFolder(
+                    Paths.get(inboxFilename), Paths.get(outboxFilename),
+                    translator, committer);
+            if (workerCount > 0) {
+                watchFolder.setWorkerCount(workerCount);
+            }
+            watchFolder.setSettleTime(settleMillis);
+            watchFolder.setListener(new WatchFolder.Listener() {
+                @Override
+                public void translated(Path source, Path target) {
+                    /* nothing to report */
+                }
+
+                @Override
+                public void failed(Path source, Exception cause) {
+                    System.err.println(source + ": " + cause);
+                }
+            });
+
+            watchFolder.watch();
+            committer.close();
+
+            return 0;
+        } catch (Exception ex) {
+            System.err.println(ex.toString());
+
+            return 1;
+        } finally {
+            cleanedUp.countDown();
+            removeShutdownHook(shutdownHook);
+        }
+    }
+
+    /*
+     * Restores cached results to their targets, removing those targets (and
+     * their translators) from the lists so that they are not translated again
+     * (standard output is never cached).
+     */
+    private static void removeCachedTargets(TranslationCache cache,
+            byte[] sourceHash, List<CharsetTranslator> translators,
+            List<String> filenames) throws IOException {
+        for (int t = translators.size() - 1; t >= 0; --t) {
+            if (STANDARD_STREAM.equals(filenames.get(t))) {
+                continue;
+            }
+
+            Path target = Paths.get(filenames.get(t));
+            TranslationCache.Entry entry =
+                    cache.get(sourceHash, translators.get(t));
+
+            if ((entry != null) && cache.restore(entry, target)) {
+                translators.remove(t);
+                filenames.remove(t);
+            }
+        }
+    }
+
+    /*
+     * Translates the source file, and then keeps translating bytes as they are
+     * appended to it, until the JVM is terminated.
+     */
+    private static void followOnConsole(String sourceFilename,
+            CharsetTranslator translator, String targetFilename)
+            throws IOException {
+        FileOutputStream targetStream = openTarget(targetFilename);
+        try {
+            new TailFollower(translator, Paths.get(sourceFilename),
+                    targetStream.getChannel()).follow();
+        } finally {
+            close(targetStream, targetFilename);
+        }
+    }
+
+    /*
+     * Translates between two channels, writing the translation of every read
+     * as soon as it is available (so that standard input/output can be used
+     * in a streaming pipeline); every single-target translation is done this
+     * way.
+     */
+    private static void pipeOnConsole(String sourceFilename,
+            CharsetTranslator translator, String targetFilename,
+            OutputCommitter committer) throws IOException {
+        ReadableByteChannel sourceChannel = null;
+        OutputCommitter.PendingOutput output = null;
+        try {
+            sourceChannel = STANDARD_STREAM.equals(sourceFilename)
+                    ? Channels.newChannel(System.in)
+                    : FileChannel.open(Paths.get(sourceFilename));
+
+            if (STANDARD_STREAM.equals(targetFilename)) {
+                translator.translate(sourceChannel,
+                        new FileOutputStream(FileDescriptor.out).getChannel());
+            } else {
+                output = committer.create(Paths.get(targetFilename));
+                translator.translate(sourceChannel, output.getChannel());
+                output.commit();
+            }
+        } finally {
+            if (output != null) {
+                output.abort();
+            }
+            if ((sourceChannel != null)
+                    && !STANDARD_STREAM.equals(sourceFilename)) {
+                try {
+                    sourceChannel.close();
+                } catch (IOException ex) {
+                    System.err.println(ex.toString());
+                }
+            }
+        }
+    }
+
+    /*
+     * Opens the target file, or (unbuffered) standard output.
+     */
+    private static FileOutputStream openTarget(String targetFilename)
+            throws IOException {
+        return STANDARD_STREAM.equals(targetFilename)
+                ? new FileOutputStream(FileDescriptor.out)
+                : new FileOutputStream(targetFilename);
+    }
+
+    /*
+     * Closes the target stream (unless it is standard output, which must
+     * stay open for any other target).
+     */
+    private static void close(OutputStream targetStream,
+            String targetFilename) {
+        if ((targetStream != null)
+                && !STANDARD_STREAM.equals(targetFilename)) {
+            try {
+                targetStream.close();
+            } catch (IOException ex) {
+                System.err.println(ex.toString());
+            }
+        }
+    }
+
+    /*
+     * Translates the source file to the target files, but if the JVM is shut
+     * down in the meantime (e.g. by SIGTERM or Ctrl-C), stops translating and
+     * removes the incomplete output before the JVM exits.
+     */
+    private static void translateCancelably(String sourceFilename,
+            List<CharsetTranslator> translators, List<String> filenames,
+            SyncPolicy syncPolicy) throws IOException {
+        final CancellationToken cancellationToken = new CancellationToken();
+        for (CharsetTranslator translator : translators) {
+            translator.setCancellationToken(cancellationToken);
+        }
+
+        CountDownLatch cleanedUp = new CountDownLatch(1);
+        Thread shutdownHook = addShutdownHook(cancellationToken, cleanedUp);
+        try {
+            OutputCommitter committer = new OutputCommitter(syncPolicy);
+            translateOnConsole(sourceFilename,
+                    translators.toArray(new CharsetTranslator[0]),
+                    filenames.toArray(new String[0]), committer);
+            committer.close();
+        } finally {
+            cleanedUp.countDown();
+            removeShutdownHook(shutdownHook);
+        }
+    }
+
+    /*
+     * Adds a hook that, if the JVM is shut down (e.g. by SIGTERM or Ctrl-C),
+     * cancels the token and waits (for a while) for the latch, so that
+     * incomplete output can be cleaned up.
+     */
+    private static Thread addShutdownHook(
+            final CancellationToken cancellationToken,
+            final CountDownLatch cleanedUp) {
+        Thread shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cancellationToken.cancel();
+                try {
+                    cleanedUp.await(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    /* exit anyway */
+                }
+            }
+        }, "cetrans-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        return shutdownHook;
+    }
+
+    private static void removeShutdownHook(Thread shutdownHook) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            /* already shutting down */
+        }
+    }
+
+    /*
+     * Translates the source file to every target file in a single pass; the
+     * target files are replaced only if the whole translation succeeds.
+     */
+    private static void translateOnConsole(String sourceFilename,
+            CharsetTranslator[] translators, String[] targetFilenames,
+            OutputCommitter committer) throws IOException {
+        if (translators.length == 1) {
+            /* (the channel translation is the fastest, and may be direct) */
+            pipeOnConsole(sourceFilename, translators[0], targetFilenames[0],
+                    committer);
+            return;
+        }
+
+        InputStream sourceStream = null;
+        OutputCommitter.PendingOutput[] outputs =
+                new OutputCommitter.PendingOutput[translators.length];
+        OutputStream[] targetStreams = new OutputStream[translators.length];
+        try {
+            sourceStream = STANDARD_STREAM.equals(sourceFilename)
+                    ? System.in
+                    : new FileInputStream(sourceFilename);
+            for (int t = 0; t < targetStreams.length; ++t) {
+                if (STANDARD_STREAM.equals(targetFilenames[t])) {
+                    targetStreams[t] = new FileOutputStream(FileDescriptor.out);
+                } else {
+                    outputs[t] = committer.create(
+                            Paths.get(targetFilenames[t]));
+                    targetStreams[t] = outputs[t].getStream();
+                }
+            }
+
+            CharsetTranslator.translate(
+                    sourceStream, translators, targetStreams);
+
+            for (OutputCommitter.PendingOutput output : outputs) {
+                if (output != null) {
+                    output.commit();
+                }
+            }
+        } finally {
+            /* (does nothing to the outputs that have been committed) */
+            for (OutputCommitter.PendingOutput output : outputs) {
+                if (output != null) {
+                    output.abort();
+                }
+            }
+            if ((sourceStream != null)
+                    && !STANDARD_STREAM.equals(sourceFilename)) {
+                try {
+                    sourceStream.close();
+                } catch (IOException ex) {
+                    System.err.println(ex.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Launches <i>Character Encoding Translator</i> as a console application
+     * (or, without command-line arguments, as a GUI application).
+     * 
+     * <p>
+     * To run on the console, provide the following positional arguments:
+     * </p>
+     * 
+     * <dl>
+     * <dt><b>"-xmlcharref"</b></dt>
+     * <dd>(optional) the literal flag "-xmlcharref" enables XML character
+     * reference replacement</dd>
+     * <dt><b>"-bestfit"</b></dt>
+     * <dd>(optional) the literal flag "-bestfit" enables best-fit
+     * replacement, which takes precedence over XML character reference
+     * replacement for unmappable characters that have a best-fit
+     * equivalent</dd>
+     * <dt><b>"-follow"</b></dt>
+     * <dd>(optional) keeps translating bytes as they are appended to the
+     * source file, in the manner of <code>tail -f</code>, until the
+     * application is terminated (exactly one target file must be specified,
+     * and <b>"-cache"</b> may not be used)</dd>
+     * <dt><b>"-cache"</b> <i>index-filename</i></dt>
+     * <dd>(optional) records each translation in the
+     * {@link TranslationCache} stored in <i>index-filename</i>, and skips
+     * (or links/copies the recorded output of) translations whose source
+     * content, charsets and options are unchanged</dd>
+     * <dt><b>"-sync"</b> <i>none|file|group</i></dt>
+     * <dd>(optional) target files are always written to a temporary file
+     * and renamed when the translation succeeds; this selects the
+     * {@link OutputCommitter.SyncPolicy} that forces them to storage:
+     * <i>none</i> (the default), every <i>file</i> as it is renamed, or the
+     * whole <i>group</i> of target files at once</dd>
+     * <dt><b>"-batch"</b> <i>manifest-filename</i></dt>
+     * <dd>(optional) translates every file listed in the manifest (see
+     * {@link ShardedBatch}) from <i>source-encoding</i> to
+     * <i>target-encoding</i>, which are then the only positional arguments;
+     * any number of processes, on any hosts that share the file system, may
+     * translate the same manifest at once, each claiming shards of it
+     * (<b>"-follow"</b> and <b>"-cache"</b> may not be used)</dd>
+     * <dt><b>"-shard-size"</b> <i>count</i></dt>
+     * <dd>(optional) the number of files in each shard of a batch
+     * (default {@value ShardedBatch#DEFAULT_SHARD_SIZE})</dd>
+     * <dt><b>"-lease-seconds"</b> <i>seconds</i></dt>
+     * <dd>(optional) the time after which the shard of a batch process that
+     * has stopped renewing its lease is taken over by another (default 60)</dd>
+     * <dt><b>"-zip"</b></dt>
+     * <dd>(optional) the literal flag "-zip" translates the text entries of
+     * the ZIP archive <i>source-filename</i>, in parallel and without
+     * extracting them (see {@link ZipTranslator}), and copies its other
+     * entries unchanged, to the new ZIP archive <i>target-filename</i>
+     * (exactly one target archive must be specified, and <b>"-follow"</b>,
+     * <b>"-cache"</b>, <b>"-batch"</b> and <b>"-watch"</b> may not be
+     * used)</dd>
+     * <dt><b>"-entries"</b> <i>pattern[,pattern ...]</i></dt>
+     * <dd>(optional) the patterns of the names of the text entries of a ZIP
+     * archive (default "{@value ZipTranslator#DEFAULT_ENTRY_PATTERNS}")</dd>
+     * <dt><b>"-watch"</b></dt>
+     * <dd>(optional) the literal flag "-watch" runs the console application
+     * as a daemon that translates every file dropped into the folder
+     * <i>source-filename</i> (see {@link WatchFolder}) to the folder
+     * <i>target-filename</i>, moving each source file to the
+     * <code>done</code> or <code>failed</code> sub-folder, until the
+     * application is terminated (exactly one target folder must be
+     * specified, and <b>"-follow"</b>, <b>"-cache"</b> and <b>"-batch"</b>
+     * may not be used)</dd>
+     * <dt><b>"-workers"</b> <i>count</i></dt>
+     * <dd>(optional) the number of files that the daemon translates at a
+     * time (default: the number of processors, but no more than 4)</dd>
+     * <dt><b>"-settle-seconds"</b> <i>seconds</i></dt>
+     * <dd>(optional) the time for which a dropped file must not change
+     * before the daemon translates it (default 2)</dd>
+     * <dt><i>source-filename</i></dt>
+     * <dd>(required) the path to the input file, or "-" for standard input
+     * (which may not be used with <b>"-follow"</b> or <b>"-cache"</b>)</dd>
+     * <dt><i>source-encoding</i></dt>
+     * <dd>(required) the character encoding of the input file</dd>
+     * <dt><i>target-filename</i></dt>
+     * <dd>(required) the path to the output file, or "-" for standard
+     * output</dd>
+     * <dt><i>target-encoding</i></dt>
+     * <dd>(required) the desired character encoding of the output file</dd>
+     * </dl>
+     * 
+     * <p>
+     * Any number of additional <i>target-filename</i>/<i>target-encoding</i>
+     * pairs may follow. The source file is read and decoded only once, and
+     * the decoded characters are encoded to every target file.
+     * </p>
+     * 
+     * @param args the command-line arguments
+     * @throws Exception if the GUI cannot be launched
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            CharacterEncodingTranslator.main(args);
+        } else {
+            System.exit(run(args));
+        }
+    }
+
+    private CharacterEncodingTranslatorConsole() {
+        /* never instantiated */
+    }
+}
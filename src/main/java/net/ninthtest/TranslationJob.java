@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.file.OutputCommitter;
+
+/**
+ * A <code>TranslationJob</code> translates one file, and reports its state
+ * and progress to any thread that asks.
+ * 
+ * <p>
+ * Progress is only recorded (as the number of source bytes read), never
+ * published: observers such as a GUI poll {@link #getProgress()} at whatever
+ * rate suits them, so a fast translation does not generate an event for
+ * every read.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public class TranslationJob implements Runnable {
+    /**
+     * The states of a <code>TranslationJob</code>.
+     */
+    public static enum State {
+        /** The job is waiting to run. */
+        QUEUED,
+
+        /** The job is running. */
+        RUNNING,
+
+        /** The job finished successfully. */
+        SUCCEEDED,
+
+        /** The job finished with a failure (see {@link #getFailure()}). */
+        FAILED,
+
+        /** The job was canceled before it finished. */
+        CANCELED;
+
+        /**
+         * Tells whether or not a job in this state has finished.
+         * 
+         * @return <code>true</code> if the job succeeded, failed or was
+         *         canceled
+         */
+        public boolean isFinished() {
+            return (this != QUEUED) && (this != RUNNING);
+        }
+    }
+
+    private final File source;
+
+    private final File target;
+
+    private final CharsetTranslator translator;
+
+    private final OutputCommitter committer;
+
+    private final long sourceLength;
+
+    private volatile State state = State.QUEUED;
+
+    private volatile long bytesRead;
+
+    private final CancellationToken cancellationToken =
+            new CancellationToken();
+
+    private volatile Throwable failure;
+
+    /**
+     * Constructs a new <code>TranslationJob</code> that replaces the target
+     * file without forcing it to storage.
+     * 
+     * @param source the file to be translated
+     * @param target the file to which the translation is written
+     * @param translator the translator used by (only) this job
+     */
+    public TranslationJob(File source, File target,
+            CharsetTranslator translator) {
+        this(source, target, translator,
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE));
+    }
+
+    /**
+     * Constructs a new <code>TranslationJob</code>.
+     * 
+     * @param source the file to be translated
+     * @param target the file to which the translation is written
+     * @param translator the translator used by (only) this job
+     * @param committer the committer that replaces the target file when
+     *        (and only if) the translation succeeds (under the
+     *        {@link OutputCommitter.SyncPolicy#GROUP} policy, the target is
+     *        only replaced when the committer is synced, which may be after
+     *        the job has succeeded)
+     */
+    public TranslationJob(File source, File target,
+            CharsetTranslator translator, OutputCommitter committer) {
+        this.source = source;
+        this.target = target;
+        this.translator = translator;
+        this.committer = committer;
+        translator.setCancellationToken(cancellationToken);
+        sourceLength = source.length();
+    }
+
+    /**
+     * Returns the file to be translated.
+     * 
+     * @return the source file
+     */
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the file to which the translation is written.
+     * 
+     * @return the target file
+     */
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the current state of this job.
+     * 
+     * @return the job state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the progress of this job.
+     * 
+     * @return the percentage (0 to 100) of the source file that has been read
+     */
+    public int getProgress() {
+        if (state == State.SUCCEEDED) {
+            return 100;
+        } else if (sourceLength <= 0L) {
+            return 0;
+        }
+
+        return (int) Math.min(100L, (bytesRead * 100L) / sourceLength);
+    }
+
+    /**
+     * Returns the reason this job failed.
+     * 
+     * @return the failure, or <code>null</code> if the job has not failed
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Asks this job to stop.
+     * 
+     * <p>
+     * A queued job will not run at all; a running job stops before it reads
+     * the next buffer from the source file, and leaves the target file as it
+     * was.
+     * </p>
+     */
+    public void cancel() {
+        cancellationToken.cancel();
+    }
+
+    /**
+     * Translates the source file to the target file.
+     */
+    @Override
+    public void run() {
+        if (cancellationToken.isCanceled()) {
+            state = State.CANCELED;
+            return;
+        }
+        state = State.RUNNING;
+
+        try {
+            InputStream sourceStream = new ProgressInputStream(
+                    new FileInputStream(source));
+            try {
+                OutputCommitter.PendingOutput output =
+                        committer.create(target.toPath());
+                try {
+                    translator.translate(sourceStream, output.getStream());
+                    output.commit();
+                } finally {
+                    /* an incomplete output never replaces the target */
+                    output.abort();
+                }
+            } finally {
+                sourceStream.close();
+            }
+
+            state = State.SUCCEEDED;
+        } catch (InterruptedIOException ex) {
+            state = State.CANCELED;
+        } catch (IOException ex) {
+            failure = ex;
+            state = State.FAILED;
+        } catch (RuntimeException ex) {
+            failure = ex;
+            state = State.FAILED;
+        }
+    }
+
+    /*
+     * Counts the bytes read from the source.
+     */
+    private final class ProgressInputStream extends FilterInputStream {
+        ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                ++bytesRead;
+            }
+
+            return b;
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                bytesRead += count;
+            }
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
+import javax.swing.JTable;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableCellRenderer;
+
+import net.ninthtest.nio.file.OutputCommitter;
+
+/**
+ * A <code>TranslationQueuePanel</code> runs {@link TranslationJob}s on a
+ * bounded pool of background threads, and shows the state and progress of
+ * every job.
+ * 
+ * <p>
+ * The table is refreshed by a Swing timer a few times per second while any
+ * job is unfinished, rather than in response to the jobs themselves, so the
+ * event dispatch thread does the same (small) amount of work no matter how
+ * many jobs are running or how quickly they read.
+ * </p>
+ * 
+ * <p>
+ * Jobs should use this panel's {@link #getCommitter() committer}, which
+ * forces each target file to storage and renames it as the job commits it,
+ * so a job is only shown as translated once its target is in place (and a
+ * failure to force or rename the file is shown as a failed job).
+ * </p>
+ * 
+ * <p>
+ * All methods of this class must be invoked on the event dispatch thread.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+@SuppressWarnings("serial")
+public class TranslationQueuePanel extends JPanel {
+    /** The interval (in milliseconds) between refreshes of the job table. */
+    public static final int REFRESH_INTERVAL = 250;
+
+    /** The maximum number of concurrent translations. */
+    public static final int MAX_CONCURRENCY = 16;
+
+    private static final ResourceBundle RESOURCES =
+            ResourceBundle.getBundle("cetrans");
+
+    private static final String[] COLUMN_KEYS = {"queue.column.source",
+            "queue.column.target", "queue.column.status",
+            "queue.column.progress"};
+
+    private final List<TranslationJob> jobs = new ArrayList<TranslationJob>();
+
+    private final JobTableModel tableModel = new JobTableModel();
+
+    private final JTable table = new JTable(tableModel);
+
+    private final ThreadPoolExecutor executor;
+
+    private final OutputCommitter committer =
+            new OutputCommitter(OutputCommitter.SyncPolicy.FILE);
+
+    private final Timer refreshTimer;
+
+    /**
+     * Constructs a new <code>TranslationQueuePanel</code>.
+     * 
+     * <p>
+     * The initial number of concurrent translations is the number of
+     * available processors (but no more than 4).
+     * </p>
+     */
+    public TranslationQueuePanel() {
+        super(new BorderLayout(5, 5));
+
+        final int concurrency =
+                Math.min(4, Runtime.getRuntime().availableProcessors());
+        executor = new ThreadPoolExecutor(concurrency, concurrency, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "cetrans-queue-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+
+        refreshTimer = new Timer(REFRESH_INTERVAL, new ActionListener() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                refresh();
+            }
+        });
+        refreshTimer.setCoalesce(true);
+
+        final SpinnerNumberModel concurrencyModel =
+                new SpinnerNumberModel(concurrency, 1, MAX_CONCURRENCY, 1);
+        concurrencyModel.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent event) {
+                setConcurrency(concurrencyModel.getNumber().intValue());
+            }
+        });
+        JSpinner concurrencySpinner = new JSpinner(concurrencyModel);
+        concurrencySpinner.setName("concurrencySpinner");
+
+        JPanel settingsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        settingsPanel.add(
+                new JLabel(RESOURCES.getString("queue.label.concurrency")));
+        settingsPanel.add(concurrencySpinner);
+
+        table.setName("jobTable");
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(3).setCellRenderer(
+                new ProgressRenderer());
+        JScrollPane tablePane = new JScrollPane(table);
+        tablePane.setPreferredSize(new Dimension(640, 240));
+
+        JButton cancelButton =
+                new JButton(RESOURCES.getString("queue.button.cancel"));
+        cancelButton.setName("cancelButton");
+        cancelButton.addActionListener(new ActionListener() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                for (int row : table.getSelectedRows()) {
+                    jobs.get(table.convertRowIndexToModel(row)).cancel();
+                }
+                refresh();
+            }
+        });
+
+        JButton clearButton =
+                new JButton(RESOURCES.getString("queue.button.clear"));
+        clearButton.setName("clearButton");
+        clearButton.addActionListener(new ActionListener() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                clearFinished();
+            }
+        });
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(cancelButton);
+        buttonPanel.add(clearButton);
+
+        add(settingsPanel, BorderLayout.NORTH);
+        add(tablePane, BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Returns the maximum number of concurrent translations.
+     * 
+     * @return the number of threads that run jobs
+     */
+    public int getConcurrency() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Sets the maximum number of concurrent translations.
+     * 
+     * <p>
+     * Running jobs are not affected when the concurrency is lowered; the
+     * change takes effect as they finish.
+     * </p>
+     * 
+     * @param concurrency the number of threads that run jobs
+     * @throws IllegalArgumentException if <code>concurrency</code> is less
+     *         than 1 (one) or greater than {@link #MAX_CONCURRENCY}
+     */
+    public void setConcurrency(int concurrency) {
+        if ((concurrency < 1) || (concurrency > MAX_CONCURRENCY)) {
+            throw new IllegalArgumentException(
+                    "concurrency must be between 1 and " + MAX_CONCURRENCY);
+        }
+
+        /* the core size may never exceed the maximum size */
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    /**
+     * Returns the committer that jobs in this queue should use.
+     * 
+     * @return a committer with the {@link OutputCommitter.SyncPolicy#FILE}
+     *         sync policy
+     */
+    public OutputCommitter getCommitter() {
+        return committer;
+    }
+
+    /**
+     * Adds a job to the end of the queue.
+     * 
+     * @param job the job to be run
+     */
+    public void addJob(TranslationJob job) {
+        jobs.add(job);
+        tableModel.fireTableRowsInserted(jobs.size() - 1, jobs.size() - 1);
+
+        executor.execute(job);
+
+        if (!refreshTimer.isRunning()) {
+            refreshTimer.start();
+        }
+    }
+
+    /**
+     * Returns the jobs in the queue (including finished jobs that have not
+     * been cleared).
+     * 
+     * @return a copy of the list of jobs
+     */
+    public List<TranslationJob> getJobs() {
+        return new ArrayList<TranslationJob>(jobs);
+    }
+
+    /**
+     * Removes finished jobs from the queue.
+     */
+    public void clearFinished() {
+        for (Iterator<TranslationJob> it = jobs.iterator(); it.hasNext();) {
+            if (it.next().getState().isFinished()) {
+                it.remove();
+            }
+        }
+        tableModel.fireTableDataChanged();
+    }
+
+    /**
+     * Cancels every unfinished job and stops the background threads.
+     * 
+     * <p>
+     * No jobs may be added after this method has been invoked.
+     * </p>
+     */
+    public void shutdown() {
+        for (TranslationJob job : jobs) {
+            job.cancel();
+        }
+        executor.shutdown();
+        refreshTimer.stop();
+    }
+
+    /**
+     * Waits for the jobs that were running when {@link #shutdown()} was
+     * invoked to stop (and to delete their incomplete output).
+     * 
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return <code>true</code> if every job has stopped, or
+     *         <code>false</code> if the timeout elapsed first
+     * @throws InterruptedException if the current thread is interrupted
+     *         while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /*
+     * Repaints the unfinished (and just-finished) jobs, and stops the timer
+     * once every job has finished.
+     */
+    private void refresh() {
+        if (!jobs.isEmpty()) {
+            tableModel.fireTableRowsUpdated(0, jobs.size() - 1);
+        }
+
+        for (TranslationJob job : jobs) {
+            if (!job.getState().isFinished()) {
+                return;
+            }
+        }
+        refreshTimer.stop();
+    }
+
+    private final class JobTableModel extends AbstractTableModel {
+        JobTableModel() {
+            /* only instantiated by the enclosing class */
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public int getRowCount() {
+            return jobs.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMN_KEYS.length;
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public String getColumnName(int column) {
+            return RESOURCES.getString(COLUMN_KEYS[column]);
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return (column == 3) ? Integer.class : String.class;
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public Object getValueAt(int row, int column) {
+            TranslationJob job = jobs.get(row);
+
+            switch (column) {
+            case 0:
+                return job.getSource().getName();
+            case 1:
+                return job.getTarget().getPath();
+            case 2:
+                return RESOURCES.getString("queue.status."
+                        + job.getState().name().toLowerCase(Locale.ENGLISH));
+            default:
+                return job.getProgress();
+            }
+        }
+    }
+
+    private static final class ProgressRenderer extends JProgressBar
+            implements TableCellRenderer {
+        ProgressRenderer() {
+            super(0, 100);
+            setStringPainted(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table,
+                Object value, boolean isSelected, boolean hasFocus, int row,
+                int column) {
+            setValue((Integer) value);
+
+            return this;
+        }
+    }
+}
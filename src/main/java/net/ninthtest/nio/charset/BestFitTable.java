@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.charset;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A table of best-fit replacements for characters that a target charset
+ * cannot encode (for example <code>e</code> for LATIN SMALL LETTER E WITH
+ * ACUTE, <code>"</code> for the curly quotation marks, or <code>fi</code> for
+ * the <code>fi</code> ligature).
+ * 
+ * <p>
+ * The replacements are read once from the <code>best-fit.txt</code> resource
+ * (in the format of a Unicode-consortium-style mapping file: a character, the
+ * replacement characters and a comment, in hexadecimal), and compiled into a
+ * sorted array of code points and a single array of replacement characters.
+ * The table for a target charset keeps only the entries whose character the
+ * charset cannot encode and whose replacement it can, so a lookup is a binary
+ * search of (at most) a few hundred <code>int</code>s.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+final class BestFitTable {
+    /** The name of the resource that the replacements are read from. */
+    static final String RESOURCE = "best-fit.txt";
+
+    private static final ConcurrentMap<String, BestFitTable> TABLES =
+            new ConcurrentHashMap<String, BestFitTable>();
+
+    /* the code points that have replacements, in ascending order */
+    private final int[] codePoints;
+
+    /*
+     * the replacement of codePoints[i] is replacements[offsets[i]] up to (but
+     * not including) replacements[offsets[i + 1]]
+     */
+    private final int[] offsets;
+
+    private final char[] replacements;
+
+    private BestFitTable(int[] codePoints, int[] offsets,
+            char[] replacements) {
+        this.codePoints = codePoints;
+        this.offsets = offsets;
+        this.replacements = replacements;
+    }
+
+    /*
+     * Returns the (shared) table of the replacements that apply to a target
+     * charset.
+     */
+    static BestFitTable forCharset(Charset target) {
+        BestFitTable table = TABLES.get(target.name());
+        if (table == null) {
+            table = Builtin.TABLE.filter(target.newEncoder());
+            BestFitTable existing = TABLES.putIfAbsent(target.name(), table);
+            if (existing != null) {
+                table = existing;
+            }
+        }
+
+        return table;
+    }
+
+    /*
+     * Returns the table of the entries whose character the encoder cannot
+     * encode and whose replacement it can.
+     */
+    private BestFitTable filter(CharsetEncoder encoder) {
+        int[] keptCodePoints = new int[codePoints.length];
+        int[] keptOffsets = new int[offsets.length];
+        char[] keptReplacements = new char[replacements.length];
+        int count = 0;
+        for (int i = 0; i < codePoints.length; ++i) {
+            String replacement = new String(replacements, offsets[i],
+                    offsets[i + 1] - offsets[i]);
+            if (encoder.canEncode(new String(Character.toChars(codePoints[i])))
+                    || !encoder.canEncode(replacement)) {
+                continue;
+            }
+
+            keptCodePoints[count] = codePoints[i];
+            replacement.getChars(0, replacement.length(), keptReplacements,
+                    keptOffsets[count]);
+            keptOffsets[count + 1] =
+                    keptOffsets[count] + replacement.length();
+            ++count;
+        }
+
+        return new BestFitTable(Arrays.copyOf(keptCodePoints, count),
+                Arrays.copyOf(keptOffsets, count + 1),
+                Arrays.copyOf(keptReplacements, keptOffsets[count]));
+    }
+
+    /* Returns the number of entries in this table. */
+    int size() {
+        return codePoints.length;
+    }
+
+    /*
+     * Returns the index of the entry for a code point, or -1 if it has no
+     * replacement.
+     */
+    int indexOf(int codePoint) {
+        return Math.max(Arrays.binarySearch(codePoints, codePoint), -1);
+    }
+
+    /* Puts the replacement of the entry at an index. */
+    void put(int index, CharBuffer chars) {
+        chars.put(replacements, offsets[index],
+                offsets[index + 1] - offsets[index]);
+    }
+
+    /*
+     * Parses the replacements resource. Each replacement may be at most
+     * MAX_CHAR_REF_LENGTH characters (so that it fits wherever an XML
+     * character reference does), and the characters must be in ascending
+     * order.
+     */
+    static BestFitTable parse(InputStream stream) throws IOException {
+        int[] codePoints = new int[1024];
+        int[] offsets = new int[codePoints.length + 1];
+        char[] replacements = new char[codePoints.length * 2];
+        int count = 0;
+
+        BufferedReader lines = new BufferedReader(
+                new InputStreamReader(stream, StandardCharsets.US_ASCII));
+        String line;
+        for (int number = 1; (line = lines.readLine()) != null; ++number) {
+            int comment = line.indexOf('#');
+            String[] fields = ((comment >= 0)
+                    ? line.substring(0, comment)
+                    : line).trim().split("\\s+");
+            if (fields[0].isEmpty()) {
+                continue;
+            } else if ((fields.length < 2)
+                    || (fields.length > (CharsetTranslator.MAX_CHAR_REF_LENGTH
+                            + 1))) {
+                throw new IOException("line " + number
+                        + ": expected <character> <replacement>...");
+            }
+
+            int codePoint = parseHex(fields[0], Character.MAX_CODE_POINT,
+                    number);
+            if ((count > 0) && (codePoint <= codePoints[count - 1])) {
+                throw new IOException("line " + number
+                        + ": characters are not in ascending order");
+            }
+
+            if (count == codePoints.length) {
+                codePoints = Arrays.copyOf(codePoints, count * 2);
+                offsets = Arrays.copyOf(offsets, (count * 2) + 1);
+            }
+            if ((offsets[count] + fields.length) > replacements.length) {
+                replacements = Arrays.copyOf(replacements,
+                        replacements.length * 2);
+            }
+
+            codePoints[count] = codePoint;
+            int offset = offsets[count];
+            for (int k = 1; k < fields.length; ++k) {
+                replacements[offset++] =
+                        (char) parseHex(fields[k], 0xffff, number);
+            }
+            offsets[++count] = offset;
+        }
+
+        return new BestFitTable(Arrays.copyOf(codePoints, count),
+                Arrays.copyOf(offsets, count + 1),
+                Arrays.copyOf(replacements, offsets[count]));
+    }
+
+    private static int parseHex(String field, int max, int number)
+            throws IOException {
+        String digits = (field.startsWith("0x") || field.startsWith("0X"))
+                ? field.substring(2)
+                : field;
+        try {
+            int value = Integer.parseInt(digits, 16);
+            if ((value >= 0) && (value <= max)) {
+                return value;
+            }
+        } catch (NumberFormatException ex) {
+            /* reported below */
+        }
+
+        throw new IOException(
+                "line " + number + ": not a hexadecimal value: " + field);
+    }
+
+    /* holds the built-in table, which is read on first use */
+    private static final class Builtin {
+        static final BestFitTable TABLE = load();
+
+        private static BestFitTable load() {
+            InputStream stream = BestFitTable.class.getResourceAsStream(
+                    RESOURCE);
+            if (stream == null) {
+                throw new IllegalStateException(
+                        "missing resource: " + RESOURCE);
+            }
+
+            try {
+                try {
+                    return parse(stream);
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(
+                        "cannot read resource: " + RESOURCE, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.charset;
+
+/**
+ * A <code>CancellationToken</code> asks one or more translations to stop.
+ * 
+ * <p>
+ * A translator that has been given a token (see
+ * {@link CharsetTranslator#setCancellationToken(CancellationToken)}) checks
+ * it once per buffer, so a translation stops within one buffer's worth of
+ * work of {@link #cancel()} being invoked, no matter how large the input is.
+ * A token may be shared by any number of translators and threads; once
+ * canceled, it stays canceled.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class CancellationToken {
+    /* a token whose cancellation also cancels this one (or null) */
+    private final CancellationToken parent;
+
+    private volatile boolean canceled;
+
+    /**
+     * Constructs a new <code>CancellationToken</code>.
+     */
+    public CancellationToken() {
+        this(null);
+    }
+
+    /**
+     * Constructs a new <code>CancellationToken</code> that is also canceled
+     * when another token is.
+     * 
+     * <p>
+     * Canceling the new token does not cancel the other one, so a token can
+     * be derived for a part of the work that the other token governs.
+     * </p>
+     * 
+     * @param parent the token whose cancellation also cancels this one, or
+     *        <code>null</code>
+     */
+    public CancellationToken(CancellationToken parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Asks every translation that uses this token to stop.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    /**
+     * Tells whether or not this token has been canceled.
+     * 
+     * @return <code>true</code> if {@link #cancel()} has been invoked
+     */
+    public boolean isCanceled() {
+        return canceled || ((parent != null) && parent.isCanceled());
+    }
+
+    /**
+     * Throws an exception if this token has been canceled.
+     * 
+     * @throws TranslationCanceledException if {@link #cancel()} has been
+     *         invoked
+     */
+    public void throwIfCanceled() throws TranslationCanceledException {
+        if (isCanceled()) {
+            throw new TranslationCanceledException();
+        }
+    }
+}
@@ -0,0 +1,695 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.charset;
+
+import java.nio.CharBuffer;
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * A <code>CharTransform</code> rewrites decoded characters before they are
+ * encoded (for example, to normalize line endings).
+ * 
+ * <p>
+ * A transform is to a {@link CharsetTranslator} what a {@link
+ * java.nio.charset.Charset} is to a decoder: the <code>CharTransform</code>
+ * itself is immutable, and it creates a new {@link Stage} to hold the state
+ * of each translation that uses it. A translator passes every decoded
+ * character through its stage <i>once</i>, between decoding and encoding, so
+ * the output is transformed without another pass over the target.
+ * </p>
+ * 
+ * <p>
+ * Several transforms can be fused into one with {@link
+ * #chain(CharTransform...)}. The stages of a chain push each character
+ * directly to the next stage, so there are no intermediate buffers, and the
+ * built-in transforms do not allocate once their stages have been created.
+ * </p>
+ * 
+ * <p>
+ * Like <code>Charset</code>, two transforms are equal if they have the same
+ * name.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public abstract class CharTransform {
+    /**
+     * Replaces each CR LF (carriage return, line feed) pair with a single LF.
+     * A CR that is not followed by an LF is left as is.
+     */
+    public static final CharTransform CRLF_TO_LF = new CharTransform("crlf") {
+        @Override
+        public Stage newStage(Sink next) {
+            return new Stage(next) {
+                private boolean pendingCarriageReturn;
+
+                @Override
+                public void put(char c) {
+                    if (pendingCarriageReturn) {
+                        pendingCarriageReturn = false;
+                        if (c != '\n') {
+                            next.put('\r');
+                        }
+                    }
+
+                    if (c == '\r') {
+                        pendingCarriageReturn = true;
+                    } else {
+                        next.put(c);
+                    }
+                }
+
+                @Override
+                public void endOfInput() {
+                    if (pendingCarriageReturn) {
+                        pendingCarriageReturn = false;
+                        next.put('\r');
+                    }
+                }
+
+                @Override
+                public void reset() {
+                    pendingCarriageReturn = false;
+                }
+            };
+        }
+    };
+
+    /**
+     * Removes the C0 and C1 control characters (and DEL), except for TAB, LF
+     * and CR.
+     */
+    public static final CharTransform STRIP_CONTROLS =
+            new CharTransform("controls") {
+                @Override
+                public Stage newStage(Sink next) {
+                    return new Stage(next) {
+                        @Override
+                        public void put(char c) {
+                            if (!isStrippedControl(c)) {
+                                next.put(c);
+                            }
+                        }
+                    };
+                }
+            };
+
+    /**
+     * Replaces each NO-BREAK SPACE (U+00A0) with a SPACE (U+0020).
+     */
+    public static final CharTransform NBSP_TO_SPACE =
+            new CharTransform("nbsp") {
+                @Override
+                public Stage newStage(Sink next) {
+                    return new Stage(next) {
+                        @Override
+                        public void put(char c) {
+                            next.put((c == '\u00a0') ? ' ' : c);
+                        }
+                    };
+                }
+            };
+
+    /**
+     * Removes the whitespace at the end of each line (and at the end of the
+     * input).
+     * 
+     * <p>
+     * A line ends at an LF or a CR. The whitespace that is removed is
+     * whatever {@link Character#isWhitespace(char)} accepts, other than the
+     * line terminators themselves; a NO-BREAK SPACE is <i>not</i> removed
+     * (chain this transform after {@link #NBSP_TO_SPACE} to remove it).
+     * </p>
+     * 
+     * <p>
+     * A run of whitespace is held back (until it is known whether or not it
+     * ends the line) only up to 16,384 characters. Whitespace beyond that is
+     * passed through in blocks of that size, as if it were not trailing, so
+     * only the last (partial) block of a longer trailing run is removed.
+     * </p>
+     */
+    public static final CharTransform TRIM_TRAILING_WHITESPACE =
+            new CharTransform("trim") {
+                @Override
+                public Stage newStage(Sink next) {
+                    return new Stage(next) {
+                        /*
+                         * a run of whitespace is held back until it is known
+                         * whether or not it is at the end of a line
+                         */
+                        private char[] held = new char[16];
+
+                        private int heldCount;
+
+                        @Override
+                        public void put(char c) {
+                            if ((c == '\n') || (c == '\r')) {
+                                heldCount = 0;
+                                next.put(c);
+                            } else if (Character.isWhitespace(c)) {
+                                if (heldCount == MAX_HELD_WHITESPACE) {
+                                    /* too long to hold back; pass it on */
+                                    for (int i = 0; i < heldCount; ++i) {
+                                        next.put(held[i]);
+                                    }
+                                    heldCount = 0;
+                                } else if (heldCount == held.length) {
+                                    held = Arrays.copyOf(held,
+                                            held.length * 2);
+                                }
+                                held[heldCount++] = c;
+                            } else {
+                                for (int i = 0; i < heldCount; ++i) {
+                                    next.put(held[i]);
+                                }
+                                heldCount = 0;
+                                next.put(c);
+                            }
+                        }
+
+                        @Override
+                        public void endOfInput() {
+                            heldCount = 0;
+                        }
+
+                        @Override
+                        public void reset() {
+                            heldCount = 0;
+                        }
+                    };
+                }
+            };
+
+    /**
+     * Normalizes text to Unicode Normalization Form C (canonical
+     * composition).
+     * 
+     * <p>
+     * Text is normalized in segments that end at characters which cannot
+     * combine with anything before them, so the text need not be held in
+     * memory as a whole. Because normalization happens before encoding,
+     * decomposed characters (such as those in file names and text from Mac OS
+     * X) are composed <i>before</i> the target charset is asked whether it can
+     * encode them, so fewer characters are unmappable (or replaced with XML
+     * character references).
+     * </p>
+     * 
+     * @see Normalizer.Form#NFC
+     */
+    public static final CharTransform NFC =
+            new NormalizingTransform("nfc", Normalizer.Form.NFC, '\u0300');
+
+    /**
+     * Normalizes text to Unicode Normalization Form KC (compatibility
+     * composition), in segments (see {@link #NFC}).
+     * 
+     * @see Normalizer.Form#NFKC
+     */
+    public static final CharTransform NFKC =
+            new NormalizingTransform("nfkc", Normalizer.Form.NFKC, '\u00a0');
+
+    /**
+     * Normalizes text to Unicode Normalization Form D (canonical
+     * decomposition), in segments (see {@link #NFC}).
+     * 
+     * @see Normalizer.Form#NFD
+     */
+    public static final CharTransform NFD =
+            new NormalizingTransform("nfd", Normalizer.Form.NFD, '\u00c0');
+
+    /**
+     * Normalizes text to Unicode Normalization Form KD (compatibility
+     * decomposition), in segments (see {@link #NFC}).
+     * 
+     * @see Normalizer.Form#NFKD
+     */
+    public static final CharTransform NFKD =
+            new NormalizingTransform("nfkd", Normalizer.Form.NFKD, '\u00a0');
+
+    /*
+     * the longest run of whitespace that TRIM_TRAILING_WHITESPACE holds back
+     * (a power of two, so the held buffer grows to exactly this size)
+     */
+    private static final int MAX_HELD_WHITESPACE = 16 * 1024;
+
+    private static final CharTransform[] BUILT_IN_TRANSFORMS = {CRLF_TO_LF,
+            STRIP_CONTROLS, NBSP_TO_SPACE, TRIM_TRAILING_WHITESPACE, NFC,
+            NFKC, NFD, NFKD};
+
+    private final String name;
+
+    /**
+     * Initializes a new transform with the given name.
+     * 
+     * @param name the name of the transform, which should be unique
+     * @throws IllegalArgumentException if <code>name</code> is
+     *         <code>null</code> or empty
+     */
+    protected CharTransform(String name) {
+        if ((name == null) || name.isEmpty()) {
+            throw new IllegalArgumentException("null or empty name");
+        }
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of this transform.
+     * 
+     * @return the name of this transform (for a chain, the names of its
+     *         transforms, separated by commas)
+     */
+    public final String name() {
+        return name;
+    }
+
+    /**
+     * Creates a new stage that applies this transform, pushing its output to
+     * the given sink.
+     * 
+     * @param next the sink to which transformed characters are pushed
+     * @return a new stage
+     */
+    public abstract Stage newStage(Sink next);
+
+    /**
+     * Returns a transform that applies the given transforms in order, in a
+     * single pass.
+     * 
+     * @param transforms the transforms to be chained
+     * @return a transform that applies each of <code>transforms</code> to the
+     *         output of the one before it
+     * @throws IllegalArgumentException if no transforms are specified
+     */
+    public static CharTransform chain(final CharTransform... transforms) {
+        if (transforms.length == 0) {
+            throw new IllegalArgumentException("no transforms");
+        } else if (transforms.length == 1) {
+            return transforms[0];
+        }
+
+        StringBuilder names = new StringBuilder(transforms[0].name);
+        for (int i = 1; i < transforms.length; ++i) {
+            names.append(',').append(transforms[i].name);
+        }
+
+        return new CharTransform(names.toString()) {
+            @Override
+            public Stage newStage(Sink next) {
+                final Stage[] stages = new Stage[transforms.length];
+                Sink sink = next;
+                for (int i = stages.length - 1; i >= 0; --i) {
+                    stages[i] = transforms[i].newStage(sink);
+                    sink = stages[i];
+                }
+
+                return new Stage(stages[0]) {
+                    @Override
+                    public void put(char c) {
+                        next.put(c);
+                    }
+
+                    @Override
+                    public void endOfInput() {
+                        /* earlier stages may still push into later ones */
+                        for (Stage stage : stages) {
+                            stage.endOfInput();
+                        }
+                    }
+
+                    @Override
+                    public void reset() {
+                        for (Stage stage : stages) {
+                            stage.reset();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the built-in transform with the given name, or a chain of the
+     * built-in transforms with the given comma-separated names.
+     * 
+     * <p>
+     * The built-in names are <code>crlf</code> ({@link #CRLF_TO_LF}),
+     * <code>controls</code> ({@link #STRIP_CONTROLS}), <code>nbsp</code>
+     * ({@link #NBSP_TO_SPACE}), <code>trim</code> ({@link
+     * #TRIM_TRAILING_WHITESPACE}), and <code>nfc</code>, <code>nfkc</code>,
+     * <code>nfd</code> and <code>nfkd</code> ({@link #NFC}, {@link #NFKC},
+     * {@link #NFD} and {@link #NFKD}).
+     * </p>
+     * 
+     * @param names one or more transform names, separated by commas
+     * @return the named transform, or a chain of the named transforms
+     * @throws IllegalArgumentException if any name is not the name of a
+     *         built-in transform
+     */
+    public static CharTransform forName(String names) {
+        String[] split = names.split(",", -1);
+        CharTransform[] transforms = new CharTransform[split.length];
+        for (int i = 0; i < split.length; ++i) {
+            for (CharTransform transform : BUILT_IN_TRANSFORMS) {
+                if (transform.name.equals(split[i].trim())) {
+                    transforms[i] = transform;
+                }
+            }
+            if (transforms[i] == null) {
+                throw new IllegalArgumentException(
+                        "unknown transform: " + split[i]);
+            }
+        }
+
+        return chain(transforms);
+    }
+
+    /*
+     * TAB, LF and CR are kept; every other C0 control, DEL and every C1
+     * control is stripped
+     */
+    private static boolean isStrippedControl(char c) {
+        if (c < ' ') {
+            return (c != '\t') && (c != '\n') && (c != '\r');
+        }
+
+        return (c >= '\u007f') && (c <= '\u009f');
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @return the hash code of this transform's name
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public final int hashCode() {
+        return name.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Two <code>CharTransform</code> instances are considered equal if, and
+     * only if, they have the same name.
+     * </p>
+     * 
+     * @param obj the reference object with which to compare
+     * @return <code>true</code> if this transform is the same as
+     *         <code>obj</code>; <code>false</code> otherwise
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public final boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+
+        return (obj instanceof CharTransform)
+                && name.equals(((CharTransform) obj).name);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @return the name of this transform
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * A <code>Sink</code> accepts transformed characters.
+     */
+    public interface Sink {
+        /**
+         * Accepts the next character.
+         * 
+         * @param c the character
+         */
+        void put(char c);
+    }
+
+    /**
+     * A <code>Stage</code> applies a transform to the characters of one
+     * translation, pushing its output to the next sink.
+     * 
+     * <p>
+     * A stage may hold characters back (for example, a CR that might be
+     * followed by an LF); it must push them in {@link #endOfInput()}, or
+     * discard them, and forget them in {@link #reset()}. Stages are not safe
+     * for use by multiple concurrent threads.
+     * </p>
+     */
+    public abstract static class Stage implements Sink {
+        /** The sink to which this stage pushes transformed characters. */
+        protected final Sink next;
+
+        /**
+         * Initializes a new stage.
+         * 
+         * @param next the sink to which transformed characters are pushed
+         */
+        protected Stage(Sink next) {
+            this.next = next;
+        }
+
+        /**
+         * Pushes any characters that are being held back, because there are
+         * no more characters to come.
+         */
+        public void endOfInput() {
+            /* nothing is held back by default */
+        }
+
+        /**
+         * Discards any state, in preparation for a new translation.
+         */
+        public void reset() {
+            /* there is no state by default */
+        }
+    }
+
+    /*
+     * Normalizes text in segments. A segment is only cut before a "boundary"
+     * character: one that never combines with (and is never reordered
+     * before) the characters that precede it, so normalizing each segment
+     * separately gives the same result as normalizing the whole text.
+     */
+    private static final class NormalizingTransform extends CharTransform {
+        /*
+         * a segment is normalized at the first boundary after it reaches this
+         * length (segments of "quick" characters are released at every
+         * boundary, and every segment is released at the end of a line)
+         */
+        private static final int SEGMENT_SIZE = 256;
+
+        /*
+         * the length at which a segment is cut even without a boundary (which
+         * only malformed or contrived text reaches), to bound memory
+         */
+        private static final int MAX_SEGMENT_SIZE = 16 * 1024;
+
+        private final Normalizer.Form form;
+
+        /* characters below this are unchanged by the form, and boundaries */
+        private final char quickLimit;
+
+        NormalizingTransform(String name, Normalizer.Form form,
+                char quickLimit) {
+            super(name);
+            this.form = form;
+            this.quickLimit = quickLimit;
+        }
+
+        @Override
+        public Stage newStage(Sink next) {
+            return new Stage(next) {
+                private final StringBuilder segment = new StringBuilder();
+
+                /* whether every character in the segment is below the limit */
+                private boolean quick = true;
+
+                @SuppressWarnings("synthetic-access")
+                @Override
+                public void put(char c) {
+                    int length = segment.length();
+                    if ((length > 0)
+                            && ((isBoundary(c) && (quick
+                                    || (length >= SEGMENT_SIZE)))
+                                || ((length >= MAX_SEGMENT_SIZE)
+                                    && !Character.isLowSurrogate(c)))) {
+                        release();
+                    }
+
+                    segment.append(c);
+                    quick &= (c < quickLimit);
+
+                    /*
+                     * nothing combines with a line terminator, so a complete
+                     * line is never held back (e.g. when following a log)
+                     */
+                    if ((c == '\n') || (c == '\r')) {
+                        release();
+                    }
+                }
+
+                @Override
+                public void endOfInput() {
+                    release();
+                }
+
+                @Override
+                public void reset() {
+                    segment.setLength(0);
+                    quick = true;
+                }
+
+                @SuppressWarnings("synthetic-access")
+                private void release() {
+                    if (quick || Normalizer.isNormalized(segment, form)) {
+                        for (int i = 0; i < segment.length(); ++i) {
+                            next.put(segment.charAt(i));
+                        }
+                    } else {
+                        String normalized =
+                                Normalizer.normalize(segment, form);
+                        for (int i = 0; i < normalized.length(); ++i) {
+                            next.put(normalized.charAt(i));
+                        }
+                    }
+                    segment.setLength(0);
+                    quick = true;
+                }
+            };
+        }
+
+        /*
+         * Tells whether or not a segment may be cut before the character.
+         * Combining marks, the Hangul vowel and final consonant jamo (which
+         * compose with a preceding syllable) and the halfwidth katakana
+         * sound marks (which compose under NFKC) are not boundaries, and
+         * neither are surrogates (to keep it simple, a supplementary
+         * character is never treated as a boundary).
+         */
+        private boolean isBoundary(char c) {
+            if (c < quickLimit) {
+                return true;
+            } else if (Character.isSurrogate(c)
+                    || ((c >= '\u1160') && (c <= '\u11ff'))
+                    || (c == '\uff9e') || (c == '\uff9f')) {
+                return false;
+            }
+
+            switch (Character.getType(c)) {
+                case Character.NON_SPACING_MARK:
+                case Character.COMBINING_SPACING_MARK:
+                case Character.ENCLOSING_MARK:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /*
+     * Runs decoded characters through a transform's stage into a growable
+     * character buffer (in "write" mode). The buffer only grows if a
+     * translation produces more characters than the buffer can hold, which
+     * the built-in transforms only do when releasing a long run of held-back
+     * whitespace.
+     */
+    static final class Pass implements Sink {
+        final CharTransform transform;
+
+        private final Stage stage;
+
+        private CharBuffer out;
+
+        Pass(CharTransform transform) {
+            this.transform = transform;
+            stage = transform.newStage(this);
+        }
+
+        /*
+         * Transforms all of the remaining input, appending the result to the
+         * output buffer, and returns the output buffer (or a larger copy of
+         * it).
+         */
+        CharBuffer transform(CharBuffer in, CharBuffer output) {
+            out = output;
+            if (in.hasArray()) {
+                char[] chars = in.array();
+                int end = in.arrayOffset() + in.limit();
+                for (int i = in.arrayOffset() + in.position(); i < end; ++i) {
+                    stage.put(chars[i]);
+                }
+                in.position(in.limit());
+            } else {
+                while (in.hasRemaining()) {
+                    stage.put(in.get());
+                }
+            }
+
+            return release();
+        }
+
+        /*
+         * Appends any held-back characters to the output buffer, and returns
+         * the output buffer (or a larger copy of it).
+         */
+        CharBuffer endOfInput(CharBuffer output) {
+            out = output;
+            stage.endOfInput();
+
+            return release();
+        }
+
+        void reset() {
+            stage.reset();
+        }
+
+        @Override
+        public void put(char c) {
+            if (!out.hasRemaining()) {
+                CharBuffer larger = CharBuffer.allocate(
+                        Math.max(out.capacity() * 2, 16));
+                out.flip();
+                out = larger.put(out);
+            }
+            out.put(c);
+        }
+
+        private CharBuffer release() {
+            CharBuffer output = out;
+            out = null;
+
+            return output;
+        }
+    }
+}
@@ -22,21 +22,27 @@
 
 package net.ninthtest.nio.charset;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
 
 /**
  * Instances of <code>CharsetTranslator</code> translate byte streams from one
@@ -59,17 +65,51 @@ import java.nio.charset.UnsupportedCharsetException;
  * </p>
  * 
  * <p>
- * Unlike <code>CharsetDecoder</code> and <code>CharsetEncoder</code>, there is
- * no support for incremental translation using {@link java.nio} buffers. All
- * translations are performed as single operations (though reads are buffered
- * internally, and the size of the internal character buffer can be
- * controlled).
+ * The {@link #useBestFitReplacement(boolean)} feature can be used to replace
+ * unmappable characters with similar characters that the target charset can
+ * encode instead (for example <code>e</code> for <code>\u00e9</code>, or
+ * <code>-</code> for an en dash), from a built-in table. Only the characters
+ * that have no best-fit replacement are then replaced with XML character
+ * references (if that feature is also enabled) or reported.
+ * </p>
+ * 
+ * <p>
+ * A {@link CharTransform} (see {@link #setTransform(CharTransform)}) can be
+ * used to rewrite the decoded characters before they are encoded, for
+ * example to normalize line endings. The transform is applied in the same
+ * pass as the translation.
+ * </p>
+ * 
+ * <p>
+ * Stream translations ({@link #translate(InputStream, OutputStream)}) are
+ * performed as single operations (though reads are buffered internally, and
+ * the size of the internal character buffer can be controlled).
+ * </p>
+ * 
+ * <p>
+ * Like <code>CharsetDecoder</code> and <code>CharsetEncoder</code>,
+ * <code>CharsetTranslator</code> also supports incremental translation using
+ * {@link java.nio} buffers (see
+ * {@link #translate(ByteBuffer, ByteBuffer, boolean)}). The decoder state
+ * (e.g. a partial multi-byte sequence at the end of an input buffer) is
+ * carried over from one invocation to the next.
  * </p>
  * 
  * <p>
  * <code>CharsetTranslator</code> instances always reset the internal
- * decoder/encoder before translating. Therefore, it is safe to re-use the same
- * instance for multiple translation operations.
+ * decoder/encoder before a stream translation. Therefore, it is safe to
+ * re-use the same instance for multiple translation operations. (A stream
+ * translation discards the state of an in-progress incremental translation;
+ * invoke {@link #reset()} before starting a new incremental translation.)
+ * Instances are not safe for use by multiple concurrent threads.
+ * </p>
+ * 
+ * <p>
+ * The asynchronous translation methods (see
+ * {@link #translateAsync(InputStream, OutputStream, Executor)}) run each
+ * translation on an executor, using a private copy of the translator, so any
+ * number of them may be in progress at once. {@link TranslationExecutors}
+ * provides suitable executors.
  * </p>
  * 
  * <p>
@@ -95,6 +135,24 @@ public class CharsetTranslator {
      */
     public static final int DEFAULT_BUFFER_SIZE = 4096;
 
+    /**
+     * The size (in bytes) of the buffers used when translating between
+     * channels.
+     * 
+     * @see #translate(ReadableByteChannel, WritableByteChannel)
+     */
+    public static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+    /* the length of "&#1114111;", the longest XML character reference */
+    static final int MAX_CHAR_REF_LENGTH = 10;
+
+    /*
+     * the number of bytes that are decoded and encoded when a direct
+     * translation reaches a byte sequence that it has no entry for (enough
+     * for any sequence of the supported charsets)
+     */
+    private static final int DIRECT_FALLBACK_WINDOW = 4;
+
     private final Charset sourceCharset;
 
     private final CharsetDecoder sourceDecoder;
@@ -105,8 +163,48 @@ public class CharsetTranslator {
 
     private boolean useXMLCharRefReplacement;
 
+    private boolean useBestFitReplacement;
+
     private int bufferSize = DEFAULT_BUFFER_SIZE;
 
+    private volatile CancellationToken cancellationToken;
+
+    private CharTransform transform;
+
+    private DecodeListener decodeListener;
+
+    /* the state of an incremental translation */
+    private final Coder coder;
+
+    /*
+     * the input and output buffers of stream and channel translations,
+     * which are re-used from one translation to the next
+     */
+    private ByteBuffer streamInput;
+
+    private ByteBuffer streamOutput;
+
+    /* the decoded characters of a fan-out translation (see above) */
+    private CharBuffer fanOutChars;
+
+    /* the number of stream and channel writes (for sampling write events) */
+    private int writeSteps;
+
+    /* the byte counts of the last stream or channel translation */
+    private long streamBytesRead;
+
+    private long streamBytesWritten;
+
+    /* per-thread coders (and scratch buffers) for byte array translations */
+    private final ThreadLocal<Coder> threadCoders = new ThreadLocal<Coder>() {
+        @SuppressWarnings("synthetic-access")
+        @Override
+        protected Coder initialValue() {
+            return new Coder(newDecoder(sourceCharset),
+                    newEncoder(targetCharset));
+        }
+    };
+
     /**
      * Constructs a new <code>CharsetTranslator</code> that can translate from
      * the named source encoding to the named target encoding.
@@ -147,12 +245,22 @@ public class CharsetTranslator {
         }
 
         this.sourceCharset = sourceCharset;
-        sourceDecoder = sourceCharset.newDecoder()
+        sourceDecoder = newDecoder(sourceCharset);
+
+        this.targetCharset = targetCharset;
+        targetEncoder = newEncoder(targetCharset);
+
+        coder = new Coder(sourceDecoder, targetEncoder);
+    }
+
+    static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
                 .onMalformedInput(CodingErrorAction.REPORT)
                 .onUnmappableCharacter(CodingErrorAction.REPORT);
+    }
 
-        this.targetCharset = targetCharset;
-        targetEncoder = targetCharset.newEncoder()
+    static CharsetEncoder newEncoder(Charset charset) {
+        return charset.newEncoder()
                 .onMalformedInput(CodingErrorAction.REPORT)
                 .onUnmappableCharacter(CodingErrorAction.REPORT);
     }
@@ -215,6 +323,44 @@ public class CharsetTranslator {
         return this;
     }
 
+    /**
+     * Tells whether or not this translator will replace unmappable characters
+     * with their best-fit equivalents.
+     * 
+     * @return <code>true</code> if this translator will use best-fit
+     *         replacements
+     */
+    public boolean isUsingBestFitReplacement() {
+        return useBestFitReplacement;
+    }
+
+    /**
+     * Tells this translator whether or not to use best-fit replacements.
+     * 
+     * <p>
+     * A best-fit replacement is one or more characters that the target
+     * charset can encode and that resemble the unmappable character, such as
+     * the character without its accents, or the ASCII equivalent of a
+     * typographic quotation mark, dash or ligature. Replacement occurs as
+     * characters are written to the target output stream, before (and takes
+     * precedence over) XML character reference replacement; an unmappable
+     * character that has no best-fit replacement is replaced with its XML
+     * character reference if that feature is enabled, and is otherwise
+     * reported as usual.
+     * </p>
+     * 
+     * @param useBestFitReplacement <code>true</code> if unmappable
+     *        characters should be replaced with their best-fit equivalents
+     * @return this translator
+     */
+    @SuppressWarnings("hiding")
+    public final CharsetTranslator useBestFitReplacement(
+            boolean useBestFitReplacement) {
+        this.useBestFitReplacement = useBestFitReplacement;
+
+        return this;
+    }
+
     /**
      * Returns the size of the buffer used when reading from the source input
      * stream.
@@ -241,9 +387,104 @@ public class CharsetTranslator {
         this.bufferSize = bufferSize;
     }
 
+    /**
+     * Returns the token that is checked for cancellation.
+     * 
+     * @return the cancellation token, or <code>null</code> if translations
+     *         cannot be canceled
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Sets the token that is checked for cancellation.
+     * 
+     * <p>
+     * The token is checked before each buffer is read by
+     * {@link #translate(InputStream, OutputStream)} (and the other stream and
+     * channel translation methods). Once the token has been canceled, those
+     * methods throw a {@link TranslationCanceledException} instead of reading
+     * any more input; the incomplete output that has already been written is
+     * left for the caller to remove.
+     * </p>
+     * 
+     * @param cancellationToken the cancellation token, or <code>null</code>
+     *        if translations cannot be canceled
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Returns the transform that is applied to decoded characters.
+     * 
+     * @return the transform, or <code>null</code> if decoded characters are
+     *         encoded as they are
+     */
+    public CharTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * Sets the transform that is applied to decoded characters before they
+     * are encoded.
+     * 
+     * <p>
+     * Every translation method applies the transform. The transform's stage
+     * is created (or reset) when a translation starts, so changing the
+     * transform does not affect an incremental translation that is already
+     * in progress.
+     * </p>
+     * 
+     * @param transform the transform, or <code>null</code> if decoded
+     *        characters should be encoded as they are
+     */
+    public void setTransform(CharTransform transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * Returns the listener that is notified as source bytes are decoded.
+     * 
+     * @return the decode listener, or <code>null</code> if there is none
+     */
+    public DecodeListener getDecodeListener() {
+        return decodeListener;
+    }
+
+    /**
+     * Sets the listener that is notified as source bytes are decoded.
+     * 
+     * <p>
+     * The listener is notified by the incremental translation methods (see
+     * {@link #translate(ByteBuffer, ByteBuffer, boolean)}), and therefore by
+     * {@link #translate(ReadableByteChannel, WritableByteChannel)}. The
+     * stream and byte array translation methods do not notify it.
+     * </p>
+     * 
+     * @param decodeListener the decode listener, or <code>null</code> if
+     *        there is none
+     */
+    public void setDecodeListener(DecodeListener decodeListener) {
+        this.decodeListener = decodeListener;
+    }
+
     /**
      * Translates a stream of bytes from one character encoding to another.
      * 
+     * <p>
+     * Bytes are decoded and encoded directly between two
+     * {@value #CHANNEL_BUFFER_SIZE}-byte buffers, which this translator
+     * retains (as it does its decoder, encoder and character buffer), so once
+     * a translator has been used, further stream and channel translations
+     * allocate no memory at all.
+     * </p>
+     * 
+     * <p>
+     * This translator is {@link #reset() reset} before the translation.
+     * </p>
+     * 
      * @param sourceStream the stream of bytes to be translated
      * @param targetStream the stream to which translated bytes are written
      * @throws IOException if any reading/decoding/encoding/writing operation
@@ -251,65 +492,712 @@ public class CharsetTranslator {
      */
     public void translate(InputStream sourceStream, OutputStream targetStream)
             throws IOException {
-        Reader reader = new BufferedReader(
-                new InputStreamReader(sourceStream, sourceDecoder.reset()));
-        Writer writer = new BufferedWriter(
-                new OutputStreamWriter(targetStream, targetEncoder.reset()));
+        ByteBuffer in = streamInput();
+        ByteBuffer out = streamOutput();
+        reset();
 
-        char[] buffer = new char[bufferSize];
-        int count = -1;
+        TranslationEvents.Translation event =
+                TranslationEvents.beginTranslation(this);
+        long bytesRead = 0L;
+        long bytesWritten = 0L;
+        try {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                checkCanceled();
+                int count = sourceStream.read(in.array(), in.position(),
+                        in.remaining());
+                if (count < 0) {
+                    endOfInput = true;
+                } else {
+                    in.position(in.position() + count);
+                    bytesRead += count;
+                }
 
-        /*
-         * avoid character iteration if not performing XML charref replacement!
-         * (also avoids redundant useXMLCharRefReplacement checks)
-         */
-        if (!useXMLCharRefReplacement) {
-            while ((count = reader.read(buffer)) != -1) {
-                writer.write(buffer, 0, count);
+                in.flip();
+                while (translate(in, out, endOfInput).isOverflow()) {
+                    bytesWritten += write(out, targetStream);
+                }
+                in.compact();
+
+                if (endOfInput) {
+                    while (flush(out).isOverflow()) {
+                        bytesWritten += write(out, targetStream);
+                    }
+                }
+                bytesWritten += write(out, targetStream);
+            }
+
+            targetStream.flush();
+        } catch (IOException | RuntimeException ex) {
+            TranslationEvents.endTranslation(event, bytesRead, bytesWritten,
+                    coder.charRefCount, ex);
+            throw ex;
+        }
+        TranslationEvents.endTranslation(event, bytesRead, bytesWritten,
+                coder.charRefCount, null);
+        streamBytesRead = bytesRead;
+        streamBytesWritten = bytesWritten;
+    }
+
+    private int write(ByteBuffer out, OutputStream stream)
+            throws IOException {
+        int count = out.position();
+        TranslationEvents.Write event = sampleWrite();
+        stream.write(out.array(), 0, count);
+        out.clear();
+        if (event != null) {
+            event.byteCount = count;
+            event.commit();
+        }
+
+        return count;
+    }
+
+    /*
+     * Begins a write event if a recording is running and this write is
+     * sampled; otherwise returns null.
+     */
+    private TranslationEvents.Write sampleWrite() {
+        if (!TranslationEvents.isRecording()
+                || ((++writeSteps % TranslationEvents.BUFFER_SAMPLE_INTERVAL)
+                        != 0)) {
+            return null;
+        }
+
+        TranslationEvents.Write event = new TranslationEvents.Write();
+        event.begin();
+
+        return event;
+    }
+
+    private ByteBuffer streamInput() {
+        if (streamInput == null) {
+            streamInput = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+        }
+
+        return streamInput.clear();
+    }
+
+    private CharBuffer fanOutChars() {
+        /* two chars are needed to hold a surrogate pair */
+        int capacity = Math.max(bufferSize, 2);
+        if ((fanOutChars == null) || (fanOutChars.capacity() != capacity)) {
+            fanOutChars = CharBuffer.allocate(capacity);
+        }
+
+        return fanOutChars;
+    }
+
+    private ByteBuffer streamOutput() {
+        if (streamOutput == null) {
+            streamOutput = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+        }
+
+        return streamOutput.clear();
+    }
+
+    /**
+     * Translates the bytes read from one channel from one character encoding
+     * to another, writing them to another channel.
+     * 
+     * <p>
+     * Unlike {@link #translate(InputStream, OutputStream)}, the translation of
+     * every read is written to the target channel before the next read, so
+     * this method is suitable for streaming pipelines (such as standard input
+     * to standard output). Bytes are decoded and encoded directly between two
+     * {@value #CHANNEL_BUFFER_SIZE}-byte buffers, without any intermediate
+     * stream buffering. (As with {@link #translate(InputStream,
+     * OutputStream)}, the buffers are retained by this translator.)
+     * </p>
+     * 
+     * <p>
+     * This translator is {@link #reset() reset} before the translation.
+     * </p>
+     * 
+     * @param sourceChannel the channel of bytes to be translated
+     * @param targetChannel the channel to which translated bytes are written
+     * @throws IOException if any reading/decoding/encoding/writing operation
+     *         fails
+     */
+    public void translate(ReadableByteChannel sourceChannel,
+            WritableByteChannel targetChannel) throws IOException {
+        ByteBuffer in = streamInput();
+        ByteBuffer out = streamOutput();
+        reset();
+
+        TranslationEvents.Translation event =
+                TranslationEvents.beginTranslation(this);
+        long bytesRead = 0L;
+        long bytesWritten = 0L;
+        try {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                checkCanceled();
+                int count = sourceChannel.read(in);
+                if (count < 0) {
+                    endOfInput = true;
+                } else {
+                    bytesRead += count;
+                }
+
+                in.flip();
+                while (translate(in, out, endOfInput).isOverflow()) {
+                    bytesWritten += write(out, targetChannel);
+                }
+                in.compact();
+
+                if (endOfInput) {
+                    while (flush(out).isOverflow()) {
+                        bytesWritten += write(out, targetChannel);
+                    }
+                }
+                bytesWritten += write(out, targetChannel);
+            }
+        } catch (IOException | RuntimeException ex) {
+            TranslationEvents.endTranslation(event, bytesRead, bytesWritten,
+                    coder.charRefCount, ex);
+            throw ex;
+        }
+        TranslationEvents.endTranslation(event, bytesRead, bytesWritten,
+                coder.charRefCount, null);
+        streamBytesRead = bytesRead;
+        streamBytesWritten = bytesWritten;
+    }
+
+    private int write(ByteBuffer out, WritableByteChannel channel)
+            throws IOException {
+        int count = out.position();
+        TranslationEvents.Write event = sampleWrite();
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+        if (event != null) {
+            event.byteCount = count;
+            event.commit();
+        }
+
+        return count;
+    }
+
+    /**
+     * Translates a stream of bytes from one character encoding to another
+     * asynchronously.
+     * 
+     * <p>
+     * The translation is performed by
+     * {@link #translate(InputStream, OutputStream)}, as a task run by the
+     * given executor, using a private copy of this translator (with the same
+     * settings, cancellation token, transform and decode listener), so this
+     * translator may go on being used, and any number of asynchronous
+     * translations may be in progress at once. The streams are not closed.
+     * </p>
+     * 
+     * <p>
+     * The returned future completes with the byte counts and timing of the
+     * translation, or exceptionally with the exception that stopped it
+     * (including a {@link java.util.concurrent.RejectedExecutionException} if
+     * the executor does not accept the task). Canceling the future cancels
+     * the translation, in the same way as canceling this translator's
+     * {@link CancellationToken}; the incomplete output that has already been
+     * written is left for the caller to remove.
+     * </p>
+     * 
+     * @param sourceStream the stream of bytes to be translated
+     * @param targetStream the stream to which translated bytes are written
+     * @param executor the executor that runs the translation (see
+     *        {@link TranslationExecutors})
+     * @return the future result of the translation
+     */
+    public CompletableFuture<TranslationResult> translateAsync(
+            final InputStream sourceStream, final OutputStream targetStream,
+            Executor executor) {
+        return translateAsync(executor, new AsyncTranslation() {
+            @Override
+            void translate(CharsetTranslator translator) throws IOException {
+                translator.translate(sourceStream, targetStream);
+            }
+        });
+    }
+
+    /**
+     * Translates the bytes read from one channel from one character encoding
+     * to another asynchronously, writing them to another channel.
+     * 
+     * <p>
+     * The translation is performed by
+     * {@link #translate(ReadableByteChannel, WritableByteChannel)}, and
+     * otherwise behaves as
+     * {@link #translateAsync(InputStream, OutputStream, Executor)} does. The
+     * channels are not closed.
+     * </p>
+     * 
+     * @param sourceChannel the channel of bytes to be translated
+     * @param targetChannel the channel to which translated bytes are written
+     * @param executor the executor that runs the translation (see
+     *        {@link TranslationExecutors})
+     * @return the future result of the translation
+     */
+    public CompletableFuture<TranslationResult> translateAsync(
+            final ReadableByteChannel sourceChannel,
+            final WritableByteChannel targetChannel, Executor executor) {
+        return translateAsync(executor, new AsyncTranslation() {
+            @Override
+            void translate(CharsetTranslator translator) throws IOException {
+                translator.translate(sourceChannel, targetChannel);
+            }
+        });
+    }
+
+    private CompletableFuture<TranslationResult> translateAsync(
+            Executor executor, final AsyncTranslation translation) {
+        final CompletableFuture<TranslationResult> future =
+                new CompletableFuture<TranslationResult>();
+        /* canceling the future cancels the copy's own token */
+        final CancellationToken token =
+                new CancellationToken(cancellationToken);
+        final CharsetTranslator translator = copy();
+        translator.setCancellationToken(token);
+
+        future.whenComplete(new BiConsumer<TranslationResult, Throwable>() {
+            @Override
+            public void accept(TranslationResult result, Throwable failure) {
+                if (future.isCancelled()) {
+                    token.cancel();
+                }
+            }
+        });
+
+        try {
+            executor.execute(new Runnable() {
+                @SuppressWarnings("synthetic-access")
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+
+                    long start = System.nanoTime();
+                    try {
+                        translation.translate(translator);
+                        future.complete(new TranslationResult(
+                                translator.sourceCharset,
+                                translator.targetCharset,
+                                translator.streamBytesRead,
+                                translator.streamBytesWritten,
+                                translator.coder.charRefCount,
+                                System.nanoTime() - start));
+                    } catch (IOException | RuntimeException ex) {
+                        future.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+        }
+
+        return future;
+    }
+
+    /*
+     * Returns a new translator with the same charsets and settings as this
+     * one.
+     */
+    private CharsetTranslator copy() {
+        CharsetTranslator translator =
+                new CharsetTranslator(sourceCharset, targetCharset)
+                        .useXMLCharRefReplacement(useXMLCharRefReplacement)
+                        .useBestFitReplacement(useBestFitReplacement);
+        translator.bufferSize = bufferSize;
+        translator.cancellationToken = cancellationToken;
+        translator.transform = transform;
+        translator.decodeListener = decodeListener;
+
+        return translator;
+    }
+
+    /* a translation that is run by an executor */
+    private abstract static class AsyncTranslation {
+        AsyncTranslation() {
+            /* nothing to do */
+        }
+
+        abstract void translate(CharsetTranslator translator)
+                throws IOException;
+    }
+
+    /**
+     * Translates a stream of bytes from one character encoding to several
+     * others in a single pass.
+     * 
+     * <p>
+     * The source stream is read and decoded only <i>once</i> (using the
+     * source charset and buffer size of the first translator). Each decoded
+     * buffer is then encoded by every translator, in order, and written to the
+     * target stream at the same index. Each translator's own target charset,
+     * XML character reference replacement setting and transform are honored.
+     * </p>
+     * 
+     * @param sourceStream the stream of bytes to be translated
+     * @param translators the translators that encode the decoded characters;
+     *        all must share the same source charset
+     * @param targetStreams the streams to which translated bytes are written
+     *        (<code>targetStreams[i]</code> receives the output of
+     *        <code>translators[i]</code>)
+     * @throws IllegalArgumentException if no translators are specified, if
+     *         the number of translators and target streams differ, if the
+     *         translators do not share the same source charset, or if the
+     *         same translator instance is specified more than once
+     * @throws IOException if any reading/decoding/encoding/writing operation
+     *         fails
+     */
+    public static void translate(InputStream sourceStream,
+            CharsetTranslator[] translators, OutputStream[] targetStreams)
+            throws IOException {
+        if (translators.length == 0) {
+            throw new IllegalArgumentException("no translators");
+        } else if (translators.length != targetStreams.length) {
+            throw new IllegalArgumentException(
+                    "translators and target streams differ in length");
+        }
+
+        CharsetTranslator first = translators[0];
+        for (int k = 1; k < translators.length; ++k) {
+            if (!first.sourceCharset.equals(translators[k].sourceCharset)) {
+                throw new IllegalArgumentException(
+                        "translators do not share a source charset");
             }
-        } else {
             /*
-             * use a separate encoder (instead of sharing one between the
-             * writer and this block) because it's not safe to call
-             * #canEncode(char) on an in-progress encoder
+             * each translator's encoder is in progress for the whole
+             * translation, so an instance cannot be used twice
              */
-            CharsetEncoder encoder = targetCharset.newEncoder();
-
-            int i = 0;
-            int j = 0;
-            while ((count = reader.read(buffer)) != -1) {
-                for (i = 0, j = 0; j < count; ++j) {
-                    if (!encoder.canEncode(buffer[j])) {
-                        /*
-                         * write all characters up to but not including the
-                         * unmappable character...
-                         */
-                        writer.write(buffer, i, j - i);
-                        /*
-                         * ...then write the XML character reference for the
-                         * unmappable character...
-                         */
-                        writer.write("&#" + ((int) buffer[j]) + ";");
-                        /*
-                         * ...and set the marker to the next character _after_
-                         * the unmappable character
-                         */
-                        i = j + 1;
-                    }
+            for (int m = 0; m < k; ++m) {
+                if (translators[m] == translators[k]) {
+                    throw new IllegalArgumentException(
+                            "duplicate translator instance");
                 }
+            }
+        }
 
-                /*
-                 * write any characters remaining in the buffer (as long as
-                 * buffer[count-1] is not unmappable, there will be unwritten
-                 * characters)
-                 */
-                if (i < count) {
-                    writer.write(buffer, i, count - i);
+        if (translators.length == 1) {
+            /* (which may translate directly, without decoding) */
+            first.translate(sourceStream, targetStreams[0]);
+            return;
+        }
+
+        ByteBuffer in = first.streamInput();
+        CharBuffer decoded = first.fanOutChars();
+        CharsetDecoder decoder = first.coder.decoder;
+        ByteBuffer[] outs = new ByteBuffer[translators.length];
+        TranslationEvents.Translation[] events =
+                new TranslationEvents.Translation[translators.length];
+        for (int k = 0; k < translators.length; ++k) {
+            /* (resets the first translator's decoder, too) */
+            translators[k].reset();
+            outs[k] = translators[k].streamOutput();
+            events[k] = TranslationEvents.beginTranslation(translators[k]);
+        }
+
+        long bytesRead = 0L;
+        long[] bytesWritten = new long[translators.length];
+        try {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                for (CharsetTranslator translator : translators) {
+                    translator.checkCanceled();
                 }
+                int count = sourceStream.read(in.array(), in.position(),
+                        in.remaining());
+                if (count < 0) {
+                    endOfInput = true;
+                } else {
+                    in.position(in.position() + count);
+                    bytesRead += count;
+                }
+
+                in.flip();
+                CoderResult result;
+                do {
+                    decoded.clear();
+                    result = decoder.decode(in, decoded, endOfInput);
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                    decoded.flip();
+                    encode(decoded, translators, outs, targetStreams,
+                            bytesWritten);
+                } while (result.isOverflow());
+                in.compact();
+            }
+
+            CoderResult result;
+            do {
+                decoded.clear();
+                result = decoder.flush(decoded);
+                decoded.flip();
+                encode(decoded, translators, outs, targetStreams,
+                        bytesWritten);
+            } while (result.isOverflow());
+
+            for (int k = 0; k < translators.length; ++k) {
+                CharsetTranslator translator = translators[k];
+                while (translator.coder.finish(outs[k],
+                        translator.useXMLCharRefReplacement,
+                        translator.useBestFitReplacement).isOverflow()) {
+                    bytesWritten[k] +=
+                            translator.write(outs[k], targetStreams[k]);
+                }
+                bytesWritten[k] += translator.write(outs[k], targetStreams[k]);
+                targetStreams[k].flush();
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (int k = 0; k < translators.length; ++k) {
+                TranslationEvents.endTranslation(events[k], bytesRead,
+                        bytesWritten[k], translators[k].coder.charRefCount,
+                        ex);
+            }
+            throw ex;
+        }
+        for (int k = 0; k < translators.length; ++k) {
+            TranslationEvents.endTranslation(events[k], bytesRead,
+                    bytesWritten[k], translators[k].coder.charRefCount, null);
+            translators[k].streamBytesRead = bytesRead;
+            translators[k].streamBytesWritten = bytesWritten[k];
+        }
+    }
+
+    /*
+     * Encodes a buffer of decoded characters with every translator of a
+     * fan-out translation, writing each one's output to its target stream.
+     */
+    private static void encode(CharBuffer decoded,
+            CharsetTranslator[] translators, ByteBuffer[] outs,
+            OutputStream[] targetStreams, long[] bytesWritten)
+            throws IOException {
+        for (int k = 0; k < translators.length; ++k) {
+            CharsetTranslator translator = translators[k];
+            decoded.position(0);
+            while (translator.coder.encodeDecoded(decoded, outs[k],
+                    translator.useXMLCharRefReplacement,
+                    translator.useBestFitReplacement).isOverflow()) {
+                bytesWritten[k] += translator.write(outs[k], targetStreams[k]);
             }
+            bytesWritten[k] += translator.write(outs[k], targetStreams[k]);
+        }
+    }
+
+    private void checkCanceled() throws TranslationCanceledException {
+        CancellationToken token = cancellationToken;
+        if (token != null) {
+            token.throwIfCanceled();
+        }
+    }
+
+    /*
+     * Puts the XML character reference for a code point ("&#" + decimal code
+     * point + ";"), without allocating a string.
+     */
+    static void putCharRef(CharBuffer chars, int codePoint) {
+        chars.put('&').put('#');
+        int divisor = 1;
+        while ((codePoint / divisor) >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            chars.put((char) ('0' + ((codePoint / divisor) % 10)));
+        }
+        chars.put(';');
+    }
+
+    /**
+     * Resets this translator, clearing any incremental translation state.
+     * 
+     * <p>
+     * The internal buffer used for incremental translation is (re-)sized to
+     * the current buffer size.
+     * </p>
+     * 
+     * @return this translator
+     */
+    public final CharsetTranslator reset() {
+        coder.reset(bufferSize, transform);
+
+        return this;
+    }
+
+    /**
+     * Translates as many bytes as possible from the given input buffer,
+     * writing the results to the given output buffer.
+     * 
+     * <p>
+     * This method follows the same protocol as
+     * {@link CharsetDecoder#decode(ByteBuffer, CharBuffer, boolean)}: it
+     * returns {@link CoderResult#UNDERFLOW} when all of the input that can be
+     * translated has been translated (any trailing bytes of an incomplete
+     * multi-byte sequence are left in the input buffer, so the caller should
+     * compact it and supply more input), and {@link CoderResult#OVERFLOW} when
+     * the output buffer is full (the caller should drain it and invoke this
+     * method again). Characters that have been decoded but could not yet be
+     * written are held internally until the next invocation.
+     * </p>
+     * 
+     * <p>
+     * When there is no more input, invoke this method with
+     * <code>endOfInput</code> set to <code>true</code> until it returns
+     * <code>UNDERFLOW</code>, and then invoke {@link #flush(ByteBuffer)}.
+     * Invoke {@link #reset()} before starting a new incremental translation.
+     * </p>
+     * 
+     * @param in the input byte buffer
+     * @param out the output byte buffer
+     * @param endOfInput <code>true</code> if, and only if, the invoker can
+     *        provide no additional input bytes beyond those in the given
+     *        buffer
+     * @return {@link CoderResult#UNDERFLOW} or {@link CoderResult#OVERFLOW}
+     * @throws CharacterCodingException if the input is malformed or contains
+     *         a character that is unmappable in the target charset (and XML
+     *         character reference replacement is not enabled)
+     */
+    public final CoderResult translate(ByteBuffer in, ByteBuffer out,
+            boolean endOfInput) throws CharacterCodingException {
+        if (!coder.isReset()) {
+            coder.reset(bufferSize, transform);
+        }
+
+        coder.listener = decodeListener;
+
+        return coder.translate(in, out, endOfInput, useXMLCharRefReplacement,
+                useBestFitReplacement);
+    }
+
+    /**
+     * Flushes this translator.
+     * 
+     * <p>
+     * This method follows the same protocol as
+     * {@link CharsetEncoder#flush(ByteBuffer)}: it must be invoked after
+     * {@link #translate(ByteBuffer, ByteBuffer, boolean)} has been invoked
+     * with <code>endOfInput</code> set to <code>true</code>, and if it
+     * returns {@link CoderResult#OVERFLOW}, the caller should drain the output
+     * buffer and invoke it again.
+     * </p>
+     * 
+     * @param out the output byte buffer
+     * @return {@link CoderResult#UNDERFLOW} or {@link CoderResult#OVERFLOW}
+     * @throws CharacterCodingException if the final characters are malformed
+     *         or unmappable in the target charset (and XML character reference
+     *         replacement is not enabled)
+     * @throws IllegalStateException if the previous step of the current
+     *         incremental translation was not an invocation of
+     *         {@link #translate(ByteBuffer, ByteBuffer, boolean)} with
+     *         <code>endOfInput</code> set to <code>true</code>
+     */
+    public final CoderResult flush(ByteBuffer out)
+            throws CharacterCodingException {
+        if (!coder.isReset()) {
+            coder.reset(bufferSize, transform);
         }
 
-        writer.flush();
+        coder.listener = decodeListener;
+
+        return coder.flush(out, useXMLCharRefReplacement,
+                useBestFitReplacement);
+    }
+
+    /**
+     * Translates an array of bytes from one character encoding to another.
+     * 
+     * <p>
+     * This method is intended for high rates of small payloads. Unlike the
+     * other translation methods, it may be invoked by multiple concurrent
+     * threads: each thread uses its own decoder, encoder and scratch buffers,
+     * which are re-used from one invocation to the next. The scratch output
+     * buffer is sized from the charsets' maximum bytes-per-character
+     * estimates, so once a thread has warmed up, the only allocation is the
+     * exactly-sized result array.
+     * </p>
+     * 
+     * @param source the array that contains the bytes to be translated
+     * @param offset the offset of the first byte to be translated
+     * @param length the number of bytes to be translated
+     * @return the translated bytes
+     * @throws CharacterCodingException if the input is malformed or contains
+     *         a character that is unmappable in the target charset (and XML
+     *         character reference replacement is not enabled)
+     * @throws IndexOutOfBoundsException if <code>offset</code> and
+     *         <code>length</code> do not describe a range of
+     *         <code>source</code>
+     */
+    public byte[] translate(byte[] source, int offset, int length)
+            throws CharacterCodingException {
+        return translate(threadCoders.get(), source, offset, length);
+    }
+
+    /**
+     * Translates several arrays of bytes from one character encoding to
+     * another.
+     * 
+     * <p>
+     * This is equivalent to invoking {@link #translate(byte[], int, int)} for
+     * each array in turn (and likewise may be invoked by multiple concurrent
+     * threads).
+     * </p>
+     * 
+     * @param sources the arrays of bytes to be translated
+     * @return the translated arrays, in the same order as
+     *         <code>sources</code>
+     * @throws CharacterCodingException if any input is malformed or contains
+     *         a character that is unmappable in the target charset (and XML
+     *         character reference replacement is not enabled)
+     */
+    public List<byte[]> translateAll(List<byte[]> sources)
+            throws CharacterCodingException {
+        Coder threadCoder = threadCoders.get();
+        List<byte[]> results = new ArrayList<byte[]>(sources.size());
+
+        for (byte[] source : sources) {
+            results.add(translate(threadCoder, source, 0, source.length));
+        }
+
+        return results;
+    }
+
+    private byte[] translate(Coder threadCoder, byte[] source, int offset,
+            int length) throws CharacterCodingException {
+        boolean charRefs = useXMLCharRefReplacement;
+        boolean bestFit = useBestFitReplacement;
+        threadCoder.reset(bufferSize, transform);
+
+        ByteBuffer in = ByteBuffer.wrap(source, offset, length);
+        ByteBuffer out = threadCoder.output((int) Math.min(Integer.MAX_VALUE,
+                (long) Math.ceil(length
+                        * (double) threadCoder.decoder.maxCharsPerByte()
+                        * threadCoder.encoder.maxBytesPerChar())));
+
+        TranslationEvents.Translation event =
+                TranslationEvents.beginTranslation(this);
+        try {
+            /*
+             * only XML character references and best-fit replacements (and
+             * transforms that add characters) can outgrow the estimate
+             */
+            while (threadCoder.translate(in, out, true, charRefs, bestFit)
+                    .isOverflow()) {
+                out = threadCoder.growOutput(out);
+            }
+            while (threadCoder.flush(out, charRefs, bestFit).isOverflow()) {
+                out = threadCoder.growOutput(out);
+            }
+        } catch (CharacterCodingException | RuntimeException ex) {
+            TranslationEvents.endTranslation(event, in.position() - offset,
+                    out.position(), threadCoder.charRefCount, ex);
+            throw ex;
+        }
+        TranslationEvents.endTranslation(event, length, out.position(),
+                threadCoder.charRefCount, null);
+
+        return Arrays.copyOf(out.array(), out.position());
     }
 
     /**
@@ -317,8 +1205,8 @@ public class CharsetTranslator {
      * 
      * <p>
      * The hash code of a <code>CharsetTranslator</code> is based on the source
-     * charset, target charset, and whether or not XML character reference
-     * replacement is enabled.
+     * charset, target charset, whether or not XML character reference and
+     * best-fit replacement are enabled, and the transform.
      * </p>
      * 
      * @return a hash code value for this translator
@@ -331,6 +1219,12 @@ public class CharsetTranslator {
         if (useXMLCharRefReplacement) {
             hc = Integer.rotateLeft(hc, 11);
         }
+        if (useBestFitReplacement) {
+            hc = ~hc;
+        }
+        if (transform != null) {
+            hc = (31 * hc) + transform.hashCode();
+        }
 
         return hc;
     }
@@ -342,7 +1236,10 @@ public class CharsetTranslator {
      * Two <code>CharsetTranslator</code> instances are considered equal if,
      * and only if, each instance is using the same source and target charset
      * <b><i>and</i></b> XML character reference replacement is either enabled
-     * or disabled for <i>both</i> instances at the time of comparison.
+     * or disabled for <i>both</i> instances <b><i>and</i></b> best-fit
+     * replacement is either enabled or disabled for <i>both</i> instances
+     * <b><i>and</i></b> both instances are using equal transforms (or none)
+     * at the time of comparison.
      * </p>
      * 
      * @param obj the reference object with which to compare
@@ -364,7 +1261,12 @@ public class CharsetTranslator {
             return sourceCharset.equals(other.sourceCharset)
                     && targetCharset.equals(other.targetCharset)
                     && (useXMLCharRefReplacement
-                        == other.useXMLCharRefReplacement);
+                        == other.useXMLCharRefReplacement)
+                    && (useBestFitReplacement
+                        == other.useBestFitReplacement)
+                    && ((transform == null)
+                        ? (other.transform == null)
+                        : transform.equals(other.transform));
         }
 
         return false;
@@ -381,4 +1283,487 @@ public class CharsetTranslator {
         return new StringBuilder(sourceCharset.name()).append(" -> ")
                 .append(targetCharset.name()).toString();
     }
+
+    /*
+     * A decoder/encoder pair and the state of an incremental translation
+     * between them.
+     */
+    private static final class Coder {
+        /* scratch output buffers larger than this are not retained */
+        private static final int MAX_RETAINED_OUTPUT = 1 << 20;
+
+        final CharsetDecoder decoder;
+
+        final CharsetEncoder encoder;
+
+        /*
+         * decoded characters that have not yet been encoded, and the
+         * unwritten part of a pending XML character reference or best-fit
+         * replacement (both in "read" mode)
+         */
+        private CharBuffer pendingChars;
+
+        private final CharBuffer charRefChars =
+                CharBuffer.allocate(MAX_CHAR_REF_LENGTH);
+
+        /*
+         * the transform's pass, and the decoded characters that it has not
+         * yet transformed (in "read" mode); both are null if there is no
+         * transform
+         */
+        private CharTransform.Pass pass;
+
+        private CharBuffer decodedChars;
+
+        private boolean passEnded;
+
+        /* notified of each decoding step (null for byte array translations) */
+        DecodeListener listener;
+
+        /*
+         * the number of XML character references in the current translation,
+         * and the length of the current run of them (whose first code point
+         * and flight recorder event are also held)
+         */
+        long charRefCount;
+
+        private int burstLength;
+
+        private int burstCodePoint;
+
+        private TranslationEvents.UnmappableBurst burstEvent;
+
+        /* the number of decode and encode steps (for sampling events) */
+        private int decodeSteps;
+
+        private int encodeSteps;
+
+        /*
+         * the direct translation table for this coder's charsets (looked up
+         * on the first reset), and the same if it may be used by the current
+         * translation (which it may not if there is a transform)
+         */
+        private DirectTranscodingTable directTable;
+
+        private boolean directResolved;
+
+        private DirectTranscodingTable direct;
+
+        /* the best-fit table for the encoder's charset (looked up on use) */
+        private BestFitTable bestFitTable;
+
+        /* scratch output buffer for byte array translations */
+        private ByteBuffer output;
+
+        Coder(CharsetDecoder decoder, CharsetEncoder encoder) {
+            this.decoder = decoder;
+            this.encoder = encoder;
+        }
+
+        boolean isReset() {
+            return pendingChars != null;
+        }
+
+        void reset(int bufferSize, CharTransform transform) {
+            decoder.reset();
+            encoder.reset();
+            charRefCount = 0L;
+            burstLength = 0;
+            burstEvent = null;
+
+            if (!directResolved) {
+                directTable = DirectTranscodingTable.forPair(
+                        decoder.charset(), encoder.charset());
+                directResolved = true;
+            }
+            direct = (transform == null) ? directTable : null;
+
+            /* two chars are needed to hold a surrogate pair */
+            int capacity = Math.max(bufferSize, 2);
+            if ((pendingChars == null)
+                    || (pendingChars.capacity() != capacity)) {
+                pendingChars = CharBuffer.allocate(capacity);
+            }
+            pendingChars.clear().limit(0);
+            charRefChars.clear().limit(0);
+
+            if (transform == null) {
+                pass = null;
+                decodedChars = null;
+            } else {
+                /* stages are only created when the transform changes */
+                if ((pass == null) || !transform.equals(pass.transform)) {
+                    pass = new CharTransform.Pass(transform);
+                } else {
+                    pass.reset();
+                }
+                if ((decodedChars == null)
+                        || (decodedChars.capacity() != capacity)) {
+                    decodedChars = CharBuffer.allocate(capacity);
+                }
+                decodedChars.clear().limit(0);
+            }
+            passEnded = false;
+        }
+
+        /*
+         * Returns a cleared scratch output buffer of at least the given
+         * capacity.
+         */
+        ByteBuffer output(int capacity) {
+            if ((output == null) || (output.capacity() < capacity)) {
+                ByteBuffer buffer = ByteBuffer.allocate(capacity);
+                if (capacity > MAX_RETAINED_OUTPUT) {
+                    return buffer;
+                }
+                output = buffer;
+            }
+            output.clear();
+
+            return output;
+        }
+
+        /*
+         * Returns a buffer of twice the capacity of the given output buffer
+         * (which may or may not be the retained scratch buffer), holding its
+         * contents.
+         */
+        ByteBuffer growOutput(ByteBuffer out) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(
+                    Math.max(out.capacity() * 2L, 16L), Integer.MAX_VALUE));
+            out.flip();
+            buffer.put(out);
+            if (buffer.capacity() <= MAX_RETAINED_OUTPUT) {
+                output = buffer;
+            }
+
+            return buffer;
+        }
+
+        CoderResult translate(ByteBuffer in, ByteBuffer out,
+                boolean endOfInput, boolean charRefs, boolean bestFit)
+                throws CharacterCodingException {
+            boolean directStalled = false;
+            while (true) {
+                CoderResult result =
+                        encodePending(out, false, charRefs, bestFit);
+                if (result.isOverflow()) {
+                    return result;
+                }
+
+                int limit = in.limit();
+                if ((direct != null) && (listener == null) && !directStalled
+                        && !pendingChars.hasRemaining() && in.hasArray()
+                        && out.hasArray()) {
+                    int before = in.position();
+                    result = direct.transcode(in, out);
+                    if (in.position() != before) {
+                        endBurst();
+                    }
+                    if (result.isOverflow()) {
+                        return result;
+                    } else if (!in.hasRemaining()) {
+                        if (endOfInput) {
+                            /* the decoder must see the end before a flush */
+                            pendingChars.compact();
+                            decoder.decode(in, pendingChars, true);
+                            pendingChars.flip();
+                        }
+
+                        return CoderResult.UNDERFLOW;
+                    }
+
+                    /*
+                     * the next byte sequence has no direct translation, so
+                     * decode and encode just it (and resume afterward)
+                     */
+                    in.limit(Math.min(limit,
+                            in.position() + DIRECT_FALLBACK_WINDOW));
+                }
+                boolean windowed = (in.limit() != limit);
+
+                /*
+                 * everything except (possibly) a trailing high surrogate has
+                 * been encoded, so make room for more decoded characters
+                 */
+                pendingChars.compact();
+                int start = in.position();
+                if (pass == null) {
+                    int from = pendingChars.position();
+                    result = decode(in, pendingChars,
+                            endOfInput && !windowed);
+                    decoded(in.position() - start, pendingChars.array(), from,
+                            pendingChars.position() - from);
+                } else {
+                    decodedChars.clear();
+                    result = decode(in, decodedChars, endOfInput);
+                    decodedChars.flip();
+                    decoded(in.position() - start, decodedChars.array(), 0,
+                            decodedChars.limit());
+                    pendingChars = pass.transform(decodedChars, pendingChars);
+                }
+                pendingChars.flip();
+                in.limit(limit);
+
+                if (result.isError()) {
+                    result.throwException();
+                } else if (windowed) {
+                    /*
+                     * go back to direct translation, unless the window was
+                     * too small for the decoder to make progress
+                     */
+                    directStalled = (in.position() == start);
+                } else if (result.isUnderflow()) {
+                    result = encodePending(out, false, charRefs, bestFit);
+
+                    return result.isOverflow()
+                            ? result
+                            : CoderResult.UNDERFLOW;
+                }
+            }
+        }
+
+        CoderResult flush(ByteBuffer out, boolean charRefs, boolean bestFit)
+                throws CharacterCodingException {
+            CoderResult result;
+            do {
+                pendingChars.compact();
+                if (pass == null) {
+                    int from = pendingChars.position();
+                    result = decoder.flush(pendingChars);
+                    decoded(0, pendingChars.array(), from,
+                            pendingChars.position() - from);
+                } else {
+                    decodedChars.clear();
+                    result = decoder.flush(decodedChars);
+                    decodedChars.flip();
+                    decoded(0, decodedChars.array(), 0, decodedChars.limit());
+                    pendingChars = pass.transform(decodedChars, pendingChars);
+                    if (!result.isOverflow() && !passEnded) {
+                        /* release anything the stage has held back */
+                        pendingChars = pass.endOfInput(pendingChars);
+                        passEnded = true;
+                    }
+                }
+                pendingChars.flip();
+
+                if (result.isOverflow()
+                        && encodePending(out, false, charRefs, bestFit)
+                                .isOverflow()) {
+                    return CoderResult.OVERFLOW;
+                }
+            } while (result.isOverflow());
+
+            result = encodePending(out, true, charRefs, bestFit);
+            if (result.isOverflow()) {
+                return result;
+            }
+            endBurst();
+
+            return encoder.flush(out);
+        }
+
+        /*
+         * Encodes characters that were decoded elsewhere (by a fan-out
+         * translation), through the transform if there is one. Returns
+         * OVERFLOW if the output buffer must be drained before the rest of
+         * the characters can be encoded.
+         */
+        CoderResult encodeDecoded(CharBuffer chars, ByteBuffer out,
+                boolean charRefs, boolean bestFit)
+                throws CharacterCodingException {
+            while (true) {
+                CoderResult result =
+                        encodePending(out, false, charRefs, bestFit);
+                if (result.isOverflow() || !chars.hasRemaining()) {
+                    return result.isOverflow()
+                            ? result
+                            : CoderResult.UNDERFLOW;
+                }
+
+                /* (a trailing high surrogate may be left pending) */
+                pendingChars.compact();
+                CharBuffer target = (pass == null)
+                        ? pendingChars
+                        : decodedChars.clear();
+                int limit = chars.limit();
+                chars.limit(chars.position()
+                        + Math.min(chars.remaining(), target.remaining()));
+                target.put(chars);
+                chars.limit(limit);
+                if (pass != null) {
+                    decodedChars.flip();
+                    pendingChars = pass.transform(decodedChars, pendingChars);
+                }
+                pendingChars.flip();
+            }
+        }
+
+        /*
+         * Ends a translation of characters that were decoded elsewhere (see
+         * above): releases anything the transform has held back, encodes the
+         * pending characters, and flushes the encoder.
+         */
+        CoderResult finish(ByteBuffer out, boolean charRefs, boolean bestFit)
+                throws CharacterCodingException {
+            if ((pass != null) && !passEnded) {
+                pendingChars.compact();
+                pendingChars = pass.endOfInput(pendingChars);
+                pendingChars.flip();
+                passEnded = true;
+            }
+
+            CoderResult result = encodePending(out, true, charRefs, bestFit);
+            if (result.isOverflow()) {
+                return result;
+            }
+            endBurst();
+
+            return encoder.flush(out);
+        }
+
+        private CoderResult decode(ByteBuffer in, CharBuffer chars,
+                boolean endOfInput) {
+            if (!TranslationEvents.isRecording()
+                    || ((++decodeSteps
+                            % TranslationEvents.BUFFER_SAMPLE_INTERVAL) != 0)) {
+                return decoder.decode(in, chars, endOfInput);
+            }
+
+            TranslationEvents.Decode event = new TranslationEvents.Decode();
+            int start = in.position();
+            int from = chars.position();
+            event.begin();
+            CoderResult result = decoder.decode(in, chars, endOfInput);
+            event.end();
+            event.charset = decoder.charset().name();
+            event.byteCount = in.position() - start;
+            event.charCount = chars.position() - from;
+            event.commit();
+
+            return result;
+        }
+
+        private CoderResult encode(CharBuffer chars, ByteBuffer out,
+                boolean endOfInput) {
+            if (!TranslationEvents.isRecording()
+                    || ((++encodeSteps
+                            % TranslationEvents.BUFFER_SAMPLE_INTERVAL) != 0)) {
+                return encoder.encode(chars, out, endOfInput);
+            }
+
+            TranslationEvents.Encode event = new TranslationEvents.Encode();
+            int start = chars.position();
+            int from = out.position();
+            event.begin();
+            CoderResult result = encoder.encode(chars, out, endOfInput);
+            event.end();
+            event.charset = encoder.charset().name();
+            event.charCount = chars.position() - start;
+            event.byteCount = out.position() - from;
+            event.commit();
+
+            return result;
+        }
+
+        /* counts a replaced character toward the current unmappable run */
+        private void replaced(int codePoint) {
+            ++charRefCount;
+            if (burstLength++ == 0) {
+                burstCodePoint = codePoint;
+                if (TranslationEvents.isRecording()) {
+                    burstEvent = new TranslationEvents.UnmappableBurst();
+                    burstEvent.begin();
+                }
+            }
+        }
+
+        /* ends the current unmappable run (if any) */
+        private void endBurst() {
+            if (burstLength == 0) {
+                return;
+            }
+
+            if (burstEvent != null) {
+                burstEvent.end();
+                burstEvent.targetCharset = encoder.charset().name();
+                burstEvent.firstCodePoint = burstCodePoint;
+                burstEvent.length = burstLength;
+                burstEvent.commit();
+                burstEvent = null;
+            }
+            burstLength = 0;
+        }
+
+        /*
+         * Returns the index of the best-fit replacement for a code point, or
+         * -1 if it has none.
+         */
+        private int bestFitIndex(int codePoint) {
+            if (bestFitTable == null) {
+                bestFitTable = BestFitTable.forCharset(encoder.charset());
+            }
+
+            return bestFitTable.indexOf(codePoint);
+        }
+
+        private void decoded(int byteCount, char[] chars, int offset,
+                int length) {
+            if ((listener != null) && ((byteCount > 0) || (length > 0))) {
+                listener.decoded(byteCount, chars, offset, length);
+            }
+        }
+
+        /*
+         * Encodes pending characters into the output buffer, replacing
+         * unmappable characters with best-fit replacements and/or XML
+         * character references if requested.
+         */
+        private CoderResult encodePending(ByteBuffer out, boolean endOfInput,
+                boolean charRefs, boolean bestFit)
+                throws CharacterCodingException {
+            while (true) {
+                if (charRefChars.hasRemaining()) {
+                    CoderResult result =
+                            encoder.encode(charRefChars, out, endOfInput);
+                    if (result.isError()) {
+                        result.throwException();
+                    } else if (result.isOverflow()) {
+                        return result;
+                    }
+                }
+
+                int start = pendingChars.position();
+                CoderResult result = encode(pendingChars, out, endOfInput);
+                if (pendingChars.position() != start) {
+                    endBurst();
+                }
+                if (result.isUnmappable() && (charRefs || bestFit)) {
+                    int codePoint = (result.length() == 2)
+                            ? Character.codePointAt(pendingChars, 0)
+                            : pendingChars.get(pendingChars.position());
+                    int index = bestFit ? bestFitIndex(codePoint) : -1;
+                    if ((index < 0) && !charRefs) {
+                        result.throwException();
+                    }
+                    pendingChars.position(
+                            pendingChars.position() + result.length());
+
+                    charRefChars.clear();
+                    if (index >= 0) {
+                        endBurst();
+                        bestFitTable.put(index, charRefChars);
+                    } else {
+                        replaced(codePoint);
+                        putCharRef(charRefChars, codePoint);
+                    }
+                    charRefChars.flip();
+                } else if (result.isError()) {
+                    result.throwException();
+                } else {
+                    return result;
+                }
+            }
+        }
+    }
 }
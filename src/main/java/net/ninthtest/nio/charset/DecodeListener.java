@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.charset;
+
+/**
+ * A <code>DecodeListener</code> is notified as a {@link CharsetTranslator}
+ * decodes source bytes (see
+ * {@link CharsetTranslator#setDecodeListener(DecodeListener)}).
+ * 
+ * <p>
+ * Each notification describes one decoding step: the number of source bytes
+ * that were consumed, and the characters that they decoded to (before any
+ * {@link CharTransform} is applied). A step always ends on a character
+ * boundary, so the running totals of bytes and characters identify a
+ * position at which decoding could be resumed.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public interface DecodeListener {
+    /**
+     * Invoked after a decoding step.
+     * 
+     * <p>
+     * The character array belongs to the translator and is only valid for
+     * the duration of the invocation.
+     * </p>
+     * 
+     * @param byteCount the number of source bytes consumed by the step
+     * @param chars the array that holds the decoded characters
+     * @param offset the offset of the first decoded character
+     * @param length the number of decoded characters
+     */
+    void decoded(int byteCount, char[] chars, int offset, int length);
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.ninthtest.nio.charset;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A table that translates bytes directly from one double-byte (CJK) charset to
+ * another, without decoding them to characters first.
+ * 
+ * <p>
+ * The table is built from the JRE's own decoder and encoder (so its results
+ * are identical to theirs), once per pair of charsets: every single byte and
+ * every lead and trail byte pair of the source charset that decodes to one
+ * character is mapped to the one or two bytes that the target charset encodes
+ * that character to. A lookup is then two array indexing operations.
+ * </p>
+ * 
+ * <p>
+ * A byte sequence that has no entry (because it is malformed, is longer than
+ * two bytes, decodes to more than one character, or decodes to a character
+ * that the target charset cannot encode) stops the direct translation, so
+ * that the translator's usual decode-and-encode path can handle it, including
+ * reporting errors and replacing unmappable characters with XML character
+ * references.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+final class DirectTranscodingTable {
+    /** The (canonical names of the) charsets that tables are built for. */
+    static final Set<String> CHARSETS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("Big5", "Big5-HKSCS", "GBK",
+                    "GB2312", "Shift_JIS", "windows-31j", "EUC-JP",
+                    "EUC-KR")));
+
+    /* the entry of a single byte that has no direct translation */
+    private static final int NONE = -1;
+
+    /* the entry of a single byte that is the lead byte of a pair */
+    private static final int LEAD = -2;
+
+    private static final ConcurrentMap<String, DirectTranscodingTable> TABLES =
+            new ConcurrentHashMap<String, DirectTranscodingTable>();
+
+    /*
+     * the translation of each single byte (NONE, LEAD, a single target byte
+     * in 0x00-0xFF, or a pair of target bytes as (lead << 8) | trail)
+     */
+    private final int[] singles = new int[256];
+
+    /*
+     * the translation of each pair, indexed by lead and then trail byte (0 if
+     * none, otherwise as for singles); null for bytes that are not leads
+     */
+    private final char[][] pairs = new char[256][];
+
+    private DirectTranscodingTable(Charset source, Charset target) {
+        CharsetDecoder decoder = source.newDecoder();
+        CharsetEncoder encoder = target.newEncoder();
+        ByteBuffer in = ByteBuffer.allocate(2);
+        CharBuffer chars = CharBuffer.allocate(4);
+        ByteBuffer out = ByteBuffer.allocate(8);
+
+        for (int lead = 0; lead < 256; ++lead) {
+            in.clear();
+            in.put((byte) lead).flip();
+            chars.clear();
+            decoder.reset();
+            CoderResult result = decoder.decode(in, chars, false);
+            if (result.isUnderflow() && (in.position() == 0)) {
+                singles[lead] = LEAD;
+                pairs[lead] = new char[256];
+                for (int trail = 0; trail < 256; ++trail) {
+                    in.clear();
+                    in.put((byte) lead).put((byte) trail).flip();
+                    int entry = entry(decoder, encoder, in, chars, out);
+                    pairs[lead][trail] = (char) Math.max(entry, 0);
+                }
+            } else {
+                in.rewind();
+                singles[lead] = entry(decoder, encoder, in, chars, out);
+            }
+        }
+    }
+
+    /*
+     * Decodes all of the input (which must be one character) and encodes the
+     * result, returning the table entry.
+     */
+    private static int entry(CharsetDecoder decoder, CharsetEncoder encoder,
+            ByteBuffer in, CharBuffer chars, ByteBuffer out) {
+        chars.clear();
+        decoder.reset();
+        if (decoder.decode(in, chars, true).isError() || in.hasRemaining()
+                || decoder.flush(chars).isError()
+                || (chars.position() != 1)) {
+            return NONE;
+        }
+
+        chars.flip();
+        out.clear();
+        encoder.reset();
+        if (encoder.encode(chars, out, true).isError()
+                || encoder.flush(out).isError()) {
+            return NONE;
+        }
+
+        switch (out.position()) {
+        case 1:
+            return out.get(0) & 0xff;
+        case 2:
+            return ((out.get(0) & 0xff) << 8) | (out.get(1) & 0xff);
+        default:
+            return NONE;
+        }
+    }
+
+    /*
+     * Returns the (shared) table for a pair of charsets, or null if the pair
+     * is not supported.
+     */
+    static DirectTranscodingTable forPair(Charset source, Charset target) {
+        if (source.equals(target) || !CHARSETS.contains(source.name())
+                || !CHARSETS.contains(target.name())) {
+            return null;
+        }
+
+        String key = source.name() + "->" + target.name();
+        DirectTranscodingTable table = TABLES.get(key);
+        if (table == null) {
+            table = new DirectTranscodingTable(source, target);
+            DirectTranscodingTable existing = TABLES.putIfAbsent(key, table);
+            if (existing != null) {
+                table = existing;
+            }
+        }
+
+        return table;
+    }
+
+    /*
+     * Translates bytes directly, stopping at the end of the input (including
+     * a lead byte whose trail byte has not been read yet), at a byte sequence
+     * that has no entry, or when the output is full. Both buffers must be
+     * backed by arrays.
+     * 
+     * Returns OVERFLOW if the output is full, otherwise UNDERFLOW.
+     */
+    CoderResult transcode(ByteBuffer in, ByteBuffer out) {
+        byte[] source = in.array();
+        int sp = in.arrayOffset() + in.position();
+        int sl = in.arrayOffset() + in.limit();
+        byte[] target = out.array();
+        int tp = out.arrayOffset() + out.position();
+        int tl = out.arrayOffset() + out.limit();
+
+        CoderResult result = CoderResult.UNDERFLOW;
+        while (sp < sl) {
+            int b = source[sp] & 0xff;
+            int entry = singles[b];
+            int length = 1;
+            if (entry == LEAD) {
+                if ((sp + 1) == sl) {
+                    break;
+                }
+                entry = pairs[b][source[sp + 1] & 0xff];
+                if (entry == 0) {
+                    break;
+                }
+                length = 2;
+            } else if (entry == NONE) {
+                break;
+            }
+
+            if (entry > 0xff) {
+                if ((tl - tp) < 2) {
+                    result = CoderResult.OVERFLOW;
+                    break;
+                }
+                target[tp++] = (byte) (entry >>> 8);
+                target[tp++] = (byte) entry;
+            } else {
+                if (tp == tl) {
+                    result = CoderResult.OVERFLOW;
+                    break;
+                }
+                target[tp++] = (byte) entry;
+            }
+            sp += length;
+        }
+
+        in.position(sp - in.arrayOffset());
+        out.position(tp - out.arrayOffset());
+
+        return result;
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.charset;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An <code>EncodingCostEstimator</code> measures what a source would cost in
+ * each of several candidate target encodings, without writing any output.
+ * 
+ * <p>
+ * The source is read and decoded only <i>once</i>. Each decoded buffer is fed
+ * to one encoder per candidate, side by side, and the encoded bytes are
+ * counted and discarded. For every candidate, the resulting {@link Estimate}
+ * tells the exact number of bytes that a translation would produce, how many
+ * code points cannot be encoded, and how many of those bytes are XML
+ * character references. This is far cheaper than translating the source once
+ * per candidate just to compare the results.
+ * </p>
+ * 
+ * <p>
+ * The byte counts are those of the incremental, channel and byte array
+ * translation methods of a {@link CharsetTranslator} with XML character
+ * reference replacement enabled (and the same transform, if any); if a
+ * candidate has no unmappable code points, XML character reference
+ * replacement makes no difference.
+ * </p>
+ * 
+ * <p>
+ * Like <code>CharsetTranslator</code>, instances may be re-used for several
+ * sources, but are not safe for use by multiple concurrent threads.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public class EncodingCostEstimator {
+    private final Charset sourceCharset;
+
+    private final List<Charset> candidateCharsets;
+
+    private int bufferSize = CharsetTranslator.DEFAULT_BUFFER_SIZE;
+
+    private CharTransform transform;
+
+    /**
+     * Constructs a new <code>EncodingCostEstimator</code>.
+     * 
+     * @param sourceCharset the character encoding used to decode the source
+     * @param candidateCharsets the candidate target encodings
+     * @throws IllegalArgumentException if <code>sourceCharset</code> or any
+     *         candidate is <code>null</code>, or if there are no candidates
+     */
+    public EncodingCostEstimator(Charset sourceCharset,
+            Charset... candidateCharsets) {
+        if (sourceCharset == null) {
+            throw new IllegalArgumentException("null charset");
+        } else if (candidateCharsets.length == 0) {
+            throw new IllegalArgumentException("no candidate charsets");
+        }
+        for (Charset candidate : candidateCharsets) {
+            if (candidate == null) {
+                throw new IllegalArgumentException("null charset");
+            }
+        }
+
+        this.sourceCharset = sourceCharset;
+        List<Charset> candidates = new ArrayList<Charset>(
+                candidateCharsets.length);
+        Collections.addAll(candidates, candidateCharsets);
+        this.candidateCharsets = Collections.unmodifiableList(candidates);
+    }
+
+    /**
+     * Returns the source charset.
+     * 
+     * @return the character encoding used to decode the source
+     */
+    public final Charset sourceCharset() {
+        return sourceCharset;
+    }
+
+    /**
+     * Returns the candidate charsets.
+     * 
+     * @return an unmodifiable list of the candidate target encodings
+     */
+    public final List<Charset> candidateCharsets() {
+        return candidateCharsets;
+    }
+
+    /**
+     * Returns the size of the buffer used when reading from the source.
+     * 
+     * @return the maximum number of <i>characters</i> that will be read from
+     *         the source at once
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the buffer used when reading from the source.
+     * 
+     * @param bufferSize the maximum number of <i>characters</i> that will be
+     *        read from the source at once
+     * @throws IllegalArgumentException if the buffer size is less than 1 (one)
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("buffer size must be >= 1");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the transform that is applied to decoded characters.
+     * 
+     * @return the transform, or <code>null</code> if decoded characters are
+     *         measured as they are
+     */
+    public CharTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * Sets the transform that is applied to decoded characters before they
+     * are measured (see {@link CharsetTranslator#setTransform(CharTransform)}).
+     * 
+     * @param transform the transform, or <code>null</code> if decoded
+     *        characters should be measured as they are
+     */
+    public void setTransform(CharTransform transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * Reads and decodes the source stream, and measures its cost in each of
+     * the candidate charsets.
+     * 
+     * @param sourceStream the stream of bytes to be measured
+     * @return one estimate for each candidate charset, in the same order as
+     *         {@link #candidateCharsets()}
+     * @throws CharacterCodingException if the source is malformed or contains
+     *         a character that is unmappable in <i>Unicode</i>
+     * @throws IOException if reading from the source fails
+     */
+    public List<Estimate> estimate(InputStream sourceStream)
+            throws IOException {
+        Reader reader = new InputStreamReader(sourceStream,
+                CharsetTranslator.newDecoder(sourceCharset));
+        Counter[] counters = new Counter[candidateCharsets.size()];
+        for (int k = 0; k < counters.length; ++k) {
+            counters[k] = new Counter(candidateCharsets.get(k));
+        }
+        CharTransform.Pass pass =
+                (transform != null) ? new CharTransform.Pass(transform) : null;
+
+        char[] buffer = new char[bufferSize];
+        CharBuffer decoded = CharBuffer.wrap(buffer);
+        /* room for a high surrogate held over from the previous buffer */
+        CharBuffer chars = CharBuffer.allocate(bufferSize + 1);
+        int count = -1;
+
+        while ((count = reader.read(buffer)) != -1) {
+            decoded.clear().limit(count);
+            if (pass != null) {
+                chars = pass.transform(decoded, chars);
+            } else {
+                chars.put(decoded);
+            }
+            measure(counters, chars, false);
+        }
+        if (pass != null) {
+            chars = pass.endOfInput(chars);
+        }
+        measure(counters, chars, true);
+
+        List<Estimate> estimates = new ArrayList<Estimate>(counters.length);
+        for (Counter counter : counters) {
+            estimates.add(counter.finish());
+        }
+
+        return estimates;
+    }
+
+    /*
+     * Feeds the characters in the buffer (in "write" mode) to every counter.
+     * A trailing high surrogate is held back (unless this is the end of the
+     * input), so that every counter is given only complete code points.
+     */
+    private static void measure(Counter[] counters, CharBuffer chars,
+            boolean endOfInput) throws CharacterCodingException {
+        chars.flip();
+        int limit = chars.limit();
+        int end = limit;
+        if (!endOfInput && (end > 0)
+                && Character.isHighSurrogate(chars.get(end - 1))) {
+            --end;
+        }
+
+        for (Counter counter : counters) {
+            chars.limit(end).position(0);
+            counter.encode(chars, endOfInput);
+        }
+
+        chars.limit(limit).position(end);
+        chars.compact();
+    }
+
+    /**
+     * Returns the smallest estimate that has no unmappable code points.
+     * 
+     * @param estimates the estimates to choose from
+     * @return the estimate with the smallest byte count among those whose
+     *         charset can encode every code point (the first, if several are
+     *         equally small), or <code>null</code> if there is none
+     */
+    public static Estimate smallestLossless(List<Estimate> estimates) {
+        Estimate smallest = null;
+        for (Estimate estimate : estimates) {
+            if (estimate.isLossless() && ((smallest == null)
+                    || (estimate.byteCount < smallest.byteCount))) {
+                smallest = estimate;
+            }
+        }
+
+        return smallest;
+    }
+
+    /**
+     * An <code>Estimate</code> is the measured cost of the source in one
+     * candidate charset.
+     */
+    public static final class Estimate {
+        private final Charset charset;
+
+        private final long byteCount;
+
+        private final long unmappableCount;
+
+        private final long charRefByteCount;
+
+        Estimate(Charset charset, long byteCount, long unmappableCount,
+                long charRefByteCount) {
+            this.charset = charset;
+            this.byteCount = byteCount;
+            this.unmappableCount = unmappableCount;
+            this.charRefByteCount = charRefByteCount;
+        }
+
+        /**
+         * Returns the candidate charset.
+         * 
+         * @return the charset that was measured
+         */
+        public Charset charset() {
+            return charset;
+        }
+
+        /**
+         * Returns the number of bytes that a translation would produce.
+         * 
+         * @return the exact size of the translated output, with any unmappable
+         *         code points replaced by XML character references
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * Returns the number of code points that cannot be encoded.
+         * 
+         * @return the number of unmappable code points
+         */
+        public long getUnmappableCount() {
+            return unmappableCount;
+        }
+
+        /**
+         * Returns the number of bytes taken up by XML character references.
+         * 
+         * @return the part of {@link #getByteCount()} that encodes the XML
+         *         character references of unmappable code points
+         */
+        public long getCharRefByteCount() {
+            return charRefByteCount;
+        }
+
+        /**
+         * Tells whether or not every code point can be encoded.
+         * 
+         * @return <code>true</code> if there are no unmappable code points
+         */
+        public boolean isLossless() {
+            return unmappableCount == 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @return a string indicating the charset name, byte count and
+         *         unmappable count
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return new StringBuilder(charset.name()).append(": ")
+                    .append(byteCount).append(" bytes, ")
+                    .append(unmappableCount).append(" unmappable")
+                    .toString();
+        }
+    }
+
+    /*
+     * Encodes characters into a scratch buffer, only counting the bytes.
+     */
+    private static final class Counter {
+        private final Charset charset;
+
+        private final CharsetEncoder encoder;
+
+        private final ByteBuffer scratch = ByteBuffer.allocate(8192);
+
+        private final CharBuffer charRefChars =
+                CharBuffer.allocate(CharsetTranslator.MAX_CHAR_REF_LENGTH);
+
+        private long byteCount;
+
+        private long unmappableCount;
+
+        private long charRefByteCount;
+
+        Counter(Charset charset) {
+            this.charset = charset;
+            encoder = CharsetTranslator.newEncoder(charset);
+        }
+
+        void encode(CharBuffer in, boolean endOfInput)
+                throws CharacterCodingException {
+            while (true) {
+                CoderResult result = encoder.encode(in, scratch, endOfInput);
+                if (result.isOverflow()) {
+                    count(false);
+                } else if (result.isUnmappable()) {
+                    int codePoint = (result.length() == 2)
+                            ? Character.codePointAt(in, 0)
+                            : in.get(in.position());
+                    in.position(in.position() + result.length());
+                    ++unmappableCount;
+
+                    count(false);
+                    charRefChars.clear();
+                    CharsetTranslator.putCharRef(charRefChars, codePoint);
+                    charRefChars.flip();
+                    while (true) {
+                        result = encoder.encode(charRefChars, scratch,
+                                endOfInput);
+                        if (result.isError()) {
+                            result.throwException();
+                        }
+                        count(true);
+                        if (result.isUnderflow()) {
+                            break;
+                        }
+                    }
+                } else if (result.isError()) {
+                    result.throwException();
+                } else {
+                    return;
+                }
+            }
+        }
+
+        Estimate finish() {
+            while (encoder.flush(scratch).isOverflow()) {
+                count(false);
+            }
+            count(false);
+
+            return new Estimate(charset, byteCount, unmappableCount,
+                    charRefByteCount);
+        }
+
+        private void count(boolean charRef) {
+            byteCount += scratch.position();
+            if (charRef) {
+                charRefByteCount += scratch.position();
+            }
+            scratch.clear();
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.ninthtest.nio.charset;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CoderResult;
+import java.nio.charset.MalformedInputException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>TranslatingProcessor</code> is a {@link Flow.Processor} that
+ * translates a stream of byte buffers from one character encoding to another
+ * using a {@link CharsetTranslator}.
+ * 
+ * <p>
+ * The processor never blocks. It requests one buffer at a time from its
+ * upstream publisher, and only while its downstream subscriber has
+ * outstanding demand, so a slow subscriber applies backpressure all the way
+ * to the source. The translator's decoder state is carried over from one
+ * buffer to the next, so a multi-byte sequence may be split across buffers.
+ * </p>
+ * 
+ * <p>
+ * Translated bytes are published in buffers of (at most)
+ * {@link #getOutputBufferSize()} bytes. When the subscriber has finished with
+ * a published buffer, it may hand it back to the processor with
+ * {@link #release(ByteBuffer)} so that the buffer is re-used instead of a new
+ * one being allocated.
+ * </p>
+ * 
+ * <p>
+ * A processor performs exactly one translation: it accepts one upstream
+ * subscription and one downstream subscriber, and it has exclusive use of
+ * its translator until the translation completes, fails or is canceled.
+ * Malformed input and (if XML character reference replacement is not
+ * enabled) unmappable characters are signalled to the subscriber with
+ * {@link Flow.Subscriber#onError(Throwable)}.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public class TranslatingProcessor
+        implements Flow.Processor<ByteBuffer, ByteBuffer> {
+    /**
+     * The default size (in bytes) of the buffers published by a processor.
+     */
+    public static final int DEFAULT_OUTPUT_BUFFER_SIZE = 8192;
+
+    private static final int POOL_SIZE = 16;
+
+    private static final int CARRY_SIZE = 32;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final CharsetTranslator translator;
+
+    private final int outputBufferSize;
+
+    private final Queue<ByteBuffer> inputs =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final Queue<ByteBuffer> pool =
+            new ArrayBlockingQueue<ByteBuffer>(POOL_SIZE);
+
+    private final AtomicLong demand = new AtomicLong();
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile Flow.Subscription upstream;
+
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+
+    private volatile boolean upstreamDone;
+
+    private volatile Throwable upstreamError;
+
+    private volatile boolean canceled;
+
+    /* the following fields are only accessed from within drain() */
+
+    private boolean requested;
+
+    private boolean terminated;
+
+    private boolean flushing;
+
+    private boolean endOfInput;
+
+    private ByteBuffer input;
+
+    private ByteBuffer output;
+
+    private final ByteBuffer carry = ByteBuffer.allocate(CARRY_SIZE);
+
+    /**
+     * Constructs a new <code>TranslatingProcessor</code> that publishes
+     * buffers of {@link #DEFAULT_OUTPUT_BUFFER_SIZE} bytes.
+     * 
+     * @param translator the translator used to translate the byte buffers
+     */
+    public TranslatingProcessor(CharsetTranslator translator) {
+        this(translator, DEFAULT_OUTPUT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a new <code>TranslatingProcessor</code>.
+     * 
+     * @param translator the translator used to translate the byte buffers
+     * @param outputBufferSize the size (in bytes) of the buffers published
+     *        by this processor
+     * @throws IllegalArgumentException if the output buffer size is too
+     *         small to hold the encoding of a single character
+     */
+    public TranslatingProcessor(CharsetTranslator translator,
+            int outputBufferSize) {
+        if (outputBufferSize < CARRY_SIZE) {
+            throw new IllegalArgumentException(
+                    "output buffer size must be >= " + CARRY_SIZE);
+        }
+
+        this.translator = translator.reset();
+        this.outputBufferSize = outputBufferSize;
+    }
+
+    /**
+     * Returns the size of the buffers published by this processor.
+     * 
+     * @return the output buffer size in bytes
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    /**
+     * Returns a published buffer to this processor for re-use.
+     * 
+     * <p>
+     * The subscriber must not access the buffer after releasing it.
+     * </p>
+     * 
+     * @param buffer a buffer that was published by this processor
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == outputBufferSize) {
+            buffer.clear();
+            pool.offer(buffer);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Only one subscriber is supported; any further subscriber is signalled
+     * an {@link IllegalStateException}.
+     * </p>
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        synchronized (this) {
+            if (downstream == null) {
+                subscriber.onSubscribe(new Downstream());
+                downstream = subscriber;
+                subscriber = null;
+            }
+        }
+
+        if (subscriber != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    /* no-op */
+                }
+
+                @Override
+                public void cancel() {
+                    /* no-op */
+                }
+            });
+            subscriber.onError(new IllegalStateException(
+                    "processor already has a subscriber"));
+        } else {
+            drain();
+        }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream == null) {
+                upstream = subscription;
+                subscription = null;
+            }
+        }
+
+        if (subscription != null) {
+            subscription.cancel();
+        } else {
+            drain();
+        }
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        inputs.offer(item);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        upstreamError = throwable;
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    /*
+     * Publishes as many translated buffers as the subscriber has demanded,
+     * requesting more input from upstream as needed. Signals are serialized:
+     * only one thread is ever inside the loop, and a thread that finds
+     * another one there just records that there is more work to do.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super ByteBuffer> subscriber = downstream;
+            if (!terminated && (subscriber != null) && (upstream != null)) {
+                drain(subscriber);
+            }
+
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (canceled) {
+            terminate();
+            return;
+        }
+
+        if (upstreamError != null) {
+            terminate();
+            subscriber.onError(upstreamError);
+            return;
+        }
+
+        long emitted = 0L;
+        long requestedCount = demand.get();
+        try {
+            while (emitted != requestedCount) {
+                ByteBuffer buffer = produce();
+                if (buffer == null) {
+                    break;
+                }
+
+                subscriber.onNext(buffer);
+                ++emitted;
+
+                if (canceled) {
+                    terminate();
+                    return;
+                }
+            }
+        } catch (CharacterCodingException ex) {
+            upstream.cancel();
+            terminate();
+            subscriber.onError(ex);
+            return;
+        }
+        /* (unbounded demand is never decremented) */
+        long remainingDemand = (requestedCount == Long.MAX_VALUE)
+                ? requestedCount
+                : demand.addAndGet(-emitted);
+
+        if (endOfInput && (output == null)) {
+            terminate();
+            subscriber.onComplete();
+        } else if ((remainingDemand > 0L) && !requested && !upstreamDone
+                && (input == null) && inputs.isEmpty()) {
+            requested = true;
+            upstream.request(1L);
+        }
+    }
+
+    /*
+     * Returns the next buffer of translated bytes (flipped for reading), or
+     * null if more input is needed (or the translation is finished).
+     */
+    private ByteBuffer produce() throws CharacterCodingException {
+        if (output == null) {
+            if (endOfInput) {
+                return null;
+            }
+            output = acquire();
+        }
+
+        while (true) {
+            ByteBuffer in = nextInput();
+
+            if (in == null) {
+                if (!upstreamDone) {
+                    /* publish what is available rather than wait for more */
+                    return (output.position() > 0) ? publish() : null;
+                }
+
+                if (!flushing) {
+                    if (translator.translate(EMPTY, output, true)
+                            .isOverflow()) {
+                        return publish();
+                    }
+                    flushing = true;
+                }
+                if (translator.flush(output).isOverflow()) {
+                    return publish();
+                }
+
+                endOfInput = true;
+                if (output.position() > 0) {
+                    return publish();
+                }
+                release(output);
+                output = null;
+
+                return null;
+            }
+
+            CoderResult result = translator.translate(in, output, false);
+            if (in == carry) {
+                carry.compact();
+            } else if (!in.hasRemaining()) {
+                input = null;
+            }
+
+            if (result.isOverflow()) {
+                return publish();
+            }
+
+            if ((input != null) && (in == input)) {
+                /*
+                 * underflow with bytes remaining: an incomplete multi-byte
+                 * sequence that must be joined with the next buffer
+                 */
+                carry.put(input);
+                input = null;
+            }
+        }
+    }
+
+    /*
+     * Returns the buffer to translate from next: the carried-over bytes of an
+     * incomplete sequence (topped up with one byte from the current input),
+     * else the current input, else the next input from upstream. Returns null
+     * if there is no input available.
+     */
+    private ByteBuffer nextInput() throws MalformedInputException {
+        if (input == null) {
+            input = inputs.poll();
+            if (input != null) {
+                requested = false;
+            }
+        }
+
+        if (carry.position() > 0) {
+            if ((input == null) || !input.hasRemaining()) {
+                input = null;
+                if (upstreamDone && inputs.isEmpty()) {
+                    /* the input ended with an incomplete sequence */
+                    throw new MalformedInputException(carry.position());
+                }
+                return null;
+            } else if (!carry.hasRemaining()) {
+                /* no known charset has sequences this long */
+                throw new MalformedInputException(carry.position());
+            }
+
+            /*
+             * only as many bytes as it takes to complete the sequence are
+             * carried over; once the carry is empty, the rest of the input is
+             * translated in place
+             */
+            carry.put(input.get());
+            carry.flip();
+
+            return carry;
+        }
+
+        return input;
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+
+        return (buffer != null)
+                ? buffer
+                : ByteBuffer.allocate(outputBufferSize);
+    }
+
+    private ByteBuffer publish() {
+        ByteBuffer buffer = output;
+        output = null;
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private void terminate() {
+        terminated = true;
+        inputs.clear();
+        input = null;
+        output = null;
+    }
+
+    /*
+     * The subscription given to the downstream subscriber.
+     */
+    private final class Downstream implements Flow.Subscription {
+        Downstream() {
+            /* nothing to do */
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void request(long n) {
+            if (n <= 0L) {
+                upstreamError = new IllegalArgumentException(
+                        "non-positive subscription request");
+
+                Flow.Subscription subscription = upstream;
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+            } else {
+                long current;
+                long next;
+                do {
+                    current = demand.get();
+                    next = current + n;
+                    /* demand is unbounded once it overflows */
+                    if (next < 0L) {
+                        next = Long.MAX_VALUE;
+                    }
+                } while (!demand.compareAndSet(current, next));
+            }
+
+            drain();
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void cancel() {
+            canceled = true;
+
+            Flow.Subscription subscription = upstream;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+
+            drain();
+        }
+    }
+}
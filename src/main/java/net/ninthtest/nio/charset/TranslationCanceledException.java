@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.charset;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a translation stops because its {@link CancellationToken} was
+ * canceled.
+ * 
+ * <p>
+ * This is an {@link InterruptedIOException} (as thrown by
+ * {@link javax.swing.ProgressMonitorInputStream} when its monitor is
+ * canceled), so callers that already handle interrupted I/O as a
+ * cancellation need not change. Whatever was written to the target before
+ * the translation stopped is incomplete, and should be removed by the caller.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public class TranslationCanceledException extends InterruptedIOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a new <code>TranslationCanceledException</code>.
+     */
+    public TranslationCanceledException() {
+        super("translation canceled");
+    }
+}
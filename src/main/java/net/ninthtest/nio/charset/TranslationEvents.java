@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.ninthtest.nio.charset;
+
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.UnmappableCharacterException;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events that are emitted by a
+ * {@link CharsetTranslator}.
+ * 
+ * <p>
+ * A {@link Translation} event spans each stream, channel and byte array
+ * translation. Within a translation, one in every
+ * {@value #BUFFER_SAMPLE_INTERVAL} decode, encode and write steps is recorded
+ * as a {@link Decode}, {@link Encode} or {@link Write} event, and every run of
+ * consecutive unmappable characters that is replaced by XML character
+ * references is recorded as an {@link UnmappableBurst} event.
+ * </p>
+ * 
+ * <p>
+ * Events are only instantiated while a recording is running (e.g. one that
+ * was started by <code>jcmd &lt;pid&gt; JFR.start</code>), so when nothing is
+ * being recorded, the cost of instrumentation is a single volatile read per
+ * step.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+final class TranslationEvents {
+    /** One in this many decode, encode and write steps is recorded. */
+    static final int BUFFER_SAMPLE_INTERVAL = 16;
+
+    /** The outcome of a translation that completed normally. */
+    static final String COMPLETED = "completed";
+
+    /* whether any flight recording is running */
+    private static volatile boolean recording;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording changed) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    private TranslationEvents() {
+        /* not instantiable */
+    }
+
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording each : recorder.getRecordings()) {
+            running |= (each.getState() == RecordingState.RUNNING);
+        }
+        recording = running;
+    }
+
+    /*
+     * Answers whether any flight recording is running (and so whether events
+     * should be instantiated at all).
+     */
+    static boolean isRecording() {
+        return recording;
+    }
+
+    /*
+     * Begins a translation event, or returns null if nothing is being
+     * recorded.
+     */
+    static Translation beginTranslation(CharsetTranslator translator) {
+        if (!recording) {
+            return null;
+        }
+
+        Translation event = new Translation();
+        event.sourceCharset = translator.sourceCharset().name();
+        event.targetCharset = translator.targetCharset().name();
+        event.xmlCharRefs = translator.isUsingXMLCharRefReplacement();
+        event.begin();
+
+        return event;
+    }
+
+    /*
+     * Commits a translation event (which may be null); the failure is null if
+     * the translation completed normally.
+     */
+    static void endTranslation(Translation event, long bytesRead,
+            long bytesWritten, long charRefCount, Throwable failure) {
+        if (event == null) {
+            return;
+        }
+
+        event.end();
+        event.bytesRead = bytesRead;
+        event.bytesWritten = bytesWritten;
+        event.charRefCount = charRefCount;
+        event.outcome = outcome(failure);
+        event.commit();
+    }
+
+    /* describes the way in which a translation ended */
+    static String outcome(Throwable failure) {
+        if (failure == null) {
+            return COMPLETED;
+        } else if (failure instanceof TranslationCanceledException) {
+            return "canceled";
+        } else if (failure instanceof MalformedInputException) {
+            return "malformed";
+        } else if (failure instanceof UnmappableCharacterException) {
+            return "unmappable";
+        }
+
+        return "failed";
+    }
+
+    /**
+     * Spans a single translation.
+     */
+    @Name("net.ninthtest.Translation")
+    @Label("Translation")
+    @Category("Character Encoding Translator")
+    @Description("A stream, channel or byte array translation")
+    @StackTrace(false)
+    static final class Translation extends Event {
+        @Label("Source Charset")
+        String sourceCharset;
+
+        @Label("Target Charset")
+        String targetCharset;
+
+        @Label("XML Character References")
+        boolean xmlCharRefs;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Character References")
+        @Description("The number of unmappable characters that were replaced")
+        long charRefCount;
+
+        @Label("Outcome")
+        @Description("completed, canceled, malformed, unmappable or failed")
+        String outcome;
+    }
+
+    /**
+     * A (sampled) step that decodes one buffer of source bytes.
+     */
+    @Name("net.ninthtest.Decode")
+    @Label("Decode")
+    @Category("Character Encoding Translator")
+    @StackTrace(false)
+    static final class Decode extends Event {
+        @Label("Charset")
+        String charset;
+
+        @Label("Bytes Decoded")
+        @DataAmount
+        int byteCount;
+
+        @Label("Characters Decoded")
+        int charCount;
+    }
+
+    /**
+     * A (sampled) step that encodes one buffer of decoded characters.
+     */
+    @Name("net.ninthtest.Encode")
+    @Label("Encode")
+    @Category("Character Encoding Translator")
+    @StackTrace(false)
+    static final class Encode extends Event {
+        @Label("Charset")
+        String charset;
+
+        @Label("Characters Encoded")
+        int charCount;
+
+        @Label("Bytes Encoded")
+        @DataAmount
+        int byteCount;
+    }
+
+    /**
+     * A (sampled) write of one buffer of translated bytes.
+     */
+    @Name("net.ninthtest.Write")
+    @Label("Write")
+    @Category("Character Encoding Translator")
+    @StackTrace(false)
+    static final class Write extends Event {
+        @Label("Bytes Written")
+        @DataAmount
+        int byteCount;
+    }
+
+    /**
+     * A run of consecutive unmappable characters that were replaced by XML
+     * character references.
+     */
+    @Name("net.ninthtest.UnmappableBurst")
+    @Label("Unmappable Burst")
+    @Category("Character Encoding Translator")
+    @StackTrace(false)
+    static final class UnmappableBurst extends Event {
+        @Label("Target Charset")
+        String targetCharset;
+
+        @Label("First Code Point")
+        int firstCodePoint;
+
+        @Label("Length")
+        @Description("The number of consecutive unmappable characters")
+        int length;
+    }
+}
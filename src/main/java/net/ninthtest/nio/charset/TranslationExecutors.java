@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.charset;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executors for asynchronous translations (see
+ * {@link CharsetTranslator#translateAsync(java.io.InputStream,
+ * java.io.OutputStream, Executor)}).
+ * 
+ * <p>
+ * Use {@link #cpu()} for translations whose source and target are in memory
+ * (so that translating is all the work there is), and {@link #io()} for
+ * translations that read or write files, sockets or pipes (whose threads
+ * spend much of their time waiting). Both executors are created on first use,
+ * run their tasks on daemon threads, and let idle threads die, so they never
+ * need to be shut down.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class TranslationExecutors {
+    /* the time (in seconds) after which an idle pool thread dies */
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+
+    /**
+     * Returns the executor for CPU-bound translations.
+     * 
+     * <p>
+     * It runs as many translations at a time as there are processors, and
+     * queues the rest.
+     * </p>
+     * 
+     * @return the shared CPU-bound executor
+     */
+    public static Executor cpu() {
+        return Cpu.EXECUTOR;
+    }
+
+    /**
+     * Returns the executor for I/O-bound translations.
+     * 
+     * <p>
+     * It runs every translation at once: on a new virtual thread if the JRE
+     * supports them (Java 21 and later), and otherwise on a pooled platform
+     * thread.
+     * </p>
+     * 
+     * @return the shared I/O-bound executor
+     */
+    public static Executor io() {
+        return Io.EXECUTOR;
+    }
+
+    /**
+     * Tells whether or not the I/O-bound executor uses virtual threads.
+     * 
+     * @return <code>true</code> if {@link #io()} runs each translation on a
+     *         new virtual thread
+     */
+    public static boolean isUsingVirtualThreads() {
+        return Io.VIRTUAL;
+    }
+
+    /* creates daemon threads named "cetrans-<kind>-<n>" */
+    private static ThreadFactory daemonThreads(final String kind) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task,
+                        "cetrans-" + kind + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        };
+    }
+
+    /* holds the CPU-bound executor, which is created on first use */
+    private static final class Cpu {
+        static final Executor EXECUTOR = newExecutor();
+
+        private static Executor newExecutor() {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                    threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), daemonThreads("cpu"));
+            executor.allowCoreThreadTimeOut(true);
+
+            return executor;
+        }
+    }
+
+    /* holds the I/O-bound executor, which is created on first use */
+    private static final class Io {
+        static final ExecutorService VIRTUAL_EXECUTOR = newVirtualExecutor();
+
+        static final boolean VIRTUAL = (VIRTUAL_EXECUTOR != null);
+
+        static final Executor EXECUTOR = VIRTUAL
+                ? VIRTUAL_EXECUTOR
+                : new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(),
+                        daemonThreads("io"));
+
+        /*
+         * Executors#newVirtualThreadPerTaskExecutor() is looked up
+         * reflectively, because this class is compiled for an earlier
+         * release; returns null if it is missing or (as a preview feature)
+         * disabled.
+         */
+        private static ExecutorService newVirtualExecutor() {
+            try {
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException
+                    | InvocationTargetException ex) {
+                return null;
+            }
+        }
+    }
+
+    private TranslationExecutors() {
+        /* never instantiated */
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.charset;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>TranslationResult</code> describes a completed asynchronous
+ * translation (see
+ * {@link CharsetTranslator#translateAsync(java.io.InputStream,
+ * java.io.OutputStream, java.util.concurrent.Executor)}).
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class TranslationResult {
+    private final Charset sourceCharset;
+
+    private final Charset targetCharset;
+
+    private final long bytesRead;
+
+    private final long bytesWritten;
+
+    private final long charRefCount;
+
+    private final long elapsedNanos;
+
+    TranslationResult(Charset sourceCharset, Charset targetCharset,
+            long bytesRead, long bytesWritten, long charRefCount,
+            long elapsedNanos) {
+        this.sourceCharset = sourceCharset;
+        this.targetCharset = targetCharset;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.charRefCount = charRefCount;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the source charset.
+     * 
+     * @return the character encoding that the source was decoded from
+     */
+    public Charset sourceCharset() {
+        return sourceCharset;
+    }
+
+    /**
+     * Returns the target charset.
+     * 
+     * @return the character encoding that the target was encoded to
+     */
+    public Charset targetCharset() {
+        return targetCharset;
+    }
+
+    /**
+     * Returns the number of bytes read from the source.
+     * 
+     * @return the number of source bytes that were translated
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Returns the number of bytes written to the target.
+     * 
+     * @return the size of the translated output
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Returns the number of XML character references that were written.
+     * 
+     * @return the number of unmappable characters that were replaced with XML
+     *         character references
+     */
+    public long getCharRefCount() {
+        return charRefCount;
+    }
+
+    /**
+     * Returns the time that the translation took.
+     * 
+     * <p>
+     * The time is measured from when the translation started running (not
+     * from when it was submitted to its executor) until it completed.
+     * </p>
+     * 
+     * @param unit the unit of the result
+     * @return the elapsed time, in the given unit
+     */
+    public long getElapsedTime(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @return a string indicating the charset names, byte counts and elapsed
+     *         time
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new StringBuilder(sourceCharset.name()).append(" -> ")
+                .append(targetCharset.name()).append(": ").append(bytesRead)
+                .append(" -> ").append(bytesWritten).append(" bytes in ")
+                .append(getElapsedTime(TimeUnit.MILLISECONDS)).append(" ms")
+                .toString();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.ninthtest.nio.charset.spi;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A single-byte code page, read from a Unicode-consortium-style mapping file.
+ * 
+ * <p>
+ * Each line of a mapping file maps a byte to a Unicode character, as two
+ * hexadecimal numbers separated by whitespace (e.g. <code>0x80 0x20AC</code>).
+ * Anything after a <code>#</code> is a comment, and a line that has a byte but
+ * no character (e.g. <code>0x81 #UNDEFINED</code>) leaves the byte unmapped,
+ * as does omitting it. If several bytes map to the same character, they all
+ * decode to it, but it encodes to the first of them.
+ * </p>
+ * 
+ * <p>
+ * The mapping is compiled into a 256-entry decoding table and a two-level
+ * encoding table (one 256-entry page for each high byte of a character, with
+ * all unused pages shared), so that the charsets created by
+ * {@link #newCharset(String, String...)} decode and encode every character by
+ * array indexing alone.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class MappingTable {
+    /* marks an unmapped byte in the decoding table */
+    static final char UNMAPPED_CHAR = '\uffff';
+
+    /* marks an unmapped character in the encoding table */
+    static final short UNMAPPED_BYTE = -1;
+
+    private static final short[] EMPTY_PAGE = new short[256];
+
+    static {
+        Arrays.fill(EMPTY_PAGE, UNMAPPED_BYTE);
+    }
+
+    /* byte -> char */
+    final char[] decodeTable;
+
+    /* char -> byte, indexed by the high and then the low byte of the char */
+    final short[][] encodePages;
+
+    private final int size;
+
+    private MappingTable(char[] decodeTable, short[][] encodePages,
+            int size) {
+        this.decodeTable = decodeTable;
+        this.encodePages = encodePages;
+        this.size = size;
+    }
+
+    /**
+     * Parses a mapping file.
+     * 
+     * @param reader the reader from which the mapping file is read
+     * @return the mapping table
+     * @throws IOException if the mapping file cannot be read, or if a line is
+     *         not a valid mapping (the message identifies the line)
+     */
+    public static MappingTable parse(Reader reader) throws IOException {
+        char[] decodeTable = new char[256];
+        Arrays.fill(decodeTable, UNMAPPED_CHAR);
+        boolean[] seen = new boolean[256];
+        short[][] encodePages = new short[256][];
+        Arrays.fill(encodePages, EMPTY_PAGE);
+        int size = 0;
+
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        for (int number = 1; (line = lines.readLine()) != null; ++number) {
+            int comment = line.indexOf('#');
+            String[] fields = ((comment >= 0)
+                    ? line.substring(0, comment)
+                    : line).trim().split("\\s+");
+            if (fields[0].isEmpty()) {
+                continue;
+            } else if (fields.length > 2) {
+                throw new IOException(
+                        "line " + number + ": expected <byte> <character>");
+            }
+
+            int b = parseHex(fields[0], 0xff, number);
+            if (seen[b]) {
+                throw new IOException(
+                        "line " + number + ": byte " + fields[0]
+                                + " is mapped more than once");
+            }
+            seen[b] = true;
+            if (fields.length == 1) {
+                continue;
+            }
+
+            int c = parseHex(fields[1], 0xfffe, number);
+            if (Character.isSurrogate((char) c)) {
+                throw new IOException("line " + number
+                        + ": a surrogate cannot be mapped: " + fields[1]);
+            }
+            decodeTable[b] = (char) c;
+            ++size;
+
+            int high = c >>> 8;
+            if (encodePages[high] == EMPTY_PAGE) {
+                encodePages[high] = EMPTY_PAGE.clone();
+            }
+            if (encodePages[high][c & 0xff] == UNMAPPED_BYTE) {
+                encodePages[high][c & 0xff] = (short) b;
+            }
+        }
+
+        return new MappingTable(decodeTable, encodePages, size);
+    }
+
+    /**
+     * Reads a mapping file.
+     * 
+     * @param file the mapping file
+     * @return the mapping table
+     * @throws IOException if the mapping file cannot be read, or if a line is
+     *         not a valid mapping
+     * @see #parse(Reader)
+     */
+    public static MappingTable read(Path file) throws IOException {
+        Reader reader =
+                Files.newBufferedReader(file, StandardCharsets.ISO_8859_1);
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int parseHex(String field, int max, int number)
+            throws IOException {
+        if (!field.startsWith("0x") && !field.startsWith("0X")) {
+            throw new IOException(
+                    "line " + number + ": not a hexadecimal number: " + field);
+        }
+
+        int value;
+        try {
+            value = Integer.parseInt(field.substring(2), 16);
+        } catch (NumberFormatException ex) {
+            throw new IOException(
+                    "line " + number + ": not a hexadecimal number: " + field);
+        }
+        if ((value < 0) || (value > max)) {
+            throw new IOException(
+                    "line " + number + ": out of range: " + field);
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns the number of mapped bytes.
+     * 
+     * @return the number of bytes that decode to a character
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Creates a charset that decodes and encodes using this table.
+     * 
+     * @param canonicalName the canonical name of the charset
+     * @param aliases the aliases of the charset
+     * @return a new charset
+     * @throws java.nio.charset.IllegalCharsetNameException if the name or any
+     *         alias is not a legal charset name
+     */
+    public Charset newCharset(String canonicalName, String... aliases) {
+        return new TableCharset(canonicalName, aliases, this);
+    }
+}
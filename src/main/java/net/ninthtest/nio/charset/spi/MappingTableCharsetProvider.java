@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.ninthtest.nio.charset.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.spi.CharsetProvider;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A charset provider for custom single-byte code pages that are defined by
+ * mapping files (see {@link MappingTable}).
+ * 
+ * <p>
+ * Mapping files are found in two places when the provider is first used:
+ * </p>
+ * 
+ * <ul>
+ * <li>Every {@value #INDEX_RESOURCE} resource on the class path names
+ * mapping files that are themselves class path resources. Each property maps
+ * a charset name to a resource name, optionally followed by aliases (e.g.
+ * <code>x-vendor-1=META-INF/cetrans/vendor-1.txt vendor1</code>), so
+ * code pages can be built into the application jar.</li>
+ * <li>If the {@value #DIRECTORY_PROPERTY} system property names a directory,
+ * then every <code>*.txt</code> file in it is a mapping file for the charset
+ * named by the file name (e.g. <code>x-vendor-2.txt</code> defines
+ * <code>x-vendor-2</code>).</li>
+ * </ul>
+ * 
+ * <p>
+ * Because the provider is registered as a service, the charsets are then
+ * available by name from {@link Charset#forName(String)} and are listed by
+ * {@link Charset#availableCharsets()} (and so may be chosen in the GUI and
+ * console). A mapping file that cannot be read or parsed, or whose charset
+ * name is illegal, is reported on standard error and skipped.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public class MappingTableCharsetProvider extends CharsetProvider {
+    /** The name of the class path resources that index mapping files. */
+    public static final String INDEX_RESOURCE =
+            "META-INF/cetrans/charsets.properties";
+
+    /** The system property that names a directory of mapping files. */
+    public static final String DIRECTORY_PROPERTY = "cetrans.charsets.dir";
+
+    /*
+     * the charsets loaded by the first instance (the service loader creates a
+     * new instance for every lookup that misses the JDK's cache, so mapping
+     * files are only loaded once)
+     */
+    private static Loaded shared;
+
+    /* the directory named by the system property, if not shared */
+    private final String directory;
+
+    private Loaded loaded;
+
+    /**
+     * Constructs a new <code>MappingTableCharsetProvider</code>.
+     * 
+     * <p>
+     * Mapping files are not loaded until a provider is first used, and are
+     * then shared by all providers.
+     * </p>
+     */
+    public MappingTableCharsetProvider() {
+        this(null);
+    }
+
+    /*
+     * Constructs a provider that loads its own charsets (from the given
+     * directory rather than the one named by the system property), or shares
+     * them if directory is null.
+     */
+    MappingTableCharsetProvider(String directory) {
+        super();
+        this.directory = directory;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @return an iterator over the charsets defined by mapping files
+     * @see java.nio.charset.spi.CharsetProvider#charsets()
+     */
+    @Override
+    public Iterator<Charset> charsets() {
+        return load().charsets.iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @param charsetName the name (or an alias) of the charset
+     * @return the charset, or <code>null</code> if no mapping file defines it
+     * @see java.nio.charset.spi.CharsetProvider#charsetForName(String)
+     */
+    @Override
+    public Charset charsetForName(String charsetName) {
+        return load().charsetsByName
+                .get(charsetName.toLowerCase(Locale.ROOT));
+    }
+
+    private Loaded load() {
+        if (directory != null) {
+            synchronized (this) {
+                if (loaded == null) {
+                    loaded = new Loaded(directory);
+                }
+
+                return loaded;
+            }
+        }
+
+        synchronized (MappingTableCharsetProvider.class) {
+            if (shared == null) {
+                shared = new Loaded(System.getProperty(DIRECTORY_PROPERTY));
+            }
+
+            return shared;
+        }
+    }
+
+    /*
+     * the charsets defined by class path resources and (optionally) a
+     * directory, and the same by lower-case name and alias
+     */
+    private static final class Loaded {
+        final List<Charset> charsets;
+
+        final Map<String, Charset> charsetsByName;
+
+        Loaded(String directory) {
+            List<Charset> list = new ArrayList<Charset>();
+            Map<String, Charset> byName = new HashMap<String, Charset>();
+            loadResources(list, byName);
+            if (directory != null) {
+                loadDirectory(Paths.get(directory), list, byName);
+            }
+
+            charsets = Collections.unmodifiableList(list);
+            charsetsByName = byName;
+        }
+    }
+
+    private static void loadResources(List<Charset> loaded,
+            Map<String, Charset> byName) {
+        ClassLoader loader = MappingTableCharsetProvider.class.getClassLoader();
+        try {
+            Enumeration<URL> indexes = loader.getResources(INDEX_RESOURCE);
+            while (indexes.hasMoreElements()) {
+                URL index = indexes.nextElement();
+                Properties properties = new Properties();
+                InputStream in = index.openStream();
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+
+                for (String name : properties.stringPropertyNames()) {
+                    String[] fields =
+                            properties.getProperty(name).trim().split("\\s+");
+                    String[] aliases =
+                            Arrays.copyOfRange(fields, 1, fields.length);
+                    try {
+                        InputStream resource =
+                                loader.getResourceAsStream(fields[0]);
+                        if (resource == null) {
+                            throw new IOException("no such resource");
+                        }
+
+                        Reader reader = new InputStreamReader(resource,
+                                StandardCharsets.ISO_8859_1);
+                        try {
+                            add(MappingTable.parse(reader), name, aliases,
+                                    loaded, byName);
+                        } finally {
+                            reader.close();
+                        }
+                    } catch (IOException | IllegalArgumentException ex) {
+                        skip(fields[0], ex);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            skip(INDEX_RESOURCE, ex);
+        }
+    }
+
+    private static void loadDirectory(Path directory, List<Charset> loaded,
+            Map<String, Charset> byName) {
+        try (DirectoryStream<Path> files =
+                Files.newDirectoryStream(directory, "*.txt")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                try {
+                    add(MappingTable.read(file),
+                            fileName.substring(0, fileName.length() - 4),
+                            new String[0], loaded, byName);
+                } catch (IOException | IllegalArgumentException ex) {
+                    skip(file.toString(), ex);
+                }
+            }
+        } catch (IOException ex) {
+            skip(directory.toString(), ex);
+        }
+    }
+
+    /*
+     * Adds a charset, unless its name or an alias is already taken (the
+     * first definition wins).
+     */
+    private static void add(MappingTable table, String name, String[] aliases,
+            List<Charset> loaded, Map<String, Charset> byName) {
+        /* throws IllegalCharsetNameException for an illegal name or alias */
+        Charset charset = table.newCharset(name, aliases);
+
+        List<String> names = new ArrayList<String>();
+        names.add(name);
+        names.addAll(Arrays.asList(aliases));
+        for (String each : names) {
+            if (byName.containsKey(each.toLowerCase(Locale.ROOT))) {
+                throw new IllegalArgumentException(
+                        "charset name already defined: " + each);
+            }
+        }
+
+        loaded.add(charset);
+        for (String each : names) {
+            byName.put(each.toLowerCase(Locale.ROOT), charset);
+        }
+    }
+
+    private static void skip(String source, Exception ex) {
+        System.err.println(
+                "ignoring charset mapping " + source + ": " + ex.getMessage());
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.ninthtest.nio.charset.spi;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * A single-byte charset that decodes and encodes using the tables of a
+ * {@link MappingTable}.
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+final class TableCharset extends Charset {
+    private final char[] decodeTable;
+
+    private final short[][] encodePages;
+
+    TableCharset(String canonicalName, String[] aliases, MappingTable table) {
+        super(canonicalName, aliases);
+        decodeTable = table.decodeTable;
+        encodePages = table.encodePages;
+    }
+
+    @Override
+    public boolean contains(Charset cs) {
+        return (cs == this);
+    }
+
+    @Override
+    public CharsetDecoder newDecoder() {
+        return new Decoder();
+    }
+
+    @Override
+    public CharsetEncoder newEncoder() {
+        return new Encoder(replacement());
+    }
+
+    /* '?' if it is mapped, otherwise the first mapped byte */
+    private byte[] replacement() {
+        int question = encodePages[0]['?'];
+        if (question != MappingTable.UNMAPPED_BYTE) {
+            return new byte[] {(byte) question};
+        }
+        for (int b = 0; b < decodeTable.length; ++b) {
+            if (decodeTable[b] != MappingTable.UNMAPPED_CHAR) {
+                return new byte[] {(byte) b};
+            }
+        }
+
+        throw new IllegalStateException(name() + " maps no bytes");
+    }
+
+    private final class Decoder extends CharsetDecoder {
+        Decoder() {
+            super(TableCharset.this, 1.0f, 1.0f);
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        protected CoderResult decodeLoop(ByteBuffer in, CharBuffer out) {
+            if (in.hasArray() && out.hasArray()) {
+                return decodeArrayLoop(in, out);
+            }
+
+            while (in.hasRemaining()) {
+                int position = in.position();
+                char c = decodeTable[in.get(position) & 0xff];
+                if (c == MappingTable.UNMAPPED_CHAR) {
+                    return CoderResult.unmappableForLength(1);
+                } else if (!out.hasRemaining()) {
+                    return CoderResult.OVERFLOW;
+                }
+                out.put(c);
+                in.position(position + 1);
+            }
+
+            return CoderResult.UNDERFLOW;
+        }
+
+        @SuppressWarnings("synthetic-access")
+        private CoderResult decodeArrayLoop(ByteBuffer in, CharBuffer out) {
+            byte[] source = in.array();
+            int sp = in.arrayOffset() + in.position();
+            int sl = in.arrayOffset() + in.limit();
+            char[] target = out.array();
+            int tp = out.arrayOffset() + out.position();
+            int tl = out.arrayOffset() + out.limit();
+
+            CoderResult result = CoderResult.UNDERFLOW;
+            while (sp < sl) {
+                char c = decodeTable[source[sp] & 0xff];
+                if (c == MappingTable.UNMAPPED_CHAR) {
+                    result = CoderResult.unmappableForLength(1);
+                    break;
+                } else if (tp == tl) {
+                    result = CoderResult.OVERFLOW;
+                    break;
+                }
+                target[tp++] = c;
+                ++sp;
+            }
+
+            in.position(sp - in.arrayOffset());
+            out.position(tp - out.arrayOffset());
+
+            return result;
+        }
+    }
+
+    private final class Encoder extends CharsetEncoder {
+        Encoder(byte[] replacement) {
+            super(TableCharset.this, 1.0f, 1.0f, replacement);
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public boolean canEncode(char c) {
+            return (encodePages[c >>> 8][c & 0xff]
+                    != MappingTable.UNMAPPED_BYTE);
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        protected CoderResult encodeLoop(CharBuffer in, ByteBuffer out) {
+            if (in.hasArray() && out.hasArray()) {
+                return encodeArrayLoop(in, out);
+            }
+
+            while (in.hasRemaining()) {
+                int position = in.position();
+                char c = in.get(position);
+                int b = encodePages[c >>> 8][c & 0xff];
+                if (b == MappingTable.UNMAPPED_BYTE) {
+                    return unencodable(c, in.remaining() > 1,
+                            (in.remaining() > 1) ? in.get(position + 1) : 0);
+                } else if (!out.hasRemaining()) {
+                    return CoderResult.OVERFLOW;
+                }
+                out.put((byte) b);
+                in.position(position + 1);
+            }
+
+            return CoderResult.UNDERFLOW;
+        }
+
+        @SuppressWarnings("synthetic-access")
+        private CoderResult encodeArrayLoop(CharBuffer in, ByteBuffer out) {
+            char[] source = in.array();
+            int sp = in.arrayOffset() + in.position();
+            int sl = in.arrayOffset() + in.limit();
+            byte[] target = out.array();
+            int tp = out.arrayOffset() + out.position();
+            int tl = out.arrayOffset() + out.limit();
+
+            CoderResult result = CoderResult.UNDERFLOW;
+            while (sp < sl) {
+                char c = source[sp];
+                int b = encodePages[c >>> 8][c & 0xff];
+                if (b == MappingTable.UNMAPPED_BYTE) {
+                    result = unencodable(c, (sp + 1) < sl,
+                            ((sp + 1) < sl) ? source[sp + 1] : 0);
+                    break;
+                } else if (tp == tl) {
+                    result = CoderResult.OVERFLOW;
+                    break;
+                }
+                target[tp++] = (byte) b;
+                ++sp;
+            }
+
+            in.position(sp - in.arrayOffset());
+            out.position(tp - out.arrayOffset());
+
+            return result;
+        }
+
+        /*
+         * Describes an unmapped character: a surrogate pair is unmappable (as
+         * a whole), a lone surrogate is malformed, and a high surrogate at
+         * the end of the input needs more input.
+         */
+        private CoderResult unencodable(char c, boolean hasNext, char next) {
+            if (Character.isHighSurrogate(c)) {
+                if (!hasNext) {
+                    return CoderResult.UNDERFLOW;
+                }
+
+                return Character.isLowSurrogate(next)
+                        ? CoderResult.unmappableForLength(2)
+                        : CoderResult.malformedForLength(1);
+            } else if (Character.isLowSurrogate(c)) {
+                return CoderResult.malformedForLength(1);
+            }
+
+            return CoderResult.unmappableForLength(1);
+        }
+    }
+}
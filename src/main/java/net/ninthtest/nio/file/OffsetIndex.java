@@ -0,0 +1,685 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharTransform;
+import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.charset.DecodeListener;
+import net.ninthtest.nio.file.OutputCommitter.SyncPolicy;
+
+/**
+ * An <code>OffsetIndex</code> is a sparse map between the byte offsets,
+ * character offsets and line numbers of an encoded file, which allows a range
+ * of the file to be translated without decoding it from the beginning.
+ * 
+ * <p>
+ * The index holds a checkpoint roughly every {@link #getInterval()} bytes.
+ * Each checkpoint is a position at which decoding can be resumed: its byte
+ * offset, the number of characters decoded before it, and the number of line
+ * feeds (LF) decoded before it. Lines and characters are numbered from 0
+ * (zero), and a line ends with (and includes) its LF.
+ * </p>
+ * 
+ * <p>
+ * An index can be built by a dedicated pass over the file ({@link
+ * #build(Path, Charset, int)}), or during a normal channel translation of it,
+ * by setting a {@link Builder} as the translator's {@link DecodeListener}. It
+ * can be kept as a sidecar file (see {@link #sidecar(Path)}) and is only used
+ * while the file's size and last-modified time are unchanged.
+ * </p>
+ * 
+ * <p>
+ * Decoding can only be resumed at a checkpoint if the decoder carries no
+ * state from one character to the next, so charsets with shift states or
+ * byte-order marks (such as ISO-2022-JP and UTF-16) cannot be indexed (see
+ * {@link #isIndexable(Charset)}); the decoder state at every checkpoint is
+ * therefore always the initial state, and is not stored.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class OffsetIndex {
+    /**
+     * The default interval (in bytes) between checkpoints.
+     */
+    public static final int DEFAULT_INTERVAL = 64 * 1024;
+
+    private static final int MAGIC = 0x43455449;
+
+    private static final int VERSION = 1;
+
+    private static final String SIDECAR_SUFFIX = ".cetidx";
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /* lower-case names of the JRE charsets whose decoders are stateful */
+    private static final List<String> STATEFUL_CHARSETS = Arrays.asList(
+            "utf-16", "utf-32", "x-utf-16le-bom", "x-utf-32be-bom",
+            "x-utf-32le-bom", "x-windows-50220", "x-windows-50221",
+            "x-compound_text", "x-jisautodetect", "x-ibm930", "x-ibm933",
+            "x-ibm935", "x-ibm937", "x-ibm939", "x-ibm1364", "x-ibm1371",
+            "x-ibm1388", "x-ibm1390", "x-ibm1399");
+
+    private final Charset charset;
+
+    private final int interval;
+
+    private final long sourceSize;
+
+    private final long sourceModified;
+
+    private final long[] byteOffsets;
+
+    private final long[] charOffsets;
+
+    private final long[] lines;
+
+    private OffsetIndex(Charset charset, int interval, long sourceSize,
+            long sourceModified, long[] byteOffsets, long[] charOffsets,
+            long[] lines) {
+        this.charset = charset;
+        this.interval = interval;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+        this.byteOffsets = byteOffsets;
+        this.charOffsets = charOffsets;
+        this.lines = lines;
+    }
+
+    /**
+     * Returns the conventional location of the index for a file.
+     * 
+     * @param source the indexed file
+     * @return the sidecar path (the filename with a <code>.cetidx</code>
+     *         suffix)
+     */
+    public static Path sidecar(Path source) {
+        return source.resolveSibling(source.getFileName() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Tells whether or not files in a charset can be indexed.
+     * 
+     * @param charset a charset
+     * @return <code>true</code> if decoding in <code>charset</code> can be
+     *         resumed at any character boundary
+     */
+    public static boolean isIndexable(Charset charset) {
+        String name = charset.name().toLowerCase(Locale.ENGLISH);
+
+        return !name.contains("2022") && !STATEFUL_CHARSETS.contains(name);
+    }
+
+    /**
+     * Builds the index of a file in a dedicated pass, which only decodes the
+     * file.
+     * 
+     * @param source the file to be indexed
+     * @param charset the character encoding of the file
+     * @param interval the minimum number of bytes between checkpoints
+     * @return the index of <code>source</code>
+     * @throws IllegalArgumentException if <code>charset</code> cannot be
+     *         indexed, or if the interval is less than 1 (one)
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public static OffsetIndex build(Path source, Charset charset,
+            int interval) throws IOException {
+        Builder builder = new Builder(charset, interval);
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        CharBuffer out =
+                CharBuffer.allocate(Math.max(Math.min(interval, 8192), 16));
+
+        try (FileChannel channel = FileChannel.open(source)) {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                endOfInput = (channel.read(in) < 0);
+                in.flip();
+
+                CoderResult result;
+                do {
+                    int start = in.position();
+                    result = decoder.decode(in, out, endOfInput);
+                    builder.decoded(in.position() - start, out.array(), 0,
+                            out.position());
+                    out.clear();
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                } while (result.isOverflow());
+
+                in.compact();
+            }
+            while (decoder.flush(out).isOverflow()) {
+                builder.decoded(0, out.array(), 0, out.position());
+                out.clear();
+            }
+            builder.decoded(0, out.array(), 0, out.position());
+        }
+
+        return builder.build(source);
+    }
+
+    /**
+     * Reads an index that was written by {@link #write(Path)}.
+     * 
+     * @param indexFile the path to the index file
+     * @return the index
+     * @throws IOException if the file cannot be read or is not a valid index
+     */
+    public static OffsetIndex read(Path indexFile) throws IOException {
+        try (InputStream stream = Files.newInputStream(indexFile)) {
+            DataInputStream data =
+                    new DataInputStream(new BufferedInputStream(stream));
+            if ((data.readInt() != MAGIC) || (data.readInt() != VERSION)) {
+                throw new IOException(indexFile + " is not an offset index");
+            }
+
+            Charset charset = Charset.forName(data.readUTF());
+            int interval = data.readInt();
+            long sourceSize = data.readLong();
+            long sourceModified = data.readLong();
+            int count = data.readInt();
+            long[] byteOffsets = new long[count];
+            long[] charOffsets = new long[count];
+            long[] lines = new long[count];
+            for (int i = 0; i < count; ++i) {
+                byteOffsets[i] = data.readLong();
+                charOffsets[i] = data.readLong();
+                lines[i] = data.readLong();
+            }
+
+            return new OffsetIndex(charset, interval, sourceSize,
+                    sourceModified, byteOffsets, charOffsets, lines);
+        }
+    }
+
+    /**
+     * Writes this index to a file.
+     * 
+     * <p>
+     * The file is replaced atomically, so a concurrent reader never sees a
+     * partially written index.
+     * </p>
+     * 
+     * @param indexFile the path to the index file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path indexFile) throws IOException {
+        OutputCommitter.PendingOutput output =
+                new OutputCommitter(SyncPolicy.NONE).create(indexFile);
+        try {
+            DataOutputStream data = new DataOutputStream(
+                    new BufferedOutputStream(output.getStream()));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeUTF(charset.name());
+            data.writeInt(interval);
+            data.writeLong(sourceSize);
+            data.writeLong(sourceModified);
+            data.writeInt(byteOffsets.length);
+            for (int i = 0; i < byteOffsets.length; ++i) {
+                data.writeLong(byteOffsets[i]);
+                data.writeLong(charOffsets[i]);
+                data.writeLong(lines[i]);
+            }
+            data.flush();
+
+            output.commit();
+        } finally {
+            output.abort();
+        }
+    }
+
+    /**
+     * Returns the charset of the indexed file.
+     * 
+     * @return the character encoding of the indexed file
+     */
+    public Charset charset() {
+        return charset;
+    }
+
+    /**
+     * Returns the minimum number of bytes between checkpoints.
+     * 
+     * @return the checkpoint interval
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the number of checkpoints.
+     * 
+     * @return the number of checkpoints (at least one, at the beginning of the
+     *         file)
+     */
+    public int size() {
+        return byteOffsets.length;
+    }
+
+    /**
+     * Tells whether or not this index still describes a file.
+     * 
+     * @param source the indexed file
+     * @return <code>true</code> if the size and last-modified time of
+     *         <code>source</code> are those that it had when it was indexed
+     * @throws IOException if the file's attributes cannot be read
+     */
+    public boolean isCurrent(Path source) throws IOException {
+        return (Files.size(source) == sourceSize) && (Files
+                .getLastModifiedTime(source).toMillis() == sourceModified);
+    }
+
+    /**
+     * Returns the last checkpoint at or before a character offset.
+     * 
+     * @param charOffset a character offset
+     * @return the checkpoint from which to decode to reach
+     *         <code>charOffset</code>
+     */
+    public Checkpoint floorChar(long charOffset) {
+        return checkpoint(floor(charOffsets, charOffset));
+    }
+
+    /**
+     * Returns the last checkpoint at or before the start of a line.
+     * 
+     * @param line a line number
+     * @return the checkpoint from which to decode to reach the start of
+     *         <code>line</code>
+     */
+    public Checkpoint floorLine(long line) {
+        /*
+         * a checkpoint with the given number of LFs before it may already be
+         * past the start of the line, so use the one before it
+         */
+        return checkpoint(floor(lines, line - 1));
+    }
+
+    private static int floor(long[] offsets, long offset) {
+        int i = Arrays.binarySearch(offsets, offset);
+        if (i < 0) {
+            return Math.max(-i - 2, 0);
+        }
+        /* several checkpoints may have the same line number */
+        while (((i + 1) < offsets.length) && (offsets[i + 1] == offset)) {
+            ++i;
+        }
+
+        return i;
+    }
+
+    private Checkpoint checkpoint(int i) {
+        return new Checkpoint(byteOffsets[i], charOffsets[i], lines[i]);
+    }
+
+    /**
+     * Translates a range of characters of the indexed file, decoding it from
+     * the nearest checkpoint.
+     * 
+     * <p>
+     * The translator's target charset, XML character reference replacement
+     * setting, buffer size, transform (which is applied to the range only)
+     * and cancellation token are honored.
+     * </p>
+     * 
+     * @param translator the translator whose settings are used
+     * @param source the indexed file
+     * @param firstChar the offset of the first character to be translated
+     * @param charCount the number of characters to be translated
+     * @param target the channel to which translated bytes are written
+     * @throws IllegalArgumentException if the translator's source charset is
+     *         not the charset of this index, or if this index is not current
+     *         for <code>source</code>
+     * @throws IOException if any reading/decoding/encoding/writing operation
+     *         fails
+     */
+    public void translateChars(CharsetTranslator translator, Path source,
+            long firstChar, long charCount, WritableByteChannel target)
+            throws IOException {
+        Checkpoint checkpoint = floorChar(firstChar);
+        translate(translator, source, checkpoint,
+                new Slice(false, firstChar, charCount, checkpoint.charOffset),
+                target);
+    }
+
+    /**
+     * Translates a range of lines of the indexed file, decoding it from the
+     * nearest checkpoint.
+     * 
+     * <p>
+     * The translator's settings are honored as by {@link
+     * #translateChars(CharsetTranslator, Path, long, long,
+     * WritableByteChannel)}.
+     * </p>
+     * 
+     * @param translator the translator whose settings are used
+     * @param source the indexed file
+     * @param firstLine the number of the first line to be translated
+     * @param lineCount the number of lines to be translated
+     * @param target the channel to which translated bytes are written
+     * @throws IllegalArgumentException if the translator's source charset is
+     *         not the charset of this index, or if this index is not current
+     *         for <code>source</code>
+     * @throws IOException if any reading/decoding/encoding/writing operation
+     *         fails
+     */
+    public void translateLines(CharsetTranslator translator, Path source,
+            long firstLine, long lineCount, WritableByteChannel target)
+            throws IOException {
+        Checkpoint checkpoint = floorLine(firstLine);
+        translate(translator, source, checkpoint,
+                new Slice(true, firstLine, lineCount, checkpoint.line),
+                target);
+    }
+
+    private void translate(CharsetTranslator translator, Path source,
+            Checkpoint checkpoint, Slice slice, WritableByteChannel target)
+            throws IOException {
+        if (!charset.equals(translator.sourceCharset())) {
+            throw new IllegalArgumentException(
+                    "translator and index charsets differ");
+        } else if (!isCurrent(source)) {
+            throw new IllegalArgumentException(
+                    "index is not current for " + source);
+        }
+
+        /* a private translator, so the caller's transform is not replaced */
+        CharsetTranslator sliced = new CharsetTranslator(
+                translator.sourceCharset(), translator.targetCharset())
+                .useXMLCharRefReplacement(
+                        translator.isUsingXMLCharRefReplacement())
+                .useBestFitReplacement(
+                        translator.isUsingBestFitReplacement());
+        sliced.setBufferSize(translator.getBufferSize());
+        sliced.setTransform((translator.getTransform() != null)
+                ? CharTransform.chain(slice, translator.getTransform())
+                : slice);
+        CancellationToken token = translator.getCancellationToken();
+
+        ByteBuffer in =
+                ByteBuffer.allocate(CharsetTranslator.CHANNEL_BUFFER_SIZE);
+        ByteBuffer out =
+                ByteBuffer.allocate(CharsetTranslator.CHANNEL_BUFFER_SIZE);
+        sliced.reset();
+
+        try (FileChannel channel = FileChannel.open(source)) {
+            channel.position(checkpoint.byteOffset);
+
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                if (token != null) {
+                    token.throwIfCanceled();
+                }
+                endOfInput = (channel.read(in) < 0);
+
+                in.flip();
+                while (sliced.translate(in, out, endOfInput).isOverflow()) {
+                    write(out, target);
+                }
+                in.compact();
+
+                if (!endOfInput && slice.isDone()) {
+                    /* the rest of the file is not needed (nor read) */
+                    in.clear().flip();
+                    while (sliced.translate(in, out, true).isOverflow()) {
+                        write(out, target);
+                    }
+                    endOfInput = true;
+                }
+                write(out, target);
+            }
+        }
+
+        while (sliced.flush(out).isOverflow()) {
+            write(out, target);
+        }
+        write(out, target);
+    }
+
+    private static void write(ByteBuffer out, WritableByteChannel channel)
+            throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * A <code>Checkpoint</code> is a position in an indexed file at which
+     * decoding can be resumed.
+     */
+    public static final class Checkpoint {
+        final long byteOffset;
+
+        final long charOffset;
+
+        final long line;
+
+        Checkpoint(long byteOffset, long charOffset, long line) {
+            this.byteOffset = byteOffset;
+            this.charOffset = charOffset;
+            this.line = line;
+        }
+
+        /**
+         * Returns the byte offset of this checkpoint.
+         * 
+         * @return the number of bytes before this checkpoint
+         */
+        public long getByteOffset() {
+            return byteOffset;
+        }
+
+        /**
+         * Returns the character offset of this checkpoint.
+         * 
+         * @return the number of characters before this checkpoint
+         */
+        public long getCharOffset() {
+            return charOffset;
+        }
+
+        /**
+         * Returns the line number of this checkpoint.
+         * 
+         * @return the number of line feeds before this checkpoint
+         */
+        public long getLine() {
+            return line;
+        }
+    }
+
+    /**
+     * A <code>Builder</code> records checkpoints as a file is decoded.
+     * 
+     * <p>
+     * To index a file while translating it, set a builder as the translator's
+     * {@link CharsetTranslator#setDecodeListener(DecodeListener) decode
+     * listener}, translate the file from its beginning with {@link
+     * CharsetTranslator#translate(java.nio.channels.ReadableByteChannel,
+     * WritableByteChannel)}, and then {@link #build(Path)} the index.
+     * </p>
+     */
+    public static final class Builder implements DecodeListener {
+        private final Charset charset;
+
+        private final int interval;
+
+        private long[] byteOffsets = new long[16];
+
+        private long[] charOffsets = new long[16];
+
+        private long[] lines = new long[16];
+
+        private int count = 1;
+
+        private long byteOffset;
+
+        private long charOffset;
+
+        private long line;
+
+        private long nextCheckpoint;
+
+        /**
+         * Constructs a new <code>Builder</code>.
+         * 
+         * @param charset the character encoding of the file
+         * @param interval the minimum number of bytes between checkpoints
+         * @throws IllegalArgumentException if <code>charset</code> cannot be
+         *         indexed, or if the interval is less than 1 (one)
+         */
+        public Builder(Charset charset, int interval) {
+            if (!isIndexable(charset)) {
+                throw new IllegalArgumentException(
+                        charset + " cannot be indexed");
+            } else if (interval < 1) {
+                throw new IllegalArgumentException("interval must be >= 1");
+            }
+            this.charset = charset;
+            this.interval = interval;
+            nextCheckpoint = interval;
+        }
+
+        @Override
+        public void decoded(int byteCount, char[] chars, int offset,
+                int length) {
+            for (int i = offset; i < (offset + length); ++i) {
+                if (chars[i] == '\n') {
+                    ++line;
+                }
+            }
+            byteOffset += byteCount;
+            charOffset += length;
+
+            if (byteOffset >= nextCheckpoint) {
+                if (count == byteOffsets.length) {
+                    byteOffsets = Arrays.copyOf(byteOffsets, count * 2);
+                    charOffsets = Arrays.copyOf(charOffsets, count * 2);
+                    lines = Arrays.copyOf(lines, count * 2);
+                }
+                byteOffsets[count] = byteOffset;
+                charOffsets[count] = charOffset;
+                lines[count] = line;
+                ++count;
+                nextCheckpoint = byteOffset + interval;
+            }
+        }
+
+        /**
+         * Builds the index.
+         * 
+         * @param source the indexed file (whose size and last-modified time
+         *        are recorded)
+         * @return the index of <code>source</code>
+         * @throws IOException if the file's attributes cannot be read
+         */
+        public OffsetIndex build(Path source) throws IOException {
+            return new OffsetIndex(charset, interval, Files.size(source),
+                    Files.getLastModifiedTime(source).toMillis(),
+                    Arrays.copyOf(byteOffsets, count),
+                    Arrays.copyOf(charOffsets, count),
+                    Arrays.copyOf(lines, count));
+        }
+    }
+
+    /*
+     * Passes through only the characters of a range, counting characters or
+     * lines from the checkpoint at which decoding starts.
+     */
+    private static final class Slice extends CharTransform {
+        private final boolean byLine;
+
+        private final long start;
+
+        private final long end;
+
+        private final long initialPosition;
+
+        private long position;
+
+        Slice(boolean byLine, long start, long count, long initialPosition) {
+            super("slice");
+            this.byLine = byLine;
+            this.start = start;
+            end = ((start + count) < start) ? Long.MAX_VALUE : start + count;
+            this.initialPosition = initialPosition;
+            position = initialPosition;
+        }
+
+        boolean isDone() {
+            return position >= end;
+        }
+
+        @Override
+        public Stage newStage(Sink next) {
+            return new Stage(next) {
+                @SuppressWarnings("synthetic-access")
+                @Override
+                public void put(char c) {
+                    if ((position >= start) && (position < end)) {
+                        next.put(c);
+                    }
+                    if (!byLine || (c == '\n')) {
+                        ++position;
+                    }
+                }
+
+                @SuppressWarnings("synthetic-access")
+                @Override
+                public void reset() {
+                    position = initialPosition;
+                }
+            };
+        }
+    }
+}
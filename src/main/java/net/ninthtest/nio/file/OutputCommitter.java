@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An <code>OutputCommitter</code> makes output files appear atomically: each
+ * file is written to a temporary sibling, which is renamed to the target only
+ * when the output is committed. A crash or failure therefore never leaves a
+ * truncated target that looks complete (an existing target is left as it
+ * was).
+ * 
+ * <p>
+ * How much of this survives an operating system crash or power loss depends
+ * on the {@link SyncPolicy}:
+ * </p>
+ * 
+ * <dl>
+ * <dt>{@link SyncPolicy#NONE}</dt>
+ * <dd>nothing is forced to storage; the rename still protects against
+ * application crashes</dd>
+ * <dt>{@link SyncPolicy#FILE}</dt>
+ * <dd>every file (and its directory) is forced to storage as it is
+ * committed</dd>
+ * <dt>{@link SyncPolicy#GROUP}</dt>
+ * <dd>committed files are held back (as temporary files) until a group of
+ * them has been collected or {@link #sync()} is invoked; then all of them are
+ * forced, all of them are renamed, and each directory involved is forced just
+ * once</dd>
+ * </dl>
+ * 
+ * <p>
+ * An <code>OutputCommitter</code> is safe for use by multiple concurrent
+ * threads (but each {@link PendingOutput} should be used by only one).
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class OutputCommitter implements Closeable {
+    /**
+     * When committed output is forced to storage.
+     */
+    public static enum SyncPolicy {
+        /** Output is never forced to storage. */
+        NONE,
+
+        /** Each file is forced to storage as it is committed. */
+        FILE,
+
+        /** Committed files are forced to storage in groups. */
+        GROUP
+    }
+
+    /**
+     * The default maximum number of committed files that are held back by the
+     * {@link SyncPolicy#GROUP} policy.
+     */
+    public static final int DEFAULT_GROUP_SIZE = 1000;
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final SyncPolicy syncPolicy;
+
+    private final int groupSize;
+
+    private final List<PendingOutput> group = new ArrayList<PendingOutput>();
+
+    /**
+     * Constructs a new <code>OutputCommitter</code> using the
+     * {@link #DEFAULT_GROUP_SIZE}.
+     * 
+     * @param syncPolicy when committed output is forced to storage
+     */
+    public OutputCommitter(SyncPolicy syncPolicy) {
+        this(syncPolicy, DEFAULT_GROUP_SIZE);
+    }
+
+    /**
+     * Constructs a new <code>OutputCommitter</code>.
+     * 
+     * @param syncPolicy when committed output is forced to storage
+     * @param groupSize the maximum number of committed files that are held
+     *        back by the {@link SyncPolicy#GROUP} policy
+     * @throws IllegalArgumentException if the group size is less than 1 (one)
+     */
+    public OutputCommitter(SyncPolicy syncPolicy, int groupSize) {
+        if (groupSize < 1) {
+            throw new IllegalArgumentException("group size must be >= 1");
+        }
+        this.syncPolicy = syncPolicy;
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * Returns the policy that determines when committed output is forced to
+     * storage.
+     * 
+     * @return the sync policy
+     */
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Creates a temporary file that will replace the target when committed.
+     * 
+     * <p>
+     * The temporary file is a hidden sibling of the target (so that it can be
+     * renamed atomically) and is created with the default permissions.
+     * </p>
+     * 
+     * @param target the file that the output is intended for
+     * @return the pending output
+     * @throws IOException if the temporary file cannot be created
+     */
+    public PendingOutput create(Path target) throws IOException {
+        Path absoluteTarget = target.toAbsolutePath();
+        Path directory = absoluteTarget.getParent();
+        String prefix = "." + absoluteTarget.getFileName() + ".";
+
+        while (true) {
+            Path temporary = directory.resolve(prefix
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                    + TEMPORARY_SUFFIX);
+            try {
+                return new PendingOutput(absoluteTarget, temporary,
+                        FileChannel.open(temporary,
+                                StandardOpenOption.CREATE_NEW,
+                                StandardOpenOption.WRITE));
+            } catch (FileAlreadyExistsException ex) {
+                /* try another name */
+            }
+        }
+    }
+
+    /**
+     * Forces every committed file that is being held back to storage, renames
+     * them to their targets, and then forces their directories to storage.
+     * 
+     * <p>
+     * This method does nothing unless the sync policy is
+     * {@link SyncPolicy#GROUP}.
+     * </p>
+     * 
+     * @throws IOException if any file cannot be forced or renamed (files that
+     *         have not been renamed are still held back)
+     */
+    public synchronized void sync() throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+
+        for (PendingOutput output : group) {
+            FileChannel channel = FileChannel.open(output.temporary,
+                    StandardOpenOption.WRITE);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+
+        Set<Path> directories = new LinkedHashSet<Path>();
+        while (!group.isEmpty()) {
+            PendingOutput output = group.get(0);
+            rename(output);
+            directories.add(output.target.getParent());
+            group.remove(0);
+        }
+
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+    }
+
+    /**
+     * Renames any committed files that are still being held back (see
+     * {@link #sync()}).
+     * 
+     * @throws IOException if any file cannot be forced or renamed
+     */
+    @Override
+    public void close() throws IOException {
+        sync();
+    }
+
+    /*
+     * Holds back a committed file until the group is full.
+     */
+    synchronized void hold(PendingOutput output) throws IOException {
+        group.add(output);
+        if (group.size() >= groupSize) {
+            sync();
+        }
+    }
+
+    private static void rename(PendingOutput output) throws IOException {
+        Files.move(output.temporary, output.target,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Forces a directory (i.e. the renames in it) to storage, where the
+     * platform allows it (it does not on Windows).
+     */
+    private static void syncDirectory(Path directory) {
+        try {
+            FileChannel channel =
+                    FileChannel.open(directory, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            /* not supported for directories on this platform */
+        }
+    }
+
+    /**
+     * A temporary file that replaces its target when committed.
+     * 
+     * <p>
+     * Closing a <code>PendingOutput</code> that has not been committed
+     * {@link #abort() aborts} it.
+     * </p>
+     */
+    public final class PendingOutput implements Closeable {
+        final Path target;
+
+        final Path temporary;
+
+        private final FileChannel channel;
+
+        private final OutputStream stream;
+
+        private boolean finished;
+
+        PendingOutput(Path target, Path temporary, FileChannel channel) {
+            this.target = target;
+            this.temporary = temporary;
+            this.channel = channel;
+            stream = Channels.newOutputStream(channel);
+        }
+
+        /**
+         * Returns the file that the output is intended for.
+         * 
+         * @return the (absolute) target path
+         */
+        public Path getTarget() {
+            return target;
+        }
+
+        /**
+         * Returns the temporary file to which the output is written.
+         * 
+         * @return the (absolute) temporary path
+         */
+        public Path getTemporary() {
+            return temporary;
+        }
+
+        /**
+         * Returns the channel to which the output is written.
+         * 
+         * @return the temporary file's channel
+         */
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Returns a stream to which the output is written.
+         * 
+         * @return an (unbuffered) stream on the temporary file's channel
+         */
+        public OutputStream getStream() {
+            return stream;
+        }
+
+        /**
+         * Replaces the target with the output (or, under the
+         * {@link SyncPolicy#GROUP} policy, arranges for it to be replaced).
+         * 
+         * @throws IOException if the output cannot be forced or renamed (in
+         *         which case the temporary file is deleted, unless it is being
+         *         held back for a group sync)
+         */
+        @SuppressWarnings("synthetic-access")
+        public void commit() throws IOException {
+            if (finished) {
+                throw new IllegalStateException("already committed/aborted");
+            }
+            finished = true;
+
+            try {
+                if (syncPolicy == SyncPolicy.FILE) {
+                    channel.force(true);
+                }
+                channel.close();
+
+                if (syncPolicy != SyncPolicy.GROUP) {
+                    rename(this);
+                }
+            } catch (IOException ex) {
+                Files.deleteIfExists(temporary);
+                throw ex;
+            }
+
+            if (syncPolicy == SyncPolicy.GROUP) {
+                /* a failed group sync keeps this output for the next one */
+                hold(this);
+            } else if (syncPolicy == SyncPolicy.FILE) {
+                syncDirectory(target.getParent());
+            }
+        }
+
+        /**
+         * Discards the output, leaving the target as it was.
+         */
+        public void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                /* deleting is all that matters */
+            }
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ex) {
+                /* nothing more can be done */
+            }
+        }
+
+        /**
+         * Aborts the output unless it has been committed.
+         */
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+}
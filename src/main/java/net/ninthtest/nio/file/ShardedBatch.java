@@ -0,0 +1,576 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.file;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.charset.TranslationCanceledException;
+
+/**
+ * A <code>ShardedBatch</code> translates the files listed in a manifest, in
+ * cooperation with any number of other processes (on the same host, or on
+ * other hosts that share the file system) that translate the same manifest.
+ * 
+ * <p>
+ * The manifest lists one file per line: the source path and the target path,
+ * separated by a tab. Relative paths are resolved against the manifest's
+ * directory; blank lines and lines that start with <code>#</code> are
+ * ignored. The list is divided into shards of consecutive files.
+ * </p>
+ * 
+ * <p>
+ * Processes claim shards through lease files in a directory next to the
+ * manifest (named for the manifest, plus <code>.shards</code>). A lease file
+ * is created with the file system's atomic create-if-absent operation, so a
+ * shard has one owner at a time, and no coordination service is needed. The
+ * owner rewrites its lease file regularly while it translates the shard, and
+ * then marks the shard done. A lease that has not changed for the lease time
+ * is stale (its owner has crashed, hung or lost the file system), and another
+ * process takes the shard over by creating the lease file of the next
+ * generation; an owner that finds its lease taken over stops translating the
+ * shard.
+ * </p>
+ * 
+ * <p>
+ * Each process judges staleness by its own clock, from when it last saw a
+ * lease change, so the hosts' clocks need not agree. Target files are written
+ * through an {@link OutputCommitter}, so even a shard that ends up being
+ * translated twice (by an owner that was presumed dead, and by the process
+ * that took it over) leaves only complete target files.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class ShardedBatch {
+    /** The default number of files in a shard. */
+    public static final int DEFAULT_SHARD_SIZE = 100;
+
+    /** The default lease time (in milliseconds). */
+    public static final long DEFAULT_LEASE_MILLIS = 60000L;
+
+    /* the suffix of the lease directory's name */
+    private static final String LEASE_DIRECTORY_SUFFIX = ".shards";
+
+    private static final String LEASE_SUFFIX = ".lease";
+
+    private static final String DONE_SUFFIX = ".done";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /* the content of a lease that its owner has given up */
+    private static final String RELEASED = "released";
+
+    /* the number of heartbeats (and polls) per lease time */
+    private static final int BEATS_PER_LEASE = 4;
+
+    private final Path leaseDirectory;
+
+    private final List<Path> sources;
+
+    private final List<Path> targets;
+
+    private final int shardSize;
+
+    private final int shardCount;
+
+    private final long leaseMillis;
+
+    /* identifies this process (and batch) in lease and done files */
+    private final String owner;
+
+    /* the last content seen of each lease file that is not this batch's */
+    private final Map<Path, Observation> observations =
+            new HashMap<Path, Observation>();
+
+    /**
+     * Constructs a new <code>ShardedBatch</code>, reading the manifest.
+     * 
+     * @param manifest the file that lists the source and target files
+     * @param shardSize the number of files in a shard
+     * @param leaseMillis the time (in milliseconds) after which a lease that
+     *        has not changed is stale
+     * @throws IOException if the manifest cannot be read, or if a line is not
+     *         a valid entry (the message identifies the line)
+     * @throws IllegalArgumentException if the shard size or lease time is
+     *         less than 1 (one)
+     */
+    public ShardedBatch(Path manifest, int shardSize, long leaseMillis)
+            throws IOException {
+        if (shardSize < 1) {
+            throw new IllegalArgumentException("shard size must be >= 1");
+        } else if (leaseMillis < 1L) {
+            throw new IllegalArgumentException("lease time must be >= 1");
+        }
+
+        Path absoluteManifest = manifest.toAbsolutePath();
+        Path directory = absoluteManifest.getParent();
+        leaseDirectory = directory.resolve(
+                absoluteManifest.getFileName() + LEASE_DIRECTORY_SUFFIX);
+
+        List<Path> sourceList = new ArrayList<Path>();
+        List<Path> targetList = new ArrayList<Path>();
+        BufferedReader lines =
+                Files.newBufferedReader(manifest, StandardCharsets.UTF_8);
+        try {
+            String line;
+            for (int number = 1; (line = lines.readLine()) != null;
+                    ++number) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t", -1);
+                if ((fields.length != 2) || fields[0].isEmpty()
+                        || fields[1].isEmpty()) {
+                    throw new IOException("line " + number
+                            + ": expected <source-path> TAB <target-path>");
+                }
+                sourceList.add(directory.resolve(fields[0]));
+                targetList.add(directory.resolve(fields[1]));
+            }
+        } finally {
+            lines.close();
+        }
+
+        sources = Collections.unmodifiableList(sourceList);
+        targets = Collections.unmodifiableList(targetList);
+        this.shardSize = shardSize;
+        shardCount = (sources.size() + shardSize - 1) / shardSize;
+        this.leaseMillis = leaseMillis;
+        owner = ManagementFactory.getRuntimeMXBean().getName()
+                .replaceAll("[^A-Za-z0-9.@-]", "_") + "-"
+                + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Returns the number of files in the manifest.
+     * 
+     * @return the number of source/target pairs
+     */
+    public int getFileCount() {
+        return sources.size();
+    }
+
+    /**
+     * Returns the number of shards.
+     * 
+     * @return the number of shards that the files are divided into
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Returns the directory that holds the lease and done files.
+     * 
+     * @return the lease directory
+     */
+    public Path getLeaseDirectory() {
+        return leaseDirectory;
+    }
+
+    /**
+     * Claims and translates shards until every shard is done.
+     * 
+     * <p>
+     * When no shard can be claimed, but some are still leased by other
+     * processes, this method waits (so that it can take them over if their
+     * leases go stale). A file that cannot be translated is reported, and the
+     * rest of its shard is translated anyway; the shard's done file lists its
+     * failures.
+     * </p>
+     * 
+     * <p>
+     * If the translator's {@link CancellationToken} is canceled, the current
+     * shard's lease is released (so that another process can take it over at
+     * once), and a {@link TranslationCanceledException} is thrown.
+     * </p>
+     * 
+     * @param translator the translator for every file (it is not safe to use
+     *        it elsewhere until this method returns)
+     * @param committer the committer that target files are written through;
+     *        it is synced before each shard is marked done
+     * @return the failures in the shards that this batch translated, each as
+     *         "<i>source-path</i>: <i>exception</i>"
+     * @throws IOException if the lease directory cannot be used, or if the
+     *         translation is canceled
+     */
+    public List<String> run(CharsetTranslator translator,
+            OutputCommitter committer) throws IOException {
+        Files.createDirectories(leaseDirectory);
+        CancellationToken token = translator.getCancellationToken();
+        List<String> failures = new ArrayList<String>();
+
+        ScheduledExecutorService heartbeats =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable task) {
+                                Thread thread =
+                                        new Thread(task, "cetrans-lease");
+                                thread.setDaemon(true);
+
+                                return thread;
+                            }
+                        });
+        try {
+            while (true) {
+                if (token != null) {
+                    token.throwIfCanceled();
+                }
+
+                Lease lease = claim();
+                if (lease != null) {
+                    translate(lease, translator, committer, heartbeats,
+                            failures);
+                } else if (isFinished()) {
+                    return failures;
+                } else {
+                    pause();
+                }
+            }
+        } finally {
+            translator.setCancellationToken(token);
+            heartbeats.shutdownNow();
+        }
+    }
+
+    /*
+     * Claims the first shard (from a starting point that differs from one
+     * batch to another) that is neither done nor validly leased, or returns
+     * null if there is none.
+     */
+    private Lease claim() throws IOException {
+        Map<Integer, Integer> generations = new HashMap<Integer, Integer>();
+        Set<Integer> done = new HashSet<Integer>();
+        scan(generations, done);
+
+        int start = (owner.hashCode() & Integer.MAX_VALUE)
+                % Math.max(shardCount, 1);
+        for (int i = 0; i < shardCount; ++i) {
+            int shard = (start + i) % shardCount;
+            if (done.contains(shard)) {
+                continue;
+            }
+
+            Integer generation = generations.get(shard);
+            int next;
+            if (generation == null) {
+                next = 0;
+            } else if (isStale(leaseFile(shard, generation))) {
+                next = generation + 1;
+            } else {
+                continue;
+            }
+
+            Lease lease = new Lease(shard, next);
+            try {
+                Files.write(lease.file, lease.content(),
+                        StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException ex) {
+                /* another process got there first */
+                continue;
+            }
+
+            return lease;
+        }
+
+        return null;
+    }
+
+    /*
+     * Lists the lease directory, collecting the latest lease generation of
+     * each shard, and the shards that are done.
+     */
+    private void scan(Map<Integer, Integer> generations, Set<Integer> done)
+            throws IOException {
+        DirectoryStream<Path> files =
+                Files.newDirectoryStream(leaseDirectory);
+        try {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    if (name.endsWith(DONE_SUFFIX)) {
+                        done.add(Integer.valueOf(name.substring(0,
+                                name.length() - DONE_SUFFIX.length())));
+                    } else if (name.endsWith(LEASE_SUFFIX)) {
+                        String[] parts = name.split("\\.");
+                        Integer shard = Integer.valueOf(parts[0]);
+                        Integer generation = Integer.valueOf(parts[1]);
+                        Integer latest = generations.get(shard);
+                        if ((latest == null) || (latest < generation)) {
+                            generations.put(shard, generation);
+                        }
+                    }
+                } catch (NumberFormatException ex) {
+                    /* not one of ours */
+                }
+            }
+        } finally {
+            files.close();
+        }
+    }
+
+    /*
+     * Tells whether a lease file has been released, or has not changed for
+     * the lease time since this batch first saw its current content.
+     */
+    private boolean isStale(Path file) throws IOException {
+        String content;
+        try {
+            content = new String(Files.readAllBytes(file),
+                    StandardCharsets.UTF_8);
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        if (content.equals(RELEASED)) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        Observation seen = observations.get(file);
+        if ((seen == null) || !seen.content.equals(content)) {
+            observations.put(file, new Observation(content, now));
+            return false;
+        }
+
+        return (now - seen.since) >= TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+    }
+
+    private boolean isFinished() throws IOException {
+        Set<Integer> done = new HashSet<Integer>();
+        scan(new HashMap<Integer, Integer>(), done);
+
+        return done.size() >= shardCount;
+    }
+
+    private void pause() throws InterruptedIOException {
+        try {
+            Thread.sleep(Math.max(leaseMillis / BEATS_PER_LEASE, 1L));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting");
+        }
+    }
+
+    /*
+     * Translates the files of a leased shard (while a heartbeat keeps the
+     * lease fresh), and marks the shard done, unless the lease is lost.
+     */
+    private void translate(final Lease lease, CharsetTranslator translator,
+            OutputCommitter committer, ScheduledExecutorService heartbeats,
+            List<String> failures) throws IOException {
+        CancellationToken token = translator.getCancellationToken();
+        lease.token = new CancellationToken(token);
+        translator.setCancellationToken(lease.token);
+
+        long interval = Math.max(leaseMillis / BEATS_PER_LEASE, 1L);
+        ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(
+                new Runnable() {
+                    @SuppressWarnings("synthetic-access")
+                    @Override
+                    public void run() {
+                        beat(lease);
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS);
+
+        List<String> shardFailures = new ArrayList<String>();
+        try {
+            int last = Math.min((lease.shard + 1) * shardSize, sources.size());
+            for (int i = lease.shard * shardSize; i < last; ++i) {
+                try {
+                    translate(translator, committer, sources.get(i),
+                            targets.get(i));
+                } catch (TranslationCanceledException ex) {
+                    throw ex;
+                } catch (IOException | RuntimeException ex) {
+                    shardFailures.add(sources.get(i) + ": " + ex);
+                }
+            }
+            committer.sync();
+        } catch (TranslationCanceledException ex) {
+            heartbeat.cancel(false);
+            if (lease.lost) {
+                /* the shard is someone else's now */
+                return;
+            }
+            release(lease);
+            throw ex;
+        } finally {
+            heartbeat.cancel(false);
+            translator.setCancellationToken(token);
+        }
+
+        if (!lease.lost && !Files.exists(leaseFile(lease.shard,
+                lease.generation + 1))) {
+            markDone(lease, shardFailures);
+            failures.addAll(shardFailures);
+        }
+    }
+
+    private static void translate(CharsetTranslator translator,
+            OutputCommitter committer, Path source, Path target)
+            throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        InputStream in = Files.newInputStream(source);
+        try {
+            OutputCommitter.PendingOutput output = committer.create(target);
+            try {
+                translator.translate(in, output.getStream());
+                output.commit();
+            } finally {
+                output.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Rewrites a lease file, unless the lease has been taken over (in which
+     * case the translation of its shard is canceled).
+     */
+    private void beat(Lease lease) {
+        if (Files.exists(leaseFile(lease.shard, lease.generation + 1))) {
+            lease.lost = true;
+            lease.token.cancel();
+            return;
+        }
+
+        ++lease.beats;
+        try {
+            Files.write(lease.file, lease.content(),
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            /* try again on the next beat */
+        }
+    }
+
+    /*
+     * Marks a lease released, so that another process may take the shard
+     * over at once.
+     */
+    private static void release(Lease lease) {
+        try {
+            Files.write(lease.file, RELEASED.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            /* the lease will go stale instead */
+        }
+    }
+
+    /* writes the done file, listing the shard's failures */
+    private void markDone(Lease lease, List<String> shardFailures)
+            throws IOException {
+        StringBuilder content = new StringBuilder(owner).append('\n');
+        for (String failure : shardFailures) {
+            content.append(failure).append('\n');
+        }
+
+        Path temporary = leaseDirectory.resolve(
+                lease.shard + DONE_SUFFIX + "." + owner + TEMPORARY_SUFFIX);
+        Files.write(temporary,
+                content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, leaseDirectory.resolve(lease.shard
+                + DONE_SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path leaseFile(int shard, int generation) {
+        return leaseDirectory.resolve(shard + "." + generation + LEASE_SUFFIX);
+    }
+
+    /* a lease that this batch holds */
+    private final class Lease {
+        final int shard;
+
+        final int generation;
+
+        final Path file;
+
+        /* the number of heartbeats (only changed by the heartbeat thread) */
+        int beats;
+
+        /* canceled when the lease is lost, or when the batch is canceled */
+        volatile CancellationToken token;
+
+        volatile boolean lost;
+
+        @SuppressWarnings("synthetic-access")
+        Lease(int shard, int generation) {
+            this.shard = shard;
+            this.generation = generation;
+            file = leaseFile(shard, generation);
+        }
+
+        @SuppressWarnings("synthetic-access")
+        byte[] content() {
+            return (owner + "\n" + beats + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /* the content of a lease file, and when it was first seen */
+    private static final class Observation {
+        final String content;
+
+        final long since;
+
+        Observation(String content, long since) {
+            this.content = content;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.ninthtest.nio.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+/**
+ * A <code>TailFollower</code> translates a file that is still being written
+ * (such as an application log), in the manner of <code>tail -f</code>.
+ * 
+ * <p>
+ * The existing content of the source file is translated first. The source is
+ * then polled for appended bytes, which are translated and written to the
+ * target channel as soon as they are read. The translator's decoder state is
+ * carried over from one poll to the next, so a multi-byte sequence that is
+ * only partially written at the time of a poll is translated correctly once
+ * the rest of it arrives.
+ * </p>
+ * 
+ * <p>
+ * If the source file shrinks (is truncated), it is translated again from the
+ * beginning. If the source file is replaced (is rotated), the remainder of the
+ * old file is translated and then the new file is followed from its
+ * beginning. In both cases the translation of the old content is finished
+ * before the translator is reset: a stateful target encoding (such as
+ * ISO-2022-JP) returns to its initial state, and a transform releases any
+ * characters it has held back. An incomplete multi-byte sequence at the end
+ * of the old content is discarded.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public class TailFollower {
+    /**
+     * The default interval (in milliseconds) between polls of the source file.
+     * 
+     * @see #setPollInterval(long)
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 250L;
+
+    private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final CharsetTranslator translator;
+
+    private final Path source;
+
+    private final WritableByteChannel target;
+
+    private long pollInterval = DEFAULT_POLL_INTERVAL;
+
+    private volatile boolean stopped;
+
+    /**
+     * Constructs a new <code>TailFollower</code>.
+     * 
+     * @param translator the translator used to translate the source file
+     * @param source the path to the file to be followed
+     * @param target the channel to which translated bytes are written
+     */
+    public TailFollower(CharsetTranslator translator, Path source,
+            WritableByteChannel target) {
+        this.translator = translator;
+        this.source = source;
+        this.target = target;
+    }
+
+    /**
+     * Returns the interval between polls of the source file.
+     * 
+     * @return the poll interval in milliseconds
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Sets the interval between polls of the source file.
+     * 
+     * <p>
+     * This is the upper bound on the latency between bytes being appended to
+     * the source and their translation being written to the target.
+     * </p>
+     * 
+     * @param pollInterval the poll interval in milliseconds
+     * @throws IllegalArgumentException if the poll interval is less than 1
+     *         (one)
+     */
+    public void setPollInterval(long pollInterval) {
+        if (pollInterval < 1) {
+            throw new IllegalArgumentException("poll interval must be >= 1");
+        }
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Tells this follower to stop after its current poll.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Translates the source file, and then keeps translating bytes as they
+     * are appended to it.
+     * 
+     * <p>
+     * This method blocks until {@link #stop()} is invoked or the current
+     * thread is interrupted (in which case the thread's interrupt status is
+     * set when this method returns). In either case, the translation of the
+     * content read so far is finished before this method returns.
+     * </p>
+     * 
+     * @throws IOException if any reading/decoding/encoding/writing operation
+     *         fails
+     */
+    public void follow() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+
+        FileChannel channel = FileChannel.open(source);
+        Object fileKey = fileKey(source);
+        translator.reset();
+        boolean interrupted = false;
+
+        try {
+            while (!stopped) {
+                if (channel.read(in) > 0) {
+                    translate(in, out);
+                    continue;
+                }
+
+                /* at the (current) end of the source */
+                if (channel.size() < channel.position()) {
+                    finish(out);
+                    channel.position(0L);
+                    translator.reset();
+                    in.clear();
+                    continue;
+                }
+
+                Object currentFileKey = fileKey(source);
+                if ((currentFileKey != null)
+                        && !currentFileKey.equals(fileKey)) {
+                    /* drain anything written before the rotation */
+                    while (channel.read(in) > 0) {
+                        translate(in, out);
+                    }
+                    channel.close();
+                    finish(out);
+
+                    channel = FileChannel.open(source);
+                    fileKey = currentFileKey;
+                    translator.reset();
+                    in.clear();
+                    continue;
+                }
+
+                Thread.sleep(pollInterval);
+            }
+        } catch (ClosedByInterruptException ex) {
+            /* interrupted while reading; the status is restored below */
+            interrupted = Thread.interrupted();
+        } catch (InterruptedException ex) {
+            interrupted = true;
+        } finally {
+            channel.close();
+        }
+
+        /* (an interruptible target would refuse to write while interrupted) */
+        try {
+            finish(out);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Translates the bytes that have been read into the input buffer (leaving
+     * an incomplete multi-byte sequence for the next read) and writes the
+     * result to the target.
+     */
+    private void translate(ByteBuffer in, ByteBuffer out) throws IOException {
+        in.flip();
+        while (translator.translate(in, out, false).isOverflow()) {
+            write(out);
+        }
+        in.compact();
+        write(out);
+    }
+
+    /*
+     * Ends the translation of the current file (leaving an incomplete
+     * multi-byte sequence in the input buffer untranslated) and writes the
+     * result to the target.
+     */
+    private void finish(ByteBuffer out) throws IOException {
+        while (translator.translate(EMPTY, out, true).isOverflow()) {
+            write(out);
+        }
+        while (translator.flush(out).isOverflow()) {
+            write(out);
+        }
+        write(out);
+    }
+
+    private void write(ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            target.write(out);
+        }
+        out.clear();
+    }
+
+    /*
+     * Returns the key that identifies the file currently at the path, or null
+     * if there is no such file or the file system does not support file keys.
+     */
+    private static Object fileKey(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class)
+                    .fileKey();
+        } catch (NoSuchFileException ex) {
+            /* rotated away, and not yet re-created */
+            return null;
+        }
+    }
+}
@@ -0,0 +1,692 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.ninthtest.nio.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+/**
+ * A <code>TranslationCache</code> is a persistent, on-disk index of completed
+ * translations.
+ * 
+ * <p>
+ * Each entry is keyed by the content hash of a source file together with the
+ * source charset, target charset and options of the {@link CharsetTranslator}
+ * that translated it, and records the content hash, length and location of
+ * the translated output. Before translating a file again, a caller can
+ * {@link #get(byte[], CharsetTranslator) look up} the previous result and
+ * {@link #restore(Entry, Path) restore} it to the target location (which is a
+ * no-op if the target is already the recorded output, and otherwise a hard
+ * link or copy).
+ * </p>
+ * 
+ * <p>
+ * The index is an open-addressing hash table of fixed-size slots that is read
+ * and written in place, so memory use does not depend on the number of
+ * entries. The slot table and the output paths are kept in a numbered
+ * <i>generation</i> of sibling files (the index filename with a
+ * <code>.<i>n</i></code> and a <code>.<i>n</i>.paths</code> suffix), and the
+ * index file itself names the current generation. When the table grows (or
+ * the paths file holds too many superseded paths), the entries are rewritten
+ * into the next generation, which becomes current only when the index file
+ * is atomically replaced; a crash at any point leaves one complete
+ * generation in use.
+ * </p>
+ * 
+ * <p>
+ * <code>TranslationCache</code> instances are safe for use by multiple
+ * threads, but an index must not be opened by more than one
+ * <code>TranslationCache</code> at a time.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class TranslationCache implements Closeable {
+    private static final int MAGIC = 0x43455443;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int PATHS_HEADER_SIZE = 8;
+
+    private static final int HASH_SIZE = 16;
+
+    private static final int SLOT_SIZE = HASH_SIZE + HASH_SIZE + 8 + 8;
+
+    private static final int PATH_OFFSET = HASH_SIZE + HASH_SIZE + 8;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final long MIN_COMPACTION_GARBAGE = 64 * 1024;
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Path indexFile;
+
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+
+    private long generation;
+
+    private FileChannel index;
+
+    private FileChannel paths;
+
+    private int capacity;
+
+    private int size;
+
+    /* the number of bytes of superseded path records */
+    private long garbage;
+
+    /**
+     * Opens (or creates) the translation cache stored in the given index file.
+     * 
+     * @param indexFile the path to the index file
+     * @throws IOException if the index cannot be opened or is not a valid
+     *         translation cache index
+     */
+    public TranslationCache(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+
+        open();
+    }
+
+    /**
+     * Computes the content hash of a file.
+     * 
+     * @param file the file to be hashed
+     * @return the content hash of <code>file</code>
+     * @throws IOException if the file cannot be read
+     */
+    public static byte[] hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        try (FileChannel channel = FileChannel.open(file)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return Arrays.copyOf(digest.digest(), HASH_SIZE);
+    }
+
+    /**
+     * Returns the number of entries in this cache.
+     * 
+     * @return the number of translations recorded in the index
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Looks up the recorded output of a translation.
+     * 
+     * @param sourceHash the content hash of the source file (as computed by
+     *        {@link #hash(Path)})
+     * @param translator the translator that would translate the source file
+     * @return the recorded entry, or <code>null</code> if the source has not
+     *         been translated with the same charsets and options
+     * @throws IOException if the index cannot be read
+     */
+    public synchronized Entry get(byte[] sourceHash,
+            CharsetTranslator translator) throws IOException {
+        byte[] key = key(sourceHash, translator);
+        long position = find(index, capacity, key);
+
+        if (!readSlot(index, position)) {
+            return null;
+        }
+
+        byte[] outputHash = new byte[HASH_SIZE];
+        slot.position(HASH_SIZE);
+        slot.get(outputHash);
+        long outputLength = slot.getLong();
+        long pathOffset = slot.getLong();
+
+        return new Entry(Paths.get(readPath(paths, pathOffset)), outputHash,
+                outputLength);
+    }
+
+    /**
+     * Records the output of a translation, replacing any previously recorded
+     * output for the same source content, charsets and options.
+     * 
+     * @param sourceHash the content hash of the source file (as computed by
+     *        {@link #hash(Path)})
+     * @param translator the translator that translated the source file
+     * @param output the path to the translated output file
+     * @throws IOException if the output file cannot be hashed or the index
+     *         cannot be written
+     */
+    public synchronized void put(byte[] sourceHash,
+            CharsetTranslator translator, Path output) throws IOException {
+        Path absoluteOutput = output.toAbsolutePath().normalize();
+        byte[] outputHash = hash(absoluteOutput);
+        long outputLength = Files.size(absoluteOutput);
+
+        String path = absoluteOutput.toString();
+
+        byte[] key = key(sourceHash, translator);
+        long position = find(index, capacity, key);
+        boolean isNew = !readSlot(index, position);
+
+        long pathOffset;
+        if (isNew) {
+            pathOffset = appendPath(paths, path);
+        } else {
+            /* re-translating to the same output reuses its path record */
+            pathOffset = slot.getLong(PATH_OFFSET);
+            String oldPath = readPath(paths, pathOffset);
+            if (!oldPath.equals(path)) {
+                pathOffset = appendPath(paths, path);
+                garbage += 4 + oldPath.getBytes(UTF_8).length;
+                writeGarbage(paths, garbage);
+            }
+        }
+        writeSlot(index, position, key, outputHash, outputLength, pathOffset);
+
+        if (isNew) {
+            ++size;
+            writeHeader(index, capacity, size);
+
+            /* keep the load factor at or below 3/4 */
+            if (size > ((capacity >>> 2) * 3)) {
+                rebuild(capacity << 1);
+            }
+        } else if ((garbage >= MIN_COMPACTION_GARBAGE)
+                && (garbage > (paths.size() >>> 1))) {
+            /* most of the paths file is superseded records */
+            rebuild(capacity);
+        }
+    }
+
+    /**
+     * Places the recorded output of a translation at the target location.
+     * 
+     * <p>
+     * If the target already is the recorded output, nothing is done.
+     * Otherwise, the target is replaced with a hard link to the recorded
+     * output (or a copy of it, if hard links are not supported).
+     * </p>
+     * 
+     * @param entry the recorded translation
+     * @param target the path to which the translated output should be
+     *        restored
+     * @return <code>true</code> if the target now holds the recorded output;
+     *         <code>false</code> if the recorded output no longer exists or
+     *         has been modified (in which case the target is untouched)
+     * @throws IOException if the target cannot be replaced
+     */
+    public boolean restore(Entry entry, Path target) throws IOException {
+        Path output = entry.getOutput();
+
+        if (!Files.isRegularFile(output)
+                || (Files.size(output) != entry.getOutputLength())
+                || !Arrays.equals(hash(output), entry.outputHash)) {
+            return false;
+        }
+
+        if (Files.exists(target) && Files.isSameFile(output, target)) {
+            return true;
+        }
+
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, output);
+        } catch (UnsupportedOperationException | IOException ex) {
+            Files.copy(output, target);
+        }
+
+        return true;
+    }
+
+    /**
+     * Closes the index.
+     * 
+     * @throws IOException if the index cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (index == null) {
+            return;
+        }
+
+        try {
+            index.close();
+        } finally {
+            paths.close();
+            index = null;
+            paths = null;
+        }
+    }
+
+    /*
+     * Opens the current generation named by the index file, creating the
+     * first generation if the index file is new.
+     */
+    private void open() throws IOException {
+        if (!Files.exists(indexFile) || (Files.size(indexFile) == 0)) {
+            /* (there is no generation 0; generation 1 is built from nothing) */
+            generation = 0;
+            capacity = INITIAL_CAPACITY;
+            size = 0;
+            rebuild(capacity);
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel pointer = FileChannel.open(indexFile)) {
+            readFully(pointer, header, 0);
+        }
+        header.flip();
+
+        if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+            throw new IOException(
+                    indexFile + " is not a translation cache index");
+        }
+
+        generation = header.getLong();
+        openGeneration();
+
+        /* (a crash may have left the previous generation behind) */
+        deleteGeneration(generation - 1);
+    }
+
+    /*
+     * Opens the index and paths files of the current generation.
+     */
+    private void openGeneration() throws IOException {
+        index = FileChannel.open(indexFile(generation),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            paths = FileChannel.open(pathsFile(generation),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            index.close();
+            index = null;
+            throw ex;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(index, header, 0);
+        header.flip();
+
+        if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+            close();
+            throw new IOException(
+                    indexFile + " is not a translation cache index");
+        }
+        capacity = header.getInt();
+        size = header.getInt();
+
+        ByteBuffer pathsHeader = ByteBuffer.allocate(PATHS_HEADER_SIZE);
+        readFully(paths, pathsHeader, 0);
+        pathsHeader.flip();
+        garbage = pathsHeader.getLong();
+    }
+
+    /*
+     * Rehashes all entries into the next generation (with the given
+     * capacity), dropping paths that are no longer referenced, and then makes
+     * it the current generation.
+     */
+    private void rebuild(int newCapacity) throws IOException {
+        long next = generation + 1;
+
+        /* (this overwrites whatever a crash may have left of the generation) */
+        try (FileChannel newIndex = FileChannel.open(indexFile(next),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+                FileChannel newPaths = FileChannel.open(pathsFile(next),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            initialize(newIndex, newCapacity);
+            writeGarbage(newPaths, 0);
+
+            byte[] key = new byte[HASH_SIZE];
+            byte[] outputHash = new byte[HASH_SIZE];
+            for (int i = 0; (index != null) && (i < capacity); ++i) {
+                if (!readSlot(index, slotPosition(i))) {
+                    continue;
+                }
+
+                slot.get(key);
+                slot.get(outputHash);
+                long outputLength = slot.getLong();
+                String path = readPath(paths, slot.getLong());
+
+                long pathOffset = appendPath(newPaths, path);
+                writeSlot(newIndex, find(newIndex, newCapacity, key), key,
+                        outputHash, outputLength, pathOffset);
+            }
+
+            writeHeader(newIndex, newCapacity, size);
+
+            /* the generation must be durable before the index names it */
+            newIndex.force(true);
+            newPaths.force(true);
+        }
+
+        switchTo(next);
+    }
+
+    /*
+     * Atomically replaces the index file with one that names the given
+     * generation, then opens that generation and deletes the previous one.
+     */
+    private void switchTo(long next) throws IOException {
+        Path newIndexFile = indexFile.resolveSibling(
+                indexFile.getFileName() + ".tmp");
+
+        try (FileChannel pointer = FileChannel.open(newIndexFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(next);
+            header.flip();
+            writeFully(pointer, header, 0);
+            pointer.force(true);
+        }
+
+        Files.move(newIndexFile, indexFile,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        long previous = generation;
+        close();
+        generation = next;
+        openGeneration();
+        deleteGeneration(previous);
+    }
+
+    /*
+     * Deletes the files of a superseded generation (if there was one).
+     */
+    private void deleteGeneration(long superseded) throws IOException {
+        if (superseded > 0) {
+            Files.deleteIfExists(indexFile(superseded));
+            Files.deleteIfExists(pathsFile(superseded));
+        }
+    }
+
+    private Path indexFile(long n) {
+        return indexFile.resolveSibling(indexFile.getFileName() + "." + n);
+    }
+
+    private Path pathsFile(long n) {
+        return indexFile.resolveSibling(
+                indexFile.getFileName() + "." + n + ".paths");
+    }
+
+    /*
+     * Writes the header and an empty slot table.
+     */
+    private static void initialize(FileChannel channel, int slots)
+            throws IOException {
+        writeHeader(channel, slots, 0);
+
+        ByteBuffer zeros = ByteBuffer.allocate(SLOT_SIZE * 256);
+        long end = slotPosition(slots);
+        for (long position = HEADER_SIZE; position < end;) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), end - position));
+            position += channel.write(zeros, position);
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, int slots,
+            int entries) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(entries);
+        header.flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static long slotPosition(int i) {
+        return HEADER_SIZE + ((long) i * SLOT_SIZE);
+    }
+
+    /*
+     * Returns the position of the slot that holds the key, or of the empty
+     * slot where the key would be inserted (linear probing).
+     */
+    private long find(FileChannel channel, int slots, byte[] key)
+            throws IOException {
+        /* the key is a message digest, so any 4 bytes are well-distributed */
+        int i = ((key[0] & 0xff) | ((key[1] & 0xff) << 8)
+                | ((key[2] & 0xff) << 16) | ((key[3] & 0xff) << 24))
+                & (slots - 1);
+
+        byte[] slotKey = new byte[HASH_SIZE];
+        while (true) {
+            long position = slotPosition(i);
+            if (!readSlot(channel, position)) {
+                return position;
+            }
+
+            slot.get(slotKey);
+            if (Arrays.equals(key, slotKey)) {
+                return position;
+            }
+
+            i = (i + 1) & (slots - 1);
+        }
+    }
+
+    /*
+     * Reads a slot into the slot buffer (positioned at the key); returns false
+     * if the slot is empty.
+     */
+    private boolean readSlot(FileChannel channel, long position)
+            throws IOException {
+        slot.clear();
+        readFully(channel, slot, position);
+        slot.flip();
+
+        for (int i = 0; i < HASH_SIZE; ++i) {
+            if (slot.get(i) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void writeSlot(FileChannel channel, long position, byte[] key,
+            byte[] outputHash, long outputLength, long pathOffset)
+            throws IOException {
+        slot.clear();
+        slot.put(key).put(outputHash).putLong(outputLength)
+                .putLong(pathOffset);
+        slot.flip();
+        writeFully(channel, slot, position);
+    }
+
+    private static void writeGarbage(FileChannel channel, long bytes)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PATHS_HEADER_SIZE);
+        header.putLong(bytes);
+        header.flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static long appendPath(FileChannel channel, String path)
+            throws IOException {
+        byte[] bytes = path.getBytes(UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+        record.putInt(bytes.length).put(bytes);
+        record.flip();
+
+        long offset = channel.size();
+        writeFully(channel, record, offset);
+
+        return offset;
+    }
+
+    private static String readPath(FileChannel channel, long offset)
+            throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset);
+        length.flip();
+
+        ByteBuffer bytes = ByteBuffer.allocate(length.getInt());
+        readFully(channel, bytes, offset + 4);
+
+        return new String(bytes.array(), UTF_8);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, offset);
+            if (count == -1) {
+                throw new IOException("truncated translation cache");
+            }
+            offset += count;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    /*
+     * Derives the index key from the source content hash and everything about
+     * the translator that affects its output.
+     */
+    private static byte[] key(byte[] sourceHash,
+            CharsetTranslator translator) {
+        MessageDigest digest = newDigest();
+        digest.update(sourceHash);
+        digest.update(options(translator).getBytes(UTF_8));
+
+        byte[] key = Arrays.copyOf(digest.digest(), HASH_SIZE);
+        /* an all-zero key marks an empty slot */
+        key[0] |= (byte) (isZero(key) ? 1 : 0);
+
+        return key;
+    }
+
+    private static String options(CharsetTranslator translator) {
+        StringBuilder options =
+                new StringBuilder(translator.sourceCharset().name())
+                        .append('\0').append(translator.targetCharset().name())
+                        .append('\0')
+                        .append(translator.isUsingXMLCharRefReplacement());
+        /* (untransformed keys are unchanged from earlier versions) */
+        if (translator.getTransform() != null) {
+            options.append('\0').append(translator.getTransform().name());
+        }
+        /* (as are keys without best-fit replacement) */
+        if (translator.isUsingBestFitReplacement()) {
+            options.append('\0').append("best-fit");
+        }
+
+        return options.toString();
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            /* every Java platform implementation is required to support it */
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * A recorded translation output.
+     */
+    public static final class Entry {
+        private final Path output;
+
+        private final byte[] outputHash;
+
+        private final long outputLength;
+
+        Entry(Path output, byte[] outputHash, long outputLength) {
+            this.output = output;
+            this.outputHash = outputHash;
+            this.outputLength = outputLength;
+        }
+
+        /**
+         * Returns the location of the translated output.
+         * 
+         * @return the absolute path to the output file
+         */
+        public Path getOutput() {
+            return output;
+        }
+
+        /**
+         * Returns the length of the translated output.
+         * 
+         * @return the output length in bytes
+         */
+        public long getOutputLength() {
+            return outputLength;
+        }
+    }
+}
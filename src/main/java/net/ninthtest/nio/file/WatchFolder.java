@@ -0,0 +1,567 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.file;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.charset.TranslationCanceledException;
+
+/**
+ * A <code>WatchFolder</code> translates files as they are dropped into an
+ * inbox folder, until it is stopped.
+ * 
+ * <p>
+ * The inbox is watched through the file system's {@link WatchService}. A new
+ * file is translated only once its writes have settled: when neither its size
+ * nor its last-modified time has changed for the settle time. (A writer that
+ * pauses for longer than that should write the file under a hidden name,
+ * i.e. one that starts with <code>.</code>, and then rename it; hidden files
+ * and folders are ignored.) Files that are already in the inbox when the
+ * folder is watched are translated too.
+ * </p>
+ * 
+ * <p>
+ * Settled files are translated by a fixed number of worker threads, each
+ * re-using its own copy of the translator. Files that arrive while every
+ * worker is busy wait (in the inbox) for one to become free, so a flood of
+ * files never queues more than one file per worker. Each file is translated
+ * to the file of the same name in the outbox folder (through an
+ * {@link OutputCommitter}, so the outbox never holds a partial file), and the
+ * source file is then moved to the <code>done</code> folder in the inbox. A
+ * source file that cannot be translated is moved to the <code>failed</code>
+ * folder instead, beside a <code>.error</code> file that gives the reason. A
+ * file of the same name that is already in either folder is replaced.
+ * </p>
+ * 
+ * <p>
+ * Stopping the folder (or canceling the translator's
+ * {@link CancellationToken}) cancels the translations in progress; their
+ * source files are left in the inbox, to be translated when the folder is
+ * next watched.
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class WatchFolder {
+    /** The default settle time (in milliseconds). */
+    public static final long DEFAULT_SETTLE_MILLIS = 2000L;
+
+    /** The name of the inbox sub-folder for translated source files. */
+    public static final String DONE_FOLDER = "done";
+
+    /** The name of the inbox sub-folder for failed source files. */
+    public static final String FAILED_FOLDER = "failed";
+
+    private static final String ERROR_SUFFIX = ".error";
+
+    /* the number of times per settle time that pending files are checked */
+    private static final int CHECKS_PER_SETTLE = 4;
+
+    /**
+     * Receives the outcome of each file's translation (on the worker thread
+     * that translated it).
+     */
+    public static interface Listener {
+        /**
+         * Invoked when a file has been translated and moved to the
+         * <code>done</code> folder.
+         * 
+         * @param source the source file's path in the inbox
+         * @param target the translated file
+         */
+        void translated(Path source, Path target);
+
+        /**
+         * Invoked when a file has failed to translate and has been moved to
+         * the <code>failed</code> folder (or could not be moved).
+         * 
+         * @param source the source file's path in the inbox
+         * @param cause the reason for the failure
+         */
+        void failed(Path source, Exception cause);
+    }
+
+    private final Path inbox;
+
+    private final Path outbox;
+
+    private final CharsetTranslator translator;
+
+    private final OutputCommitter committer;
+
+    private int workerCount =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private long settleMillis = DEFAULT_SETTLE_MILLIS;
+
+    private volatile Listener listener;
+
+    private volatile boolean stopped;
+
+    private volatile WatchService watchService;
+
+    /* the files that have not settled yet (only used by the watching thread) */
+    private final Map<Path, Observation> pending =
+            new HashMap<Path, Observation>();
+
+    /* the files that are queued or being translated */
+    private final Set<Path> inProgress =
+            Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    /**
+     * Constructs a new <code>WatchFolder</code>.
+     * 
+     * @param inbox the folder that is watched for source files
+     * @param outbox the folder that translated files are written to
+     * @param translator the translator whose charsets and settings are used
+     *        (each worker translates with its own copy)
+     * @param committer the committer that translated files are written
+     *        through
+     * @throws IllegalArgumentException if the inbox and outbox are the same
+     *         folder
+     */
+    public WatchFolder(Path inbox, Path outbox, CharsetTranslator translator,
+            OutputCommitter committer) {
+        this.inbox = inbox.toAbsolutePath().normalize();
+        this.outbox = outbox.toAbsolutePath().normalize();
+        if (this.inbox.equals(this.outbox)) {
+            throw new IllegalArgumentException(
+                    "the inbox and outbox must be different folders");
+        }
+        this.translator = translator;
+        this.committer = committer;
+    }
+
+    /**
+     * Returns the number of worker threads.
+     * 
+     * @return the number of files that are translated at a time
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Sets the number of worker threads (the default is the number of
+     * available processors, but no more than 4).
+     * 
+     * <p>
+     * This takes effect the next time {@link #watch()} is invoked.
+     * </p>
+     * 
+     * @param workerCount the number of files that are translated at a time
+     * @throws IllegalArgumentException if the count is less than 1 (one)
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("worker count must be >= 1");
+        }
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Returns the time that a file's writes must settle for before it is
+     * translated.
+     * 
+     * @return the settle time in milliseconds
+     */
+    public long getSettleTime() {
+        return settleMillis;
+    }
+
+    /**
+     * Sets the time that a file's writes must settle for before it is
+     * translated.
+     * 
+     * <p>
+     * This is (roughly) the latency between a file being written and its
+     * translation starting.
+     * </p>
+     * 
+     * @param settleMillis the settle time in milliseconds
+     * @throws IllegalArgumentException if the time is less than 1 (one)
+     */
+    public void setSettleTime(long settleMillis) {
+        if (settleMillis < 1L) {
+            throw new IllegalArgumentException("settle time must be >= 1");
+        }
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Returns the listener that receives the outcome of each translation.
+     * 
+     * @return the listener, or <code>null</code>
+     */
+    public Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener that receives the outcome of each translation.
+     * 
+     * @param listener the listener, or <code>null</code>
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Tells this folder to stop watching, canceling the translations in
+     * progress.
+     */
+    public void stop() {
+        stopped = true;
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ex) {
+                /* the watching thread notices the flag instead */
+            }
+        }
+    }
+
+    /**
+     * Watches the inbox, translating files as their writes settle.
+     * 
+     * <p>
+     * This method blocks until {@link #stop()} is invoked, the translator's
+     * {@link CancellationToken} is canceled or the current thread is
+     * interrupted (in which case the thread's interrupt status is set when
+     * this method returns). It returns only once the translations in
+     * progress have ended.
+     * </p>
+     * 
+     * @throws IOException if the inbox cannot be watched, or if the outbox,
+     *         <code>done</code> or <code>failed</code> folder cannot be
+     *         created
+     */
+    public void watch() throws IOException {
+        Files.createDirectories(outbox);
+        Files.createDirectories(inbox.resolve(DONE_FOLDER));
+        Files.createDirectories(inbox.resolve(FAILED_FOLDER));
+
+        final CancellationToken token =
+                new CancellationToken(translator.getCancellationToken());
+        final ThreadLocal<CharsetTranslator> translators =
+                new ThreadLocal<CharsetTranslator>() {
+                    @SuppressWarnings("synthetic-access")
+                    @Override
+                    protected CharsetTranslator initialValue() {
+                        return copy(translator, token);
+                    }
+                };
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(workerCount,
+                workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(workerCount),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "cetrans-watch-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+
+        WatchService service = inbox.getFileSystem().newWatchService();
+        watchService = service;
+        try {
+            inbox.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+            /* (after registering, so that no file can be missed) */
+            scan();
+
+            long interval = Math.max(settleMillis / CHECKS_PER_SETTLE, 1L);
+            while (!stopped && !token.isCanceled()) {
+                WatchKey key = service.poll(interval, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            scan();
+                        } else {
+                            note(inbox.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        throw new IOException(
+                                "the inbox can no longer be watched: "
+                                        + inbox);
+                    }
+                }
+
+                dispatch(workers, translators);
+            }
+        } catch (ClosedWatchServiceException ex) {
+            /* stopped */
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watchService = null;
+            service.close();
+            token.cancel();
+            workers.shutdown();
+            awaitTermination(workers);
+            pending.clear();
+        }
+    }
+
+    /* notes every (non-hidden) file that is in the inbox */
+    private void scan() throws IOException {
+        DirectoryStream<Path> files = Files.newDirectoryStream(inbox);
+        try {
+            for (Path file : files) {
+                note(file);
+            }
+        } finally {
+            files.close();
+        }
+    }
+
+    /* starts (or keeps) watching a file for its writes to settle */
+    private void note(Path file) {
+        if (!file.getFileName().toString().startsWith(".")
+                && !pending.containsKey(file)) {
+            pending.put(file, new Observation());
+        }
+    }
+
+    /*
+     * Checks every pending file, handing those that have settled to the
+     * workers (as long as they can take more).
+     */
+    private void dispatch(ThreadPoolExecutor workers,
+            final ThreadLocal<CharsetTranslator> translators) {
+        long now = System.nanoTime();
+        long settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+
+        Iterator<Map.Entry<Path, Observation>> entries =
+                pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, Observation> entry = entries.next();
+            final Path source = entry.getKey();
+            Observation observation = entry.getValue();
+
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(source,
+                        BasicFileAttributes.class);
+            } catch (NoSuchFileException ex) {
+                /* moved or deleted */
+                entries.remove();
+                continue;
+            } catch (IOException ex) {
+                /* try again on the next check */
+                continue;
+            }
+            if (!attributes.isRegularFile()) {
+                entries.remove();
+                continue;
+            }
+
+            if (observation.update(attributes, now)
+                    || ((now - observation.since) < settleNanos)
+                    || !inProgress.add(source)) {
+                continue;
+            }
+
+            try {
+                workers.execute(new Runnable() {
+                    @SuppressWarnings("synthetic-access")
+                    @Override
+                    public void run() {
+                        try {
+                            process(source, translators.get());
+                        } finally {
+                            inProgress.remove(source);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                /* every worker is busy; try again on the next check */
+                inProgress.remove(source);
+                break;
+            }
+            entries.remove();
+        }
+    }
+
+    /*
+     * Translates a source file to the outbox, and moves it to the done or
+     * failed folder (a canceled translation leaves it in the inbox).
+     */
+    private void process(Path source, CharsetTranslator fileTranslator) {
+        Path name = source.getFileName();
+        Path target = outbox.resolve(name);
+        try {
+            InputStream in = Files.newInputStream(source);
+            try {
+                OutputCommitter.PendingOutput output =
+                        committer.create(target);
+                try {
+                    fileTranslator.translate(in, output.getStream());
+                    output.commit();
+                } finally {
+                    output.close();
+                }
+            } finally {
+                in.close();
+            }
+            committer.sync();
+        } catch (TranslationCanceledException ex) {
+            return;
+        } catch (IOException | RuntimeException ex) {
+            try {
+                Path failed = inbox.resolve(FAILED_FOLDER);
+                Files.write(failed.resolve(name + ERROR_SUFFIX),
+                        (ex + "\n").getBytes(StandardCharsets.UTF_8));
+                Files.move(source, failed.resolve(name),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException moveEx) {
+                ex.addSuppressed(moveEx);
+            }
+
+            Listener current = listener;
+            if (current != null) {
+                current.failed(source, ex);
+            }
+            return;
+        }
+
+        Listener current = listener;
+        try {
+            Files.move(source, inbox.resolve(DONE_FOLDER).resolve(name),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            if (current != null) {
+                current.failed(source, ex);
+            }
+            return;
+        }
+        if (current != null) {
+            current.translated(source, target);
+        }
+    }
+
+    /*
+     * Returns a new translator with the charsets and settings of another, but
+     * with its own cancellation token.
+     */
+    private static CharsetTranslator copy(CharsetTranslator translator,
+            CancellationToken token) {
+        CharsetTranslator copy = new CharsetTranslator(
+                translator.sourceCharset(), translator.targetCharset())
+                .useXMLCharRefReplacement(
+                        translator.isUsingXMLCharRefReplacement())
+                .useBestFitReplacement(
+                        translator.isUsingBestFitReplacement());
+        copy.setBufferSize(translator.getBufferSize());
+        copy.setTransform(translator.getTransform());
+        copy.setCancellationToken(token);
+
+        return copy;
+    }
+
+    /* waits for the workers to finish, keeping any interrupt for later */
+    private static void awaitTermination(ThreadPoolExecutor workers) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (workers.awaitTermination(1L, TimeUnit.DAYS)) {
+                    break;
+                }
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* the size and last-modified time of a pending file, and since when */
+    private static final class Observation {
+        long size = -1L;
+
+        FileTime lastModified;
+
+        long since;
+
+        Observation() {
+            /* nothing to do */
+        }
+
+        /*
+         * Records the file's current size and last-modified time, and tells
+         * whether either has changed.
+         */
+        boolean update(BasicFileAttributes attributes, long now) {
+            if ((attributes.size() == size)
+                    && attributes.lastModifiedTime().equals(lastModified)) {
+                return false;
+            }
+
+            size = attributes.size();
+            lastModified = attributes.lastModifiedTime();
+            since = now;
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.nio.file;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.charset.TranslationExecutors;
+
+/**
+ * A <code>ZipTranslator</code> translates the text entries of a ZIP archive,
+ * writing a new archive, without extracting any entry to disk.
+ * 
+ * <p>
+ * Entries whose names match the entry patterns are translated; all other
+ * entries (and directories) are copied unchanged. Each entry keeps its name,
+ * modification time, comment, extra data and compression method, and the
+ * entries are written in their original order.
+ * </p>
+ * 
+ * <p>
+ * Text entries are read and translated in parallel, in memory, on an
+ * {@link Executor} ({@link TranslationExecutors#cpu()} by default), through
+ * {@link CharsetTranslator#translate(byte[], int, int)}, which may be invoked
+ * by multiple concurrent threads. Only a few entries per thread are read
+ * ahead of the one being written, so the memory used does not grow with the
+ * size of the archive. A text entry larger than
+ * {@value #MAX_BUFFERED_ENTRY_SIZE} bytes is instead translated as a stream,
+ * as it is written (a stored one, whose size and CRC precede its content, is
+ * streamed through a temporary file). (Compressing the new archive happens as
+ * it is written, so it is not parallel.)
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ */
+public final class ZipTranslator {
+    /**
+     * The default entry patterns, which match the file extensions of common
+     * text formats.
+     */
+    public static final String DEFAULT_ENTRY_PATTERNS =
+            "*.txt,*.csv,*.tsv,*.xml,*.htm,*.html,*.json,*.properties";
+
+    /**
+     * The size (in bytes) of the largest text entry that is translated in
+     * memory.
+     */
+    public static final int MAX_BUFFERED_ENTRY_SIZE = 8 * 1024 * 1024;
+
+    /* the number of entries per thread that may be read ahead */
+    private static final int READ_AHEAD_PER_THREAD = 2;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final CharsetTranslator translator;
+
+    /* the patterns that are matched against the last part of a name */
+    private List<Pattern> namePatterns;
+
+    /* the patterns that are matched against a whole name */
+    private List<Pattern> pathPatterns;
+
+    private Executor executor = TranslationExecutors.cpu();
+
+    private int readAhead = READ_AHEAD_PER_THREAD
+            * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Constructs a new <code>ZipTranslator</code> that translates the entries
+     * that match the {@link #DEFAULT_ENTRY_PATTERNS}.
+     * 
+     * @param translator the translator for the text entries (it is not safe
+     *        to use it elsewhere while an archive is being translated)
+     */
+    public ZipTranslator(CharsetTranslator translator) {
+        this.translator = translator;
+        setEntryPatterns(DEFAULT_ENTRY_PATTERNS);
+    }
+
+    /**
+     * Sets the patterns of the names of the entries to be translated.
+     * 
+     * <p>
+     * The patterns are separated by commas. In a pattern, <code>*</code>
+     * matches any characters except <code>/</code>, <code>**</code> matches
+     * any characters, and <code>?</code> matches any one character except
+     * <code>/</code>. A pattern that contains a <code>/</code> is matched
+     * against an entry's whole name; any other pattern is matched against the
+     * last part of its name (so <code>*.txt</code> matches
+     * <code>docs/readme.txt</code>).
+     * </p>
+     * 
+     * @param patterns the comma-separated entry patterns
+     * @throws IllegalArgumentException if there is no pattern
+     */
+    public void setEntryPatterns(String patterns) {
+        List<Pattern> names = new ArrayList<Pattern>();
+        List<Pattern> paths = new ArrayList<Pattern>();
+        for (String glob : patterns.split(",")) {
+            glob = glob.trim();
+            if (!glob.isEmpty()) {
+                (glob.contains("/") ? paths : names).add(compile(glob));
+            }
+        }
+        if (names.isEmpty() && paths.isEmpty()) {
+            throw new IllegalArgumentException("no entry pattern: " + patterns);
+        }
+
+        namePatterns = Collections.unmodifiableList(names);
+        pathPatterns = Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Sets the executor on which text entries are read and translated.
+     * 
+     * @param executor the executor for text entries
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Tells whether or not an entry is translated.
+     * 
+     * @param entryName the name of an entry
+     * @return <code>true</code> if the name matches an entry pattern
+     */
+    public boolean matches(String entryName) {
+        String lastName =
+                entryName.substring(entryName.lastIndexOf('/') + 1);
+        for (Pattern pattern : namePatterns) {
+            if (pattern.matcher(lastName).matches()) {
+                return true;
+            }
+        }
+        for (Pattern pattern : pathPatterns) {
+            if (pattern.matcher(entryName).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Translates the text entries of a ZIP archive, and copies the others, to
+     * a new archive.
+     * 
+     * <p>
+     * If the translator's {@link CancellationToken} is canceled, the
+     * translation stops before the next entry.
+     * </p>
+     * 
+     * @param source the ZIP archive to be translated
+     * @param targetStream the stream to which the new archive is written (it
+     *        is finished, but not closed)
+     * @return the number of entries that were translated
+     * @throws IOException if the archive cannot be read or written, or if an
+     *         entry cannot be translated (the message names the entry)
+     */
+    public int translate(Path source, OutputStream targetStream)
+            throws IOException {
+        CancellationToken token = translator.getCancellationToken();
+        ZipFile zip = new ZipFile(source.toFile());
+        Deque<PendingEntry> window = new ArrayDeque<PendingEntry>();
+        int translated = 0;
+        try {
+            /* (the compressor writes in small pieces) */
+            BufferedOutputStream buffered =
+                    new BufferedOutputStream(targetStream, COPY_BUFFER_SIZE);
+            ZipOutputStream out = new ZipOutputStream(buffered);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements() || !window.isEmpty()) {
+                while (entries.hasMoreElements()
+                        && (window.size() < readAhead)) {
+                    window.add(readAhead(zip, entries.nextElement()));
+                }
+
+                if (token != null) {
+                    token.throwIfCanceled();
+                }
+                PendingEntry pending = window.removeFirst();
+                if (write(zip, pending, out)) {
+                    ++translated;
+                }
+            }
+            out.finish();
+            buffered.flush();
+        } finally {
+            for (PendingEntry pending : window) {
+                if (pending.result != null) {
+                    pending.result.cancel(true);
+                }
+            }
+            zip.close();
+        }
+
+        return translated;
+    }
+
+    /*
+     * Starts reading and translating a text entry that can be translated in
+     * memory; other entries are handled when they are written.
+     */
+    private PendingEntry readAhead(final ZipFile zip, final ZipEntry entry) {
+        if (entry.isDirectory() || !matches(entry.getName())
+                || (entry.getSize() < 0L)
+                || (entry.getSize() > MAX_BUFFERED_ENTRY_SIZE)) {
+            return new PendingEntry(entry, null);
+        }
+
+        FutureTask<byte[]> result = new FutureTask<byte[]>(
+                new Callable<byte[]>() {
+                    @SuppressWarnings("synthetic-access")
+                    @Override
+                    public byte[] call() throws IOException {
+                        byte[] bytes = read(zip, entry);
+
+                        return translator.translate(bytes, 0, bytes.length);
+                    }
+                });
+        executor.execute(result);
+
+        return new PendingEntry(entry, result);
+    }
+
+    /*
+     * Writes an entry to the new archive, and tells whether it was
+     * translated.
+     */
+    private boolean write(ZipFile zip, PendingEntry pending,
+            ZipOutputStream out) throws IOException {
+        ZipEntry entry = pending.entry;
+        try {
+            if (pending.result != null) {
+                byte[] bytes = pending.result.get();
+                out.putNextEntry(newEntry(entry, bytes));
+                out.write(bytes);
+                out.closeEntry();
+
+                return true;
+            }
+
+            boolean translate = !entry.isDirectory()
+                    && matches(entry.getName());
+            if (translate && (entry.getMethod() == ZipEntry.STORED)) {
+                writeStored(zip, entry, out);
+
+                return true;
+            }
+
+            out.putNextEntry(translate ? newEntry(entry, null) : copy(entry));
+            InputStream in = zip.getInputStream(entry);
+            try {
+                if (translate) {
+                    translator.translate(in, out);
+                } else {
+                    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            out.closeEntry();
+
+            return translate;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while translating "
+                    + entry.getName());
+        } catch (ExecutionException ex) {
+            throw new IOException(entry.getName() + ": " + ex.getCause(),
+                    ex.getCause());
+        } catch (IOException ex) {
+            throw new IOException(entry.getName() + ": " + ex, ex);
+        }
+    }
+
+    /*
+     * Translates a stored entry that is too large for memory (or of unknown
+     * size) to a temporary file, since its size and CRC must be known before
+     * it is written, and then copies it to the new archive.
+     */
+    private void writeStored(ZipFile zip, ZipEntry entry, ZipOutputStream out)
+            throws IOException {
+        Path temporary = Files.createTempFile("ZipTranslator", ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            InputStream in = zip.getInputStream(entry);
+            try {
+                OutputStream file = new CheckedOutputStream(
+                        new BufferedOutputStream(
+                                Files.newOutputStream(temporary),
+                                COPY_BUFFER_SIZE), crc);
+                try {
+                    translator.translate(in, file);
+                } finally {
+                    file.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            ZipEntry newEntry = newEntry(entry, null);
+            setStored(newEntry, Files.size(temporary), crc.getValue());
+            out.putNextEntry(newEntry);
+            Files.copy(temporary, out);
+            out.closeEntry();
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /* (only entries of at most MAX_BUFFERED_ENTRY_SIZE bytes are read) */
+    private static byte[] read(ZipFile zip, ZipEntry entry)
+            throws IOException {
+        byte[] bytes = new byte[(int) entry.getSize()];
+        InputStream in = zip.getInputStream(entry);
+        try {
+            int n = 0;
+            int count;
+            while ((n < bytes.length)
+                    && ((count = in.read(bytes, n, bytes.length - n)) > 0)) {
+                n += count;
+            }
+            if (n < bytes.length) {
+                throw new IOException("unexpected end of entry");
+            }
+        } finally {
+            in.close();
+        }
+
+        return bytes;
+    }
+
+    /*
+     * Returns a new entry with the name, time, comment, extra data and method
+     * of another; the size and CRC of a stored entry are taken from its new
+     * content.
+     */
+    private static ZipEntry newEntry(ZipEntry entry, byte[] content) {
+        ZipEntry newEntry = new ZipEntry(entry.getName());
+        if (entry.getTime() != -1L) {
+            newEntry.setTime(entry.getTime());
+        }
+        newEntry.setComment(entry.getComment());
+        newEntry.setExtra(entry.getExtra());
+        newEntry.setMethod(entry.getMethod());
+        if ((entry.getMethod() == ZipEntry.STORED) && (content != null)) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            setStored(newEntry, content.length, crc.getValue());
+        }
+
+        return newEntry;
+    }
+
+    /* returns a new entry for an unchanged copy of another */
+    private static ZipEntry copy(ZipEntry entry) {
+        ZipEntry newEntry = newEntry(entry, null);
+        if (entry.getMethod() == ZipEntry.STORED) {
+            setStored(newEntry, entry.getSize(), entry.getCrc());
+        }
+
+        return newEntry;
+    }
+
+    /* sets the size and CRC of a stored entry */
+    private static void setStored(ZipEntry entry, long size, long crc) {
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc);
+    }
+
+    /* compiles a glob (see #setEntryPatterns(String)) to a regex */
+    private static Pattern compile(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            if ((c == '*') && ((i + 1) < glob.length())
+                    && (glob.charAt(i + 1) == '*')) {
+                regex.append(".*");
+                ++i;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /* an entry, and the result of its translation if it has been started */
+    private static final class PendingEntry {
+        final ZipEntry entry;
+
+        final FutureTask<byte[]> result;
+
+        PendingEntry(ZipEntry entry, FutureTask<byte[]> result) {
+            this.entry = entry;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010 Matthew Zipay <mattz@ninthtest.net>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.ninthtest.swing.util;
+
+import java.util.Locale;
+
+import javax.swing.ComboBoxModel;
+import javax.swing.JComboBox;
+
+/**
+ * A key selection manager that lets the user search a (long) combo box list
+ * by typing any part of an item.
+ * 
+ * <p>
+ * Keys typed in quick succession are accumulated into a search string, and
+ * the first item that contains the search string (ignoring case) is
+ * selected. Items that <i>start</i> with the search string are preferred, so
+ * typing "utf" selects "UTF-8" rather than "x-UTF-16LE-BOM".
+ * </p>
+ * 
+ * @author mattz
+ * @version 2.0.1
+ * @see JComboBox#setKeySelectionManager(JComboBox.KeySelectionManager)
+ */
+public class TypeAheadSelectionManager implements JComboBox.KeySelectionManager {
+    /**
+     * The default time (in milliseconds) after which the search string is
+     * discarded and a new search begins.
+     */
+    public static final long DEFAULT_TIMEOUT = 1000L;
+
+    private final long timeout;
+
+    private final StringBuilder search = new StringBuilder();
+
+    private long lastKeyTime;
+
+    /**
+     * Constructs a new <code>TypeAheadSelectionManager</code> using the
+     * {@link #DEFAULT_TIMEOUT}.
+     */
+    public TypeAheadSelectionManager() {
+        this(DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructs a new <code>TypeAheadSelectionManager</code>.
+     * 
+     * @param timeout the time (in milliseconds) after which the search string
+     *        is discarded
+     */
+    public TypeAheadSelectionManager(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the current search string.
+     * 
+     * @return the characters typed since the search began
+     */
+    public String getSearch() {
+        return search.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @return the index of the first item that starts with (or, failing
+     *         that, contains) the search string, or -1 if there is no such
+     *         item
+     */
+    @Override
+    public int selectionForKey(char key, ComboBoxModel<?> model) {
+        long now = System.currentTimeMillis();
+        if ((now - lastKeyTime) > timeout) {
+            search.setLength(0);
+        }
+        lastKeyTime = now;
+        search.append(Character.toLowerCase(key));
+
+        String text = search.toString();
+        int containing = -1;
+        for (int i = 0; i < model.getSize(); ++i) {
+            Object item = model.getElementAt(i);
+            if (item == null) {
+                continue;
+            }
+
+            String value = item.toString().toLowerCase(Locale.ENGLISH);
+            if (value.startsWith(text)) {
+                return i;
+            } else if ((containing < 0) && value.contains(text)) {
+                containing = i;
+            }
+        }
+
+        return containing;
+    }
+}
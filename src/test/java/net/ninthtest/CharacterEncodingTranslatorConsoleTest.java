@@ -0,0 +1,496 @@
+package net.ninthtest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class CharacterEncodingTranslatorConsoleTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SOURCE_STRING =
+            "$=USD, \u00a5=JPY, \u20ac=EUR";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path source;
+
+    private Path target;
+
+    @Before
+    public void setUp() throws IOException {
+        source = folder.newFile("source.txt").toPath();
+        Files.write(source, SOURCE_STRING.getBytes(UTF_8));
+        target = folder.getRoot().toPath().resolve("target.txt");
+    }
+
+    @Test
+    public void testUsage() {
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(
+                new String[] {"-bogus"}));
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(
+                new String[] {source.toString(), "UTF-8"}));
+    }
+
+    @Test
+    public void testTranslate() throws IOException {
+        assertEquals(0, CharacterEncodingTranslatorConsole.run(new String[] {
+                source.toString(), "UTF-8", target.toString(), "UTF-16BE"}));
+
+        assertEquals(SOURCE_STRING,
+                new String(Files.readAllBytes(target), "UTF-16BE"));
+    }
+
+    @Test
+    public void testUnmappableTargetCharacter() {
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                source.toString(), "UTF-8", target.toString(), "US-ASCII"}));
+    }
+
+    @Test
+    public void testXmlCharRef() throws IOException {
+        assertEquals(0, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-xmlcharref", source.toString(), "UTF-8", target.toString(),
+                "US-ASCII"}));
+
+        assertEquals("$=USD, &#165;=JPY, &#8364;=EUR",
+                new String(Files.readAllBytes(target), "US-ASCII"));
+    }
+
+    @Test
+    public void testSurrogateCharRefsMatchAcrossPaths()
+            throws IOException, InterruptedException {
+        Files.write(source, "a\ud83d\ude00b".getBytes(UTF_8));
+        Path target2 = folder.getRoot().toPath().resolve("target2.txt");
+
+        /* a single file target, and a fan-out to two file targets */
+        assertEquals(0, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-xmlcharref", source.toString(), "UTF-8", target.toString(),
+                "US-ASCII"}));
+        assertEquals("a&#128512;b",
+                new String(Files.readAllBytes(target), "US-ASCII"));
+        assertEquals(0, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-xmlcharref", source.toString(), "UTF-8", target.toString(),
+                "US-ASCII", target2.toString(), "ISO-8859-1"}));
+        assertEquals("a&#128512;b",
+                new String(Files.readAllBytes(target), "US-ASCII"));
+        assertEquals("a&#128512;b",
+                new String(Files.readAllBytes(target2), "ISO-8859-1"));
+
+        /* the pipe */
+        Process process = launch("-xmlcharref", "-", "UTF-8", "-", "US-ASCII");
+        OutputStream stdin = process.getOutputStream();
+        stdin.write(Files.readAllBytes(source));
+        stdin.close();
+        assertEquals("a&#128512;b",
+                new String(readFully(process.getInputStream()), "US-ASCII"));
+        assertEquals(0, process.waitFor());
+    }
+
+    @Test
+    public void testBestFit() throws IOException {
+        Files.write(source,
+                "\u201ccaf\u00e9\u201d \u2013 \u20ac".getBytes(UTF_8));
+
+        assertEquals(0, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-bestfit", "-xmlcharref", source.toString(), "UTF-8",
+                target.toString(), "US-ASCII"}));
+
+        assertEquals("\"cafe\" - &#8364;",
+                new String(Files.readAllBytes(target), "US-ASCII"));
+    }
+
+    @Test
+    public void testTransform() throws IOException {
+        Files.write(source, "a \r\nb\u00a0\r\n".getBytes(UTF_8));
+
+        assertEquals(0, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-transform", "crlf,nbsp,trim", source.toString(), "UTF-8",
+                target.toString(), "US-ASCII"}));
+
+        assertEquals("a\nb\n", new String(Files.readAllBytes(target),
+                "US-ASCII"));
+    }
+
+    @Test
+    public void testTransformUnknown() {
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-transform", "upper", source.toString(), "UTF-8",
+                target.toString(), "US-ASCII"}));
+    }
+
+    @Test
+    public void testStandardInputToStandardOutput()
+            throws IOException, InterruptedException {
+        Process process = launch("-xmlcharref", "-", "UTF-8", "-", "US-ASCII");
+
+        OutputStream stdin = process.getOutputStream();
+        stdin.write(SOURCE_STRING.getBytes(UTF_8));
+        stdin.close();
+
+        assertEquals("$=USD, &#165;=JPY, &#8364;=EUR",
+                new String(readFully(process.getInputStream()), "US-ASCII"));
+        assertEquals(0, process.waitFor());
+    }
+
+    @Test
+    public void testStandardOutputIsStreamed()
+            throws IOException, InterruptedException {
+        Process process = launch("-", "UTF-8", "-", "UTF-16BE");
+
+        /* the first line must arrive while standard input is still open */
+        OutputStream stdin = process.getOutputStream();
+        stdin.write("line 1\n".getBytes(UTF_8));
+        stdin.flush();
+
+        byte[] expected = "line 1\n".getBytes("UTF-16BE");
+        byte[] actual = new byte[expected.length];
+        InputStream stdout = process.getInputStream();
+        for (int n = 0; n < actual.length;) {
+            n += stdout.read(actual, n, actual.length - n);
+        }
+        assertArrayEquals(expected, actual);
+
+        stdin.close();
+        assertEquals(0, process.waitFor());
+    }
+
+    @Test
+    public void testStandardOutputFanOut()
+            throws IOException, InterruptedException {
+        Process process = launch(source.toString(), "UTF-8",
+                target.toString(), "UTF-16BE", "-", "UTF-8");
+        process.getOutputStream().close();
+
+        assertEquals(SOURCE_STRING,
+                new String(readFully(process.getInputStream()), "UTF-8"));
+        assertEquals(0, process.waitFor());
+        assertEquals(SOURCE_STRING,
+                new String(Files.readAllBytes(target), "UTF-16BE"));
+    }
+
+    @Test
+    public void testStandardInputCannotBeFollowed() {
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-follow", "-", "UTF-8", target.toString(), "UTF-16"}));
+    }
+
+    @Test
+    public void testTerminatedTranslationIsCleanedUp() throws Exception {
+        final Process process = launch("-", "UTF-8", target.toString(),
+                "UTF-16");
+
+        /* keep feeding standard input until the process goes away */
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[8192];
+                Arrays.fill(chunk, (byte) 'x');
+                OutputStream stdin = process.getOutputStream();
+                try {
+                    while (true) {
+                        stdin.write(chunk);
+                        stdin.flush();
+                    }
+                } catch (IOException ex) {
+                    /* the process has exited */
+                }
+            }
+        });
+        feeder.setDaemon(true);
+        feeder.start();
+
+        /* the output goes to a temporary sibling until it is committed */
+        long deadline = System.currentTimeMillis() + 10000L;
+        while ((folder.getRoot().list().length < 2)
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10L);
+        }
+        assertEquals("translation did not start", 2,
+                folder.getRoot().list().length);
+
+        process.destroy();
+        process.waitFor();
+
+        assertFalse("target was committed", Files.exists(target));
+        assertEquals("partial output was not deleted", 1,
+                folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testFailedTranslationLeavesTarget() throws IOException {
+        Files.write(target, "old".getBytes(UTF_8));
+
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                source.toString(), "UTF-8", target.toString(), "US-ASCII"}));
+
+        assertEquals("old", new String(Files.readAllBytes(target), UTF_8));
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testSyncGroup() throws IOException {
+        Path target2 = folder.getRoot().toPath().resolve("target2.txt");
+
+        assertEquals(0, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-sync", "group", source.toString(), "UTF-8",
+                target.toString(), "UTF-16BE", target2.toString(), "UTF-8"}));
+
+        assertEquals(SOURCE_STRING,
+                new String(Files.readAllBytes(target), "UTF-16BE"));
+        assertEquals(SOURCE_STRING,
+                new String(Files.readAllBytes(target2), UTF_8));
+        assertEquals(3, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testSyncUnknownPolicy() {
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-sync", "always", source.toString(), "UTF-8",
+                target.toString(), "UTF-16"}));
+    }
+
+    @Test
+    public void testBatchInSeveralProcesses()
+            throws IOException, InterruptedException {
+        Path root = folder.getRoot().toPath();
+        StringBuilder manifest = new StringBuilder();
+        for (int i = 0; i < 9; ++i) {
+            Files.write(root.resolve(i + ".in"),
+                    (i + SOURCE_STRING).getBytes(UTF_8));
+            manifest.append(i).append(".in\t").append(i).append(".out\n");
+        }
+        Path manifestFile = root.resolve("manifest.txt");
+        Files.write(manifestFile, manifest.toString().getBytes(UTF_8));
+
+        List<Process> processes = new ArrayList<Process>();
+        for (int p = 0; p < 3; ++p) {
+            processes.add(launch("-batch", manifestFile.toString(),
+                    "-shard-size", "2", "-lease-seconds", "5", "UTF-8",
+                    "UTF-16BE"));
+        }
+        for (Process process : processes) {
+            process.getOutputStream().close();
+            assertEquals(0, process.waitFor());
+        }
+
+        for (int i = 0; i < 9; ++i) {
+            assertEquals(i + SOURCE_STRING, new String(
+                    Files.readAllBytes(root.resolve(i + ".out")), "UTF-16BE"));
+        }
+    }
+
+    @Test
+    public void testBatchUsage() {
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-batch", source.toString(), "UTF-8"}));
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-batch", source.toString(), "-shard-size", "0", "UTF-8",
+                "UTF-16"}));
+    }
+
+    @Test
+    public void testBatchUnknownCharset() throws IOException {
+        Path manifestFile = folder.getRoot().toPath().resolve("manifest.txt");
+        Files.write(manifestFile,
+                (source + "\t" + target + "\n").getBytes(UTF_8));
+
+        /* unsupported, and illegal */
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-batch", manifestFile.toString(), "UTF-8", "X-NO-SUCH"}));
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-batch", manifestFile.toString(), "UTF-8", "bad charset"}));
+    }
+
+    @Test
+    public void testWatchFolder() throws Exception {
+        Path inbox = folder.newFolder("inbox").toPath();
+        Path outbox = folder.getRoot().toPath().resolve("outbox");
+        Process process = launch("-watch", "-settle-seconds", "1",
+                inbox.toString(), "UTF-8", outbox.toString(), "UTF-16BE");
+        try {
+            Files.write(inbox.resolve("a.txt"), SOURCE_STRING.getBytes(UTF_8));
+
+            Path done = inbox.resolve("done").resolve("a.txt");
+            long deadline = System.currentTimeMillis() + 20000L;
+            while (!Files.exists(done)
+                    && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(50L);
+            }
+            assertTrue("file was not translated", Files.exists(done));
+            assertEquals(SOURCE_STRING, new String(Files.readAllBytes(
+                    outbox.resolve("a.txt")), "UTF-16BE"));
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    @Test
+    public void testWatchUsage() {
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-watch", "-", "UTF-8", target.toString(), "UTF-16"}));
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-watch", "-follow", source.toString(), "UTF-8",
+                target.toString(), "UTF-16"}));
+    }
+
+    @Test
+    public void testWatchUnknownCharset() throws IOException {
+        Path inbox = folder.newFolder("inbox").toPath();
+        Path outbox = folder.getRoot().toPath().resolve("outbox");
+
+        /* (fails before it starts watching) */
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-watch", inbox.toString(), "X-NO-SUCH", outbox.toString(),
+                "UTF-16BE"}));
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-watch", inbox.toString(), "UTF-8", outbox.toString(),
+                "bad charset"}));
+    }
+
+    @Test
+    public void testZip() throws IOException {
+        Path sourceZip = folder.getRoot().toPath().resolve("in.zip");
+        Path targetZip = folder.getRoot().toPath().resolve("out.zip");
+        ZipOutputStream out =
+                new ZipOutputStream(Files.newOutputStream(sourceZip));
+        try {
+            out.putNextEntry(new ZipEntry("a.txt"));
+            out.write(SOURCE_STRING.getBytes(UTF_8));
+            out.putNextEntry(new ZipEntry("a.dat"));
+            out.write(SOURCE_STRING.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+
+        assertEquals(0, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-zip", "-entries", "*.txt", sourceZip.toString(), "UTF-8",
+                targetZip.toString(), "UTF-16BE"}));
+
+        ZipFile zip = new ZipFile(targetZip.toFile());
+        try {
+            assertEquals(SOURCE_STRING, new String(readFully(
+                    zip.getInputStream(zip.getEntry("a.txt"))), "UTF-16BE"));
+            assertEquals(SOURCE_STRING, new String(readFully(
+                    zip.getInputStream(zip.getEntry("a.dat"))), UTF_8));
+        } finally {
+            zip.close();
+        }
+
+        /* a failed entry leaves no target archive behind */
+        Files.delete(targetZip);
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-zip", sourceZip.toString(), "UTF-8", targetZip.toString(),
+                "US-ASCII"}));
+        assertFalse(Files.exists(targetZip));
+    }
+
+    @Test
+    public void testZipUnknownCharset() throws IOException {
+        Path sourceZip = folder.getRoot().toPath().resolve("in.zip");
+        Path targetZip = folder.getRoot().toPath().resolve("out.zip");
+        ZipOutputStream out =
+                new ZipOutputStream(Files.newOutputStream(sourceZip));
+        try {
+            out.putNextEntry(new ZipEntry("a.txt"));
+            out.write(SOURCE_STRING.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-zip", sourceZip.toString(), "X-NO-SUCH",
+                targetZip.toString(), "UTF-16BE"}));
+        assertEquals(1, CharacterEncodingTranslatorConsole.run(new String[] {
+                "-zip", sourceZip.toString(), "UTF-8", targetZip.toString(),
+                "bad charset"}));
+        assertFalse(Files.exists(targetZip));
+    }
+
+    @Test
+    public void testNoAwtOrSwingClassesLoaded()
+            throws IOException, InterruptedException {
+        Process process = launch("-verbose:class", source.toString(), "UTF-8",
+                target.toString(), "UTF-16");
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                assertFalse(line, line.contains(" java.awt.")
+                        || line.contains(" javax.swing.")
+                        || line.contains(" net.ninthtest."
+                                + "CharacterEncodingTranslator "));
+            }
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(0, process.waitFor());
+    }
+
+    /*
+     * launches the console in a new JVM; a leading "-verbose:class" argument
+     * is passed to the JVM instead
+     */
+    private static Process launch(String... args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        int i = 0;
+        if (args[0].equals("-verbose:class")) {
+            command.add(args[i++]);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(CharacterEncodingTranslatorConsole.class.getName());
+        command.addAll(Arrays.asList(args).subList(i, args.length));
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        if (i > 0) {
+            /* the class loading log goes to standard output */
+            builder.redirectErrorStream(true);
+        } else {
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        }
+
+        return builder.start();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+
+        return bytes.toByteArray();
+    }
+}
@@ -44,6 +44,12 @@ public class CharacterEncodingTranslatorGuiTest extends UISpecTestCase {
                 .isTrue());
     }
 
+    @Test
+    public void testUseBestFitDefault() {
+        assertFalse(getMainWindow().getCheckBox("bestFitPref").isSelected()
+                .isTrue());
+    }
+
     @Test
     public void testNoSourceFilename() {
         Button translateButton = getMainWindow().getButton("translateButton");
@@ -0,0 +1,96 @@
+package net.ninthtest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+
+/*
+ * Measures the wall-clock time of complete console translations (JVM launch
+ * to exit) of a small file, and appends the results to a CSV file so that
+ * startup time can be tracked from build to build.
+ * 
+ * usage: ConsoleStartupBenchmark <classpath> <results-csv> [<runs>]
+ */
+@SuppressWarnings("javadoc")
+public final class ConsoleStartupBenchmark {
+    private static final int DEFAULT_RUNS = 20;
+
+    private static final int WARMUP_RUNS = 3;
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        String classpath = args[0];
+        File results = new File(args[1]);
+        int runs = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_RUNS;
+
+        Path source = Files.createTempFile("cetrans-startup", ".txt");
+        Path target = Files.createTempFile("cetrans-startup", ".out");
+        try {
+            Files.write(source, "$=USD, \u00a5=JPY, \u20ac=EUR\n"
+                    .getBytes(Charset.forName("UTF-8")));
+            ProcessBuilder builder = new ProcessBuilder(
+                    System.getProperty("java.home") + File.separator + "bin"
+                            + File.separator + "java",
+                    "-cp", classpath,
+                    CharacterEncodingTranslatorConsole.class.getName(),
+                    source.toString(), "UTF-8", target.toString(), "UTF-16");
+            builder.inheritIO();
+
+            for (int i = 0; i < WARMUP_RUNS; ++i) {
+                launch(builder);
+            }
+
+            long[] millis = new long[runs];
+            for (int i = 0; i < runs; ++i) {
+                millis[i] = launch(builder);
+            }
+            Arrays.sort(millis);
+
+            long min = millis[0];
+            long median = millis[runs / 2];
+            long p90 = millis[(int) Math.ceil(runs * 0.9) - 1];
+            System.out.println("console startup (ms): min=" + min
+                    + " median=" + median + " p90=" + p90);
+
+            boolean header = !results.exists();
+            results.getAbsoluteFile().getParentFile().mkdirs();
+            Writer writer = new FileWriter(results, true);
+            try {
+                if (header) {
+                    writer.write("timestamp,java.version,runs,min,median,p90\n");
+                }
+                writer.write(String.format("%tFT%<tT,%s,%d,%d,%d,%d%n",
+                        new Date(), System.getProperty("java.version"), runs,
+                        min, median, p90));
+            } finally {
+                writer.close();
+            }
+        } finally {
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(source);
+        }
+    }
+
+    private static long launch(ProcessBuilder builder)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int status = builder.start().waitFor();
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+
+        if (status != 0) {
+            throw new IllegalStateException("exit status " + status);
+        }
+
+        return elapsed;
+    }
+
+    private ConsoleStartupBenchmark() {
+        /* never instantiated */
+    }
+}
@@ -0,0 +1,105 @@
+package net.ninthtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.UnmappableCharacterException;
+import java.nio.file.Files;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class TranslationJobTest {
+    private static final String SOURCE_STRING =
+            "$=USD, \u00a5=JPY, \u20ac=EUR";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        source = folder.newFile("source.txt");
+        Files.write(source.toPath(),
+                SOURCE_STRING.getBytes(Charset.forName("UTF-8")));
+        target = new File(folder.getRoot(), "target.txt");
+    }
+
+    @Test
+    public void testQueued() {
+        TranslationJob job = new TranslationJob(source, target,
+                new CharsetTranslator("UTF-8", "UTF-16"));
+
+        assertEquals(TranslationJob.State.QUEUED, job.getState());
+        assertFalse(job.getState().isFinished());
+        assertEquals(0, job.getProgress());
+    }
+
+    @Test
+    public void testSucceeded() throws IOException {
+        TranslationJob job = new TranslationJob(source, target,
+                new CharsetTranslator("UTF-8", "UTF-16BE"));
+
+        job.run();
+
+        assertEquals(TranslationJob.State.SUCCEEDED, job.getState());
+        assertTrue(job.getState().isFinished());
+        assertEquals(100, job.getProgress());
+        assertNull(job.getFailure());
+        assertEquals(SOURCE_STRING,
+                new String(Files.readAllBytes(target.toPath()), "UTF-16BE"));
+    }
+
+    @Test
+    public void testFailed() {
+        TranslationJob job = new TranslationJob(source, target,
+                new CharsetTranslator("UTF-8", "US-ASCII"));
+
+        job.run();
+
+        assertEquals(TranslationJob.State.FAILED, job.getState());
+        assertTrue(job.getFailure() instanceof UnmappableCharacterException);
+    }
+
+    @Test
+    public void testCanceledWhileQueued() {
+        TranslationJob job = new TranslationJob(source, target,
+                new CharsetTranslator("UTF-8", "UTF-16"));
+
+        job.cancel();
+        job.run();
+
+        assertEquals(TranslationJob.State.CANCELED, job.getState());
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void testCanceledWhileRunning() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "UTF-16");
+        TranslationJob job = new TranslationJob(source, target, translator);
+        /* stand-in for a cancel that arrives after the job has started */
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        translator.setCancellationToken(token);
+
+        job.run();
+
+        assertEquals(TranslationJob.State.CANCELED, job.getState());
+        assertFalse("partial output was not deleted", target.exists());
+    }
+}
@@ -0,0 +1,127 @@
+package net.ninthtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class TranslationQueuePanelTest {
+    private static final long TIMEOUT = 10000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TranslationQueuePanel queue;
+
+    @Before
+    public void setUp() {
+        queue = new TranslationQueuePanel();
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConcurrencyZero() {
+        queue.setConcurrency(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConcurrencyTooHigh() {
+        queue.setConcurrency(TranslationQueuePanel.MAX_CONCURRENCY + 1);
+    }
+
+    @Test
+    public void testConcurrency() {
+        queue.setConcurrency(TranslationQueuePanel.MAX_CONCURRENCY);
+        assertEquals(TranslationQueuePanel.MAX_CONCURRENCY,
+                queue.getConcurrency());
+
+        queue.setConcurrency(1);
+        assertEquals(1, queue.getConcurrency());
+    }
+
+    @Test
+    public void testRunJobs() throws Exception {
+        queue.setConcurrency(3);
+        for (int i = 0; i < 10; ++i) {
+            File source = folder.newFile("source" + i + ".txt");
+            Files.write(source.toPath(),
+                    ("file " + i).getBytes(Charset.forName("UTF-8")));
+            queue.addJob(new TranslationJob(source,
+                    new File(folder.getRoot(), "target" + i + ".txt"),
+                    new CharsetTranslator("UTF-8", "UTF-16BE"),
+                    queue.getCommitter()));
+        }
+
+        awaitFinished();
+
+        /* a translated job's target is already in place */
+        for (TranslationJob job : queue.getJobs()) {
+            assertEquals(TranslationJob.State.SUCCEEDED, job.getState());
+            assertTrue(job.getTarget().isFile());
+        }
+        assertEquals("file 7", new String(Files.readAllBytes(
+                new File(folder.getRoot(), "target7.txt").toPath()),
+                "UTF-16BE"));
+
+        queue.clearFinished();
+        assertTrue(queue.getJobs().isEmpty());
+    }
+
+    @Test
+    public void testFailedRenameIsShown() throws Exception {
+        File source = folder.newFile("source.txt");
+        Files.write(source.toPath(), "file".getBytes(Charset.forName("UTF-8")));
+        /* (a file cannot be renamed over a non-empty directory) */
+        File target = folder.newFolder("target.txt");
+        assertTrue(new File(target, "child").createNewFile());
+
+        queue.addJob(new TranslationJob(source, target,
+                new CharsetTranslator("UTF-8", "UTF-16BE"),
+                queue.getCommitter()));
+        awaitFinished();
+
+        TranslationJob job = queue.getJobs().get(0);
+        assertEquals(TranslationJob.State.FAILED, job.getState());
+        assertTrue(job.getFailure() instanceof IOException);
+        /* and no temporary file is left behind */
+        assertEquals(0, folder.getRoot().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(".target.txt.");
+            }
+        }).length);
+    }
+
+    private void awaitFinished() throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            boolean finished = true;
+            for (TranslationJob job : queue.getJobs()) {
+                finished &= job.getState().isFinished();
+            }
+            if (finished) {
+                return;
+            }
+            Thread.sleep(10L);
+        }
+
+        throw new IOException("jobs did not finish");
+    }
+}
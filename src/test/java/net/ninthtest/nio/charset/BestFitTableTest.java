@@ -0,0 +1,101 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class BestFitTableTest {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @Test
+    public void testResource() throws IOException {
+        InputStream in = BestFitTable.class
+                .getResourceAsStream(BestFitTable.RESOURCE);
+        try {
+            assertTrue(BestFitTable.parse(in).size() > 500);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testLookUp() {
+        BestFitTable table = BestFitTable.forCharset(US_ASCII);
+
+        assertEquals("e", replacement(table, 0xe9));
+        assertEquals("\"", replacement(table, 0x201c));
+        assertEquals("fi", replacement(table, 0xfb01));
+        assertEquals("...", replacement(table, 0x2026));
+        assertEquals(-1, table.indexOf(0x2603));
+        assertEquals(-1, table.indexOf('e'));
+        assertSame(table, BestFitTable.forCharset(US_ASCII));
+    }
+
+    @Test
+    public void testOnlyUnmappableCharacters() {
+        BestFitTable table =
+                BestFitTable.forCharset(Charset.forName("windows-1252"));
+
+        assertEquals(-1, table.indexOf(0xe9));
+        assertEquals(-1, table.indexOf(0x201c));
+        assertEquals("o", replacement(table, 0x151));
+
+        assertEquals(0, BestFitTable.forCharset(Charset.forName("UTF-8"))
+                .size());
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        BestFitTable table = parse("# comment\n\n0x00C6 0x0041 0x0045\n"
+                + "0x2013\t0x002D\t# EN DASH\n");
+
+        assertEquals(2, table.size());
+        assertEquals("AE", replacement(table, 0xc6));
+        assertEquals("-", replacement(table, 0x2013));
+    }
+
+    @Test
+    public void testParseErrors() {
+        assertParseError("0x00C6\n", "line 1:");
+        assertParseError("0x2013 0x002D\n0x00C6 0x0041\n", "line 2:");
+        assertParseError("0x00C6 0x0041\n0x00E9 g\n", "line 2:");
+        assertParseError("0x00C6 0x41 0x41 0x41 0x41 0x41 0x41 0x41 0x41"
+                + " 0x41 0x41 0x41\n", "line 1:");
+    }
+
+    private static String replacement(BestFitTable table, int codePoint) {
+        int index = table.indexOf(codePoint);
+        assertTrue(index >= 0);
+
+        CharBuffer chars = CharBuffer.allocate(
+                CharsetTranslator.MAX_CHAR_REF_LENGTH);
+        table.put(index, chars);
+
+        return chars.flip().toString();
+    }
+
+    private static BestFitTable parse(String text) throws IOException {
+        return BestFitTable.parse(
+                new ByteArrayInputStream(text.getBytes("US-ASCII")));
+    }
+
+    private static void assertParseError(String text, String prefix) {
+        try {
+            parse(text);
+            fail("parsed: " + text);
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(),
+                    expected.getMessage().startsWith(prefix));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.CharBuffer;
+import java.text.Normalizer;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class CharTransformTest {
+    @Test
+    public void testCrlfToLf() {
+        assertEquals("a\nb\rc\r\nd\r", transform(CharTransform.CRLF_TO_LF,
+                "a\r\nb\rc\r\r\nd\r"));
+    }
+
+    @Test
+    public void testStripControls() {
+        assertEquals("a\tb\nc\rd e", transform(
+                CharTransform.STRIP_CONTROLS,
+                "\u0000a\tb\u001b\nc\u007f\rd\u0085 \u009fe"));
+    }
+
+    @Test
+    public void testNbspToSpace() {
+        assertEquals("a b  c", transform(CharTransform.NBSP_TO_SPACE,
+                "a\u00a0b \u00a0c"));
+    }
+
+    @Test
+    public void testTrimTrailingWhitespace() {
+        assertEquals("a\n  b\r\nc\u00a0\n\nd", transform(
+                CharTransform.TRIM_TRAILING_WHITESPACE,
+                "a \t\n  b\f\r\nc\u00a0 \n\u2003\nd  "));
+    }
+
+    @Test
+    public void testTrimLongWhitespaceRun() {
+        StringBuilder spaces = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            spaces.append(' ');
+        }
+
+        assertEquals("a" + spaces + "b\n", transform(
+                CharTransform.TRIM_TRAILING_WHITESPACE,
+                "a" + spaces + "b" + spaces + "\n" + spaces));
+    }
+
+    @Test
+    public void testTrimUnterminatedWhitespaceRunIsBounded() {
+        StringBuilder spaces = new StringBuilder();
+        for (int i = 0; i < 40000; ++i) {
+            spaces.append(' ');
+        }
+
+        /* whole blocks of 16384 are passed through; the rest is trimmed */
+        String result = transform(CharTransform.TRIM_TRAILING_WHITESPACE,
+                "a" + spaces + "\n");
+        assertEquals("a" + spaces.substring(0, 32768) + "\n", result);
+
+        /* (which is all the same to a run that is not trailing) */
+        assertEquals("a" + spaces + "b", transform(
+                CharTransform.TRIM_TRAILING_WHITESPACE, "a" + spaces + "b"));
+    }
+
+    @Test
+    public void testNfc() {
+        String decomposed = "Cafe\u0301 \u00c5ngstro\u0308m \u1100\u1161\u11a8"
+                + " e\u0323\u0302 x\u0301\ud835\udc00 \u0301";
+
+        assertEquals(Normalizer.normalize(decomposed, Normalizer.Form.NFC),
+                transform(CharTransform.NFC, decomposed));
+        assertEquals("Caf\u00e9 \uac01", transform(CharTransform.NFC,
+                "Cafe\u0301 \u1100\u1161\u11a8"));
+    }
+
+    @Test
+    public void testNfcLongText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; ++i) {
+            text.append("o\u0308\u0301 \u6f22\u5b57 ");
+        }
+        String decomposed = text.toString();
+
+        assertEquals(Normalizer.normalize(decomposed, Normalizer.Form.NFC),
+                transform(CharTransform.NFC, decomposed));
+    }
+
+    @Test
+    public void testNfcUnboundedMarks() {
+        StringBuilder text = new StringBuilder("a");
+        for (int i = 0; i < 50000; ++i) {
+            text.append('\u0301');
+        }
+        String decomposed = text.toString();
+
+        assertEquals(Normalizer.normalize(decomposed, Normalizer.Form.NFC),
+                transform(CharTransform.NFC, decomposed));
+    }
+
+    @Test
+    public void testNfkc() {
+        assertEquals("\u30ac x2 fi", transform(CharTransform.NFKC,
+                "\uff76\uff9e x\u00b2 \ufb01"));
+    }
+
+    @Test
+    public void testNfd() {
+        String composed = "Caf\u00e9 \u00c5 \uac01 \u1e69";
+
+        assertEquals(Normalizer.normalize(composed, Normalizer.Form.NFD),
+                transform(CharTransform.NFD, composed));
+        assertEquals(Normalizer.normalize(composed, Normalizer.Form.NFKD),
+                transform(CharTransform.NFKD, composed));
+    }
+
+    @Test
+    public void testChain() {
+        CharTransform chain = CharTransform.chain(CharTransform.CRLF_TO_LF,
+                CharTransform.STRIP_CONTROLS, CharTransform.NBSP_TO_SPACE,
+                CharTransform.TRIM_TRAILING_WHITESPACE);
+
+        assertEquals("crlf,controls,nbsp,trim", chain.name());
+        assertEquals("a\nb\n", transform(chain,
+                "a \u0000\r\nb\u0007  \r\n "));
+    }
+
+    @Test
+    public void testChainOfOne() {
+        assertSame(CharTransform.CRLF_TO_LF,
+                CharTransform.chain(CharTransform.CRLF_TO_LF));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChainOfNone() {
+        CharTransform.chain();
+    }
+
+    @Test
+    public void testForName() {
+        assertSame(CharTransform.NBSP_TO_SPACE,
+                CharTransform.forName("nbsp"));
+        assertEquals(CharTransform.chain(CharTransform.CRLF_TO_LF,
+                CharTransform.TRIM_TRAILING_WHITESPACE),
+                CharTransform.forName("crlf, trim"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForNameUnknown() {
+        CharTransform.forName("crlf,upper");
+    }
+
+    @Test
+    public void testEquals() {
+        CharTransform chain = CharTransform.forName("crlf,trim");
+
+        assertTrue(chain.equals(CharTransform.forName("crlf,trim")));
+        assertEquals(chain.hashCode(),
+                CharTransform.forName("crlf,trim").hashCode());
+        assertFalse(chain.equals(CharTransform.forName("trim,crlf")));
+        assertFalse(chain.equals("crlf,trim"));
+    }
+
+    @Test
+    public void testPassGrowsOutput() {
+        CharTransform.Pass pass = new CharTransform.Pass(
+                CharTransform.TRIM_TRAILING_WHITESPACE);
+        CharBuffer out = CharBuffer.allocate(4);
+
+        out = pass.transform(CharBuffer.wrap("a      "), out);
+        assertEquals(1, out.position());
+        out = pass.transform(CharBuffer.wrap("b"), out);
+        out = pass.endOfInput(out);
+        out.flip();
+
+        assertEquals("a      b", out.toString());
+    }
+
+    @Test
+    public void testPassReset() {
+        CharTransform.Pass pass =
+                new CharTransform.Pass(CharTransform.CRLF_TO_LF);
+
+        CharBuffer out = pass.transform(CharBuffer.wrap("a\r"),
+                CharBuffer.allocate(8));
+        pass.reset();
+        out = pass.transform(CharBuffer.wrap("\nb"), out);
+        out = pass.endOfInput(out);
+        out.flip();
+
+        assertEquals("a\nb", out.toString());
+    }
+
+    /*
+     * transforms the string one character per pass, so that every
+     * held-back character crosses a buffer boundary
+     */
+    private static String transform(CharTransform transform, String s) {
+        CharTransform.Pass pass = new CharTransform.Pass(transform);
+        CharBuffer out = CharBuffer.allocate(16);
+
+        for (int i = 0; i < s.length(); ++i) {
+            out = pass.transform(CharBuffer.wrap(s, i, i + 1), out);
+        }
+        out = pass.endOfInput(out);
+        out.flip();
+
+        return out.toString();
+    }
+}
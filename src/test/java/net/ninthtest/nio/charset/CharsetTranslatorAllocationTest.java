@@ -0,0 +1,179 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Verifies that a re-used translator allocates nothing once it has warmed up.
+ * Each translation is repeated many times, so that a single allocation per
+ * call would exceed the (per-call) tolerance left for the measurement itself.
+ */
+@SuppressWarnings("javadoc")
+public class CharsetTranslatorAllocationTest {
+    private static final String SOURCE_STRING =
+            "$=USD, \u00a5=JPY, \u20ac=EUR, \ud83d\ude00=SMILE\r\n";
+
+    private static final int WARM_UP_ITERATIONS = 20000;
+
+    private static final int ITERATIONS = 2000;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    private byte[] source;
+
+    @Before
+    public void setUp() throws IOException {
+        Object bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            builder.append(SOURCE_STRING);
+        }
+        source = builder.toString().getBytes("UTF-8");
+    }
+
+    @Test
+    public void testTranslateStream() throws IOException {
+        assertStreamAllocationFree(new CharsetTranslator("UTF-8", "UTF-16BE"));
+    }
+
+    @Test
+    public void testTranslateStreamWithXmlCharRef() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+
+        assertStreamAllocationFree(translator);
+    }
+
+    @Test
+    public void testTranslateStreamWithTransform() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "ISO-8859-1");
+        translator.useXMLCharRefReplacement(true);
+        translator.setTransform(CharTransform.chain(CharTransform.CRLF_TO_LF,
+                CharTransform.NBSP_TO_SPACE));
+
+        assertStreamAllocationFree(translator);
+    }
+
+    @Test
+    public void testTranslateChannel() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        ByteArrayInputStream in = new ByteArrayInputStream(source);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReadableByteChannel sourceChannel = Channels.newChannel(in);
+        WritableByteChannel targetChannel = Channels.newChannel(out);
+
+        long before = 0L;
+        for (int i = 0; i < (WARM_UP_ITERATIONS + ITERATIONS); ++i) {
+            if (i == WARM_UP_ITERATIONS) {
+                before = allocatedBytes();
+            }
+            in.reset();
+            out.reset();
+            translator.translate(sourceChannel, targetChannel);
+        }
+
+        assertAllocationFree(before);
+        assertArrayEquals(translator.translate(source, 0, source.length),
+                out.toByteArray());
+    }
+
+    @Test
+    public void testTranslateIncremental() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        ByteBuffer in = ByteBuffer.wrap(source);
+        ByteBuffer out = ByteBuffer.allocate(source.length * 4);
+
+        long before = 0L;
+        for (int i = 0; i < (WARM_UP_ITERATIONS + ITERATIONS); ++i) {
+            if (i == WARM_UP_ITERATIONS) {
+                before = allocatedBytes();
+            }
+            in.clear();
+            out.clear();
+            translator.reset();
+            translator.translate(in, out, true);
+            translator.flush(out);
+        }
+
+        assertAllocationFree(before);
+        assertEquals(translator.translate(source, 0, source.length).length,
+                out.position());
+    }
+
+    @Test
+    public void testTranslateArrayAllocatesOnlyResult() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "UTF-16BE");
+        byte[] expected = translator.translate(source, 0, source.length);
+
+        long before = 0L;
+        for (int i = 0; i < (WARM_UP_ITERATIONS + ITERATIONS); ++i) {
+            if (i == WARM_UP_ITERATIONS) {
+                before = allocatedBytes();
+            }
+            translator.translate(source, 0, source.length);
+        }
+
+        long perCall = (allocatedBytes() - before) / ITERATIONS;
+        /* the result array, plus the buffer that wraps the source */
+        assertTrue("allocated " + perCall + " bytes per translation",
+                perCall < (expected.length + 128));
+    }
+
+    private void assertStreamAllocationFree(CharsetTranslator translator)
+            throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(source);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long before = 0L;
+        for (int i = 0; i < (WARM_UP_ITERATIONS + ITERATIONS); ++i) {
+            if (i == WARM_UP_ITERATIONS) {
+                before = allocatedBytes();
+            }
+            in.reset();
+            out.reset();
+            translator.translate(in, out);
+        }
+
+        assertAllocationFree(before);
+        assertArrayEquals(translator.translate(source, 0, source.length),
+                out.toByteArray());
+    }
+
+    private void assertAllocationFree(long before) {
+        long allocated = allocatedBytes() - before;
+
+        assertEquals("allocated " + allocated + " bytes in " + ITERATIONS
+                + " translations", 0L, allocated / ITERATIONS);
+    }
+
+    private long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,255 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.UnmappableCharacterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class CharsetTranslatorAsyncTest {
+    private static final String SOURCE_STRING =
+            "$=USD, \u00a5=JPY, \u20ac=EUR\n";
+
+    private static final String US_ASCII_STRING =
+            "$=USD, &#165;=JPY, &#8364;=EUR\n";
+
+    @Test
+    public void testTranslateAsync() throws Exception {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        byte[] source = SOURCE_STRING.getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        TranslationResult result = translator.translateAsync(
+                new ByteArrayInputStream(source), out,
+                TranslationExecutors.cpu()).get(10L, TimeUnit.SECONDS);
+
+        assertEquals(US_ASCII_STRING, out.toString("US-ASCII"));
+        assertEquals("UTF-8", result.sourceCharset().name());
+        assertEquals("US-ASCII", result.targetCharset().name());
+        assertEquals(source.length, result.getBytesRead());
+        assertEquals(out.size(), result.getBytesWritten());
+        assertEquals(2L, result.getCharRefCount());
+        assertTrue(result.getElapsedTime(TimeUnit.NANOSECONDS) > 0L);
+    }
+
+    @Test
+    public void testTranslateAsyncChannels() throws Exception {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "UTF-16BE");
+        byte[] source = SOURCE_STRING.getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        TranslationResult result = translator.translateAsync(
+                Channels.newChannel(new ByteArrayInputStream(source)),
+                Channels.newChannel(out), TranslationExecutors.io())
+                .get(10L, TimeUnit.SECONDS);
+
+        assertEquals(SOURCE_STRING, out.toString("UTF-16BE"));
+        assertEquals(source.length, result.getBytesRead());
+        assertEquals(out.size(), result.getBytesWritten());
+    }
+
+    @Test
+    public void testTranslateAsyncConcurrently() throws Exception {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        StringBuilder builder = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; ++i) {
+            builder.append(SOURCE_STRING);
+            expected.append(US_ASCII_STRING);
+        }
+        byte[] source = builder.toString().getBytes("UTF-8");
+
+        List<ByteArrayOutputStream> outs =
+                new ArrayList<ByteArrayOutputStream>();
+        List<CompletableFuture<TranslationResult>> futures =
+                new ArrayList<CompletableFuture<TranslationResult>>();
+        for (int i = 0; i < 32; ++i) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outs.add(out);
+            futures.add(translator.translateAsync(
+                    new ByteArrayInputStream(source), out,
+                    TranslationExecutors.cpu()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .get(30L, TimeUnit.SECONDS);
+
+        for (ByteArrayOutputStream out : outs) {
+            assertEquals(expected.toString(), out.toString("US-ASCII"));
+        }
+    }
+
+    @Test
+    public void testTranslateAsyncFailure() throws Exception {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+
+        try {
+            translator.translateAsync(
+                    new ByteArrayInputStream(SOURCE_STRING.getBytes("UTF-8")),
+                    new ByteArrayOutputStream(), TranslationExecutors.cpu())
+                    .get(10L, TimeUnit.SECONDS);
+            fail("expected UnmappableCharacterException");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof UnmappableCharacterException);
+        }
+    }
+
+    @Test
+    public void testTranslateAsyncRejected() throws Exception {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+
+        CompletableFuture<TranslationResult> future = translator
+                .translateAsync(new ByteArrayInputStream(new byte[0]),
+                        new ByteArrayOutputStream(), rejecting);
+
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testTranslateAsyncCanceled() throws Exception {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+        InputStream blocking = new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                reads.incrementAndGet();
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                b[off] = 'x';
+
+                return 1;
+            }
+        };
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                TranslationExecutors.io().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            command.run();
+                        } catch (Throwable t) {
+                            failure.set(t);
+                        }
+                        stopped.countDown();
+                    }
+                });
+            }
+        };
+
+        CompletableFuture<TranslationResult> future = translator
+                .translateAsync(blocking, new ByteArrayOutputStream(),
+                        executor);
+        assertTrue(reading.await(10L, TimeUnit.SECONDS));
+        assertTrue(future.cancel(false));
+        release.countDown();
+
+        /* the translation stops before its next read */
+        assertTrue(stopped.await(10L, TimeUnit.SECONDS));
+        assertEquals(1, reads.get());
+        assertEquals(null, failure.get());
+        try {
+            future.join();
+            fail("expected CancellationException");
+        } catch (CancellationException expected) {
+            /* the future stays canceled */
+        }
+
+        /* the translator's own token is not canceled */
+        assertFalse((translator.getCancellationToken() != null)
+                && translator.getCancellationToken().isCanceled());
+    }
+
+    @Test
+    public void testTranslateAsyncTranslatorCanceled() throws Exception {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        CancellationToken token = new CancellationToken();
+        translator.setCancellationToken(token);
+        token.cancel();
+
+        try {
+            translator.translateAsync(
+                    new ByteArrayInputStream(SOURCE_STRING.getBytes("UTF-8")),
+                    new ByteArrayOutputStream(), TranslationExecutors.cpu())
+                    .get(10L, TimeUnit.SECONDS);
+            fail("expected TranslationCanceledException");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TranslationCanceledException);
+        }
+    }
+
+    @Test
+    public void testExecutors() throws Exception {
+        final AtomicReference<Thread> cpuThread = new AtomicReference<Thread>();
+        final AtomicReference<Thread> ioThread = new AtomicReference<Thread>();
+        final CountDownLatch done = new CountDownLatch(2);
+
+        TranslationExecutors.cpu().execute(new Runnable() {
+            @Override
+            public void run() {
+                cpuThread.set(Thread.currentThread());
+                done.countDown();
+            }
+        });
+        TranslationExecutors.io().execute(new Runnable() {
+            @Override
+            public void run() {
+                ioThread.set(Thread.currentThread());
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10L, TimeUnit.SECONDS));
+
+        assertTrue(cpuThread.get().isDaemon());
+        assertTrue(cpuThread.get().getName().startsWith("cetrans-cpu-"));
+        /* (virtual threads are always daemon threads) */
+        assertTrue(ioThread.get().isDaemon());
+        assertEquals(!TranslationExecutors.isUsingVirtualThreads(),
+                ioThread.get().getName().startsWith("cetrans-io-"));
+    }
+}
@@ -1,16 +1,25 @@
 
 package net.ninthtest.nio.charset;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
 import java.nio.charset.MalformedInputException;
 import java.nio.charset.UnmappableCharacterException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -33,6 +42,20 @@ public class CharsetTranslatorTest {
     private static final String EXPECTED_ISO_8859_1_STRING_2 =
             "USD $, JPY \u00a5, EUR &#8364;";
 
+    /* CR LF line endings, no-break spaces and trailing whitespace */
+    private static final String TRANSFORM_SOURCE =
+            "\u00a5\u00a0=JPY \t\r\n\r\n  $=USD\u00a0\r\nEUR\r  \r\n ";
+
+    private static final String TRANSFORMED_STRING =
+            "\u00a5 =JPY\n\n  $=USD\nEUR\r\n";
+
+    /* accents, curly quotes, a dash, a ligature and a snowman (no best fit) */
+    private static final String BEST_FIT_SOURCE =
+            "caf\u00e9 \u201cna\u00efve\u201d \u2013 \ufb01le \u2603";
+
+    private static final String BEST_FIT_STRING =
+            "cafe \"naive\" - file &#9731;";
+
     @Test(expected = IllegalArgumentException.class)
     @SuppressWarnings("unused")
     public void testCharsetNameConstructorNullSource() {
@@ -224,6 +247,603 @@ public class CharsetTranslatorTest {
                 new String(out.toByteArray(), "US-ASCII"));
     }
 
+    @Test
+    public void testTranslateUtf8ToUsAsciiWithBestFit() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useBestFitReplacement(true).useXMLCharRefReplacement(true);
+        assertTrue(translator.isUsingBestFitReplacement());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        translator.translate(new ByteArrayInputStream(
+                BEST_FIT_SOURCE.getBytes("UTF-8")), out);
+
+        assertEquals(BEST_FIT_STRING,
+                new String(out.toByteArray(), "US-ASCII"));
+    }
+
+    @Test
+    public void testTranslateBestFitOnlyMappableReplacements()
+            throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "windows-1252");
+        translator.useBestFitReplacement(true);
+        byte[] source = "\u00e9\u0151\u2013\u0110".getBytes("UTF-8");
+
+        /* windows-1252 can encode the e-acute and the dash as they are */
+        assertEquals("\u00e9o\u2013D", new String(
+                translator.translate(source, 0, source.length),
+                "windows-1252"));
+    }
+
+    @Test(expected = UnmappableCharacterException.class)
+    public void testTranslateBestFitWithoutXmlCharRef() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useBestFitReplacement(true);
+
+        /* the snowman has no best-fit replacement */
+        translator.translate(new ByteArrayInputStream(
+                BEST_FIT_SOURCE.getBytes("UTF-8")),
+                new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testIncrementalTranslateWithBestFit() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useBestFitReplacement(true).useXMLCharRefReplacement(true);
+        ByteBuffer in = ByteBuffer.wrap(BEST_FIT_SOURCE.getBytes("UTF-8"));
+        ByteBuffer out = ByteBuffer.allocate(64);
+        ByteBuffer oneByte = ByteBuffer.allocate(1);
+
+        /* a one-byte output buffer splits every multi-char replacement */
+        translator.reset();
+        while (true) {
+            boolean overflow = translator.translate(in, oneByte, true)
+                    .isOverflow();
+            oneByte.flip();
+            out.put(oneByte);
+            oneByte.clear();
+            if (!overflow) {
+                break;
+            }
+        }
+        while (translator.flush(oneByte).isOverflow()) {
+            oneByte.flip();
+            out.put(oneByte);
+            oneByte.clear();
+        }
+        oneByte.flip();
+        out.put(oneByte);
+
+        assertEquals(BEST_FIT_STRING,
+                new String(out.array(), 0, out.position(), "US-ASCII"));
+    }
+
+    @Test
+    public void testTranslateFanOutWithBestFit() throws IOException {
+        CharsetTranslator ascii = new CharsetTranslator("UTF-8", "US-ASCII");
+        ascii.useBestFitReplacement(true).useXMLCharRefReplacement(true);
+        CharsetTranslator latin1 =
+                new CharsetTranslator("UTF-8", "ISO-8859-1");
+        latin1.useBestFitReplacement(true).useXMLCharRefReplacement(true);
+        ByteArrayOutputStream asciiOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream latin1Out = new ByteArrayOutputStream();
+
+        CharsetTranslator.translate(
+                new ByteArrayInputStream(BEST_FIT_SOURCE.getBytes("UTF-8")),
+                new CharsetTranslator[] {ascii, latin1},
+                new OutputStream[] {asciiOut, latin1Out});
+
+        assertEquals(BEST_FIT_STRING,
+                new String(asciiOut.toByteArray(), "US-ASCII"));
+        assertEquals("caf\u00e9 \"na\u00efve\" - file &#9731;",
+                new String(latin1Out.toByteArray(), "ISO-8859-1"));
+    }
+
+    @Test
+    public void testTranslateFanOut() throws IOException {
+        CharsetTranslator utf8 = new CharsetTranslator("UTF-8", "UTF-8");
+        CharsetTranslator latin1 =
+                new CharsetTranslator("UTF-8", "ISO-8859-1");
+        latin1.useXMLCharRefReplacement(true);
+        CharsetTranslator ascii = new CharsetTranslator("UTF-8", "US-ASCII");
+        ascii.useXMLCharRefReplacement(true);
+
+        InputStream in = Thread.currentThread().getContextClassLoader()
+                .getResourceAsStream("utf8.txt");
+        ByteArrayOutputStream utf8Out = new ByteArrayOutputStream();
+        ByteArrayOutputStream latin1Out = new ByteArrayOutputStream();
+        ByteArrayOutputStream asciiOut = new ByteArrayOutputStream();
+
+        CharsetTranslator.translate(in,
+                new CharsetTranslator[] {utf8, latin1, ascii},
+                new OutputStream[] {utf8Out, latin1Out, asciiOut});
+
+        assertEquals(EXPECTED_UTF_8_STRING,
+                new String(utf8Out.toByteArray(), "UTF-8"));
+        assertEquals(EXPECTED_ISO_8859_1_STRING,
+                new String(latin1Out.toByteArray(), "ISO-8859-1"));
+        assertEquals(EXPECTED_US_ASCII_STRING,
+                new String(asciiOut.toByteArray(), "US-ASCII"));
+    }
+
+    @Test
+    public void testTranslateFanOutSurrogateCharRefsMatchChannel()
+            throws IOException {
+        byte[] source = "a\ud83d\ude00b\r\n\ud83d\ude00\ud83d\ude00\r\n"
+                .getBytes("UTF-8");
+
+        for (int bufferSize = 2; bufferSize <= 5; ++bufferSize) {
+            CharsetTranslator ascii =
+                    new CharsetTranslator("UTF-8", "US-ASCII");
+            ascii.useXMLCharRefReplacement(true);
+            ascii.setTransform(CharTransform.CRLF_TO_LF);
+            ascii.setBufferSize(bufferSize);
+            CharsetTranslator latin1 =
+                    new CharsetTranslator("UTF-8", "ISO-8859-1");
+            latin1.useXMLCharRefReplacement(true);
+            ByteArrayOutputStream asciiOut = new ByteArrayOutputStream();
+            ByteArrayOutputStream latin1Out = new ByteArrayOutputStream();
+
+            CharsetTranslator.translate(new ByteArrayInputStream(source),
+                    new CharsetTranslator[] {ascii, latin1},
+                    new OutputStream[] {asciiOut, latin1Out});
+
+            assertEquals("a&#128512;b\n&#128512;&#128512;\n",
+                    new String(asciiOut.toByteArray(), "US-ASCII"));
+            assertArrayEquals(translateChannel(ascii, source),
+                    asciiOut.toByteArray());
+            assertArrayEquals(translateChannel(latin1, source),
+                    latin1Out.toByteArray());
+        }
+    }
+
+    @Test(expected = UnmappableCharacterException.class)
+    public void testTranslateFanOutUnmappableTargetCharacter()
+            throws IOException {
+        CharsetTranslator utf8 = new CharsetTranslator("UTF-8", "UTF-8");
+        CharsetTranslator latin1 =
+                new CharsetTranslator("UTF-8", "ISO-8859-1");
+
+        InputStream in = Thread.currentThread().getContextClassLoader()
+                .getResourceAsStream("utf8.txt");
+
+        CharsetTranslator.translate(in,
+                new CharsetTranslator[] {utf8, latin1},
+                new OutputStream[] {
+                        new ByteArrayOutputStream(),
+                        new ByteArrayOutputStream()});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTranslateFanOutMixedSourceCharsets() throws IOException {
+        CharsetTranslator.translate(new ByteArrayInputStream(new byte[0]),
+                new CharsetTranslator[] {
+                        new CharsetTranslator("UTF-8", "UTF-8"),
+                        new CharsetTranslator("windows-1252", "UTF-8")},
+                new OutputStream[] {
+                        new ByteArrayOutputStream(),
+                        new ByteArrayOutputStream()});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTranslateFanOutLengthMismatch() throws IOException {
+        CharsetTranslator.translate(new ByteArrayInputStream(new byte[0]),
+                new CharsetTranslator[] {
+                        new CharsetTranslator("UTF-8", "UTF-8")},
+                new OutputStream[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTranslateFanOutDuplicateTranslator() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+
+        CharsetTranslator.translate(new ByteArrayInputStream(new byte[0]),
+                new CharsetTranslator[] {translator, translator},
+                new OutputStream[] {
+                        new ByteArrayOutputStream(),
+                        new ByteArrayOutputStream()});
+    }
+
+    @Test
+    public void testIncrementalTranslateOneByteAtATime() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "UTF-16BE");
+
+        byte[] source = EXPECTED_UTF_8_STRING.getBytes("UTF-8");
+
+        assertEquals(EXPECTED_UTF_8_STRING, new String(
+                translateIncrementally(translator, source, 1, 2), "UTF-16BE"));
+    }
+
+    @Test
+    public void testIncrementalTranslateWithXmlCharRef() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+
+        byte[] source = EXPECTED_UTF_8_STRING.getBytes("UTF-8");
+
+        assertEquals(EXPECTED_US_ASCII_STRING, new String(
+                translateIncrementally(translator, source, 3, 1), "US-ASCII"));
+    }
+
+    @Test
+    public void testIncrementalTranslateSupplementaryXmlCharRef()
+            throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "ISO-8859-1");
+        translator.useXMLCharRefReplacement(true);
+
+        byte[] source = "smile \ud83d\ude00!".getBytes("UTF-8");
+
+        assertEquals("smile &#128512;!", new String(
+                translateIncrementally(translator, source, 2, 4),
+                "ISO-8859-1"));
+    }
+
+    @Test
+    public void testIncrementalTranslateReset() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+
+        /* leave a partial sequence behind, then start over */
+        ByteBuffer out = ByteBuffer.allocate(16);
+        translator.translate(ByteBuffer.wrap(new byte[] {(byte) 0xe2}), out,
+                false);
+        translator.reset();
+
+        byte[] source = EXPECTED_UTF_8_STRING.getBytes("UTF-8");
+
+        assertEquals(EXPECTED_UTF_8_STRING, new String(
+                translateIncrementally(translator, source, 5, 3), "UTF-8"));
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void testIncrementalTranslateTruncatedInput() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+
+        /* the euro sign is a 3-byte sequence; drop its last byte */
+        byte[] source = "EUR=\u20ac".getBytes("UTF-8");
+
+        translateIncrementally(translator,
+                Arrays.copyOf(source, source.length - 1), 4, 4);
+    }
+
+    @Test(expected = UnmappableCharacterException.class)
+    public void testIncrementalTranslateUnmappableTargetCharacter()
+            throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "ISO-8859-1");
+
+        byte[] source = EXPECTED_UTF_8_STRING.getBytes("UTF-8");
+
+        translateIncrementally(translator, source, 4, 4);
+    }
+
+    @Test
+    public void testTranslateByteArray() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "UTF-16BE");
+        byte[] source = ("[" + EXPECTED_UTF_8_STRING + "]").getBytes("UTF-8");
+
+        byte[] result = translator.translate(source, 1, source.length - 2);
+
+        assertEquals(EXPECTED_UTF_8_STRING, new String(result, "UTF-16BE"));
+    }
+
+    @Test
+    public void testTranslateByteArrayWithXmlCharRef() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        byte[] source = EXPECTED_UTF_8_STRING.getBytes("UTF-8");
+
+        /* the char refs outgrow the max-bytes-per-char estimate */
+        assertEquals(EXPECTED_US_ASCII_STRING, new String(
+                translator.translate(source, 0, source.length), "US-ASCII"));
+        assertEquals(EXPECTED_US_ASCII_STRING, new String(
+                translator.translate(source, 0, source.length), "US-ASCII"));
+    }
+
+    @Test
+    public void testTranslateLargeByteArrayWithXmlCharRef()
+            throws IOException {
+        /* over 1 MiB, so the output buffer is not the retained one */
+        StringBuilder builder = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 600000; ++i) {
+            builder.append('\u00e9');
+            expected.append("&#233;");
+        }
+        byte[] source = builder.toString().getBytes("UTF-8");
+
+        /* (the translator's coder for this thread is new) */
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        assertEquals(expected.toString(), new String(
+                translator.translate(source, 0, source.length), "US-ASCII"));
+
+        /* and after a small translation, which is retained */
+        translator = new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        byte[] warmUp = "abc".getBytes("UTF-8");
+        assertEquals("abc", new String(
+                translator.translate(warmUp, 0, warmUp.length), "US-ASCII"));
+        assertEquals(expected.toString(), new String(
+                translator.translate(source, 0, source.length), "US-ASCII"));
+        assertEquals("abc", new String(
+                translator.translate(warmUp, 0, warmUp.length), "US-ASCII"));
+    }
+
+    @Test
+    public void testTranslateByteArrayEmpty() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-16");
+
+        assertEquals(0, translator.translate(new byte[0], 0, 0).length);
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void testTranslateByteArrayTruncatedInput() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        byte[] source = "EUR=\u20ac".getBytes("UTF-8");
+
+        translator.translate(source, 0, source.length - 1);
+    }
+
+    @Test
+    public void testTranslateByteArrayAfterFailure() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "ISO-8859-1");
+        byte[] source = EXPECTED_UTF_8_STRING.getBytes("UTF-8");
+
+        try {
+            translator.translate(source, 0, source.length);
+            fail("expected UnmappableCharacterException");
+        } catch (UnmappableCharacterException ex) {
+            /* the next translation must not see any leftover state */
+        }
+
+        assertEquals("$=USD", new String(
+                translator.translate(source, 0, 5), "ISO-8859-1"));
+    }
+
+    @Test
+    public void testTranslateAll() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-16");
+        List<byte[]> sources = Arrays.asList(
+                EXPECTED_UTF_8_STRING.getBytes("UTF-8"), new byte[0],
+                "\u20ac".getBytes("UTF-8"));
+
+        List<byte[]> results = translator.translateAll(sources);
+
+        assertEquals(3, results.size());
+        assertEquals(EXPECTED_UTF_8_STRING,
+                new String(results.get(0), "UTF-16"));
+        assertEquals(0, results.get(1).length);
+        assertEquals("\u20ac", new String(results.get(2), "UTF-16"));
+    }
+
+    @Test
+    public void testTranslateByteArrayConcurrently() throws Exception {
+        final CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "UTF-16BE");
+        final byte[] source = EXPECTED_UTF_8_STRING.getBytes("UTF-8");
+        final AtomicInteger mismatches = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 1000; ++i) {
+                            byte[] result = translator.translate(source, 0,
+                                    source.length);
+                            if (!EXPECTED_UTF_8_STRING.equals(
+                                    new String(result, "UTF-16BE"))) {
+                                mismatches.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException ex) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, mismatches.get());
+    }
+
+    @Test
+    public void testTranslateChannels() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        /* larger than one channel buffer, with sequences across the edge */
+        StringBuilder builder = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        while (builder.length() < CharsetTranslator.CHANNEL_BUFFER_SIZE) {
+            builder.append(EXPECTED_UTF_8_STRING);
+            expected.append(EXPECTED_US_ASCII_STRING);
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        translator.translate(
+                Channels.newChannel(new ByteArrayInputStream(
+                        builder.toString().getBytes("UTF-8"))),
+                Channels.newChannel(result));
+
+        assertEquals(expected.toString(), result.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testTranslateCanceledBeforeStart() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        CancellationToken token = new CancellationToken();
+        translator.setCancellationToken(token);
+        token.cancel();
+        ByteArrayInputStream in = new ByteArrayInputStream(
+                EXPECTED_UTF_8_STRING.getBytes("UTF-8"));
+
+        try {
+            translator.translate(in, new ByteArrayOutputStream());
+            fail("expected TranslationCanceledException");
+        } catch (TranslationCanceledException ex) {
+            /* nothing may be read once canceled */
+            assertEquals(EXPECTED_UTF_8_STRING.getBytes("UTF-8").length,
+                    in.available());
+        }
+    }
+
+    @Test
+    public void testTranslateCanceledMidStream() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        translator.setBufferSize(16);
+        final CancellationToken token = new CancellationToken();
+        translator.setCancellationToken(token);
+        final byte[] source = new byte[1024 * 1024];
+        Arrays.fill(source, (byte) 'x');
+        final int[] bytesRead = new int[1];
+        InputStream in = new ByteArrayInputStream(source) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                /* cancel as soon as the first buffer has been read */
+                token.cancel();
+                int count = super.read(b, off, len);
+                bytesRead[0] += Math.max(count, 0);
+
+                return count;
+            }
+        };
+
+        try {
+            translator.translate(in, new ByteArrayOutputStream());
+            fail("expected TranslationCanceledException");
+        } catch (TranslationCanceledException ex) {
+            assertTrue(bytesRead[0] < source.length);
+        }
+    }
+
+    @Test(expected = TranslationCanceledException.class)
+    public void testTranslateChannelsCanceled() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        CancellationToken token = new CancellationToken();
+        translator.setCancellationToken(token);
+        token.cancel();
+
+        translator.translate(
+                Channels.newChannel(new ByteArrayInputStream(new byte[1])),
+                Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testTranslateWithTransform() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("windows-1252", "UTF-8");
+        translator.setTransform(CharTransform.forName("crlf,nbsp,trim"));
+        /* split every CR LF pair and whitespace run across reads */
+        translator.setBufferSize(3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        translator.translate(new ByteArrayInputStream(
+                TRANSFORM_SOURCE.getBytes("windows-1252")), out);
+
+        assertEquals(TRANSFORMED_STRING,
+                new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testTranslateFanOutWithTransform() throws IOException {
+        CharsetTranslator plain = new CharsetTranslator("UTF-8", "UTF-8");
+        CharsetTranslator transformed =
+                new CharsetTranslator("UTF-8", "UTF-16BE");
+        transformed.setTransform(CharTransform.forName("crlf,nbsp,trim"));
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream transformedOut = new ByteArrayOutputStream();
+
+        CharsetTranslator.translate(
+                new ByteArrayInputStream(TRANSFORM_SOURCE.getBytes("UTF-8")),
+                new CharsetTranslator[] {plain, transformed},
+                new OutputStream[] {plainOut, transformedOut});
+
+        assertEquals(TRANSFORM_SOURCE,
+                new String(plainOut.toByteArray(), "UTF-8"));
+        assertEquals(TRANSFORMED_STRING,
+                new String(transformedOut.toByteArray(), "UTF-16BE"));
+    }
+
+    @Test
+    public void testIncrementalTranslateWithTransform() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "UTF-16BE");
+        translator.setTransform(CharTransform.forName("crlf,nbsp,trim"));
+        translator.setBufferSize(2);
+
+        byte[] source = TRANSFORM_SOURCE.getBytes("UTF-8");
+
+        assertEquals(TRANSFORMED_STRING, new String(
+                translateIncrementally(translator, source, 1, 2), "UTF-16BE"));
+        /* held-back characters do not survive a reset */
+        translator.reset();
+        assertEquals("x", new String(translateIncrementally(translator,
+                "x".getBytes("UTF-8"), 1, 2), "UTF-16BE"));
+    }
+
+    @Test
+    public void testTranslateByteArrayWithTransform() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.setTransform(CharTransform.forName("crlf,nbsp,trim"));
+        translator.useXMLCharRefReplacement(true);
+
+        byte[] source = TRANSFORM_SOURCE.getBytes("UTF-8");
+
+        assertEquals(TRANSFORMED_STRING.replace("\u00a5", "&#165;"),
+                new String(translator.translate(source, 0, source.length),
+                        "US-ASCII"));
+        /* the same stage is reset and re-used */
+        assertEquals(TRANSFORMED_STRING.replace("\u00a5", "&#165;"),
+                new String(translator.translate(source, 0, source.length),
+                        "US-ASCII"));
+    }
+
+    @Test
+    public void testTranslateChannelsWithTransform() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        translator.setTransform(CharTransform.STRIP_CONTROLS);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        translator.translate(
+                Channels.newChannel(new ByteArrayInputStream(
+                        "a\u0000b\u0007\tc\u0085\n".getBytes("UTF-8"))),
+                Channels.newChannel(out));
+
+        assertEquals("ab\tc\n", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testTranslateNormalizesBeforeEncoding() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "ISO-8859-1");
+        translator.useXMLCharRefReplacement(true);
+        translator.setTransform(CharTransform.NFC);
+        translator.setBufferSize(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        translator.translate(new ByteArrayInputStream(
+                "Cafe\u0301 \u20ac".getBytes("UTF-8")), out);
+
+        assertEquals("Caf\u00e9 &#8364;",
+                new String(out.toByteArray(), "ISO-8859-1"));
+    }
+
     @Test
     public void testEquals() {
         CharsetTranslator translator1 =
@@ -314,6 +934,28 @@ public class CharsetTranslatorTest {
                 "translator5 and translator6 equals() methods are not consistently "
                         + fiveEqualsSix,
                 fiveEqualsSix, translator5.equals(translator6));
+
+        CharsetTranslator translator7 =
+                new CharsetTranslator("windows-1252", "UTF-8");
+        translator7.setTransform(CharTransform.forName("crlf,trim"));
+
+        assertFalse(
+                "windows-1252->UTF-8 instance w/out transform equals windows-1252->UTF-8 instance w/ transform",
+                translator1.equals(translator7));
+
+        translator1.setTransform(CharTransform.chain(CharTransform.CRLF_TO_LF,
+                CharTransform.TRIM_TRAILING_WHITESPACE));
+
+        assertTrue(
+                "windows-1252->UTF-8 instances w/ equal transforms are not equal",
+                translator1.equals(translator7)
+                        && (translator1.hashCode() == translator7.hashCode()));
+
+        translator7.useBestFitReplacement(true);
+
+        assertFalse(
+                "windows-1252->UTF-8 instance w/out best fit equals windows-1252->UTF-8 instance w/ best fit",
+                translator1.equals(translator7));
     }
 
     @Test
@@ -363,4 +1005,48 @@ public class CharsetTranslatorTest {
 
         assertEquals("windows-1252 -> UTF-8", translator.toString());
     }
+
+    /*
+     * feeds the source to the translator in chunks of (at most) chunkSize
+     * bytes, draining an output buffer of outSize bytes
+     */
+    private static byte[] translateIncrementally(CharsetTranslator translator,
+            byte[] source, int chunkSize, int outSize) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteBuffer in = ByteBuffer.allocate(source.length);
+        ByteBuffer out = ByteBuffer.allocate(outSize);
+
+        for (int offset = 0; offset < source.length; offset += chunkSize) {
+            in.put(source, offset,
+                    Math.min(chunkSize, source.length - offset));
+            in.flip();
+            boolean endOfInput = (offset + chunkSize) >= source.length;
+            while (translator.translate(in, out, endOfInput).isOverflow()) {
+                drain(out, result);
+            }
+            in.compact();
+        }
+        while (translator.flush(out).isOverflow()) {
+            drain(out, result);
+        }
+        drain(out, result);
+
+        return result.toByteArray();
+    }
+
+    private static byte[] translateChannel(CharsetTranslator translator,
+            byte[] source) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        translator.translate(
+                Channels.newChannel(new ByteArrayInputStream(source)),
+                Channels.newChannel(result));
+
+        return result.toByteArray();
+    }
+
+    private static void drain(ByteBuffer out, ByteArrayOutputStream result) {
+        out.flip();
+        result.write(out.array(), 0, out.limit());
+        out.clear();
+    }
 }
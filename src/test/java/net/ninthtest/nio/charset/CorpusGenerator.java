@@ -0,0 +1,291 @@
+package net.ninthtest.nio.charset;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Generates deterministic synthetic text corpora of any size (including
+ * multi-gigabyte inputs) for behaviour and throughput tests.
+ *
+ * A corpus is a sequence of lines of space-separated "words" whose
+ * characters are drawn from the ranges of a script mix (only characters that
+ * the corpus charset can encode are used). Optionally, a proportion of the
+ * characters are drawn instead from characters that some target charset
+ * cannot encode (to exercise XML character reference replacement), and/or are
+ * replaced by a malformed byte.
+ *
+ * java.util.Random's algorithm is fixed by its specification, so the same
+ * mix, charset, seed, densities and size always produce the same bytes.
+ */
+@SuppressWarnings("javadoc")
+public final class CorpusGenerator {
+    /*
+     * script mixes, each a list of {weight, first code point, last code
+     * point} ranges
+     */
+    public enum Mix {
+        ASCII_HEAVY(new int[][] {{95, 0x21, 0x7e}, {5, 0xa1, 0xff}}),
+
+        CJK(new int[][] {{20, 0x21, 0x7e}, {10, 0x3041, 0x30f6},
+                {70, 0x4e00, 0x9fa5}}),
+
+        CYRILLIC(new int[][] {{20, 0x21, 0x7e}, {80, 0x0410, 0x044f}}),
+
+        EMOJI(new int[][] {{60, 0x21, 0x7e}, {10, 0x2600, 0x26ff},
+                {30, 0x1f300, 0x1f64f}});
+
+        private final int[][] ranges;
+
+        private Mix(int[][] ranges) {
+            this.ranges = ranges;
+        }
+    }
+
+    /* the ranges from which unmappable characters are drawn */
+    private static final int[][] UNMAPPABLE_CANDIDATES = {{0xa1, 0xff},
+            {0x0391, 0x03c9}, {0x0410, 0x044f}, {0x3041, 0x30f6},
+            {0x4e00, 0x4fff}, {0xac00, 0xacff}, {0x1f600, 0x1f64f}};
+
+    private static final int MIN_LINE_LENGTH = 20;
+
+    private static final int MAX_LINE_LENGTH = 100;
+
+    private static final int MAX_WORD_LENGTH = 12;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /* a line is at most 2 * (MAX_LINE_LENGTH + MAX_WORD_LENGTH) chars */
+    private static final int LINE_CAPACITY = 512;
+
+    private final Charset charset;
+
+    private final long seed;
+
+    /* the encodable code points of each of the mix's ranges, and weights */
+    private final int[][] pools;
+
+    private final int[] weights;
+
+    private final int totalWeight;
+
+    private int[] unmappablePool = new int[0];
+
+    private double unmappableDensity;
+
+    private byte malformedByte;
+
+    private double malformedDensity;
+
+    public CorpusGenerator(Mix mix, Charset charset, long seed) {
+        this.charset = charset;
+        this.seed = seed;
+
+        CharsetEncoder encoder = charset.newEncoder();
+        int[][] mixPools = new int[mix.ranges.length][];
+        int[] mixWeights = new int[mix.ranges.length];
+        int count = 0;
+        int total = 0;
+        for (int[] range : mix.ranges) {
+            int[] pool = encodable(encoder, null, range[1], range[2]);
+            if (pool.length > 0) {
+                mixPools[count] = pool;
+                mixWeights[count++] = range[0];
+                total += range[0];
+            }
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException(
+                    charset.name() + " cannot encode " + mix);
+        }
+
+        pools = Arrays.copyOf(mixPools, count);
+        weights = Arrays.copyOf(mixWeights, count);
+        totalWeight = total;
+    }
+
+    /*
+     * Draws the given proportion of characters from characters that the
+     * target charset cannot encode (but the corpus charset can).
+     */
+    public void setUnmappable(Charset target, double density) {
+        checkDensity(density, malformedDensity);
+
+        CharsetEncoder encoder = charset.newEncoder();
+        CharsetEncoder targetEncoder = target.newEncoder();
+        int[] pool = new int[0];
+        for (int[] range : UNMAPPABLE_CANDIDATES) {
+            int[] more = encodable(encoder, targetEncoder, range[0], range[1]);
+            pool = Arrays.copyOf(pool, pool.length + more.length);
+            System.arraycopy(more, 0, pool, pool.length - more.length,
+                    more.length);
+        }
+        if ((density > 0.0) && (pool.length == 0)) {
+            throw new IllegalArgumentException("no characters that "
+                    + charset.name() + " can encode are unmappable in "
+                    + target.name());
+        }
+
+        unmappablePool = pool;
+        unmappableDensity = density;
+    }
+
+    /*
+     * Replaces the given proportion of characters with a byte that is
+     * malformed in the corpus charset.
+     */
+    public void setMalformedDensity(double density) {
+        checkDensity(density, unmappableDensity);
+
+        if (density > 0.0) {
+            malformedByte = malformedByte(charset);
+        }
+        malformedDensity = density;
+    }
+
+    /*
+     * Writes at least the given number of bytes (stopping at the end of a
+     * line), and returns the number of bytes written.
+     */
+    public long generate(OutputStream out, long byteCount) throws IOException {
+        Random random = new Random(seed);
+        CharsetEncoder encoder = charset.newEncoder();
+        CharBuffer chars = CharBuffer.allocate(LINE_CAPACITY);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        long written = 0L;
+
+        while ((written + bytes.position()) < byteCount) {
+            int lineLength = MIN_LINE_LENGTH
+                    + random.nextInt(MAX_LINE_LENGTH - MIN_LINE_LENGTH);
+            for (int column = 0; column < lineLength;) {
+                if (column > 0) {
+                    chars.put(' ');
+                }
+
+                int wordLength = 1 + random.nextInt(MAX_WORD_LENGTH);
+                for (int i = 0; i < wordLength; ++i) {
+                    double r = random.nextDouble();
+                    if (r < malformedDensity) {
+                        encode(encoder, chars, bytes, false);
+                        bytes.put(malformedByte);
+                    } else if (r < (malformedDensity + unmappableDensity)) {
+                        put(chars, unmappablePool[random
+                                .nextInt(unmappablePool.length)]);
+                    } else {
+                        put(chars, nextMixed(random));
+                    }
+                }
+                column += wordLength + 1;
+            }
+            chars.put('\n');
+            encode(encoder, chars, bytes, false);
+
+            if (bytes.remaining() < (LINE_CAPACITY * 4)) {
+                written += drain(bytes, out);
+            }
+        }
+
+        encode(encoder, chars, bytes, true);
+        encoder.flush(bytes);
+        written += drain(bytes, out);
+        out.flush();
+
+        return written;
+    }
+
+    private int nextMixed(Random random) {
+        int pick = random.nextInt(totalWeight);
+        int k = 0;
+        while (pick >= weights[k]) {
+            pick -= weights[k++];
+        }
+
+        return pools[k][random.nextInt(pools[k].length)];
+    }
+
+    private static void put(CharBuffer chars, int codePoint) {
+        if (Character.isSupplementaryCodePoint(codePoint)) {
+            chars.put(Character.highSurrogate(codePoint));
+            chars.put(Character.lowSurrogate(codePoint));
+        } else {
+            chars.put((char) codePoint);
+        }
+    }
+
+    private static void encode(CharsetEncoder encoder, CharBuffer chars,
+            ByteBuffer bytes, boolean endOfInput)
+            throws CharacterCodingException {
+        chars.flip();
+        CoderResult result = encoder.encode(chars, bytes, endOfInput);
+        if (result.isError()) {
+            result.throwException();
+        } else if (result.isOverflow()) {
+            throw new IllegalStateException("line buffer overflow");
+        }
+        chars.clear();
+    }
+
+    private static int drain(ByteBuffer bytes, OutputStream out)
+            throws IOException {
+        int count = bytes.position();
+        out.write(bytes.array(), 0, count);
+        bytes.clear();
+
+        return count;
+    }
+
+    /*
+     * Returns the code points in a range that the encoder can encode and the
+     * excluding encoder (if any) cannot.
+     */
+    private static int[] encodable(CharsetEncoder encoder,
+            CharsetEncoder excluding, int first, int last) {
+        int[] pool = new int[(last - first) + 1];
+        int count = 0;
+        for (int codePoint = first; codePoint <= last; ++codePoint) {
+            if (!Character.isDefined(codePoint)) {
+                continue;
+            }
+
+            String character = new String(Character.toChars(codePoint));
+            if (encoder.canEncode(character)
+                    && ((excluding == null)
+                            || !excluding.canEncode(character))) {
+                pool[count++] = codePoint;
+            }
+        }
+
+        return Arrays.copyOf(pool, count);
+    }
+
+    /* finds a byte that cannot begin a valid sequence in the charset */
+    private static byte malformedByte(Charset charset) {
+        CharsetDecoder decoder = charset.newDecoder();
+        for (int b = 0xff; b >= 0x80; --b) {
+            ByteBuffer in = ByteBuffer.wrap(new byte[] {(byte) b, ' ', ' '});
+            CharBuffer out = CharBuffer.allocate(4);
+            decoder.reset();
+            if (decoder.decode(in, out, true).isMalformed()) {
+                return (byte) b;
+            }
+        }
+
+        throw new IllegalArgumentException(
+                "no single byte is malformed in " + charset.name());
+    }
+
+    private static void checkDensity(double density, double other) {
+        if ((density < 0.0) || ((density + other) > 1.0)) {
+            throw new IllegalArgumentException(
+                    "densities must be in [0, 1]: " + density);
+        }
+    }
+}
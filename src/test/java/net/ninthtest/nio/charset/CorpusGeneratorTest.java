@@ -0,0 +1,140 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class CorpusGeneratorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final long SIZE = 2L * 1000L * 1000L;
+
+    @Test
+    public void testDeterministic() throws IOException {
+        byte[] first = generate(
+                new CorpusGenerator(CorpusGenerator.Mix.CJK, UTF_8, 42L),
+                100000L);
+        byte[] second = generate(
+                new CorpusGenerator(CorpusGenerator.Mix.CJK, UTF_8, 42L),
+                100000L);
+        byte[] other = generate(
+                new CorpusGenerator(CorpusGenerator.Mix.CJK, UTF_8, 43L),
+                100000L);
+
+        assertArrayEquals(first, second);
+        assertFalse(Arrays.equals(first, other));
+    }
+
+    @Test
+    public void testSizeEndsAtLine() throws IOException {
+        byte[] corpus = generate(new CorpusGenerator(
+                CorpusGenerator.Mix.ASCII_HEAVY, UTF_8, 1L), 10000L);
+
+        assertTrue(corpus.length >= 10000);
+        assertTrue(corpus.length < 10500);
+        assertEquals('\n', corpus[corpus.length - 1]);
+    }
+
+    @Test
+    public void testRoundTripEveryMix() throws IOException {
+        for (CorpusGenerator.Mix mix : CorpusGenerator.Mix.values()) {
+            byte[] corpus = generate(new CorpusGenerator(mix, UTF_8, 7L),
+                    SIZE);
+
+            byte[] utf16 = translate(new CharsetTranslator(UTF_8, UTF_16BE),
+                    corpus);
+            byte[] utf8 = translate(new CharsetTranslator(UTF_16BE, UTF_8),
+                    utf16);
+
+            assertArrayEquals(mix.toString(), corpus, utf8);
+        }
+    }
+
+    @Test
+    public void testLegacyCharsetPools() throws IOException {
+        Charset shiftJis = Charset.forName("Shift_JIS");
+        byte[] corpus = generate(new CorpusGenerator(CorpusGenerator.Mix.CJK,
+                shiftJis, 7L), SIZE);
+
+        /* every character that was drawn is encodable */
+        translate(new CharsetTranslator(shiftJis, UTF_8), corpus);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNothingUnmappable() {
+        new CorpusGenerator(CorpusGenerator.Mix.EMOJI, UTF_8, 7L)
+                .setUnmappable(UTF_16BE, 0.01);
+    }
+
+    @Test
+    public void testUnmappableDensity() throws IOException {
+        CorpusGenerator generator = new CorpusGenerator(
+                CorpusGenerator.Mix.CYRILLIC, UTF_8, 7L);
+        generator.setUnmappable(Charset.forName("windows-1251"), 0.05);
+        byte[] corpus = generate(generator, SIZE);
+
+        EncodingCostEstimator estimator = new EncodingCostEstimator(UTF_8,
+                Charset.forName("windows-1251"));
+        EncodingCostEstimator.Estimate estimate = estimator
+                .estimate(new ByteArrayInputStream(corpus)).get(0);
+        EncodingCostEstimator.Estimate plain = new EncodingCostEstimator(
+                UTF_8, UTF_16BE).estimate(new ByteArrayInputStream(corpus))
+                .get(0);
+
+        /*
+         * UTF-16BE is two bytes per char (in the BMP); only word characters
+         * are drawn, and separators are about 13% of the text
+         */
+        double density = estimate.getUnmappableCount()
+                / (plain.getByteCount() / 2.0);
+        assertEquals(0.05 * 0.87, density, 0.01);
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void testMalformedDensity() throws IOException {
+        CorpusGenerator generator = new CorpusGenerator(
+                CorpusGenerator.Mix.ASCII_HEAVY, UTF_8, 7L);
+        generator.setMalformedDensity(0.001);
+
+        translate(new CharsetTranslator(UTF_8, UTF_16BE),
+                generate(generator, SIZE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoMalformedByte() {
+        new CorpusGenerator(CorpusGenerator.Mix.ASCII_HEAVY, ISO_8859_1, 7L)
+                .setMalformedDensity(0.01);
+    }
+
+    private static byte[] generate(CorpusGenerator generator, long size)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = generator.generate(out, size);
+        assertEquals(written, out.size());
+
+        return out.toByteArray();
+    }
+
+    private static byte[] translate(CharsetTranslator translator,
+            byte[] source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        translator.translate(new ByteArrayInputStream(source), out);
+
+        return out.toByteArray();
+    }
+}
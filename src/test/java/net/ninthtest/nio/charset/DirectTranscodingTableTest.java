@@ -0,0 +1,153 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.UnmappableCharacterException;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class DirectTranscodingTableTest {
+    private static final String[][] PAIRS = {{"Big5-HKSCS", "GBK"},
+            {"Shift_JIS", "EUC-JP"}, {"EUC-JP", "Shift_JIS"},
+            {"GBK", "Big5"}, {"EUC-KR", "Shift_JIS"}};
+
+    private static final long CORPUS_SIZE = 200000L;
+
+    /* forces a translator onto the decode-and-encode path */
+    private static final DecodeListener GENERIC = new DecodeListener() {
+        @Override
+        public void decoded(int byteCount, char[] chars, int offset,
+                int length) {
+            /* nothing to do */
+        }
+    };
+
+    @Test
+    public void testForPair() {
+        Charset big5 = Charset.forName("Big5");
+        Charset gbk = Charset.forName("GBK");
+
+        assertNotNull(DirectTranscodingTable.forPair(big5, gbk));
+        assertSame(DirectTranscodingTable.forPair(big5, gbk),
+                DirectTranscodingTable.forPair(big5, gbk));
+        assertNull(DirectTranscodingTable.forPair(big5, big5));
+        assertNull(DirectTranscodingTable.forPair(big5,
+                Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void testSameAsGenericWithXmlCharRef() throws IOException {
+        for (String[] pair : PAIRS) {
+            byte[] corpus = corpus(pair[0]);
+            CharsetTranslator direct = new CharsetTranslator(pair[0], pair[1]);
+            direct.useXMLCharRefReplacement(true);
+            CharsetTranslator generic =
+                    new CharsetTranslator(pair[0], pair[1]);
+            generic.useXMLCharRefReplacement(true);
+            generic.setDecodeListener(GENERIC);
+
+            byte[] expected = incremental(generic, corpus, corpus.length);
+            assertArrayEquals(pair[0] + " -> " + pair[1], expected,
+                    direct.translate(corpus, 0, corpus.length));
+            /* lead and trail bytes split across inputs */
+            assertArrayEquals(pair[0] + " -> " + pair[1], expected,
+                    incremental(direct, corpus, 1));
+            assertArrayEquals(pair[0] + " -> " + pair[1], expected,
+                    incremental(direct, corpus, 4093));
+        }
+    }
+
+    @Test
+    public void testUnmappable() throws IOException {
+        /* U+31C0 (CJK STROKE T) is in Big5-HKSCS but not in GBK */
+        byte[] source = "A\u4e00\u31c0B".getBytes("Big5-HKSCS");
+        CharsetTranslator translator =
+                new CharsetTranslator("Big5-HKSCS", "GBK");
+
+        try {
+            translator.translate(source, 0, source.length);
+            fail();
+        } catch (UnmappableCharacterException expected) {
+            /* expected */
+        }
+
+        translator.useXMLCharRefReplacement(true);
+        assertEquals("A\u4e00&#12736;B", new String(
+                translator.translate(source, 0, source.length), "GBK"));
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void testMalformed() throws CharacterCodingException {
+        new CharsetTranslator("Shift_JIS", "EUC-JP").translate(
+                new byte[] {'A', (byte) 0x88, (byte) 0x9f, (byte) 0x88},
+                0, 4);
+    }
+
+    @Test
+    public void testTransformUsesGenericPath() throws IOException {
+        byte[] source = "\u65e5\u672c\r\n".getBytes("Shift_JIS");
+        CharsetTranslator translator =
+                new CharsetTranslator("Shift_JIS", "EUC-JP");
+        translator.setTransform(CharTransform.CRLF_TO_LF);
+
+        assertArrayEquals("\u65e5\u672c\n".getBytes("EUC-JP"),
+                translator.translate(source, 0, source.length));
+    }
+
+    private static byte[] corpus(String charset) throws IOException {
+        CorpusGenerator generator = new CorpusGenerator(
+                CorpusGenerator.Mix.CJK, Charset.forName(charset), 11L);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator.generate(out, CORPUS_SIZE);
+
+        return out.toByteArray();
+    }
+
+    /* translates the source in chunks, through a small output buffer */
+    private static byte[] incremental(CharsetTranslator translator,
+            byte[] source, int chunkSize) throws CharacterCodingException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteBuffer in = ByteBuffer.allocate(chunkSize + 8);
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        translator.reset();
+
+        int offset = 0;
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            int count = Math.min(chunkSize, source.length - offset);
+            count = Math.min(count, in.remaining());
+            in.put(source, offset, count);
+            offset += count;
+            endOfInput = (offset == source.length);
+
+            in.flip();
+            while (translator.translate(in, out, endOfInput).isOverflow()) {
+                drain(out, result);
+            }
+            in.compact();
+        }
+        while (translator.flush(out).isOverflow()) {
+            drain(out, result);
+        }
+        drain(out, result);
+
+        return result.toByteArray();
+    }
+
+    private static void drain(ByteBuffer out, ByteArrayOutputStream result) {
+        result.write(out.array(), 0, out.position());
+        out.clear();
+    }
+}
@@ -0,0 +1,125 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.util.List;
+
+import net.ninthtest.nio.charset.EncodingCostEstimator.Estimate;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class EncodingCostEstimatorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SOURCE_STRING =
+            "$=USD, \u00a5=JPY, \u20ac=EUR, \ud83d\ude00 \u65e5\u672c";
+
+    private static final String[] CANDIDATES = {"UTF-8", "UTF-16",
+            "UTF-16LE", "ISO-8859-1", "windows-1252", "US-ASCII", "Shift_JIS",
+            "ISO-2022-JP"};
+
+    @Test(expected = IllegalArgumentException.class)
+    @SuppressWarnings("unused")
+    public void testNoCandidates() {
+        new EncodingCostEstimator(UTF_8);
+    }
+
+    @Test
+    public void testByteCountsMatchTranslations() throws IOException {
+        assertByteCountsMatchTranslations(CharsetTranslator.DEFAULT_BUFFER_SIZE,
+                null);
+    }
+
+    @Test
+    public void testSurrogatePairsAcrossBuffers() throws IOException {
+        /* every buffer boundary falls inside the surrogate pair once */
+        assertByteCountsMatchTranslations(1, null);
+        assertByteCountsMatchTranslations(2, null);
+        assertByteCountsMatchTranslations(3, null);
+    }
+
+    @Test
+    public void testTransform() throws IOException {
+        assertByteCountsMatchTranslations(2,
+                CharTransform.forName("nfkc,trim"));
+    }
+
+    @Test
+    public void testUnmappableCounts() throws IOException {
+        List<Estimate> estimates = estimator(CANDIDATES).estimate(
+                new ByteArrayInputStream(SOURCE_STRING.getBytes(UTF_8)));
+
+        assertEquals(0L, estimates.get(0).getUnmappableCount());
+        assertTrue(estimates.get(0).isLossless());
+        assertEquals(0L, estimates.get(0).getCharRefByteCount());
+        /* ISO-8859-1: euro, emoji, two kanji */
+        assertEquals(4L, estimates.get(3).getUnmappableCount());
+        assertEquals("&#8364;&#128512;&#26085;&#26412;".length(),
+                estimates.get(3).getCharRefByteCount());
+        /* US-ASCII: also the yen sign */
+        assertEquals(5L, estimates.get(5).getUnmappableCount());
+        /* Shift_JIS: euro and emoji */
+        assertEquals(2L, estimates.get(6).getUnmappableCount());
+        assertFalse(estimates.get(6).isLossless());
+    }
+
+    @Test
+    public void testSmallestLossless() throws IOException {
+        List<Estimate> estimates = estimator("UTF-16", "UTF-8", "US-ASCII")
+                .estimate(new ByteArrayInputStream(
+                        "caf\u00e9".getBytes(UTF_8)));
+
+        assertEquals("UTF-8",
+                EncodingCostEstimator.smallestLossless(estimates).charset()
+                        .name());
+        assertNull(EncodingCostEstimator.smallestLossless(
+                estimates.subList(2, 3)));
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void testMalformedSource() throws IOException {
+        estimator("UTF-8").estimate(
+                new ByteArrayInputStream(new byte[] {'a', (byte) 0xc3}));
+    }
+
+    private static EncodingCostEstimator estimator(String... candidates) {
+        Charset[] charsets = new Charset[candidates.length];
+        for (int i = 0; i < candidates.length; ++i) {
+            charsets[i] = Charset.forName(candidates[i]);
+        }
+
+        return new EncodingCostEstimator(UTF_8, charsets);
+    }
+
+    private static void assertByteCountsMatchTranslations(int bufferSize,
+            CharTransform transform) throws IOException {
+        byte[] source = SOURCE_STRING.getBytes(UTF_8);
+        EncodingCostEstimator estimator = estimator(CANDIDATES);
+        estimator.setBufferSize(bufferSize);
+        estimator.setTransform(transform);
+
+        List<Estimate> estimates =
+                estimator.estimate(new ByteArrayInputStream(source));
+
+        assertEquals(CANDIDATES.length, estimates.size());
+        for (int k = 0; k < CANDIDATES.length; ++k) {
+            CharsetTranslator translator =
+                    new CharsetTranslator("UTF-8", CANDIDATES[k]);
+            translator.useXMLCharRefReplacement(true);
+            translator.setTransform(transform);
+
+            assertEquals(CANDIDATES[k], estimates.get(k).charset().name());
+            assertEquals(CANDIDATES[k],
+                    translator.translate(source, 0, source.length).length,
+                    estimates.get(k).getByteCount());
+        }
+    }
+}
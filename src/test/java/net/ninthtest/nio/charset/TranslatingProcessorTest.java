@@ -0,0 +1,350 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.UnmappableCharacterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class TranslatingProcessorTest {
+    private static final String EXPECTED_UTF_8_STRING =
+            "$=USD, \u00a5=JPY, \u20ac=EUR";
+
+    private static final String EXPECTED_US_ASCII_STRING =
+            "$=USD, &#165;=JPY, &#8364;=EUR";
+
+    @Test(expected = IllegalArgumentException.class)
+    @SuppressWarnings("unused")
+    public void testOutputBufferSizeTooSmall() {
+        new TranslatingProcessor(new CharsetTranslator("UTF-8", "UTF-8"), 1);
+    }
+
+    @Test
+    public void testTranslateSplitSequences() throws Exception {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "UTF-16BE"), 32);
+        ChunkPublisher publisher = new ChunkPublisher(
+                EXPECTED_UTF_8_STRING.getBytes("UTF-8"), 1);
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+        assertEquals(EXPECTED_UTF_8_STRING, subscriber.result("UTF-16BE"));
+    }
+
+    @Test
+    public void testCarryOnlyCompletesSequence() throws Exception {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "UTF-16BE"), 32);
+        byte[] source = new byte[106];
+        Arrays.fill(source, (byte) 'x');
+        System.arraycopy("\u20ac".getBytes("UTF-8"), 0, source, 38, 3);
+        ChunkPublisher publisher = new ChunkPublisher(source, 40);
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        for (int i = 0; i < 4; ++i) {
+            subscriber.request(1L);
+        }
+
+        /*
+         * the sequence split across the first two chunks is completed with
+         * one byte, and the rest of the second chunk is then decoded in place
+         * (rather than copied through the carry)
+         */
+        assertEquals(4, subscriber.buffers);
+        assertEquals(2, publisher.chunks.size());
+        assertFalse(publisher.chunks.get(1).hasRemaining());
+
+        subscriber.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed);
+        assertEquals(new String(source, "UTF-8"),
+                subscriber.result("UTF-16BE"));
+    }
+
+    @Test
+    public void testTranslateWithXmlCharRef() throws Exception {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        TranslatingProcessor processor = new TranslatingProcessor(translator);
+        ChunkPublisher publisher = new ChunkPublisher(
+                EXPECTED_UTF_8_STRING.getBytes("UTF-8"), 5);
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        assertTrue(subscriber.completed);
+        assertEquals(EXPECTED_US_ASCII_STRING, subscriber.result("US-ASCII"));
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "UTF-8"), 32);
+        byte[] source = new byte[1000];
+        Arrays.fill(source, (byte) 'x');
+        ChunkPublisher publisher = new ChunkPublisher(source, 100);
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+
+        /* nothing is pulled from upstream until there is demand */
+        assertEquals(0L, publisher.requested);
+        assertEquals(0, subscriber.buffers);
+
+        subscriber.request(1L);
+        assertEquals(1, subscriber.buffers);
+        assertEquals(1L, publisher.requested);
+
+        subscriber.request(3L);
+        assertEquals(4, subscriber.buffers);
+        assertFalse(subscriber.completed);
+
+        subscriber.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed);
+        assertEquals(new String(source, "UTF-8"), subscriber.result("UTF-8"));
+    }
+
+    @Test
+    public void testReleasedBuffersAreReused() throws Exception {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "UTF-8"), 32);
+        byte[] source = new byte[1000];
+        Arrays.fill(source, (byte) 'x');
+        ChunkPublisher publisher = new ChunkPublisher(source, 32);
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+        subscriber.releaseBuffers = true;
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        assertTrue(subscriber.completed);
+        assertEquals(1, subscriber.distinctBuffers.size());
+    }
+
+    @Test
+    public void testUnmappableTargetCharacter() throws Exception {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "ISO-8859-1"));
+        ChunkPublisher publisher = new ChunkPublisher(
+                EXPECTED_UTF_8_STRING.getBytes("UTF-8"), 4);
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        assertFalse(subscriber.completed);
+        assertTrue(subscriber.error instanceof UnmappableCharacterException);
+        assertTrue(publisher.canceled);
+    }
+
+    @Test
+    public void testTruncatedInput() throws Exception {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "UTF-8"));
+        byte[] source = "EUR=\u20ac".getBytes("UTF-8");
+        ChunkPublisher publisher = new ChunkPublisher(
+                Arrays.copyOf(source, source.length - 1), 5);
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        assertTrue(subscriber.error instanceof MalformedInputException);
+    }
+
+    @Test
+    public void testUpstreamError() throws Exception {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "UTF-8"));
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+        ChunkPublisher publisher = new ChunkPublisher(new byte[0], 1);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        IllegalStateException failure = new IllegalStateException();
+        processor.onError(failure);
+
+        assertSame(failure, subscriber.error);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "UTF-8"));
+        ChunkPublisher publisher = new ChunkPublisher(
+                EXPECTED_UTF_8_STRING.getBytes("UTF-8"), 1);
+        CollectingSubscriber subscriber = new CollectingSubscriber(processor);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        subscriber.subscription.cancel();
+        subscriber.request(Long.MAX_VALUE);
+
+        assertTrue(publisher.canceled);
+        assertEquals(0, subscriber.buffers);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void testSecondSubscriberRejected() {
+        TranslatingProcessor processor = new TranslatingProcessor(
+                new CharsetTranslator("UTF-8", "UTF-8"));
+        CollectingSubscriber first = new CollectingSubscriber(processor);
+        CollectingSubscriber second = new CollectingSubscriber(processor);
+
+        processor.subscribe(first);
+        processor.subscribe(second);
+
+        assertNull(first.error);
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    /*
+     * synchronously publishes the source in chunks, one per request
+     */
+    private static final class ChunkPublisher
+            implements Flow.Publisher<ByteBuffer> {
+        private final byte[] source;
+
+        private final int chunkSize;
+
+        private int offset;
+
+        final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+        long requested;
+
+        boolean canceled;
+
+        ChunkPublisher(byte[] source, int chunkSize) {
+            this.source = source;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public void subscribe(
+                final Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @SuppressWarnings("synthetic-access")
+                @Override
+                public void request(long n) {
+                    requested += n;
+                    for (long i = 0; (i < n) && !canceled; ++i) {
+                        if (offset >= source.length) {
+                            subscriber.onComplete();
+                            return;
+                        }
+
+                        int length = Math.min(chunkSize,
+                                source.length - offset);
+                        /* copy, so the processor can't peek ahead */
+                        ByteBuffer chunk = ByteBuffer.wrap(
+                                Arrays.copyOfRange(source, offset,
+                                        offset + length));
+                        offset += length;
+                        chunks.add(chunk);
+                        subscriber.onNext(chunk);
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    canceled = true;
+                }
+            });
+        }
+    }
+
+    private static final class CollectingSubscriber
+            implements Flow.Subscriber<ByteBuffer> {
+        private final TranslatingProcessor processor;
+
+        private final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream();
+
+        final List<ByteBuffer> distinctBuffers = new ArrayList<ByteBuffer>();
+
+        Flow.Subscription subscription;
+
+        boolean releaseBuffers;
+
+        int buffers;
+
+        boolean completed;
+
+        Throwable error;
+
+        CollectingSubscriber(TranslatingProcessor processor) {
+            this.processor = processor;
+        }
+
+        void request(long n) {
+            subscription.request(n);
+        }
+
+        String result(String charsetName)
+                throws UnsupportedEncodingException {
+            return new String(bytes.toByteArray(), charsetName);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            ++buffers;
+            bytes.write(item.array(), item.arrayOffset() + item.position(),
+                    item.remaining());
+
+            boolean seen = false;
+            for (ByteBuffer buffer : distinctBuffers) {
+                seen |= (buffer == item);
+            }
+            if (!seen) {
+                distinctBuffers.add(item);
+            }
+
+            if (releaseBuffers) {
+                processor.release(item);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
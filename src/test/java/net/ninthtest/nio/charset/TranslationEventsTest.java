@@ -0,0 +1,174 @@
+package net.ninthtest.nio.charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.UnmappableCharacterException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class TranslationEventsTest {
+    private static final String SOURCE_STRING = "$=USD, \u00a5\u00a5=JPY\n";
+
+    private static final int REPEAT = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Recording recording;
+
+    private byte[] source;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(FlightRecorder.isAvailable());
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < REPEAT; ++i) {
+            builder.append(SOURCE_STRING);
+        }
+        source = builder.toString().getBytes("UTF-8");
+
+        recording = new Recording();
+        for (String name : new String[] {"Translation", "Decode", "Encode",
+                "Write", "UnmappableBurst"}) {
+            recording.enable("net.ninthtest." + name).withoutThreshold();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testNotRecording() {
+        assertFalse(TranslationEvents.isRecording());
+    }
+
+    @Test
+    public void testTranslateStream() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+        translator.useXMLCharRefReplacement(true);
+        translator.setBufferSize(64);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        recording.start();
+        assertTrue(TranslationEvents.isRecording());
+        translator.translate(new ByteArrayInputStream(source), out);
+        List<RecordedEvent> events = stop();
+
+        RecordedEvent translation = only(events, "net.ninthtest.Translation");
+        assertEquals("UTF-8", translation.getString("sourceCharset"));
+        assertEquals("US-ASCII", translation.getString("targetCharset"));
+        assertTrue(translation.getBoolean("xmlCharRefs"));
+        assertEquals(source.length, translation.getLong("bytesRead"));
+        assertEquals(out.size(), translation.getLong("bytesWritten"));
+        assertEquals(2L * REPEAT, translation.getLong("charRefCount"));
+        assertEquals(TranslationEvents.COMPLETED,
+                translation.getString("outcome"));
+
+        /* one in every sixteen decode steps is sampled */
+        int steps = (source.length - (REPEAT * 2)) / 64;
+        int decodes = named(events, "net.ninthtest.Decode").size();
+        assertTrue(decodes > 0);
+        assertTrue(decodes <= ((steps
+                / TranslationEvents.BUFFER_SAMPLE_INTERVAL) + 2));
+        assertFalse(named(events, "net.ninthtest.Encode").isEmpty());
+
+        List<RecordedEvent> bursts =
+                named(events, "net.ninthtest.UnmappableBurst");
+        assertEquals(REPEAT, bursts.size());
+        assertEquals(0xa5, bursts.get(0).getInt("firstCodePoint"));
+        assertEquals(2, bursts.get(0).getInt("length"));
+        assertEquals("US-ASCII", bursts.get(0).getString("targetCharset"));
+    }
+
+    @Test
+    public void testTranslateArrayUnmappable() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "US-ASCII");
+
+        recording.start();
+        try {
+            translator.translate(source, 0, source.length);
+        } catch (UnmappableCharacterException expected) {
+            /* the outcome is recorded */
+        }
+        List<RecordedEvent> events = stop();
+
+        RecordedEvent translation = only(events, "net.ninthtest.Translation");
+        assertEquals("unmappable", translation.getString("outcome"));
+        assertEquals(0L, translation.getLong("charRefCount"));
+    }
+
+    @Test
+    public void testTranslateCanceled() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", "UTF-16BE");
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        translator.setCancellationToken(token);
+
+        recording.start();
+        try {
+            translator.translate(new ByteArrayInputStream(source),
+                    new ByteArrayOutputStream());
+        } catch (TranslationCanceledException expected) {
+            /* the outcome is recorded */
+        }
+        List<RecordedEvent> events = stop();
+
+        assertEquals("canceled", only(events, "net.ninthtest.Translation")
+                .getString("outcome"));
+    }
+
+    private List<RecordedEvent> stop() throws IOException {
+        recording.stop();
+        Path file = folder.newFile("translation.jfr").toPath();
+        recording.dump(file);
+
+        return RecordingFile.readAllEvents(file);
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events,
+            String name) {
+        List<RecordedEvent> result = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : events) {
+            if (name.equals(event.getEventType().getName())) {
+                result.add(event);
+            }
+        }
+
+        return result;
+    }
+
+    private static RecordedEvent only(List<RecordedEvent> events,
+            String name) {
+        List<RecordedEvent> result = named(events, name);
+        assertEquals(1, result.size());
+
+        return result.get(0);
+    }
+}
@@ -0,0 +1,354 @@
+package net.ninthtest.nio.charset;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import net.ninthtest.CharacterEncodingTranslatorConsole;
+
+/*
+ * Measures translation throughput (in MB/s of source bytes) on synthetic
+ * corpora of each script mix (see CorpusGenerator), appends the results to a
+ * CSV file, and fails if any scenario is slower than its baseline by more
+ * than the tolerance (a fraction, e.g. 0.2). Corpora are generated once into
+ * the corpus directory and re-used. With "update" as the last argument, the
+ * measured throughputs are stored as the new baseline instead.
+ *
+ * Throughput is compared as a ratio to a reference (a hand-written loop that
+ * widens the bytes of the ascii-heavy corpus to chars and narrows them back,
+ * sharing no code with the JDK coders that the scenarios warm up and
+ * specialize) whose runs are interleaved with the scenario's, so that a
+ * baseline recorded on one machine holds on another that is uniformly faster
+ * or slower, and drift in the speed of the machine during the run affects
+ * both alike.
+ *
+ * usage: TranslationThroughputBenchmark <corpus-dir> <baseline-properties>
+ *        <results-csv> <megabytes> <tolerance> [update]
+ */
+@SuppressWarnings("javadoc")
+public final class TranslationThroughputBenchmark {
+    private static final long SEED = 20100422L;
+
+    private static final int MIN_RUNS = 5;
+
+    private static final long MIN_NANOS = 3000000000L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Scenario REFERENCE = new Scenario("reference",
+            Runner.LOOP, CorpusGenerator.Mix.ASCII_HEAVY, "UTF-8",
+            "ISO-8859-1", false);
+
+    private static final Scenario[] SCENARIOS = {
+            new Scenario("ascii-heavy", Runner.CHANNEL,
+                    CorpusGenerator.Mix.ASCII_HEAVY, "UTF-8", "ISO-8859-1",
+                    false),
+            new Scenario("cjk", Runner.CHANNEL, CorpusGenerator.Mix.CJK,
+                    "Shift_JIS", "UTF-8", false),
+            new Scenario("dbcs", Runner.CHANNEL, CorpusGenerator.Mix.CJK,
+                    "Shift_JIS", "EUC-JP", false),
+            new Scenario("cyrillic", Runner.CHANNEL,
+                    CorpusGenerator.Mix.CYRILLIC, "UTF-8", "windows-1251",
+                    false),
+            new Scenario("emoji", Runner.CHANNEL, CorpusGenerator.Mix.EMOJI,
+                    "UTF-8", "UTF-16LE", false),
+            new Scenario("charref", Runner.CHANNEL,
+                    CorpusGenerator.Mix.ASCII_HEAVY, "UTF-8", "ISO-8859-1",
+                    true),
+            new Scenario("console-file", Runner.CONSOLE,
+                    CorpusGenerator.Mix.ASCII_HEAVY, "UTF-8", "ISO-8859-1",
+                    false)};
+
+    public static void main(String[] args) throws IOException {
+        File corpusDirectory = new File(args[0]);
+        File baselineFile = new File(args[1]);
+        File results = new File(args[2]);
+        long megabytes = Long.parseLong(args[3]);
+        double tolerance = Double.parseDouble(args[4]);
+        boolean update = (args.length > 5) && "update".equals(args[5]);
+
+        Properties baseline = new Properties();
+        if (baselineFile.exists()) {
+            InputStream in = new FileInputStream(baselineFile);
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        corpusDirectory.mkdirs();
+        Path referenceCorpus = REFERENCE.corpus(corpusDirectory, megabytes);
+
+        List<String> regressions = new ArrayList<String>();
+        StringBuilder rows = new StringBuilder();
+        for (Scenario scenario : SCENARIOS) {
+            Path corpus = scenario.corpus(corpusDirectory, megabytes);
+            double[] measured = measure(scenario, corpus, referenceCorpus);
+            double throughput = measured[0];
+            double ratio = throughput / measured[1];
+            String expected = baseline.getProperty(scenario.name);
+
+            String status = "no baseline";
+            if (expected != null) {
+                double minimum = Double.parseDouble(expected)
+                        * (1.0 - tolerance);
+                status = (ratio < minimum) ? "REGRESSION" : "ok";
+                if (ratio < minimum) {
+                    regressions.add(String.format(
+                            "%s: %.3f < %.3f of reference (baseline %s)",
+                            scenario.name, ratio, minimum, expected));
+                }
+            }
+            System.out.println(String.format(
+                    "%-12s %8.1f MB/s  %6.3f (reference %.1f MB/s)  %s",
+                    scenario.name, throughput, ratio, measured[1], status));
+
+            baseline.setProperty(scenario.name, String.format("%.3f", ratio));
+            rows.append(String.format("%tFT%<tT,%s,%s,%d,%.1f,%.1f,%.3f%n",
+                    new Date(), System.getProperty("java.version"),
+                    scenario.name, megabytes, throughput, measured[1],
+                    ratio));
+        }
+
+        boolean header = !results.exists();
+        results.getAbsoluteFile().getParentFile().mkdirs();
+        Writer writer = new FileWriter(results, true);
+        try {
+            if (header) {
+                writer.write("timestamp,java.version,scenario,megabytes,mbps,"
+                        + "reference.mbps,ratio\n");
+            }
+            writer.write(rows.toString());
+        } finally {
+            writer.close();
+        }
+
+        if (update) {
+            baselineFile.getAbsoluteFile().getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(baselineFile);
+            try {
+                baseline.store(out, "translation throughput baseline "
+                        + "(relative to the reference)");
+            } finally {
+                out.close();
+            }
+        } else if (!regressions.isEmpty()) {
+            throw new IllegalStateException(
+                    "throughput regression: " + regressions);
+        }
+    }
+
+    /*
+     * Returns the throughput of the scenario and of the reference: the best
+     * of several alternating runs of each (at least MIN_RUNS, for at least
+     * MIN_NANOS), after a warm-up run.
+     */
+    private static double[] measure(Scenario scenario, Path corpus,
+            Path referenceCorpus) throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator(scenario.source, scenario.target);
+        translator.useXMLCharRefReplacement(scenario.charRefs);
+        Path output = Paths.get(corpus + ".out");
+
+        long best = Long.MAX_VALUE;
+        long bestReference = Long.MAX_VALUE;
+        long total = 0L;
+        try {
+            for (int i = 0; (i <= MIN_RUNS) || (total < MIN_NANOS); ++i) {
+                long start = System.nanoTime();
+                REFERENCE.run(null, referenceCorpus, null);
+                long middle = System.nanoTime();
+                scenario.run(translator, corpus, output);
+                long end = System.nanoTime();
+                if (i > 0) {
+                    bestReference = Math.min(bestReference, middle - start);
+                    best = Math.min(best, end - middle);
+                    total += end - middle;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(output);
+        }
+
+        return new double[] {(Files.size(corpus) / 1e6) / (best / 1e9),
+                (Files.size(referenceCorpus) / 1e6) / (bestReference / 1e9)};
+    }
+
+    /*
+     * how a scenario translates its corpus
+     */
+    private enum Runner {
+        /* CharsetTranslator.translate(ReadableByteChannel, ...) */
+        CHANNEL,
+
+        /* CharacterEncodingTranslatorConsole, file to file */
+        CONSOLE,
+
+        /* a hand-written widening/narrowing loop (the reference) */
+        LOOP
+    }
+
+    private static final class Scenario {
+        final String name;
+
+        final Runner runner;
+
+        final CorpusGenerator.Mix mix;
+
+        final Charset source;
+
+        final Charset target;
+
+        final boolean charRefs;
+
+        Scenario(String name, Runner runner, CorpusGenerator.Mix mix,
+                String source, String target, boolean charRefs) {
+            this.name = name;
+            this.runner = runner;
+            this.mix = mix;
+            this.source = Charset.forName(source);
+            this.target = Charset.forName(target);
+            this.charRefs = charRefs;
+        }
+
+        Path corpus(File directory, long megabytes) throws IOException {
+            /* (scenarios with the same corpus share it) */
+            String corpusName = mix.name().toLowerCase(Locale.ENGLISH) + "-"
+                    + source.name() + (charRefs ? ("-" + target.name()) : "");
+            Path corpus = Paths.get(directory.getPath(),
+                    corpusName + "-" + SEED + "-" + megabytes + "mb.txt");
+            if (!Files.exists(corpus)) {
+                CorpusGenerator generator =
+                        new CorpusGenerator(mix, source, SEED);
+                if (charRefs) {
+                    generator.setUnmappable(target, 0.02);
+                }
+
+                Path partial = Paths.get(corpus + ".part");
+                OutputStream out = new BufferedOutputStream(
+                        Files.newOutputStream(partial));
+                try {
+                    generator.generate(out, megabytes * 1000L * 1000L);
+                } finally {
+                    out.close();
+                }
+                Files.move(partial, corpus);
+            }
+
+            return corpus;
+        }
+
+        void run(CharsetTranslator translator, Path corpus, Path output)
+                throws IOException {
+            if (runner == Runner.CONSOLE) {
+                List<String> args = new ArrayList<String>();
+                if (charRefs) {
+                    args.add("-xmlcharref");
+                }
+                args.add(corpus.toString());
+                args.add(source.name());
+                args.add(output.toString());
+                args.add(target.name());
+                if (CharacterEncodingTranslatorConsole.run(
+                        args.toArray(new String[args.size()])) != 0) {
+                    throw new IOException("console translation failed");
+                }
+                return;
+            }
+
+            FileChannel in = FileChannel.open(corpus, StandardOpenOption.READ);
+            try {
+                if (runner == Runner.CHANNEL) {
+                    translator.translate(in, new DiscardingChannel());
+                } else {
+                    transcode(in, new DiscardingChannel());
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        /*
+         * the reference: reads the corpus and copies it through a char buffer
+         */
+        private static void transcode(FileChannel in,
+                WritableByteChannel out) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+            char[] chars = new char[BUFFER_SIZE];
+            ByteBuffer encoded = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] input = bytes.array();
+            byte[] output = encoded.array();
+
+            int count;
+            while ((count = in.read(bytes)) != -1) {
+                for (int i = 0; i < count; ++i) {
+                    chars[i] = (char) (input[i] & 0xff);
+                }
+                for (int i = 0; i < count; ++i) {
+                    output[i] = (byte) chars[i];
+                }
+                encoded.position(count);
+                drain(encoded, out);
+                bytes.clear();
+            }
+        }
+
+        private static void drain(ByteBuffer encoded, WritableByteChannel out)
+                throws IOException {
+            encoded.flip();
+            while (encoded.hasRemaining()) {
+                out.write(encoded);
+            }
+            encoded.clear();
+        }
+    }
+
+    private static final class DiscardingChannel
+            implements WritableByteChannel {
+        DiscardingChannel() {
+            /* nothing to do */
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            /* nothing to do */
+        }
+    }
+
+    private TranslationThroughputBenchmark() {
+        /* never instantiated */
+    }
+}
@@ -0,0 +1,87 @@
+package net.ninthtest.nio.charset.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.UnmappableCharacterException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class MappingTableCharsetProviderTest {
+    private static final String TEST_CHARSET = "x-cetrans-test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testForName() {
+        Charset charset = Charset.forName(TEST_CHARSET);
+
+        assertEquals(TEST_CHARSET, charset.name());
+        assertSame(charset, Charset.forName("CETRANS-TEST"));
+        assertTrue(Charset.availableCharsets().containsKey(TEST_CHARSET));
+    }
+
+    @Test
+    public void testTranslate() throws IOException {
+        String text = "EUR=\u20ac \u2500\u2501 \u0410\u0411 \u03b1";
+        byte[] expected = new byte[] {'E', 'U', 'R', '=', (byte) 0x80, ' ',
+                (byte) 0x82, (byte) 0x83, ' ', (byte) 0xa0, (byte) 0xa1, ' ',
+                (byte) 0xe0};
+
+        byte[] utf8 = text.getBytes("UTF-8");
+        byte[] translated = new CharsetTranslator("UTF-8", TEST_CHARSET)
+                .translate(utf8, 0, utf8.length);
+        assertArrayEquals(expected, translated);
+
+        assertArrayEquals(utf8, new CharsetTranslator(TEST_CHARSET, "UTF-8")
+                .translate(translated, 0, translated.length));
+    }
+
+    @Test
+    public void testTranslateXmlCharRef() throws IOException {
+        CharsetTranslator translator =
+                new CharsetTranslator("UTF-8", TEST_CHARSET);
+        translator.useXMLCharRefReplacement(true);
+        byte[] utf8 = "JPY=\u00a5 \ud83d\ude00".getBytes("UTF-8");
+
+        assertEquals("JPY=&#165; &#128512;", new String(
+                translator.translate(utf8, 0, utf8.length), "US-ASCII"));
+    }
+
+    @Test(expected = UnmappableCharacterException.class)
+    public void testTranslateUnmappedByte() throws IOException {
+        new CharsetTranslator(TEST_CHARSET, "UTF-8").translate(
+                new byte[] {'A', (byte) 0x81}, 0, 2);
+    }
+
+    @Test
+    public void testDirectory() throws IOException {
+        Path directory = folder.newFolder("charsets").toPath();
+        Files.write(directory.resolve("x-cetrans-dir.txt"),
+                "0x41 0x03A9\n".getBytes("US-ASCII"));
+        Files.write(directory.resolve("x-cetrans-broken.txt"),
+                "0x41 0x03A9 0x03A9\n".getBytes("US-ASCII"));
+
+        MappingTableCharsetProvider provider =
+                new MappingTableCharsetProvider(directory.toString());
+        Charset charset = provider.charsetForName("X-CETRANS-DIR");
+
+        assertEquals("\u03a9", new String(new byte[] {0x41}, charset));
+        assertNull(provider.charsetForName("x-cetrans-broken"));
+        assertEquals(TEST_CHARSET,
+                provider.charsetForName(TEST_CHARSET).name());
+    }
+}
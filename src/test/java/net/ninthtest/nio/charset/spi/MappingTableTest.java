@@ -0,0 +1,128 @@
+package net.ninthtest.nio.charset.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.UnmappableCharacterException;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class MappingTableTest {
+    private static final String MAPPING = "# a comment\n"
+            + "0x41\t0x0041\t#LATIN CAPITAL LETTER A\n"
+            + "0x3F 0x003F\n"
+            + "\n"
+            + "0x80\t0x20AC\t#EURO SIGN\n"
+            + "0x81\t\t#UNDEFINED\n"
+            + "0x82 0x00C0\n"
+            + "0x83 0x00C0\n";
+
+    @Test
+    public void testParse() throws IOException {
+        assertEquals(5, MappingTable.parse(new StringReader(MAPPING)).size());
+    }
+
+    @Test
+    public void testDecodeEncode() throws IOException {
+        Charset charset = MappingTable.parse(new StringReader(MAPPING))
+                .newCharset("x-mapping-test", "mapping-test");
+
+        assertEquals("x-mapping-test", charset.name());
+        assertTrue(charset.aliases().contains("mapping-test"));
+        assertEquals("A\u20ac\u00c0\u00c0",
+                new String(new byte[] {0x41, (byte) 0x80, (byte) 0x82,
+                        (byte) 0x83}, charset));
+        /* a character mapped by several bytes encodes to the first */
+        assertArrayEquals(new byte[] {0x41, (byte) 0x80, (byte) 0x82},
+                "A\u20ac\u00c0".getBytes(charset));
+    }
+
+    @Test(expected = UnmappableCharacterException.class)
+    public void testDecodeUnmapped() throws IOException {
+        Charset charset = MappingTable.parse(new StringReader(MAPPING))
+                .newCharset("x-mapping-test");
+
+        charset.newDecoder().decode(ByteBuffer.wrap(new byte[] {0x41,
+                (byte) 0x81}));
+    }
+
+    @Test
+    public void testEncodeUnmapped() throws IOException {
+        CharsetEncoder encoder = MappingTable.parse(new StringReader(MAPPING))
+                .newCharset("x-mapping-test").newEncoder();
+
+        assertTrue(encoder.canEncode('A'));
+        assertFalse(encoder.canEncode('B'));
+        assertArrayEquals(new byte[] {0x3f}, encoder.replacement());
+        assertUnmappable(encoder, "AB", 1);
+        assertUnmappable(encoder, "A\ud83d\ude00", 2);
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void testEncodeLoneSurrogate() throws IOException {
+        MappingTable.parse(new StringReader(MAPPING))
+                .newCharset("x-mapping-test").newEncoder()
+                .encode(CharBuffer.wrap("A\ude00A"));
+    }
+
+    @Test
+    public void testDirectBuffers() throws IOException {
+        Charset charset = MappingTable.parse(new StringReader(MAPPING))
+                .newCharset("x-mapping-test");
+        ByteBuffer bytes = ByteBuffer.allocateDirect(4);
+        CharBuffer chars = CharBuffer.allocate(4);
+
+        charset.newEncoder().encode(CharBuffer.wrap("A\u20ac"), bytes, true);
+        bytes.flip();
+        charset.newDecoder().decode(bytes, chars, true);
+        chars.flip();
+
+        assertEquals("A\u20ac", chars.toString());
+    }
+
+    @Test
+    public void testInvalidLines() {
+        assertInvalid("0x41 0x0041 0x0042\n", "line 1");
+        assertInvalid("0x41 0x0041\n0x41 0x0042\n", "line 2");
+        assertInvalid("0x100 0x0041\n", "out of range");
+        assertInvalid("0x41 0xFFFF\n", "out of range");
+        assertInvalid("0x41 0xD800\n", "surrogate");
+        assertInvalid("41 0x0041\n", "hexadecimal");
+        assertInvalid("0x4G 0x0041\n", "hexadecimal");
+    }
+
+    private static void assertUnmappable(CharsetEncoder encoder,
+            String chars, int length) throws CharacterCodingException {
+        CharBuffer in = CharBuffer.wrap(chars);
+        ByteBuffer out = ByteBuffer.allocate(8);
+        encoder.reset();
+
+        CoderResult result = encoder.encode(in, out, true);
+
+        assertTrue(result.isUnmappable());
+        assertEquals(length, result.length());
+        assertEquals(1, in.position());
+    }
+
+    private static void assertInvalid(String mapping, String message) {
+        try {
+            MappingTable.parse(new StringReader(mapping));
+            fail(mapping);
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package net.ninthtest.nio.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import net.ninthtest.nio.charset.CharTransform;
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class OffsetIndexTest {
+    private static final Charset SHIFT_JIS = Charset.forName("Shift_JIS");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int LINE_COUNT = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path source;
+
+    private String text;
+
+    @Before
+    public void setUp() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < LINE_COUNT; ++i) {
+            /* mixed single- and double-byte characters */
+            builder.append("record ").append(i)
+                    .append(" \u65e5\u672c\u8a9e \r\n");
+        }
+        text = builder.toString();
+
+        source = folder.newFile("records.txt").toPath();
+        Files.write(source, text.getBytes(SHIFT_JIS));
+    }
+
+    @Test
+    public void testBuild() throws IOException {
+        OffsetIndex index = OffsetIndex.build(source, SHIFT_JIS, 1024);
+
+        assertEquals(SHIFT_JIS, index.charset());
+        assertEquals(1024, index.getInterval());
+        assertTrue(index.size() > 10);
+        assertTrue(index.isCurrent(source));
+
+        OffsetIndex.Checkpoint checkpoint = index.floorLine(1500L);
+        assertTrue(checkpoint.getByteOffset() > 0L);
+        assertTrue(checkpoint.getLine() < 1500L);
+        /* the checkpoint really is where its characters and lines end */
+        String before = text.substring(0, (int) checkpoint.getCharOffset());
+        assertEquals(checkpoint.getByteOffset(),
+                before.getBytes(SHIFT_JIS).length);
+        assertEquals(checkpoint.getLine(),
+                before.length() - before.replace("\n", "").length());
+    }
+
+    @Test
+    public void testTranslateLines() throws IOException {
+        OffsetIndex index = OffsetIndex.build(source, SHIFT_JIS, 1024);
+
+        assertEquals(lines(1500, 3), translateLines(index, 1500L, 3L, null));
+        assertEquals(lines(0, 1), translateLines(index, 0L, 1L, null));
+        assertEquals(lines(LINE_COUNT - 2, 2),
+                translateLines(index, LINE_COUNT - 2, Long.MAX_VALUE, null));
+        assertEquals("", translateLines(index, LINE_COUNT, 1L, null));
+    }
+
+    @Test
+    public void testTranslateLinesWithTransform() throws IOException {
+        OffsetIndex index = OffsetIndex.build(source, SHIFT_JIS, 1024);
+
+        assertEquals(lines(700, 2).replace(" \r\n", "\n"), translateLines(
+                index, 700L, 2L, CharTransform.forName("crlf,trim")));
+    }
+
+    @Test
+    public void testTranslateChars() throws IOException {
+        OffsetIndex index = OffsetIndex.build(source, SHIFT_JIS, 512);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        index.translateChars(new CharsetTranslator(SHIFT_JIS, UTF_8), source,
+                20001L, 1234L, Channels.newChannel(out));
+
+        assertEquals(text.substring(20001, 20001 + 1234),
+                new String(out.toByteArray(), UTF_8));
+    }
+
+    @Test
+    public void testBuildDuringTranslation() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator(SHIFT_JIS, UTF_8);
+        OffsetIndex.Builder builder =
+                new OffsetIndex.Builder(SHIFT_JIS, 2048);
+        translator.setDecodeListener(builder);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (FileChannel channel = FileChannel.open(source)) {
+            translator.translate(channel, Channels.newChannel(out));
+        }
+        OffsetIndex index = builder.build(source);
+
+        assertEquals(text, new String(out.toByteArray(), UTF_8));
+        /* (a checkpoint can only be recorded once per decoded buffer) */
+        assertTrue(index.size() > 5);
+        assertEquals(lines(1999, 1), translateLines(index, 1999L, 1L, null));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        OffsetIndex index = OffsetIndex.build(source, SHIFT_JIS, 4096);
+        Path indexFile = OffsetIndex.sidecar(source);
+
+        index.write(indexFile);
+        OffsetIndex read = OffsetIndex.read(indexFile);
+
+        assertEquals("records.txt.cetidx", indexFile.getFileName().toString());
+        assertEquals(index.size(), read.size());
+        assertEquals(index.charset(), read.charset());
+        assertEquals(index.floorLine(1000L).getByteOffset(),
+                read.floorLine(1000L).getByteOffset());
+        assertTrue(read.isCurrent(source));
+        assertEquals(lines(1000, 1), translateLines(read, 1000L, 1L, null));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadNotAnIndex() throws IOException {
+        OffsetIndex.read(source);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStaleIndex() throws IOException {
+        OffsetIndex index = OffsetIndex.build(source, SHIFT_JIS, 1024);
+        Files.write(source, "x".getBytes(SHIFT_JIS),
+                StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(source, FileTime.fromMillis(0L));
+
+        assertFalse(index.isCurrent(source));
+        translateLines(index, 0L, 1L, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCharsetMismatch() throws IOException {
+        OffsetIndex index = OffsetIndex.build(source, SHIFT_JIS, 1024);
+
+        index.translateLines(new CharsetTranslator(UTF_8, UTF_8), source, 0L,
+                1L, Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testIsIndexable() {
+        assertTrue(OffsetIndex.isIndexable(UTF_8));
+        assertTrue(OffsetIndex.isIndexable(SHIFT_JIS));
+        assertTrue(OffsetIndex.isIndexable(Charset.forName("UTF-16LE")));
+        assertFalse(OffsetIndex.isIndexable(Charset.forName("UTF-16")));
+        assertFalse(OffsetIndex.isIndexable(Charset.forName("ISO-2022-JP")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    @SuppressWarnings("unused")
+    public void testStatefulCharsetRejected() {
+        new OffsetIndex.Builder(Charset.forName("ISO-2022-JP"), 1024);
+    }
+
+    private String lines(int first, int count) {
+        int start = 0;
+        for (int i = 0; i < first; ++i) {
+            start = text.indexOf('\n', start) + 1;
+        }
+        int end = start;
+        for (int i = 0; i < count; ++i) {
+            end = text.indexOf('\n', end) + 1;
+        }
+
+        return text.substring(start, end);
+    }
+
+    private String translateLines(OffsetIndex index, long firstLine,
+            long lineCount, CharTransform transform) throws IOException {
+        CharsetTranslator translator = new CharsetTranslator(SHIFT_JIS, UTF_8);
+        translator.setTransform(transform);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        index.translateLines(translator, source, firstLine, lineCount,
+                Channels.newChannel(out));
+
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
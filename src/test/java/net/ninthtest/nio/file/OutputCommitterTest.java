@@ -0,0 +1,156 @@
+package net.ninthtest.nio.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class OutputCommitterTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path target;
+
+    @Before
+    public void setUp() throws IOException {
+        target = folder.newFile("target.txt").toPath();
+        Files.write(target, "old".getBytes(UTF_8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    @SuppressWarnings("unused")
+    public void testGroupSizeZero() {
+        new OutputCommitter(OutputCommitter.SyncPolicy.GROUP, 0);
+    }
+
+    @Test
+    public void testTemporaryIsHiddenSibling() throws IOException {
+        OutputCommitter committer =
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE);
+
+        try (OutputCommitter.PendingOutput output = committer.create(target)) {
+            Path temporary = output.getTemporary();
+            assertEquals(target.toAbsolutePath().getParent(),
+                    temporary.getParent());
+            assertTrue(temporary.getFileName().toString()
+                    .startsWith(".target.txt."));
+            assertTrue(Files.exists(temporary));
+        }
+    }
+
+    @Test
+    public void testCommitNone() throws IOException {
+        assertCommitted(OutputCommitter.SyncPolicy.NONE);
+    }
+
+    @Test
+    public void testCommitFile() throws IOException {
+        assertCommitted(OutputCommitter.SyncPolicy.FILE);
+    }
+
+    @Test
+    public void testAbortLeavesTarget() throws IOException {
+        OutputCommitter committer =
+                new OutputCommitter(OutputCommitter.SyncPolicy.FILE);
+        OutputCommitter.PendingOutput output = committer.create(target);
+
+        output.getStream().write("partial".getBytes(UTF_8));
+        output.close();
+
+        assertArrayEquals("old".getBytes(UTF_8), Files.readAllBytes(target));
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testAbortAfterCommitIsIgnored() throws IOException {
+        OutputCommitter committer =
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE);
+        OutputCommitter.PendingOutput output = committer.create(target);
+
+        output.getStream().write("new".getBytes(UTF_8));
+        output.commit();
+        output.abort();
+
+        assertArrayEquals("new".getBytes(UTF_8), Files.readAllBytes(target));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCommitTwice() throws IOException {
+        OutputCommitter.PendingOutput output =
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE)
+                        .create(target);
+
+        output.commit();
+        output.commit();
+    }
+
+    @Test
+    public void testGroupHeldUntilSync() throws IOException {
+        OutputCommitter committer =
+                new OutputCommitter(OutputCommitter.SyncPolicy.GROUP);
+        Path other = folder.getRoot().toPath().resolve("other.txt");
+
+        commit(committer, target, "new");
+        commit(committer, other, "other");
+
+        assertArrayEquals("old".getBytes(UTF_8), Files.readAllBytes(target));
+        assertFalse(Files.exists(other));
+
+        committer.sync();
+
+        assertArrayEquals("new".getBytes(UTF_8), Files.readAllBytes(target));
+        assertArrayEquals("other".getBytes(UTF_8), Files.readAllBytes(other));
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testGroupSyncedWhenFull() throws IOException {
+        OutputCommitter committer =
+                new OutputCommitter(OutputCommitter.SyncPolicy.GROUP, 2);
+        File root = folder.getRoot();
+
+        for (int i = 0; i < 5; ++i) {
+            commit(committer, new File(root, "file" + i).toPath(), "x");
+        }
+
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(new File(root, "file" + i).exists());
+        }
+        assertFalse(new File(root, "file4").exists());
+
+        committer.close();
+
+        assertTrue(new File(root, "file4").exists());
+    }
+
+    private void assertCommitted(OutputCommitter.SyncPolicy syncPolicy)
+            throws IOException {
+        OutputCommitter committer = new OutputCommitter(syncPolicy);
+
+        commit(committer, target, "new");
+
+        assertArrayEquals("new".getBytes(UTF_8), Files.readAllBytes(target));
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    private static void commit(OutputCommitter committer, Path path,
+            String content) throws IOException {
+        OutputCommitter.PendingOutput output = committer.create(path);
+        output.getStream().write(content.getBytes(UTF_8));
+        output.commit();
+    }
+}
@@ -0,0 +1,249 @@
+package net.ninthtest.nio.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.charset.TranslationCanceledException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class ShardedBatchTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private static final int FILE_COUNT = 23;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path manifest;
+
+    @Before
+    public void setUp() throws IOException {
+        Path sources = folder.newFolder("in").toPath();
+        StringBuilder lines = new StringBuilder("# source\ttarget\n\n");
+        for (int i = 0; i < FILE_COUNT; ++i) {
+            Files.write(sources.resolve(i + ".txt"),
+                    text(i).getBytes(UTF_8));
+            lines.append("in/").append(i).append(".txt\tout/").append(i)
+                    .append(".txt\n");
+        }
+        manifest = folder.getRoot().toPath().resolve("manifest.txt");
+        Files.write(manifest, lines.toString().getBytes(UTF_8));
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        ShardedBatch batch = new ShardedBatch(manifest, 5, 60000L);
+        assertEquals(FILE_COUNT, batch.getFileCount());
+        assertEquals(5, batch.getShardCount());
+
+        List<String> failures = batch.run(translator(),
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE));
+
+        assertTrue(failures.isEmpty());
+        assertTranslated();
+        for (int shard = 0; shard < 5; ++shard) {
+            assertTrue(Files.exists(
+                    batch.getLeaseDirectory().resolve(shard + ".done")));
+        }
+    }
+
+    @Test
+    public void testRunConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<List<String>>> results =
+                    new ArrayList<Future<List<String>>>();
+            for (int p = 0; p < 3; ++p) {
+                /* each batch acts as a separate process would */
+                results.add(executor.submit(new Callable<List<String>>() {
+                    @SuppressWarnings("synthetic-access")
+                    @Override
+                    public List<String> call() throws IOException {
+                        return new ShardedBatch(manifest, 2, 2000L).run(
+                                translator(), new OutputCommitter(
+                                        OutputCommitter.SyncPolicy.GROUP));
+                    }
+                }));
+            }
+            for (Future<List<String>> result : results) {
+                assertTrue(result.get(30L, TimeUnit.SECONDS).isEmpty());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTranslated();
+        /* every shard was claimed exactly once */
+        Path leases = manifest.resolveSibling("manifest.txt.shards");
+        for (int shard = 0; shard < 12; ++shard) {
+            assertTrue(Files.exists(leases.resolve(shard + ".0.lease")));
+            assertFalse(Files.exists(leases.resolve(shard + ".1.lease")));
+        }
+    }
+
+    @Test
+    public void testTakeOverStaleLease() throws IOException {
+        ShardedBatch batch = new ShardedBatch(manifest, 10, 200L);
+        Path leases = batch.getLeaseDirectory();
+        Files.createDirectories(leases);
+        /* a crashed process's lease, which never changes */
+        Files.write(leases.resolve("1.0.lease"),
+                "dead-process\n7\n".getBytes(UTF_8));
+
+        assertTrue(batch.run(translator(),
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE))
+                .isEmpty());
+
+        assertTranslated();
+        assertTrue(Files.exists(leases.resolve("1.1.lease")));
+        assertTrue(Files.exists(leases.resolve("1.done")));
+    }
+
+    @Test
+    public void testWaitForLiveLease() throws Exception {
+        final ShardedBatch batch = new ShardedBatch(manifest, 10, 400L);
+        final Path lease = batch.getLeaseDirectory().resolve("0.0.lease");
+        Files.createDirectories(batch.getLeaseDirectory());
+        Files.write(lease, "live-process\n0\n".getBytes(UTF_8));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<String>> result = executor.submit(
+                    new Callable<List<String>>() {
+                        @SuppressWarnings("synthetic-access")
+                        @Override
+                        public List<String> call() throws IOException {
+                            return batch.run(translator(),
+                                    new OutputCommitter(
+                                            OutputCommitter.SyncPolicy.NONE));
+                        }
+                    });
+
+            /* a live owner keeps changing its lease */
+            for (int beat = 1; beat <= 10; ++beat) {
+                Thread.sleep(100L);
+                Files.write(lease,
+                        ("live-process\n" + beat + "\n").getBytes(UTF_8));
+            }
+            assertFalse(result.isDone());
+            assertFalse(Files.exists(batch.getLeaseDirectory()
+                    .resolve("0.1.lease")));
+
+            /* then stops */
+            result.get(30L, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTranslated();
+        assertTrue(Files.exists(batch.getLeaseDirectory()
+                .resolve("0.1.lease")));
+    }
+
+    @Test
+    public void testFailuresAreReported() throws IOException {
+        Files.delete(folder.getRoot().toPath().resolve("in/3.txt"));
+        ShardedBatch batch = new ShardedBatch(manifest, 5, 60000L);
+
+        List<String> failures = batch.run(translator(),
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE));
+
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0).contains("3.txt"));
+        String done = new String(Files.readAllBytes(
+                batch.getLeaseDirectory().resolve("0.done")), UTF_8);
+        assertTrue(done.contains("3.txt"));
+    }
+
+    @Test
+    public void testCanceledReleasesLease() throws IOException {
+        ShardedBatch batch = new ShardedBatch(manifest, 100, 60000L);
+        CharsetTranslator translator = translator();
+        CancellationToken token = new CancellationToken();
+        translator.setCancellationToken(token);
+        token.cancel();
+
+        try {
+            batch.run(translator,
+                    new OutputCommitter(OutputCommitter.SyncPolicy.NONE));
+            fail("expected TranslationCanceledException");
+        } catch (TranslationCanceledException expected) {
+            /* canceled before the first shard was claimed */
+        }
+        assertEquals(token, translator.getCancellationToken());
+
+        /* a cancellation while translating releases the lease */
+        ShardedBatch other = new ShardedBatch(manifest, 100, 60000L);
+        final CancellationToken late = new CancellationToken();
+        CharsetTranslator canceling = new CharsetTranslator(UTF_8, UTF_16BE) {
+            @Override
+            public void translate(java.io.InputStream sourceStream,
+                    java.io.OutputStream targetStream) throws IOException {
+                late.cancel();
+                super.translate(sourceStream, targetStream);
+            }
+        };
+        canceling.setCancellationToken(late);
+        try {
+            other.run(canceling,
+                    new OutputCommitter(OutputCommitter.SyncPolicy.NONE));
+            fail("expected TranslationCanceledException");
+        } catch (TranslationCanceledException expected) {
+            /* the lease is given up */
+        }
+        assertEquals("released", new String(Files.readAllBytes(
+                other.getLeaseDirectory().resolve("0.0.lease")), UTF_8));
+    }
+
+    @Test
+    public void testManifestErrors() throws IOException {
+        Files.write(manifest, "in/0.txt\tout/0.txt\nin/1.txt\n"
+                .getBytes(UTF_8));
+
+        try {
+            new ShardedBatch(manifest, 5, 60000L);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("line 2:"));
+        }
+    }
+
+    private static CharsetTranslator translator() {
+        return new CharsetTranslator(UTF_8, UTF_16BE);
+    }
+
+    private static String text(int i) {
+        return "file " + i + ": \u00a5\u20ac\n";
+    }
+
+    private void assertTranslated() throws IOException {
+        Path targets = folder.getRoot().toPath().resolve("out");
+        for (int i = 0; i < FILE_COUNT; ++i) {
+            assertEquals(text(i), new String(Files.readAllBytes(
+                    targets.resolve(i + ".txt")), UTF_16BE));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package net.ninthtest.nio.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.ninthtest.nio.charset.CharTransform;
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class TailFollowerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private static final long TIMEOUT = 5000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path source;
+
+    private ByteArrayOutputStream target;
+
+    private TailFollower follower;
+
+    private Thread thread;
+
+    private final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+
+    @Before
+    public void setUp() throws IOException {
+        source = folder.newFile("app.log").toPath();
+        target = new ByteArrayOutputStream();
+        follower = new TailFollower(new CharsetTranslator(UTF_8, UTF_16BE),
+                source, Channels.newChannel(target));
+        follower.setPollInterval(5L);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (thread != null) {
+            follower.stop();
+            thread.join(TIMEOUT);
+            assertFalse("follower did not stop", thread.isAlive());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPollIntervalZero() {
+        follower.setPollInterval(0L);
+    }
+
+    @Test
+    public void testFollowAppendedBytes() throws Exception {
+        append("$=USD, ".getBytes(UTF_8));
+        start();
+        awaitTarget("$=USD, ");
+
+        append("\u00a5=JPY".getBytes(UTF_8));
+        awaitTarget("$=USD, \u00a5=JPY");
+    }
+
+    @Test
+    public void testFollowPartialSequence() throws Exception {
+        byte[] euro = "\u20ac".getBytes(UTF_8);
+
+        append("EUR=".getBytes(UTF_8));
+        append(new byte[] {euro[0], euro[1]});
+        start();
+        awaitTarget("EUR=");
+
+        append(new byte[] {euro[2]});
+        awaitTarget("EUR=\u20ac");
+    }
+
+    @Test
+    public void testFollowTruncated() throws Exception {
+        append("first line\n".getBytes(UTF_8));
+        start();
+        awaitTarget("first line\n");
+
+        Files.write(source, "new\n".getBytes(UTF_8));
+        awaitTarget("first line\nnew\n");
+    }
+
+    @Test
+    public void testFollowRotated() throws Exception {
+        append("old\n".getBytes(UTF_8));
+        start();
+        awaitTarget("old\n");
+
+        Path rotated = folder.getRoot().toPath().resolve("app.log.1");
+        Files.move(source, rotated, StandardCopyOption.ATOMIC_MOVE);
+        Files.write(source, "new\n".getBytes(UTF_8));
+        awaitTarget("old\nnew\n");
+    }
+
+    @Test
+    public void testFollowRotatedStatefulTarget() throws Exception {
+        Charset iso2022jp = Charset.forName("ISO-2022-JP");
+        follower = new TailFollower(new CharsetTranslator(UTF_8, iso2022jp),
+                source, Channels.newChannel(target));
+        follower.setPollInterval(5L);
+
+        append("old=\u3042".getBytes(UTF_8));
+        start();
+        awaitTarget("old=\u3042", iso2022jp);
+
+        /* the old content must return to ASCII before the new content */
+        Path rotated = folder.getRoot().toPath().resolve("app.log.1");
+        Files.move(source, rotated, StandardCopyOption.ATOMIC_MOVE);
+        Files.write(source, "new=\u3044".getBytes(UTF_8));
+        awaitTarget("old=\u3042new=\u3044", iso2022jp);
+
+        /* and so must the new content when the follower stops */
+        follower.stop();
+        thread.join(TIMEOUT);
+        byte[] bytes;
+        synchronized (target) {
+            bytes = target.toByteArray();
+        }
+        assertArrayEquals("old=\u3042new=\u3044".getBytes(iso2022jp), bytes);
+    }
+
+    @Test
+    public void testFollowNormalizedLines() throws Exception {
+        CharsetTranslator translator = new CharsetTranslator(UTF_8, UTF_16BE);
+        translator.setTransform(CharTransform.NFC);
+        follower = new TailFollower(translator, source,
+                Channels.newChannel(target));
+        follower.setPollInterval(5L);
+
+        /* a complete line is written without waiting for more input */
+        append("\u6f22\u5b57 cafe\u0301\n".getBytes(UTF_8));
+        start();
+        awaitTarget("\u6f22\u5b57 caf\u00e9\n");
+
+        append("\u6f22\u5b57\r\n".getBytes(UTF_8));
+        awaitTarget("\u6f22\u5b57 caf\u00e9\n\u6f22\u5b57\r\n");
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        start();
+        thread.interrupt();
+        thread.join(TIMEOUT);
+
+        assertFalse("follower was not interrupted", thread.isAlive());
+    }
+
+    private void start() {
+        thread = new Thread(new Runnable() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void run() {
+                try {
+                    follower.follow();
+                } catch (Throwable ex) {
+                    failure.set(ex);
+                }
+            }
+        });
+        thread.start();
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        Files.write(source, bytes, StandardOpenOption.APPEND);
+    }
+
+    private void awaitTarget(String expected) throws InterruptedException {
+        awaitTarget(expected, UTF_16BE);
+    }
+
+    private void awaitTarget(String expected, Charset charset)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        String actual = null;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (target) {
+                actual = new String(target.toByteArray(), charset);
+            }
+            if (expected.equals(actual) || (failure.get() != null)) {
+                break;
+            }
+            Thread.sleep(5L);
+        }
+
+        assertEquals(null, failure.get());
+        assertEquals(expected, actual);
+    }
+}
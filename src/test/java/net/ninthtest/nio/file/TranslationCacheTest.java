@@ -0,0 +1,310 @@
+package net.ninthtest.nio.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import net.ninthtest.nio.charset.CharTransform;
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class TranslationCacheTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path indexFile;
+
+    private Path output;
+
+    private byte[] sourceHash;
+
+    @Before
+    public void setUp() throws IOException {
+        indexFile = folder.getRoot().toPath().resolve("cetrans.idx");
+
+        Path source = folder.newFile("source.txt").toPath();
+        Files.write(source, "$=USD".getBytes(UTF_8));
+        sourceHash = TranslationCache.hash(source);
+
+        output = folder.newFile("output.txt").toPath();
+        Files.write(output, "$=USD".getBytes(UTF_8));
+    }
+
+    @Test
+    public void testHash() throws IOException {
+        Path copy = folder.newFile("copy.txt").toPath();
+        Files.write(copy, "$=USD".getBytes(UTF_8));
+
+        assertArrayEquals(sourceHash, TranslationCache.hash(copy));
+
+        Files.write(copy, "$=USA".getBytes(UTF_8));
+
+        assertFalse(Arrays.equals(sourceHash, TranslationCache.hash(copy)));
+    }
+
+    @Test
+    public void testGetMissing() throws IOException {
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            assertNull(cache.get(sourceHash,
+                    new CharsetTranslator("UTF-8", "UTF-8")));
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void testPutGet() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            cache.put(sourceHash, translator, output);
+
+            TranslationCache.Entry entry = cache.get(sourceHash, translator);
+            assertEquals(output.toAbsolutePath(), entry.getOutput());
+            assertEquals(Files.size(output), entry.getOutputLength());
+            assertEquals(1, cache.size());
+        }
+    }
+
+    @Test
+    public void testOptionsArePartOfKey() throws IOException {
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            cache.put(sourceHash, new CharsetTranslator("UTF-8", "UTF-8"),
+                    output);
+
+            assertNull(cache.get(sourceHash,
+                    new CharsetTranslator("UTF-8", "UTF-16")));
+            assertNull(cache.get(sourceHash,
+                    new CharsetTranslator("UTF-8", "UTF-8")
+                            .useXMLCharRefReplacement(true)));
+            assertNull(cache.get(sourceHash,
+                    new CharsetTranslator("UTF-8", "UTF-8")
+                            .useBestFitReplacement(true)));
+
+            CharsetTranslator transformed =
+                    new CharsetTranslator("UTF-8", "UTF-8");
+            transformed.setTransform(CharTransform.CRLF_TO_LF);
+            assertNull(cache.get(sourceHash, transformed));
+        }
+    }
+
+    @Test
+    public void testPersistent() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            cache.put(sourceHash, translator, output);
+        }
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            assertEquals(1, cache.size());
+            assertEquals(output.toAbsolutePath(),
+                    cache.get(sourceHash, translator).getOutput());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnIndex() throws IOException {
+        Files.write(indexFile, new byte[64]);
+
+        new TranslationCache(indexFile).close();
+    }
+
+    @Test
+    public void testGrow() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        int entries = 5000;
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            for (int i = 0; i < entries; ++i) {
+                cache.put(hashOf(i), translator, output);
+            }
+        }
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            assertEquals(entries, cache.size());
+            for (int i = 0; i < entries; ++i) {
+                assertEquals(output.toAbsolutePath(),
+                        cache.get(hashOf(i), translator).getOutput());
+            }
+        }
+    }
+
+    @Test
+    public void testCrashBeforeSwitch() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            cache.put(sourceHash, translator, output);
+        }
+
+        /* a crash while the next generation was being written */
+        Files.write(sibling(".2"), new byte[100]);
+        Files.write(sibling(".2.paths"), new byte[] {0, 0, 0, 0, 0, 0, 0});
+
+        int entries = 5000;
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            assertEquals(1, cache.size());
+            assertEquals(output.toAbsolutePath(),
+                    cache.get(sourceHash, translator).getOutput());
+
+            /* growing rewrites the half-written generation */
+            for (int i = 1; i < entries; ++i) {
+                cache.put(hashOf(i), translator, output);
+            }
+        }
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            assertEquals(entries, cache.size());
+            assertEquals(output.toAbsolutePath(),
+                    cache.get(sourceHash, translator).getOutput());
+            for (int i = 1; i < entries; ++i) {
+                assertEquals(output.toAbsolutePath(),
+                        cache.get(hashOf(i), translator).getOutput());
+            }
+        }
+    }
+
+    @Test
+    public void testCrashAfterSwitch() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        int entries = 5000;
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            for (int i = 0; i < entries; ++i) {
+                cache.put(hashOf(i), translator, output);
+            }
+        }
+        assertFalse(Files.exists(sibling(".1")));
+        assertFalse(Files.exists(sibling(".1.paths")));
+
+        /* a crash before the superseded generation was deleted */
+        Files.write(sibling(".1"), new byte[100]);
+        Files.write(sibling(".1.paths"), new byte[100]);
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            assertEquals(entries, cache.size());
+            for (int i = 0; i < entries; ++i) {
+                assertEquals(output.toAbsolutePath(),
+                        cache.get(hashOf(i), translator).getOutput());
+            }
+        }
+        assertFalse(Files.exists(sibling(".1")));
+        assertFalse(Files.exists(sibling(".1.paths")));
+    }
+
+    @Test
+    public void testPathsAreReusedAndCompacted() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        Path other = folder.newFile("other.txt").toPath();
+        Files.write(other, "$=USD".getBytes(UTF_8));
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            cache.put(sourceHash, translator, output);
+            long pathsSize = pathsSize();
+
+            for (int i = 0; i < 100; ++i) {
+                cache.put(sourceHash, translator, output);
+            }
+            assertEquals(pathsSize, pathsSize());
+
+            for (int i = 0; i < 10000; ++i) {
+                cache.put(sourceHash, translator, ((i & 1) == 0) ? other
+                        : output);
+            }
+            assertTrue(pathsSize() < (256 * 1024));
+            assertEquals(1, cache.size());
+            assertEquals(output.toAbsolutePath(),
+                    cache.get(sourceHash, translator).getOutput());
+        }
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            assertEquals(output.toAbsolutePath(),
+                    cache.get(sourceHash, translator).getOutput());
+        }
+    }
+
+    @Test
+    public void testRestoreSameFile() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            cache.put(sourceHash, translator, output);
+
+            assertTrue(cache.restore(cache.get(sourceHash, translator),
+                    output));
+        }
+    }
+
+    @Test
+    public void testRestoreOtherFile() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        Path target = folder.getRoot().toPath().resolve("target.txt");
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            cache.put(sourceHash, translator, output);
+
+            assertTrue(cache.restore(cache.get(sourceHash, translator),
+                    target));
+        }
+
+        assertArrayEquals(Files.readAllBytes(output),
+                Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testRestoreModifiedOutput() throws IOException {
+        CharsetTranslator translator = new CharsetTranslator("UTF-8", "UTF-8");
+        Path target = folder.getRoot().toPath().resolve("target.txt");
+
+        try (TranslationCache cache = new TranslationCache(indexFile)) {
+            cache.put(sourceHash, translator, output);
+            Files.write(output, "$=USA".getBytes(UTF_8));
+
+            assertFalse(cache.restore(cache.get(sourceHash, translator),
+                    target));
+        }
+
+        assertFalse(Files.exists(target));
+    }
+
+    private Path sibling(String suffix) {
+        return indexFile.resolveSibling(indexFile.getFileName() + suffix);
+    }
+
+    private long pathsSize() throws IOException {
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                folder.getRoot().toPath(), "cetrans.idx*.paths")) {
+            for (Path file : files) {
+                bytes += Files.size(file);
+            }
+        }
+
+        return bytes;
+    }
+
+    private static byte[] hashOf(int i) {
+        byte[] hash = new byte[16];
+        for (int b = 0; b < 4; ++b) {
+            hash[b] = (byte) (i >>> (b * 8));
+        }
+
+        return hash;
+    }
+}
@@ -0,0 +1,227 @@
+package net.ninthtest.nio.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharsetTranslator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class WatchFolderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private static final String SOURCE_STRING =
+            "$=USD, \u00a5=JPY, \u20ac=EUR";
+
+    private static final long TIMEOUT = 10000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path inbox;
+
+    private Path outbox;
+
+    private CharsetTranslator translator;
+
+    private WatchFolder watchFolder;
+
+    private Thread thread;
+
+    private final BlockingQueue<String> outcomes =
+            new LinkedBlockingQueue<String>();
+
+    private final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+
+    @Before
+    public void setUp() throws IOException {
+        inbox = folder.newFolder("inbox").toPath();
+        outbox = folder.getRoot().toPath().resolve("outbox");
+        translator = new CharsetTranslator(UTF_8, UTF_16BE);
+        watchFolder = newWatchFolder(translator);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (thread != null) {
+            watchFolder.stop();
+            thread.join(TIMEOUT);
+            assertFalse("watch folder did not stop", thread.isAlive());
+            assertEquals(null, failure.get());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSameFolder() {
+        new WatchFolder(inbox, inbox.resolve("."), translator,
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSettleTimeZero() {
+        watchFolder.setSettleTime(0L);
+    }
+
+    @Test
+    public void testTranslateNewFile() throws Exception {
+        start();
+        Files.write(inbox.resolve("a.txt"), SOURCE_STRING.getBytes(UTF_8));
+
+        assertEquals("translated a.txt", next());
+        assertEquals(SOURCE_STRING, new String(
+                Files.readAllBytes(outbox.resolve("a.txt")), UTF_16BE));
+        assertFalse(Files.exists(inbox.resolve("a.txt")));
+        assertTrue(Files.exists(inbox.resolve("done/a.txt")));
+    }
+
+    @Test
+    public void testTranslateExistingFiles() throws Exception {
+        Files.write(inbox.resolve("a.txt"), SOURCE_STRING.getBytes(UTF_8));
+        Files.write(inbox.resolve("b.txt"), SOURCE_STRING.getBytes(UTF_8));
+        start();
+
+        assertTrue(next().startsWith("translated "));
+        assertTrue(next().startsWith("translated "));
+        assertTrue(Files.exists(outbox.resolve("a.txt")));
+        assertTrue(Files.exists(outbox.resolve("b.txt")));
+    }
+
+    @Test
+    public void testWaitForWritesToSettle() throws Exception {
+        start();
+        Path source = inbox.resolve("slow.txt");
+        Files.write(source, new byte[0]);
+
+        /* keep writing for several settle times */
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 12; ++i) {
+            Thread.sleep(50L);
+            Files.write(source, SOURCE_STRING.getBytes(UTF_8),
+                    StandardOpenOption.APPEND);
+            expected.append(SOURCE_STRING);
+        }
+        assertEquals(null, outcomes.peek());
+
+        assertEquals("translated slow.txt", next());
+        assertEquals(expected.toString(), new String(
+                Files.readAllBytes(outbox.resolve("slow.txt")), UTF_16BE));
+    }
+
+    @Test
+    public void testIgnoreHiddenFiles() throws Exception {
+        start();
+        Files.write(inbox.resolve(".partial"), SOURCE_STRING.getBytes(UTF_8));
+        Files.write(inbox.resolve("b.txt"), SOURCE_STRING.getBytes(UTF_8));
+
+        assertEquals("translated b.txt", next());
+        assertTrue(Files.exists(inbox.resolve(".partial")));
+        assertFalse(Files.exists(outbox.resolve(".partial")));
+    }
+
+    @Test
+    public void testFailedFile() throws Exception {
+        watchFolder = newWatchFolder(
+                new CharsetTranslator(UTF_8, Charset.forName("US-ASCII")));
+        start();
+        Files.write(inbox.resolve("a.txt"), SOURCE_STRING.getBytes(UTF_8));
+
+        assertEquals("failed a.txt", next());
+        assertFalse(Files.exists(outbox.resolve("a.txt")));
+        assertTrue(Files.exists(inbox.resolve("failed/a.txt")));
+        assertTrue(new String(Files.readAllBytes(
+                inbox.resolve("failed/a.txt.error")), UTF_8)
+                .contains("Unmappable"));
+    }
+
+    @Test
+    public void testManyFilesFewWorkers() throws Exception {
+        watchFolder.setWorkerCount(2);
+        start();
+        for (int i = 0; i < 50; ++i) {
+            Files.write(inbox.resolve(i + ".txt"),
+                    (i + SOURCE_STRING).getBytes(UTF_8));
+        }
+
+        for (int i = 0; i < 50; ++i) {
+            assertTrue(next().startsWith("translated "));
+        }
+        for (int i = 0; i < 50; ++i) {
+            assertEquals(i + SOURCE_STRING, new String(Files.readAllBytes(
+                    outbox.resolve(i + ".txt")), UTF_16BE));
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CancellationToken token = new CancellationToken();
+        translator.setCancellationToken(token);
+        start();
+
+        token.cancel();
+        thread.join(TIMEOUT);
+        assertFalse("watch folder did not stop", thread.isAlive());
+    }
+
+    private WatchFolder newWatchFolder(CharsetTranslator folderTranslator) {
+        WatchFolder result = new WatchFolder(inbox, outbox, folderTranslator,
+                new OutputCommitter(OutputCommitter.SyncPolicy.NONE));
+        result.setSettleTime(200L);
+        result.setListener(new WatchFolder.Listener() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void translated(Path source, Path target) {
+                outcomes.add("translated " + source.getFileName());
+            }
+
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void failed(Path source, Exception cause) {
+                outcomes.add("failed " + source.getFileName());
+            }
+        });
+
+        return result;
+    }
+
+    private void start() {
+        thread = new Thread(new Runnable() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void run() {
+                try {
+                    watchFolder.watch();
+                } catch (Throwable ex) {
+                    failure.set(ex);
+                }
+            }
+        });
+        thread.start();
+    }
+
+    private String next() throws InterruptedException {
+        String outcome = outcomes.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(null, failure.get());
+
+        return outcome;
+    }
+}
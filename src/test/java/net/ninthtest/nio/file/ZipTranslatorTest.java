@@ -0,0 +1,306 @@
+package net.ninthtest.nio.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import net.ninthtest.nio.charset.CancellationToken;
+import net.ninthtest.nio.charset.CharsetTranslator;
+import net.ninthtest.nio.charset.TranslationCanceledException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class ZipTranslatorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private static final String SOURCE_STRING =
+            "$=USD, \u00a5=JPY, \u20ac=EUR\n";
+
+    private static final long TIME = 1271894400000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path source;
+
+    private byte[] binary;
+
+    private String big;
+
+    @Before
+    public void setUp() throws IOException {
+        binary = new byte[100000];
+        new Random(7L).nextBytes(binary);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < ZipTranslator.MAX_BUFFERED_ENTRY_SIZE) {
+            builder.append(SOURCE_STRING);
+        }
+        big = builder.toString();
+
+        source = folder.getRoot().toPath().resolve("delivery.zip");
+        OutputStream file = Files.newOutputStream(source);
+        try {
+            ZipOutputStream out = new ZipOutputStream(file);
+            put(out, "a.txt", SOURCE_STRING.getBytes(UTF_8), ZipEntry.DEFLATED);
+            put(out, "docs/", null, ZipEntry.DEFLATED);
+            put(out, "docs/b.csv", ("b," + SOURCE_STRING).getBytes(UTF_8),
+                    ZipEntry.DEFLATED);
+            put(out, "image.png", binary, ZipEntry.DEFLATED);
+            put(out, "stored.txt", ("s " + SOURCE_STRING).getBytes(UTF_8),
+                    ZipEntry.STORED);
+            put(out, "stored.bin", binary, ZipEntry.STORED);
+            put(out, "big.txt", big.getBytes(UTF_8), ZipEntry.DEFLATED);
+            out.close();
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testMatches() {
+        ZipTranslator translator =
+                new ZipTranslator(new CharsetTranslator(UTF_8, UTF_16BE));
+        assertTrue(translator.matches("a.txt"));
+        assertTrue(translator.matches("x/y/a.TXT.txt"));
+        assertFalse(translator.matches("a.png"));
+
+        translator.setEntryPatterns("data/*.dat, **/*.log");
+        assertTrue(translator.matches("data/a.dat"));
+        assertFalse(translator.matches("data/x/a.dat"));
+        assertFalse(translator.matches("a.dat"));
+        assertTrue(translator.matches("x/y/a.log"));
+        assertFalse(translator.matches("a.txt"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoEntryPattern() {
+        new ZipTranslator(new CharsetTranslator(UTF_8, UTF_16BE))
+                .setEntryPatterns(" , ");
+    }
+
+    @Test
+    public void testTranslate() throws IOException {
+        Path target = translate(
+                new ZipTranslator(new CharsetTranslator(UTF_8, UTF_16BE)), 4);
+
+        ZipFile zip = new ZipFile(target.toFile());
+        try {
+            List<String> names = new ArrayList<String>();
+            for (Enumeration<? extends ZipEntry> entries = zip.entries();
+                    entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                names.add(entry.getName());
+                assertEquals(entry.getName(), TIME, entry.getTime());
+            }
+            assertEquals("[a.txt, docs/, docs/b.csv, image.png, stored.txt,"
+                    + " stored.bin, big.txt]", names.toString());
+
+            assertEquals(SOURCE_STRING, read(zip, "a.txt", UTF_16BE));
+            assertTrue(zip.getEntry("docs/").isDirectory());
+            assertEquals("b," + SOURCE_STRING,
+                    read(zip, "docs/b.csv", UTF_16BE));
+            assertArrayEquals(binary, read(zip, "image.png"));
+            assertEquals("s " + SOURCE_STRING,
+                    read(zip, "stored.txt", UTF_16BE));
+            assertEquals(ZipEntry.STORED,
+                    zip.getEntry("stored.txt").getMethod());
+            assertArrayEquals(binary, read(zip, "stored.bin"));
+            assertEquals(ZipEntry.STORED,
+                    zip.getEntry("stored.bin").getMethod());
+            /* (translated as a stream, as it is too large for memory) */
+            assertEquals(big, read(zip, "big.txt", UTF_16BE));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testManyEntries() throws IOException {
+        OutputStream file = Files.newOutputStream(source);
+        try {
+            ZipOutputStream out = new ZipOutputStream(file);
+            for (int i = 0; i < 2000; ++i) {
+                put(out, i + ".txt", (i + SOURCE_STRING).getBytes(UTF_8),
+                        ZipEntry.DEFLATED);
+            }
+            out.close();
+        } finally {
+            file.close();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ZipTranslator translator = new ZipTranslator(
+                    new CharsetTranslator(UTF_8, UTF_16BE));
+            translator.setExecutor(executor);
+            Path target = translate(translator, 2000);
+
+            ZipFile zip = new ZipFile(target.toFile());
+            try {
+                for (int i = 0; i < 2000; ++i) {
+                    assertEquals(i + SOURCE_STRING,
+                            read(zip, i + ".txt", UTF_16BE));
+                }
+            } finally {
+                zip.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTranslateLargeEntriesWithXmlCharRef() throws IOException {
+        /*
+         * one entry is translated in memory (to over 1 MiB), and the other,
+         * which is stored and too large for memory, through a temporary file
+         */
+        StringBuilder builder = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        while (builder.length() < 600000) {
+            builder.append('\u00e9');
+            expected.append("&#233;");
+        }
+        String deflated = builder.toString();
+        String deflatedExpected = expected.toString();
+        while (builder.length() < (ZipTranslator.MAX_BUFFERED_ENTRY_SIZE / 2)
+                + 1) {
+            builder.append('\u00e9');
+            expected.append("&#233;");
+        }
+        String stored = builder.toString();
+
+        OutputStream file = Files.newOutputStream(source);
+        try {
+            ZipOutputStream out = new ZipOutputStream(file);
+            put(out, "deflated.txt", deflated.getBytes(UTF_8),
+                    ZipEntry.DEFLATED);
+            put(out, "stored.txt", stored.getBytes(UTF_8), ZipEntry.STORED);
+            out.close();
+        } finally {
+            file.close();
+        }
+
+        CharsetTranslator charsetTranslator =
+                new CharsetTranslator(UTF_8, Charset.forName("US-ASCII"));
+        charsetTranslator.useXMLCharRefReplacement(true);
+        Path target = translate(new ZipTranslator(charsetTranslator), 2);
+
+        ZipFile zip = new ZipFile(target.toFile());
+        try {
+            assertEquals(deflatedExpected,
+                    read(zip, "deflated.txt", UTF_8));
+            assertEquals(expected.toString(), read(zip, "stored.txt", UTF_8));
+            ZipEntry entry = zip.getEntry("stored.txt");
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertEquals(expected.length(), entry.getSize());
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testUnmappableEntryIsNamed() throws IOException {
+        ZipTranslator translator = new ZipTranslator(new CharsetTranslator(
+                UTF_8, Charset.forName("US-ASCII")));
+        translator.setEntryPatterns("docs/*.csv");
+
+        try {
+            translator.translate(source, new ByteArrayOutputStream());
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(),
+                    expected.getMessage().startsWith("docs/b.csv: "));
+        }
+    }
+
+    @Test(expected = TranslationCanceledException.class)
+    public void testCanceled() throws IOException {
+        CharsetTranslator charsetTranslator =
+                new CharsetTranslator(UTF_8, UTF_16BE);
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        charsetTranslator.setCancellationToken(token);
+
+        new ZipTranslator(charsetTranslator).translate(source,
+                new ByteArrayOutputStream());
+    }
+
+    private Path translate(ZipTranslator translator, int expectedCount)
+            throws IOException {
+        Path target = folder.getRoot().toPath().resolve("translated.zip");
+        OutputStream out = Files.newOutputStream(target);
+        try {
+            assertEquals(expectedCount, translator.translate(source, out));
+        } finally {
+            out.close();
+        }
+
+        return target;
+    }
+
+    private static void put(ZipOutputStream out, String name, byte[] content,
+            int method) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(TIME);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        if (content != null) {
+            out.write(content);
+        }
+        out.closeEntry();
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = zip.getInputStream(zip.getEntry(name));
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static String read(ZipFile zip, String name, Charset charset)
+            throws IOException {
+        return new String(read(zip, name), charset);
+    }
+}
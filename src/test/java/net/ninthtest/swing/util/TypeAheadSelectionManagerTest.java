@@ -0,0 +1,64 @@
+package net.ninthtest.swing.util;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.swing.DefaultComboBoxModel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class TypeAheadSelectionManagerTest {
+    private DefaultComboBoxModel<String> model;
+
+    @Before
+    public void setUp() {
+        model = new DefaultComboBoxModel<String>(new String[] {"Big5",
+                "ISO-8859-1", "Shift_JIS", "US-ASCII", "UTF-8",
+                "x-UTF-16LE-BOM"});
+    }
+
+    @Test
+    public void testPrefixPreferred() {
+        TypeAheadSelectionManager manager = new TypeAheadSelectionManager();
+
+        assertEquals(3, manager.selectionForKey('u', model));
+        assertEquals(4, manager.selectionForKey('T', model));
+        assertEquals("ut", manager.getSearch());
+    }
+
+    @Test
+    public void testContains() {
+        TypeAheadSelectionManager manager = new TypeAheadSelectionManager();
+
+        assertEquals(2, manager.selectionForKey('j', model));
+        assertEquals(2, manager.selectionForKey('i', model));
+        assertEquals(2, manager.selectionForKey('s', model));
+    }
+
+    @Test
+    public void testContainsLaterItem() {
+        TypeAheadSelectionManager manager = new TypeAheadSelectionManager();
+
+        assertEquals(1, manager.selectionForKey('1', model));
+        assertEquals(5, manager.selectionForKey('6', model));
+    }
+
+    @Test
+    public void testNoMatch() {
+        TypeAheadSelectionManager manager = new TypeAheadSelectionManager();
+
+        assertEquals(-1, manager.selectionForKey('q', model));
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        TypeAheadSelectionManager manager = new TypeAheadSelectionManager(1L);
+
+        manager.selectionForKey('u', model);
+        Thread.sleep(10L);
+
+        assertEquals(1, manager.selectionForKey('i', model));
+        assertEquals("i", manager.getSearch());
+    }
+}